@@ -0,0 +1,158 @@
+package com.kakdela.p2p.ai
+
+import android.content.Context
+import android.util.Log
+import androidx.room.Room
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import org.json.JSONArray
+import org.json.JSONObject
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+/**
+ * Проверка [CloudResponder] на локальной заглушке API: HTTP-сервер на 127.0.0.1,
+ * где одна модель обрывает соединение, другая отвечает 429, третья 404, четвёртая — после задержки.
+ * База знаний — в памяти, сеть и пользовательские данные не затрагиваются.
+ * Запускается на устройстве через [CloudResponderBenchmarkTest]; в APK не входит.
+ */
+object CloudResponderBenchmark {
+
+    private const val TAG = "CloudResponderBench"
+    private const val STUB_LATENCY_MS = 200L
+    private const val CONCURRENT = 5
+
+    private val MODELS = listOf("stub-drop", "stub-429", "stub-404", "stub-ok")
+
+    // Статус заглушки «закрыть соединение без ответа»: у клиента это IOException, как при таймауте
+    private const val DROP = 0
+
+    /**
+     * @return сводка по сценариям: число HTTP-запросов к заглушке, веб-поисков, время и итог проверки.
+     */
+    suspend fun run(context: Context): String = withContext(Dispatchers.IO) {
+        val db = Room.inMemoryDatabaseBuilder(context.applicationContext, AppDatabase::class.java).build()
+        val stub = StubServer(mapOf("stub-drop" to DROP, "stub-429" to 429, "stub-404" to 404))
+        try {
+            val webSearches = AtomicInteger()
+            val responder = CloudResponder(
+                knowledge = KnowledgeBase(db.knowledgeDao()),
+                // Без повтора на обрыве внутри OkHttp: каждый вызов модели — ровно один запрос к заглушке
+                client = RestCloudClient(
+                    "http://127.0.0.1:${stub.port}", "stub",
+                    OkHttpClient.Builder().retryOnConnectionFailure(false).build()
+                ),
+                models = MODELS,
+                webSearch = { webSearches.incrementAndGet(); "" }
+            )
+            val report = StringBuilder()
+
+            suspend fun scenario(name: String, expectedCalls: Int, expectedSearches: Int, block: suspend () -> Unit) {
+                val callsBefore = stub.total()
+                val searchesBefore = webSearches.get()
+                val start = System.nanoTime()
+                block()
+                val ms = (System.nanoTime() - start) / 1_000_000
+                val calls = stub.total() - callsBefore
+                val searches = webSearches.get() - searchesBefore
+                val ok = calls == expectedCalls && searches == expectedSearches
+                report.appendLine("${if (ok) "OK" else "FAIL"} $name: http=$calls (expected $expectedCalls), " +
+                    "web=$searches (expected $expectedSearches), ${ms}ms")
+            }
+
+            // Одновременные одинаковые вопросы: один проход по моделям (обрыв, 429, 404, ответ) и один веб-поиск
+            scenario("$CONCURRENT concurrent identical", MODELS.size, 1) {
+                coroutineScope {
+                    List(CONCURRENT) { async { responder.respond("Что такое DHT?", "") } }.awaitAll()
+                }
+            }
+            // Тот же вопрос в другом написании — из кэша
+            scenario("cached (normalized)", 0, 0) { responder.respond("  что такое dht ", "") }
+            // Новый вопрос: модели с 429 и 404 пропускаются, после сетевой ошибки модель не на паузе
+            scenario("new question, unhealthy skipped", 2, 1) { responder.respond("Что такое ECIES?", "") }
+
+            report.appendLine("stats: ${responder.stats.snapshot()}")
+            report.appendLine("stub calls: ${stub.calls}")
+            report.toString().also { Log.i(TAG, it) }
+        } finally {
+            stub.close()
+            db.close()
+        }
+    }
+
+    /**
+     * Минимальный HTTP/1.1-сервер: POST /v1beta/models/{model}:generateContent,
+     * статус из [statuses] (по умолчанию 200 с ответом после [STUB_LATENCY_MS]; [DROP] — обрыв).
+     */
+    private class StubServer(private val statuses: Map<String, Int>) : AutoCloseable {
+        private val socket = ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+        val port: Int = socket.localPort
+        val calls = ConcurrentHashMap<String, AtomicInteger>()
+
+        init {
+            thread(name = "cloud-stub", isDaemon = true) {
+                while (!socket.isClosed) {
+                    val client = try {
+                        socket.accept()
+                    } catch (_: Exception) {
+                        break
+                    }
+                    thread(isDaemon = true) { client.use { handle(it) } }
+                }
+            }
+        }
+
+        fun total(): Int = calls.values.sumOf { it.get() }
+
+        private fun handle(client: Socket) {
+            val input = client.getInputStream()
+            // Заголовки — ASCII построчно; тело читается байтами по Content-Length (текст в UTF-8)
+            val head = StringBuilder()
+            while (!head.endsWith("\r\n\r\n")) {
+                val b = input.read()
+                if (b < 0) return
+                head.append(b.toChar())
+            }
+            val lines = head.lines()
+            val requestLine = lines.first()
+            val length = lines.firstOrNull { it.startsWith("Content-Length:", true) }
+                ?.substringAfter(':')?.trim()?.toInt() ?: 0
+            var remaining = length
+            val skip = ByteArray(8_192)
+            while (remaining > 0) {
+                val n = input.read(skip, 0, minOf(skip.size, remaining))
+                if (n < 0) break
+                remaining -= n
+            }
+
+            val model = requestLine.substringAfter("/models/").substringBefore(':')
+            calls.getOrPut(model) { AtomicInteger() }.incrementAndGet()
+            val status = statuses[model] ?: 200
+            if (status == DROP) return
+            val payload = if (status == 200) {
+                Thread.sleep(STUB_LATENCY_MS)
+                JSONObject().put("candidates", JSONArray().put(JSONObject().put("content",
+                    JSONObject().put("parts", JSONArray().put(JSONObject().put("text", "stub answer from $model"))))))
+                    .toString()
+            } else {
+                JSONObject().put("error", JSONObject().put("code", status)).toString()
+            }
+            val bytes = payload.toByteArray()
+            val out = client.getOutputStream()
+            out.write(("HTTP/1.1 $status Stub\r\nContent-Type: application/json\r\n" +
+                "Content-Length: ${bytes.size}\r\nConnection: close\r\n\r\n").toByteArray())
+            out.write(bytes)
+            out.flush()
+        }
+
+        override fun close() = socket.close()
+    }
+}
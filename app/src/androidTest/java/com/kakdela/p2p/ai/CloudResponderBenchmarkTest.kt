@@ -0,0 +1,23 @@
+package com.kakdela.p2p.ai
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertFalse
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Инструментальный запуск [CloudResponderBenchmark]: каждый сценарий должен завершиться с OK.
+ */
+@RunWith(AndroidJUnit4::class)
+class CloudResponderBenchmarkTest {
+
+    private val context get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Test
+    fun scenariosPass() = runBlocking {
+        val report = CloudResponderBenchmark.run(context)
+        assertFalse(report, report.lines().any { it.startsWith("FAIL") })
+    }
+}
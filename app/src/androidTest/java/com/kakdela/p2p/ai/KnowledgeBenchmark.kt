@@ -0,0 +1,86 @@
+package com.kakdela.p2p.ai
+
+import android.content.Context
+import android.util.Log
+import androidx.room.Room
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+
+/**
+ * Замер поиска знаний на синтетической базе в памяти (пользовательская ai_teacher_db не затрагивается).
+ * Запускается на устройстве через [KnowledgeBenchmarkTest]; в APK не входит.
+ */
+object KnowledgeBenchmark {
+
+    private const val TAG = "KnowledgeBenchmark"
+    private const val ITERATIONS = 20
+
+    private val TOPICS = listOf(
+        "погода", "рецепт борща", "курс доллара", "шифрование сообщений", "p2p сеть",
+        "футбол", "программирование на kotlin", "история россии", "здоровый сон", "путешествие в сочи"
+    )
+    private val FORMS = listOf("Расскажи про %s", "Что ты знаешь о теме %s?", "Объясни %s простыми словами")
+    private val QUERIES = listOf(
+        "расскажи о шифровании сообщений",
+        "как приготовить борщ",
+        "программировании kotlin",
+        "путешествия сочи"
+    )
+
+    /**
+     * @return сводка: заполнение, загрузка индекса векторов и время запросов (среднее и максимум в мс).
+     */
+    suspend fun run(context: Context, count: Int = 100_000): String = withContext(Dispatchers.IO) {
+        val db = Room.inMemoryDatabaseBuilder(context.applicationContext, AppDatabase::class.java).build()
+        try {
+            val dao = db.knowledgeDao()
+            val fillStart = System.nanoTime()
+            db.runInTransaction(Runnable {
+                // Вставка напрямую, без векторов: их досчитает загрузка индекса
+                val statement = db.openHelper.writableDatabase.compileStatement(
+                    "INSERT INTO knowledge_table(query_text, ai_answer, timestamp) VALUES (?, ?, ?)"
+                )
+                for (i in 0 until count) {
+                    val topic = TOPICS[i % TOPICS.size]
+                    statement.bindString(1, FORMS[i % FORMS.size].format(topic) + " #$i")
+                    statement.bindString(2, "Ответ $i: кратко о теме «$topic».")
+                    statement.bindLong(3, i.toLong())
+                    statement.executeInsert()
+                }
+            })
+            val fillMs = (System.nanoTime() - fillStart) / 1_000_000
+
+            val knowledge = KnowledgeBase(dao)
+            val indexStart = System.nanoTime()
+            knowledge.awaitIndex()
+            val indexMs = (System.nanoTime() - indexStart) / 1_000_000
+
+            val results = listOf(
+                measure("LIKE findSimilar") { dao.findSimilar(QUERIES[it % QUERIES.size]) },
+                measure("FTS + BM25") { knowledge.searchFts(QUERIES[it % QUERIES.size]) },
+                measure("vectors") { knowledge.searchVectors(QUERIES[it % QUERIES.size]) },
+                measure("hybrid search") { knowledge.search(QUERIES[it % QUERIES.size]) }
+            )
+
+            val summary = "entries=$count, fill=${fillMs}ms, vectorIndex=${indexMs}ms; " + results.joinToString("; ")
+            Log.i(TAG, summary)
+            summary
+        } finally {
+            db.close()
+        }
+    }
+
+    private suspend fun measure(name: String, block: suspend (Int) -> Unit): String {
+        block(0) // прогрев
+        var total = 0L
+        var max = 0L
+        repeat(ITERATIONS) { i ->
+            val start = System.nanoTime()
+            block(i)
+            val micros = (System.nanoTime() - start) / 1_000
+            total += micros
+            max = maxOf(max, micros)
+        }
+        return "%s avg=%.2fms max=%.2fms".format(name, total / ITERATIONS / 1000.0, max / 1000.0)
+    }
+}
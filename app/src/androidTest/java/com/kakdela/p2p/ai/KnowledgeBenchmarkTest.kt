@@ -0,0 +1,23 @@
+package com.kakdela.p2p.ai
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Инструментальный запуск [KnowledgeBenchmark]: сводка пишется в logcat (тег KnowledgeBenchmark).
+ */
+@RunWith(AndroidJUnit4::class)
+class KnowledgeBenchmarkTest {
+
+    private val context get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Test
+    fun reportSearchTimings() = runBlocking {
+        val summary = KnowledgeBenchmark.run(context)
+        assertTrue(summary, summary.startsWith("entries="))
+    }
+}
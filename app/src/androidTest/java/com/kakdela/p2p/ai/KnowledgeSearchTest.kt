@@ -0,0 +1,66 @@
+package com.kakdela.p2p.ai
+
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Гибридный поиск [KnowledgeBase] на небольшой базе в памяти: ожидаемое знание первым
+ * при точном слове, при другом окончании (префикс FTS) и при опечатке, которую находят
+ * только триграммные векторы.
+ */
+@RunWith(AndroidJUnit4::class)
+class KnowledgeSearchTest {
+
+    private lateinit var db: AppDatabase
+    private lateinit var knowledge: KnowledgeBase
+
+    @Before
+    fun setUp() = runBlocking {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, AppDatabase::class.java).build()
+        knowledge = KnowledgeBase(db.knowledgeDao())
+        listOf(
+            "Как приготовить борщ" to "Свёкла, капуста и мясной бульон.",
+            "Курс доллара сегодня" to "Смотрите сайт центрального банка.",
+            "Шифрование сообщений в мессенджере" to "Сквозное: ключи есть только у собеседников.",
+            "Погода в Сочи" to "Летом жарко, зимой мягко.",
+            "Программирование на Kotlin" to "Начните с официальной документации.",
+            "Курс лекций по истории России" to "Начните с древней Руси.",
+            "Почему сообщения не доходят" to "Проверьте подключение к сети."
+        ).forEach { (query, answer) -> knowledge.remember(query, answer) }
+        knowledge.awaitIndex()
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun exactWordRanksFirst() = runBlocking {
+        assertEquals("Как приготовить борщ", knowledge.search("борщ").first().query)
+        // «курс» есть и в лекциях, но оба слова — только в курсе доллара
+        assertEquals("Курс доллара сегодня", knowledge.search("курс доллара").first().query)
+    }
+
+    @Test
+    fun prefixStemRanksFirst() = runBlocking {
+        assertTrue(knowledge.searchFts("шифрованием").isNotEmpty())
+        assertEquals("Шифрование сообщений в мессенджере", knowledge.search("шифрованием").first().query)
+    }
+
+    @Test
+    fun trigramOnlyMatchRanksFirst() = runBlocking {
+        // Опечатка в середине слова: префикс FTS не совпадает, триграммы — да
+        assertTrue(knowledge.searchFts("програмирование").isEmpty())
+        assertEquals("Программирование на Kotlin", knowledge.search("програмирование").first().query)
+    }
+}
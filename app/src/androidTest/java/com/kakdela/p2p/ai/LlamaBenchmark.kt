@@ -0,0 +1,72 @@
+package com.kakdela.p2p.ai
+
+import android.util.Log
+import kotlinx.coroutines.flow.collect
+
+/**
+ * Замер локальной модели на многоходовом диалоге.
+ * Требует загруженной модели ([LlamaBridge.isReady]); сбрасывает KV-кэш, поэтому
+ * следующий пользовательский запрос будет декодирован целиком.
+ * Запускается на устройстве через [LlamaBenchmarkTest]; в APK не входит.
+ */
+object LlamaBenchmark {
+
+    private const val TAG = "LlamaBenchmark"
+    private const val ANSWER_TOKENS = 32
+
+    private val QUESTIONS = listOf(
+        "Привет! Как тебя зовут?",
+        "Что такое P2P-сеть?",
+        "Чем она отличается от клиент-серверной?",
+        "Приведи пример протокола.",
+        "Как узлы находят друг друга?",
+        "Что такое DHT?",
+        "Зачем нужно шифрование сообщений?",
+        "Что такое ECIES?",
+        "Как хранить ключи на телефоне?",
+        "Подведи итог нашего разговора."
+    )
+
+    /**
+     * Диалог из [turns] ходов: на каждом ходе — время prefill, сколько токенов взято из кэша
+     * и сколько декодировано. На последнем ходе тот же промпт повторяется с пустым кэшем
+     * для сравнения с полным prefill.
+     * @return сводка по ходам.
+     */
+    suspend fun conversation(turns: Int = 10): String {
+        if (!LlamaBridge.isLibAvailable() || !LlamaBridge.isReady()) return "Local model is not loaded"
+
+        val conversation = LocalConversation()
+        val report = StringBuilder()
+        LlamaBridge.clearCache()
+
+        repeat(turns) { turn ->
+            conversation.ask("", QUESTIONS[turn % QUESTIONS.size], ANSWER_TOKENS).collect()
+            LlamaBridge.lastStats?.let { report.appendLine("turn ${turn + 1}: ${format(it)}") }
+        }
+
+        // Тот же последний ход без кэша: стенограмма уже содержит его ответ, поэтому промпт длиннее на один ход
+        LlamaBridge.clearCache()
+        conversation.ask("", QUESTIONS[turns % QUESTIONS.size], ANSWER_TOKENS).collect()
+        LlamaBridge.lastStats?.let { report.appendLine("turn ${turns + 1} (cold cache): ${format(it)}") }
+        conversation.ask("", QUESTIONS[(turns + 1) % QUESTIONS.size], ANSWER_TOKENS).collect()
+        LlamaBridge.lastStats?.let { report.appendLine("turn ${turns + 2} (warm cache): ${format(it)}") }
+
+        return report.toString().also { Log.i(TAG, it) }
+    }
+
+    /**
+     * Скорость декодирования и prefill для каждой конфигурации потоков и ядер
+     * ([LlamaTuning.candidates]). Сбрасывает KV-кэш; действующая конфигурация после замеров не меняется.
+     * @return по строке на конфигурацию.
+     */
+    suspend fun configurations(): String {
+        if (!LlamaBridge.isLibAvailable() || !LlamaBridge.isReady()) return "Local model is not loaded"
+        return LlamaTuning.measure().joinToString("\n").also { Log.i(TAG, it) }
+    }
+
+    private fun format(stats: LlamaBridge.GenerationStats): String =
+        "prefill ${stats.prefillMs} ms (${stats.prefillTokens} new / ${stats.reusedTokens} reused" +
+            (if (stats.shiftedTokens > 0) ", ${stats.shiftedTokens} shifted" else "") +
+            "), ttft ${stats.ttftMs} ms, ${"%.2f".format(stats.tokensPerSec)} tok/s"
+}
@@ -0,0 +1,39 @@
+package com.kakdela.p2p.ai
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Инструментальный запуск [LlamaBenchmark]: сводка пишется в logcat (тег LlamaBenchmark).
+ * Нужна скачанная модель; без неё тесты пропускаются.
+ */
+@RunWith(AndroidJUnit4::class)
+class LlamaBenchmarkTest {
+
+    private val context get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Before
+    fun loadModel() = runBlocking {
+        val modelFile = ModelDownloadManager.getModelFile(context)
+        assumeTrue("local model is not downloaded", LlamaBridge.isLibAvailable() && modelFile.exists())
+        if (!LlamaBridge.isReady()) assumeTrue(LlamaStateCache.loadAndWarm(context, modelFile))
+    }
+
+    @Test
+    fun reportConversationTimings() = runBlocking {
+        val report = LlamaBenchmark.conversation()
+        assertTrue(report, report.contains("turn 1:"))
+    }
+
+    @Test
+    fun reportThreadConfigurations() = runBlocking {
+        val report = LlamaBenchmark.configurations()
+        assertTrue(report, report.isNotBlank())
+    }
+}
@@ -0,0 +1,208 @@
+package com.kakdela.p2p.ai
+
+import android.content.Context
+import android.util.Log
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+import kotlin.random.Random
+
+/**
+ * Проверка [SegmentedDownloader] на локальном HTTP-сервере (127.0.0.1), который отдаёт
+ * случайный файл с поддержкой Range/If-Range и обрывает каждое соединение через 1–3 МБ.
+ * Файлы создаются в cacheDir и удаляются после проверки.
+ * Запускается на устройстве через [ModelDownloadBenchmarkTest]; в APK не входит.
+ */
+object ModelDownloadBenchmark {
+
+    private const val TAG = "ModelDownloadBench"
+    private const val MB = 1024 * 1024
+
+    /**
+     * @return сводка по сценариям: полная загрузка с обрывами, докачка после отмены,
+     * несовпадение SHA-256.
+     */
+    suspend fun run(context: Context, sizeMb: Int = 64): String = withContext(Dispatchers.IO) {
+        val dir = File(context.cacheDir, "download-bench").apply { mkdirs() }
+        val source = File(dir, "source.bin")
+        val sha256 = writeRandom(source, sizeMb.toLong() * MB)
+        val client = OkHttpClient.Builder().readTimeout(10, TimeUnit.SECONDS).build()
+        val report = StringBuilder()
+
+        fun line(ok: Boolean, text: String) = report.appendLine("${if (ok) "OK" else "FAIL"} $text")
+
+        try {
+            StubFileServer(source, sha256).use { server ->
+                val url = "http://127.0.0.1:${server.port}/model.gguf"
+
+                // 1. Полная загрузка: каждое соединение обрывается, сегменты докачиваются
+                val target = File(dir, "model-1.gguf")
+                val full = SegmentedDownloader(client).download(url, target)
+                line(full.sha256 == sha256 && target.length() == source.length(),
+                    "full: ${full.elapsedMs}ms, retries=${full.retries}, requests=${server.requests.get()}, " +
+                        "served=${server.served.get() / MB}MB")
+
+                // 2. Отмена на ~40%, затем продолжение по сохранённой карте сегментов
+                val resumedTarget = File(dir, "model-2.gguf")
+                val stopped = try {
+                    SegmentedDownloader(client).download(url, resumedTarget) { done, total ->
+                        if (done * 100 / total >= 40) throw StopDownload()
+                    }
+                    false
+                } catch (_: StopDownload) {
+                    true
+                }
+                val servedBefore = server.served.get()
+                val resumed = SegmentedDownloader(client).download(url, resumedTarget)
+                val servedAfter = server.served.get() - servedBefore
+                line(stopped && resumed.resumedBytes > 0 && resumed.sha256 == sha256 &&
+                    resumed.resumedBytes + resumed.fetchedBytes >= resumed.totalBytes,
+                    "resume: resumed=${resumed.resumedBytes / MB}MB, fetched=${resumed.fetchedBytes / MB}MB, " +
+                        "served=${servedAfter / MB}MB of ${resumed.totalBytes / MB}MB")
+
+                // 3. Неверный ожидаемый хеш: файл не переименовывается, недокачанное удаляется
+                val badTarget = File(dir, "model-3.gguf")
+                val mismatch = try {
+                    SegmentedDownloader(client).download(url, badTarget, expectedSha256 = "0".repeat(64))
+                    false
+                } catch (e: IOException) {
+                    e.message?.contains("SHA-256") == true
+                }
+                line(mismatch && !badTarget.exists() && !File(dir, "model-3.gguf.tmp").exists(), "sha256 mismatch rejected")
+
+                // 4. Нет ни ожидаемого хеша, ни X-Linked-Etag: отказ до скачивания тела
+                val unverifiedTarget = File(dir, "model-4.gguf")
+                val servedBeforeUnverified = server.served.get()
+                val refused = try {
+                    SegmentedDownloader(client).download(
+                        "http://127.0.0.1:${server.port}/unsigned.gguf", unverifiedTarget, requireSha256 = true
+                    )
+                    false
+                } catch (e: IOException) {
+                    e.message?.contains("SHA-256") == true
+                }
+                line(refused && !unverifiedTarget.exists() && !File(dir, "model-4.gguf.tmp").exists() &&
+                    server.served.get() - servedBeforeUnverified <= 1, "unverified download refused")
+            }
+        } finally {
+            dir.deleteRecursively()
+        }
+        report.toString().also { Log.i(TAG, it) }
+    }
+
+    // Не IOException: иначе загрузчик принял бы остановку за обрыв и повторил запрос
+    private class StopDownload : RuntimeException("bench stop")
+
+    private fun writeRandom(file: File, length: Long): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val random = Random(42)
+        val chunk = ByteArray(MB)
+        file.outputStream().use { out ->
+            var left = length
+            while (left > 0) {
+                random.nextBytes(chunk)
+                val n = minOf(left, chunk.size.toLong()).toInt()
+                out.write(chunk, 0, n)
+                digest.update(chunk, 0, n)
+                left -= n
+            }
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    /**
+     * HTTP/1.1-сервер одного файла: Range, If-Range по ETag, X-Linked-Etag с SHA-256
+     * (кроме пути /unsigned…); тело каждого ответа обрывается после случайных 1–3 МБ.
+     */
+    private class StubFileServer(private val file: File, private val sha256: String) : AutoCloseable {
+        private val socket = ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+        private val etag = "\"${sha256.take(16)}\""
+        val port: Int = socket.localPort
+        val requests = AtomicInteger()
+        val served = AtomicLong()
+
+        init {
+            thread(name = "download-stub", isDaemon = true) {
+                while (!socket.isClosed) {
+                    val client = try {
+                        socket.accept()
+                    } catch (_: Exception) {
+                        break
+                    }
+                    thread(isDaemon = true) {
+                        try {
+                            client.use { handle(it) }
+                        } catch (_: IOException) {
+                            // Клиент ушёл раньше — для заглушки это норма
+                        }
+                    }
+                }
+            }
+        }
+
+        private fun handle(client: Socket) {
+            val input = client.getInputStream()
+            val head = StringBuilder()
+            while (!head.endsWith("\r\n\r\n")) {
+                val b = input.read()
+                if (b < 0) return
+                head.append(b.toChar())
+            }
+            requests.incrementAndGet()
+            val unsigned = head.startsWith("GET /unsigned")
+            val headers = head.lines().drop(1).filter { ':' in it }
+                .associate { it.substringBefore(':').trim().lowercase() to it.substringAfter(':').trim() }
+
+            val length = file.length()
+            val ifRange = headers["if-range"]
+            var from = 0L
+            var to = length - 1
+            val ranged = headers["range"]?.takeIf { ifRange == null || ifRange == etag }?.let { range ->
+                val spec = range.substringAfter("bytes=")
+                from = spec.substringBefore('-').toLong()
+                spec.substringAfter('-').toLongOrNull()?.let { to = minOf(it, length - 1) }
+                true
+            } ?: false
+
+            val count = to - from + 1
+            val out = client.getOutputStream()
+            out.write(buildString {
+                append(if (ranged) "HTTP/1.1 206 Partial Content\r\n" else "HTTP/1.1 200 OK\r\n")
+                append("Content-Length: $count\r\n")
+                if (ranged) append("Content-Range: bytes $from-$to/$length\r\n")
+                append("Accept-Ranges: bytes\r\nETag: $etag\r\n")
+                if (!unsigned) append("X-Linked-Etag: \"$sha256\"\r\n")
+                append("Connection: close\r\n\r\n")
+            }.toByteArray())
+
+            // Обрыв: отдаём только часть тела (короткие ответы вроде bytes=0-0 — целиком)
+            val limit = minOf(count, Random.nextLong(1L * MB, 3L * MB))
+            RandomAccessFile(file, "r").use { raf ->
+                raf.seek(from)
+                val buffer = ByteArray(64 * 1024)
+                var left = limit
+                while (left > 0) {
+                    val n = raf.read(buffer, 0, minOf(left, buffer.size.toLong()).toInt())
+                    if (n < 0) break
+                    out.write(buffer, 0, n)
+                    served.addAndGet(n.toLong())
+                    left -= n
+                }
+            }
+            out.flush()
+        }
+
+        override fun close() = socket.close()
+    }
+}
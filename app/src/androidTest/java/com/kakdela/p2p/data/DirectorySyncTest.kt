@@ -0,0 +1,232 @@
+package com.kakdela.p2p.data
+
+import android.content.Context
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.kakdela.p2p.api.WebViewApiClient
+import com.kakdela.p2p.data.local.ChatDatabase
+import com.kakdela.p2p.data.local.NodeEntity
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.concurrent.thread
+
+/**
+ * [DirectorySync] против локальной заглушки api.php (action=get_nodes): курсор since,
+ * ETag/304 и запись в dht_nodes только изменившихся строк.
+ */
+@RunWith(AndroidJUnit4::class)
+class DirectorySyncTest {
+
+    private lateinit var db: ChatDatabase
+    private lateinit var stub: StubApi
+    private lateinit var sync: DirectorySync
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, ChatDatabase::class.java).build()
+        // Журнал записей в dht_nodes: по нему видно, какие строки синхронизация действительно трогала
+        db.openHelper.writableDatabase.apply {
+            execSQL("CREATE TABLE node_writes (userHash TEXT NOT NULL)")
+            execSQL("CREATE TRIGGER node_writes_insert AFTER INSERT ON dht_nodes BEGIN INSERT INTO node_writes VALUES (NEW.userHash); END")
+            execSQL("CREATE TRIGGER node_writes_update AFTER UPDATE ON dht_nodes BEGIN INSERT INTO node_writes VALUES (NEW.userHash); END")
+        }
+        val prefs = context.getSharedPreferences("directory_sync_test", Context.MODE_PRIVATE)
+        prefs.edit().clear().commit()
+
+        stub = StubApi()
+        WebViewApiClient.useDirectServer("http://127.0.0.1:${stub.port}/api.php")
+        sync = DirectorySync(WebViewApiClient, db.nodeDao(), PeerDirectory(db.nodeDao()), prefs)
+    }
+
+    @After
+    fun tearDown() {
+        stub.close()
+        db.close()
+    }
+
+    @Test
+    fun incrementalSync() = runBlocking {
+        // Первая синхронизация: без since и If-None-Match, весь каталог
+        stub.put(user("a", "10.0.0.1", lastSeen = 1_990_000))
+        stub.put(user("b", "10.0.0.2", lastSeen = 1_500_000))
+        stub.put(user("c", "10.0.0.3", lastSeen = 1_000_000))
+        stub.serverTime = 2_000_000
+
+        assertEquals(3, syncNow())
+        stub.lastRequest().let {
+            assertNull(it.since)
+            assertNull(it.ifNoneMatch)
+        }
+        assertEquals(listOf("a", "b", "c"), takeWrites().sorted())
+
+        // Каталог не менялся: условный запрос с курсором и ETag, ответ 304, БД не трогается
+        assertEquals(0, syncNow())
+        stub.lastRequest().let {
+            assertEquals(2_000_000L - 60_000L, it.since)
+            assertEquals(stub.etag(), it.ifNoneMatch)
+            assertEquals(304, it.status)
+        }
+        assertEquals(emptyList<String>(), takeWrites())
+
+        // Локальное поле, которого нет на сервере, должно пережить обновление строки
+        db.nodeDao().upsert(db.nodeDao().getNodeByHash("b")!!.copy(email = "b@local"))
+        takeWrites()
+
+        // Изменился только b; a попадает в дельту из-за перекрытия курсора, но не меняется
+        stub.put(user("b", "10.0.0.22", lastSeen = 2_500_000))
+        stub.serverTime = 2_600_000
+
+        assertEquals(1, syncNow())
+        stub.lastRequest().let {
+            assertEquals(1_940_000L, it.since)
+            assertEquals(listOf("a", "b"), it.returned.sorted())
+        }
+        assertEquals(listOf("b"), takeWrites())
+        db.nodeDao().getNodeByHash("b")!!.let {
+            assertEquals("10.0.0.22", it.ip)
+            assertEquals("b@local", it.email)
+        }
+
+        // Следующий курсор — время сервера из последнего ответа
+        syncNow()
+        assertEquals(2_540_000L, stub.lastRequest().since)
+    }
+
+    /** Вызов в ту же миллисекунду, что и прошлая синхронизация, DirectorySync считает уже выполненным. */
+    private suspend fun syncNow(): Int? {
+        delay(5)
+        return sync.sync(force = true)
+    }
+
+    private fun takeWrites(): List<String> {
+        val sqlite = db.openHelper.writableDatabase
+        val hashes = ArrayList<String>()
+        sqlite.query("SELECT userHash FROM node_writes").use { c ->
+            while (c.moveToNext()) hashes.add(c.getString(0))
+        }
+        sqlite.execSQL("DELETE FROM node_writes")
+        return hashes
+    }
+
+    private fun user(hash: String, ip: String, lastSeen: Long) = NodeEntity(
+        userHash = hash,
+        ip = ip,
+        publicKey = "key-$hash",
+        phone = "",
+        lastSeen = lastSeen
+    )
+
+    /**
+     * Заглушка api.php: GET ?action=get_nodes[&since=], узлы с lastSeen >= since,
+     * ETag — версия каталога, совпавший If-None-Match даёт 304.
+     */
+    private class StubApi : AutoCloseable {
+
+        class Request(val since: Long?, val ifNoneMatch: String?, val status: Int, val returned: List<String>)
+
+        private val socket = ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+        val port: Int = socket.localPort
+        val requests = CopyOnWriteArrayList<Request>()
+
+        private val users = LinkedHashMap<String, NodeEntity>()
+        private var version = 0
+        @Volatile
+        var serverTime = 0L
+
+        init {
+            thread(name = "api-stub", isDaemon = true) {
+                while (!socket.isClosed) {
+                    val client = try {
+                        socket.accept()
+                    } catch (_: Exception) {
+                        break
+                    }
+                    thread(isDaemon = true) { client.use { handle(it) } }
+                }
+            }
+        }
+
+        @Synchronized
+        fun put(node: NodeEntity) {
+            users[node.userHash] = node
+            version++
+        }
+
+        @Synchronized
+        fun etag() = "\"v$version\""
+
+        fun lastRequest(): Request = requests.last()
+
+        private fun handle(client: Socket) {
+            val input = client.getInputStream()
+            val head = StringBuilder()
+            while (!head.endsWith("\r\n\r\n")) {
+                val b = input.read()
+                if (b < 0) return
+                head.append(b.toChar())
+            }
+            val lines = head.lines()
+            val query = lines.first().substringAfter('?', "").substringBefore(' ')
+            val params = query.split('&').filter { '=' in it }
+                .associate { it.substringBefore('=') to it.substringAfter('=') }
+            val ifNoneMatch = lines.firstOrNull { it.startsWith("If-None-Match:", true) }
+                ?.substringAfter(':')?.trim()
+            val since = params["since"]?.toLongOrNull()
+
+            val out = client.getOutputStream()
+            if (params["action"] != "get_nodes") {
+                out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".toByteArray())
+                out.flush()
+                return
+            }
+
+            val (etag, delta) = synchronized(this) {
+                etag() to users.values.filter { since == null || it.lastSeen >= since }
+            }
+            if (ifNoneMatch == etag) {
+                requests.add(Request(since, ifNoneMatch, 304, emptyList()))
+                out.write("HTTP/1.1 304 Not Modified\r\nETag: $etag\r\nConnection: close\r\n\r\n".toByteArray())
+                out.flush()
+                return
+            }
+
+            val body = JSONObject()
+                .put("success", true)
+                .put("server_time", serverTime)
+                .put("users", JSONArray().apply {
+                    delta.forEach { node ->
+                        put(JSONObject()
+                            .put("hash", node.userHash)
+                            .put("ip", node.ip)
+                            .put("port", node.port)
+                            .put("publicKey", node.publicKey)
+                            .put("phone", node.phone)
+                            .put("lastSeen", node.lastSeen))
+                    }
+                })
+                .toString()
+                .toByteArray()
+            requests.add(Request(since, ifNoneMatch, 200, delta.map { it.userHash }))
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nETag: $etag\r\n" +
+                "Content-Length: ${body.size}\r\nConnection: close\r\n\r\n").toByteArray())
+            out.write(body)
+            out.flush()
+        }
+
+        override fun close() = socket.close()
+    }
+}
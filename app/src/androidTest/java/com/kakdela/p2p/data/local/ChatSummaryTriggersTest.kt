@@ -0,0 +1,78 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Сводки, которые ведут триггеры, должны совпадать с полным пересчётом [ChatSummaryDao.rebuild]
+ * после любых путей записи: вставки, REPLACE, прочтения, удаления последнего и очистки чата.
+ */
+@RunWith(AndroidJUnit4::class)
+class ChatSummaryTriggersTest {
+
+    private lateinit var db: ChatDatabase
+    private val dao get() = db.messageDao()
+    private val summaries get() = db.chatSummaryDao()
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, ChatDatabase::class.java)
+            .addCallback(ChatDatabase.Triggers)
+            .build()
+    }
+
+    @After
+    fun tearDown() = db.close()
+
+    @Test
+    fun triggersMatchRebuild() = runBlocking {
+        dao.insertAll((0 until 300).map { message(it, chat = "chat_${it % 7}") })
+        assertMatchesRebuild()
+
+        // REPLACE той же записи с новым текстом
+        dao.insert(message(299, chat = "chat_${299 % 7}").copy(text = "edited"))
+        assertMatchesRebuild()
+
+        dao.markChatAsRead("chat_1")
+        assertMatchesRebuild()
+
+        dao.getMessageById("m299")?.let { dao.delete(it) }
+        assertMatchesRebuild()
+
+        dao.clearChatHistory("chat_2")
+        assertMatchesRebuild()
+    }
+
+    @Test
+    fun summariesListMatchesLastMessages() = runBlocking {
+        dao.insertAll((0 until 300).map { message(it, chat = "chat_${it % 11}") })
+        val last = dao.observeLastMessages().first().map { it.chatId to it.messageId }
+        val fromSummaries = summaries.observeSummaries().first().map { it.chatId to it.lastMessageId }
+        assertEquals(last, fromSummaries)
+    }
+
+    private suspend fun assertMatchesRebuild() {
+        val maintained = summaries.observeSummaries().first()
+        summaries.rebuild()
+        assertEquals(summaries.observeSummaries().first(), maintained)
+    }
+
+    private fun message(i: Int, chat: String) = MessageEntity(
+        messageId = "m$i",
+        chatId = chat,
+        senderId = if (i % 3 == 0) "me" else "peer",
+        receiverId = if (i % 3 == 0) "peer" else "me",
+        text = "Message $i",
+        timestamp = 1_000_000L + i * 1_000L,
+        isMe = i % 3 == 0
+    )
+}
@@ -0,0 +1,110 @@
+package com.kakdela.p2p.data.local
+
+import android.content.Context
+import android.util.Log
+import androidx.room.Room
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.withContext
+import java.util.UUID
+
+/**
+ * Замер времени основных запросов чата на синтетической базе.
+ * База создаётся в памяти и не затрагивает пользовательские данные.
+ * Запускается на устройстве через [MessageQueryBenchmarkTest]; в APK не входит.
+ */
+object MessageQueryBenchmark {
+
+    private const val TAG = "MessageQueryBenchmark"
+    private const val ATTACHMENT_SHARE = 20       // Каждое 20-е сообщение — вложение
+    private const val ITERATIONS = 20
+    private const val RARE_SHARE = 5_000
+    private const val RARE_WORD = "черновик"
+    private val WORDS = listOf("привет", "завтра встреча", "согласен", "документы", "hello", "ок")
+
+    /**
+     * Триггеры подключены, поэтому время заполнения включает поддержку сводок чатов.
+     * @return сводка по запросам (среднее и максимум в мс).
+     */
+    suspend fun run(
+        context: Context,
+        messageCount: Int = 100_000,
+        chats: Int = 500
+    ): String = withContext(Dispatchers.IO) {
+        val db = Room.inMemoryDatabaseBuilder(context.applicationContext, ChatDatabase::class.java)
+            .addCallback(ChatDatabase.Triggers)
+            .build()
+        try {
+            val dao = db.messageDao()
+            val attachmentDao = db.attachmentDao()
+            val summaryDao = db.chatSummaryDao()
+            val searchDao = db.messageSearchDao()
+            val now = System.currentTimeMillis()
+
+            val fillStart = System.nanoTime()
+            (0 until messageCount).chunked(1_000).forEach { range ->
+                dao.insertAll(range.map { i ->
+                    val hash = if (i % ATTACHMENT_SHARE == 0) "%064x".format(i) else null
+                    if (hash != null) attachmentDao.insertIfAbsent(AttachmentEntity(hash, 256 * 1024L, "image/jpeg"))
+                    MessageEntity(
+                        messageId = UUID.randomUUID().toString(),
+                        chatId = "chat_${i % chats}",
+                        senderId = "peer",
+                        receiverId = "me",
+                        text = when {
+                            hash != null -> "FILE: photo_$i.jpg"
+                            i % RARE_SHARE == 1 -> "Message $i $RARE_WORD"
+                            else -> "Message $i ${WORDS[i % WORDS.size]}"
+                        },
+                        timestamp = now - (messageCount - i) * 1_000L,
+                        isMe = i % 2 == 0,
+                        messageType = if (hash != null) "image" else "TEXT",
+                        fileHash = hash,
+                        fileSize = hash?.let { 256 * 1024L }
+                    )
+                })
+            }
+            val fillMs = (System.nanoTime() - fillStart) / 1_000_000
+
+            val results = listOf(
+                measure("observeMessages(chat)") { dao.observeMessages("chat_${it % chats}").first() },
+                measure("getLatestPage(chat, 50)") { dao.getLatestPage("chat_${it % chats}", 50) },
+                measure("observeLastMessages") { dao.observeLastMessages().first() },
+                measure("observeSummaries") { summaryDao.observeSummaries().first() },
+                measure("search FTS prefix") { searchDao.search("соглас*", null, null, null, 30) },
+                measure("search FTS phrase in chat") {
+                    searchDao.search("\"завтра встреча\"", "chat_${it % chats}", null, null, 30)
+                },
+                // Редкое слово: LIKE не может остановиться рано и просматривает всю таблицу
+                measure("search FTS rare") { searchDao.search(RARE_WORD, null, null, null, 30) },
+                measure("search LIKE rare") { searchDao.searchLike(RARE_WORD, 30) },
+                measure("getPendingScheduledMessages") { dao.getPendingScheduledMessages(now) }
+            )
+
+            val rebuildStart = System.nanoTime()
+            summaryDao.rebuild()
+            val rebuildMs = (System.nanoTime() - rebuildStart) / 1_000_000
+
+            val summary = "messages=$messageCount, chats=$chats, fill=${fillMs}ms, summaryRebuild=${rebuildMs}ms; " +
+                results.joinToString("; ")
+            Log.i(TAG, summary)
+            summary
+        } finally {
+            db.close()
+        }
+    }
+
+    private suspend fun measure(name: String, block: suspend (Int) -> Unit): String {
+        block(0) // прогрев
+        var total = 0L
+        var max = 0L
+        repeat(ITERATIONS) { i ->
+            val start = System.nanoTime()
+            block(i)
+            val micros = (System.nanoTime() - start) / 1_000
+            total += micros
+            max = maxOf(max, micros)
+        }
+        return "%s avg=%.2fms max=%.2fms".format(name, total / ITERATIONS / 1000.0, max / 1000.0)
+    }
+}
@@ -0,0 +1,23 @@
+package com.kakdela.p2p.data.local
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Инструментальный запуск [MessageQueryBenchmark]: сводка пишется в logcat (тег MessageQueryBenchmark).
+ */
+@RunWith(AndroidJUnit4::class)
+class MessageQueryBenchmarkTest {
+
+    private val context get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Test
+    fun reportQueryTimings() = runBlocking {
+        val summary = MessageQueryBenchmark.run(context)
+        assertTrue(summary, summary.startsWith("messages="))
+    }
+}
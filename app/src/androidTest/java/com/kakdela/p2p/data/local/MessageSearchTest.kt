@@ -0,0 +1,102 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.kakdela.p2p.data.MessageSearch
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * FTS-поиск должен находить те же сообщения, что и сканирование LIKE, в том числе
+ * после REPLACE, удаления и очистки чата, которые индекс отслеживает триггерами.
+ */
+@RunWith(AndroidJUnit4::class)
+class MessageSearchTest {
+
+    private lateinit var db: ChatDatabase
+    private val dao get() = db.messageDao()
+    private val searchDao get() = db.messageSearchDao()
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        db = Room.inMemoryDatabaseBuilder(context, ChatDatabase::class.java)
+            .addCallback(ChatDatabase.Triggers)
+            .build()
+    }
+
+    @After
+    fun tearDown() = db.close()
+
+    @Test
+    fun ftsMatchesLikeScan() = runBlocking {
+        // LIKE сравнивает кириллицу с учётом регистра, поэтому слово в нижнем регистре
+        dao.insertAll((0 until 2_000).map { i ->
+            message(i, text = if (i % 97 == 0) "Message $i черновик отчёта" else "Message $i привет")
+        })
+        assertSameHits(RARE_WORD)
+
+        // REPLACE убирает старый текст из индекса
+        dao.insert(message(0, text = "Message 0 без слова"))
+        assertSameHits(RARE_WORD)
+
+        dao.getMessageById("m97")?.let { dao.delete(it) }
+        dao.clearChatHistory("chat_1")
+        assertSameHits(RARE_WORD)
+    }
+
+    @Test
+    fun pagesCoverAllHitsInOrder() = runBlocking {
+        dao.insertAll((0 until 200).map { message(it, text = "Message $it $RARE_WORD") })
+        val search = MessageSearch(searchDao)
+
+        val ids = ArrayList<String>()
+        var page = search.search(RARE_WORD, limit = 30)
+        ids += page.hits.map { it.messageId }
+        while (page.next != null) {
+            page = search.search(RARE_WORD, after = page.next, limit = 30)
+            ids += page.hits.map { it.messageId }
+        }
+        assertEquals(searchDao.searchLike(RARE_WORD, 1_000).map { it.messageId }, ids)
+    }
+
+    @Test
+    fun prefixAndPhraseQueries() = runBlocking {
+        dao.insertAll(listOf(
+            message(1, text = "Завтра встреча в офисе"),
+            message(2, text = "встреча завтра"),
+            message(3, text = "Согласен")
+        ))
+        val search = MessageSearch(searchDao)
+
+        assertEquals(listOf("m1"), search.search("\"завтра встреча\"").hits.map { it.messageId })
+        assertEquals(listOf("m3"), search.search("соглас").hits.map { it.messageId })
+        assertTrue(search.search("\"").hits.isEmpty())
+    }
+
+    private suspend fun assertSameHits(word: String) {
+        val fts = searchDao.search(word, null, null, null, 1_000).map { it.messageId }
+        val like = searchDao.searchLike(word, 1_000).map { it.messageId }
+        assertEquals(like, fts)
+    }
+
+    private fun message(i: Int, text: String) = MessageEntity(
+        messageId = "m$i",
+        chatId = "chat_${i % 5}",
+        senderId = "peer",
+        receiverId = "me",
+        text = text,
+        timestamp = 1_000_000L + i * 1_000L,
+        isMe = false
+    )
+
+    private companion object {
+        const val RARE_WORD = "черновик"
+    }
+}
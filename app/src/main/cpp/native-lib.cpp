@@ -4,8 +4,14 @@
 #include <android/log.h>
 #include <thread>
 #include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <functional>
+#include <mutex>
+#include <set>
 #include "llama.h"
 #include "common.h"
+#include "ggml-cpu.h"
 
 #define LOG_TAG "LlamaNative"
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
@@ -15,24 +21,440 @@ static llama_model *model = nullptr;
 static llama_context *ctx = nullptr;
 static llama_sampler *sampler = nullptr;
 
+// Контекст один на процесс: генерации выполняются по очереди
+static std::mutex generate_mutex;
+// Кооперативная отмена: проверяется между шагами декодирования и внутри llama_decode
+static std::atomic<bool> cancel_requested{false};
+
+// Отмена адресуется конкретному вызову generate по его id (выдаёт Kotlin-сторона):
+// отмена, пришедшая, пока вызов ждёт generate_mutex, запоминается и не теряется,
+// а отмена завершённого или чужого вызова не задевает следующий.
+static std::mutex cancel_mutex;
+static int64_t running_generation = 0;
+static std::set<int64_t> cancelled_generations;
+static const size_t MAX_CANCELLED_PENDING = 64;
+
+// Вызывается под generate_mutex перед генерацией с идентификатором id (0 — без id)
+static void begin_generation(int64_t id) {
+    std::lock_guard<std::mutex> lock(cancel_mutex);
+    running_generation = id;
+    cancel_requested.store(id != 0 && cancelled_generations.erase(id) > 0);
+}
+
+static void end_generation() {
+    std::lock_guard<std::mutex> lock(cancel_mutex);
+    running_generation = 0;
+    cancel_requested.store(false);
+}
+
+// Снимает флаг при выходе из generate по любому пути
+struct GenerationScope {
+    explicit GenerationScope(int64_t id) { begin_generation(id); }
+    ~GenerationScope() { end_generation(); }
+};
+
+// Токены, лежащие в KV-кэше (последовательность 0), по позициям 0..size-1
+static std::vector<llama_token> cached_tokens;
+// Сколько первых токенов диалога вытеснено из кэша при сдвиге окна
+static int cached_conv_offset = 0;
+// Сколько первых токенов кэша — системный блок (не вытесняется)
+static int cached_keep = 0;
+
+/**
+ * Параметры потоков: отдельно для декодирования (по одному токену) и для prefill.
+ * cpus — ядра для закрепления (пусто — решает планировщик). На big.LITTLE медленные
+ * ядра тормозят всю группу потоков, поэтому конфигурация подбирается калибровкой (LlamaTuning).
+ */
+struct ThreadConfig {
+    int decode_threads  = std::max(1, (int) std::thread::hardware_concurrency() - 1);
+    int prefill_threads = std::max(1, (int) std::thread::hardware_concurrency() - 1);
+    std::vector<int> decode_cpus;
+    std::vector<int> prefill_cpus;
+};
+
+static ThreadConfig thread_config;
+static ggml_threadpool *decode_pool  = nullptr;
+static ggml_threadpool *prefill_pool = nullptr;
+
+// Размер микро-батча prefill: промпт декодируется порциями, между ними проверяется отмена
+static int prefill_chunk = 256;
+static const int MAX_PREFILL_CHUNK = 512; // = n_batch / n_ubatch контекста
+
+static ggml_threadpool *make_pool(int n_threads, const std::vector<int> &cpus) {
+    ggml_threadpool_params params = ggml_threadpool_params_default(n_threads);
+    for (int cpu : cpus) {
+        if (cpu >= 0 && cpu < GGML_MAX_N_THREADS) params.cpumask[cpu] = true;
+    }
+    params.strict_cpu = !cpus.empty();
+    return ggml_threadpool_new(&params);
+}
+
+static void free_pools() {
+    if (ctx) llama_detach_threadpool(ctx);
+    if (decode_pool)  { ggml_threadpool_free(decode_pool); decode_pool = nullptr; }
+    if (prefill_pool) { ggml_threadpool_free(prefill_pool); prefill_pool = nullptr; }
+}
+
+/**
+ * Постоянные пулы потоков вместо создания потоков на каждый llama_decode.
+ */
+static void apply_thread_config(const ThreadConfig &config) {
+    free_pools();
+    thread_config = config;
+    if (!ctx) return;
+    decode_pool  = make_pool(config.decode_threads, config.decode_cpus);
+    prefill_pool = make_pool(config.prefill_threads, config.prefill_cpus);
+    if (decode_pool && prefill_pool) {
+        llama_attach_threadpool(ctx, decode_pool, prefill_pool);
+    }
+    llama_set_n_threads(ctx, config.decode_threads, config.prefill_threads);
+}
+
+static std::vector<int> to_vector(JNIEnv *env, jintArray array) {
+    std::vector<int> result;
+    if (!array) return result;
+    const jsize n = env->GetArrayLength(array);
+    result.resize(n);
+    env->GetIntArrayRegion(array, 0, n, result.data());
+    return result;
+}
+
+static void reset_cache() {
+    if (ctx) llama_memory_clear(llama_get_memory(ctx), true);
+    cached_tokens.clear();
+    cached_conv_offset = 0;
+    cached_keep = 0;
+}
+
+/**
+ * Кладёт в KV-кэш системный блок keep из файла состояния path, если файл создан для тех же
+ * токенов. Вызывается под generate_mutex на пустом кэше; при неудаче кэш остаётся пустым.
+ */
+static bool load_system_state(const std::string &path, const std::vector<llama_token> &keep) {
+    const int n_keep = (int) keep.size();
+    std::vector<llama_token> loaded(n_keep + 1);
+    size_t n_loaded = 0;
+    if (llama_state_seq_load_file(ctx, path.c_str(), 0, loaded.data(), loaded.size(), &n_loaded) > 0 &&
+        (int) n_loaded == n_keep && std::equal(keep.begin(), keep.end(), loaded.begin())) {
+        cached_tokens = keep;
+        cached_keep = n_keep;
+        return true;
+    }
+    reset_cache();
+    return false;
+}
+
+static bool abort_callback(void *) {
+    return cancel_requested.load(std::memory_order_relaxed);
+}
+
+static int64_t now_ns() {
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(
+            std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
+struct GenerationStats {
+    int64_t n_prompt   = 0; // токенов в промпте после сдвига окна
+    int64_t n_gen      = 0;
+    int64_t n_reused   = 0; // взято из KV-кэша без декодирования
+    int64_t n_prefill  = 0; // декодировано в prefill
+    int64_t n_shifted  = 0; // вытеснено из окна в этом запросе
+    int64_t t_start    = 0;
+    int64_t t_prefill  = 0; // конец обработки промпта
+    int64_t t_first    = 0; // первый токен ответа
+    int64_t t_end      = 0;
+    bool    cancelled  = false;
+};
+
+// Приёмник фрагментов ответа; false — остановить генерацию
+using PieceSink = std::function<bool(const char *, size_t)>;
+
+/**
+ * Длина начала буфера, состоящего только из завершённых символов UTF-8.
+ * Токен может содержать часть многобайтового символа (кириллица, эмодзи) —
+ * хвост ждёт следующего токена.
+ */
+static size_t utf8_complete_prefix(const std::string &buf) {
+    const size_t n = buf.size();
+    for (size_t back = 1; back <= 4 && back <= n; back++) {
+        const auto c = (unsigned char) buf[n - back];
+        if ((c & 0xC0) == 0x80) continue; // байт продолжения
+        size_t need = 1;
+        if ((c & 0xE0) == 0xC0) need = 2;
+        else if ((c & 0xF0) == 0xE0) need = 3;
+        else if ((c & 0xF8) == 0xF0) need = 4;
+        return back >= need ? n : n - back;
+    }
+    return n;
+}
+
+static std::string token_to_piece(const llama_vocab *vocab, llama_token token) {
+    char buf[128];
+    int n = llama_token_to_piece(vocab, token, buf, sizeof(buf), 0, true);
+    if (n >= 0) return std::string(buf, n);
+    std::string big(-n, '\0');
+    n = llama_token_to_piece(vocab, token, big.data(), (int) big.size(), 0, true);
+    return n > 0 ? big.substr(0, n) : std::string();
+}
+
+/**
+ * Строка Java из байтов UTF-8 (NewStringUTF ожидает modified UTF-8 и ломается на эмодзи).
+ */
+static jstring to_jstring(JNIEnv *env, const std::string &s) {
+    jbyteArray bytes = env->NewByteArray((jsize) s.size());
+    env->SetByteArrayRegion(bytes, 0, (jsize) s.size(), reinterpret_cast<const jbyte *>(s.data()));
+    jclass string_class = env->FindClass("java/lang/String");
+    jmethodID ctor = env->GetMethodID(string_class, "<init>", "([BLjava/lang/String;)V");
+    jstring charset = env->NewStringUTF("UTF-8");
+    auto result = (jstring) env->NewObject(string_class, ctor, bytes, charset);
+    env->DeleteLocalRef(charset);
+    env->DeleteLocalRef(bytes);
+    env->DeleteLocalRef(string_class);
+    return result;
+}
+
+static std::vector<llama_token> tokenize(const llama_vocab *vocab, const std::string &text, bool add_special) {
+    std::vector<llama_token> tokens(text.length() + 32);
+    int n = llama_tokenize(vocab, text.c_str(), (int) text.length(),
+                           tokens.data(), (int) tokens.size(), add_special, true);
+    if (n < 0) {
+        tokens.resize(-n);
+        n = llama_tokenize(vocab, text.c_str(), (int) text.length(),
+                           tokens.data(), (int) tokens.size(), add_special, true);
+    }
+    tokens.resize(std::max(n, 0));
+    return tokens;
+}
+
+/**
+ * Prefill позиций [from, to) микро-батчами по prefill_chunk; логиты — только у последнего токена.
+ * @return код llama_decode (2 — прервано отменой).
+ */
+static int decode_range(const std::vector<llama_token> &tokens, int from, int to, bool logits_last) {
+    const int chunk = std::max(1, std::min(prefill_chunk, MAX_PREFILL_CHUNK));
+    llama_batch batch = llama_batch_init(chunk, 0, 1);
+    int rc = 0;
+    for (int start = from; start < to && rc == 0; start += chunk) {
+        if (cancel_requested.load(std::memory_order_relaxed)) {
+            rc = 2;
+            break;
+        }
+        const int end = std::min(start + chunk, to);
+        batch.n_tokens = 0;
+        for (int i = start; i < end; i++) {
+            common_batch_add(batch, tokens[i], i, {0}, logits_last && i == to - 1);
+        }
+        rc = llama_decode(ctx, batch);
+    }
+    llama_batch_free(batch);
+    return rc;
+}
+
+/**
+ * Сдвиг окна: удаляет из KV-кэша [delta] токенов диалога сразу после системного блока
+ * и сдвигает позиции хвоста. Хвост не пересчитывается.
+ */
+static bool shift_cache(int delta) {
+    if (delta <= 0) return true;
+    llama_memory_t mem = llama_get_memory(ctx);
+    const int n_cached = (int) cached_tokens.size();
+    if (!llama_memory_can_shift(mem) || n_cached < cached_keep + delta) return false;
+
+    llama_memory_seq_rm(mem, 0, cached_keep, cached_keep + delta);
+    llama_memory_seq_add(mem, 0, cached_keep + delta, -1, -delta);
+    cached_tokens.erase(cached_tokens.begin() + cached_keep, cached_tokens.begin() + cached_keep + delta);
+    cached_conv_offset += delta;
+    return true;
+}
+
+/**
+ * Промпт = [system] + [conversation]. Диалог растёт дописыванием, поэтому KV-кэш прошлого хода
+ * почти целиком совпадает с началом нового промпта:
+ * - общий префикс с кэшем не декодируется, удаляется только расходящийся хвост;
+ * - если промпт с ответом не помещается в n_ctx, из начала диалога вытесняется половина
+ *   окна (системный блок остаётся), а кэш сдвигается вместе с ним.
+ * Каждый завершённый фрагмент UTF-8 сразу уходит в [sink]. Вызывается под generate_mutex.
+ * @return false при ошибке (промпт не помещается, сбой декодирования).
+ */
+static bool generate(const std::string &system, const std::string &conversation, int max_tokens,
+                     const PieceSink &sink, GenerationStats &st) {
+    st.t_start = now_ns();
+    const llama_vocab *vocab = llama_model_get_vocab(model);
+    llama_memory_t mem = llama_get_memory(ctx);
+    const int n_ctx = (int) llama_n_ctx(ctx);
+
+    // 1. Токенизация (BOS — в начале первого непустого блока)
+    std::vector<llama_token> keep = tokenize(vocab, system, true);
+    std::vector<llama_token> conv = tokenize(vocab, conversation, keep.empty());
+    const int n_keep = (int) keep.size();
+    const int n_conv = (int) conv.size();
+
+    // Под ответ оставляем хотя бы четверть окна
+    max_tokens = std::min(max_tokens, n_ctx / 4);
+    const int budget = n_ctx - n_keep - max_tokens;
+    if (n_conv <= 0 || budget <= 0) {
+        LOGE("Prompt does not fit the context: system=%d, conversation=%d, n_ctx=%d", n_keep, n_conv, n_ctx);
+        return false;
+    }
+
+    // 2. Окно диалога: смещение прошлого хода, если диалог продолжает кэшированный
+    const bool same_system = n_keep == cached_keep &&
+            std::equal(keep.begin(), keep.end(), cached_tokens.begin(),
+                       cached_tokens.begin() + std::min<size_t>(cached_tokens.size(), n_keep));
+    const bool continues = same_system && cached_conv_offset < n_conv &&
+            ((int) cached_tokens.size() <= n_keep || conv[cached_conv_offset] == cached_tokens[n_keep]);
+    int offset = continues ? cached_conv_offset : 0;
+    if (n_conv - offset > budget) {
+        // Вытесняем половину окна с запасом, чтобы сдвиг не повторялся на каждом ходу
+        offset = std::max(n_conv - budget, offset + (n_conv - offset) / 2);
+        offset = std::min(offset, n_conv - 1);
+    }
+
+    if (continues && offset > cached_conv_offset) {
+        const int delta = offset - cached_conv_offset;
+        if (shift_cache(delta)) {
+            st.n_shifted = delta;
+        } else {
+            reset_cache();
+        }
+    }
+
+    std::vector<llama_token> tokens;
+    tokens.reserve(n_keep + n_conv - offset);
+    tokens.insert(tokens.end(), keep.begin(), keep.end());
+    tokens.insert(tokens.end(), conv.begin() + offset, conv.end());
+    const int n_tokens = (int) tokens.size();
+    st.n_prompt = n_tokens;
+
+    // 3. Общий префикс с кэшем; последний токен промпта декодируется всегда (нужны логиты)
+    int n_past = 0;
+    const int n_cached = (int) cached_tokens.size();
+    while (n_past < n_cached && n_past < n_tokens && cached_tokens[n_past] == tokens[n_past]) n_past++;
+    n_past = std::min(n_past, n_tokens - 1);
+
+    if (!llama_memory_seq_rm(mem, 0, n_past, -1)) {
+        reset_cache();
+        n_past = 0;
+    }
+    cached_tokens.resize(n_past);
+    cached_keep = n_keep;
+    cached_conv_offset = offset;
+    st.n_reused = n_past;
+    st.n_prefill = n_tokens - n_past;
+
+    llama_sampler_reset(sampler);
+
+    // 4. Prefill только новых токенов, микро-батчами
+    int rc = decode_range(tokens, n_past, n_tokens, true);
+    st.t_prefill = now_ns();
+    if (rc != 0) {
+        st.cancelled = cancel_requested.load();
+        if (!st.cancelled) LOGE("Failed to decode prompt (%d)", rc);
+        // Состояние кэша после прерванного decode не определено
+        reset_cache();
+        st.t_end = now_ns();
+        return st.cancelled;
+    }
+    cached_tokens.insert(cached_tokens.end(), tokens.begin() + n_past, tokens.end());
+
+    // Декодирование — по одному токену
+    llama_batch batch = llama_batch_init(1, 0, 1);
+
+    // 5. Генерация (Inference)
+    std::string pending;
+    int n_cur = n_tokens;
+
+    for (int i = 0; i < max_tokens; i++) {
+        if (cancel_requested.load(std::memory_order_relaxed)) {
+            st.cancelled = true;
+            break;
+        }
+
+        llama_token curr_token = llama_sampler_sample(sampler, ctx, -1);
+        if (st.n_gen == 0) st.t_first = now_ns();
+
+        if (llama_vocab_is_eog(vocab, curr_token)) {
+            break;
+        }
+        st.n_gen++;
+
+        pending += token_to_piece(vocab, curr_token);
+        const size_t ready = utf8_complete_prefix(pending);
+        if (ready > 0) {
+            if (!sink(pending.data(), ready)) {
+                st.cancelled = true;
+                break;
+            }
+            pending.erase(0, ready);
+        }
+
+        // Ручная очистка батча (так как llama_batch_clear может отсутствовать)
+        batch.n_tokens = 0;
+        common_batch_add(batch, curr_token, n_cur, {0}, true);
+
+        if (llama_decode(ctx, batch) != 0) {
+            st.cancelled = cancel_requested.load();
+            reset_cache();
+            break;
+        }
+        cached_tokens.push_back(curr_token);
+        n_cur++;
+    }
+
+    if (!pending.empty() && !st.cancelled) sink(pending.data(), pending.size());
+
+    llama_batch_free(batch);
+    st.t_end = now_ns();
+    return true;
+}
+
+static jlongArray stats_to_array(JNIEnv *env, const GenerationStats &st) {
+    const jlong values[] = {
+            st.n_prompt,
+            st.n_gen,
+            st.t_prefill - st.t_start,
+            st.t_first > 0 ? st.t_first - st.t_start : -1,
+            st.t_end - st.t_start,
+            st.t_first > 0 ? st.t_end - st.t_first : 0,
+            st.cancelled ? 1 : 0,
+            st.n_reused,
+            st.n_prefill,
+            st.n_shifted
+    };
+    const jsize n_values = sizeof(values) / sizeof(values[0]);
+    jlongArray result = env->NewLongArray(n_values);
+    env->SetLongArrayRegion(result, 0, n_values, values);
+    return result;
+}
+
 extern "C" {
 
 /**
  * Инициализация модели: загрузка из файла и создание контекста
  */
 JNIEXPORT void JNICALL
-Java_com_kakdela_p2p_ai_LlamaBridge_init(JNIEnv *env, jobject thiz, jstring model_path) {
+Java_com_kakdela_p2p_ai_LlamaBridge_initNative(JNIEnv *env, jobject thiz, jstring model_path,
+                                              jboolean use_mmap, jboolean use_mlock) {
     const char *path = env->GetStringUTFChars(model_path, nullptr);
 
     // 1. Очистка старых ресурсов (защита от утечек при перезагрузке)
+    std::lock_guard<std::mutex> lock(generate_mutex);
     if (sampler) { llama_sampler_free(sampler); sampler = nullptr; }
+    free_pools();
     if (ctx)     { llama_free(ctx); ctx = nullptr; }
+    cached_tokens.clear();
+    cached_conv_offset = 0;
+    cached_keep = 0;
     if (model)   { llama_model_free(model); model = nullptr; }
 
     llama_model_params model_params = llama_model_default_params();
     model_params.n_gpu_layers = 0; // CPU only for maximum compatibility
+    // mmap: веса читаются из page cache по мере обращения, повторный старт не копирует файл;
+    // mlock: удерживает их в RAM (может не сработать при низком RLIMIT_MEMLOCK — тогда только предупреждение)
+    model_params.use_mmap  = use_mmap == JNI_TRUE;
+    model_params.use_mlock = use_mlock == JNI_TRUE;
 
-    LOGI("Loading model from: %s", path);
+    LOGI("Loading model from: %s (mmap=%d, mlock=%d)", path, model_params.use_mmap, model_params.use_mlock);
     model = llama_model_load_from_file(path, model_params);
     if (!model) {
         LOGE("Failed to load model from path: %s", path);
@@ -42,9 +464,10 @@ Java_com_kakdela_p2p_ai_LlamaBridge_init(JNIEnv *env, jobject thiz, jstring mode
 
     llama_context_params ctx_params = llama_context_default_params();
     ctx_params.n_ctx     = 2048; // Окно контекста 2048 токенов
-    // Оставляем 1 ядро системе
-    ctx_params.n_threads = std::max(1u, std::thread::hardware_concurrency() - 1);
-    ctx_params.n_threads_batch = ctx_params.n_threads;
+    ctx_params.n_batch   = MAX_PREFILL_CHUNK;
+    ctx_params.n_ubatch  = MAX_PREFILL_CHUNK;
+    ctx_params.n_threads = thread_config.decode_threads;
+    ctx_params.n_threads_batch = thread_config.prefill_threads;
 
     ctx = llama_init_from_model(model, ctx_params);
     if (!ctx) {
@@ -52,6 +475,9 @@ Java_com_kakdela_p2p_ai_LlamaBridge_init(JNIEnv *env, jobject thiz, jstring mode
         env->ReleaseStringUTFChars(model_path, path);
         return;
     }
+    llama_set_abort_callback(ctx, abort_callback, nullptr);
+    // Конфигурация потоков сохраняется между перезагрузками модели
+    apply_thread_config(thread_config);
 
     // Инициализация сэмплеров (Параметры генерации)
     llama_sampler_chain_params sparams = llama_sampler_chain_default_params();
@@ -64,7 +490,8 @@ Java_com_kakdela_p2p_ai_LlamaBridge_init(JNIEnv *env, jobject thiz, jstring mode
     llama_sampler_chain_add(sampler, llama_sampler_init_min_p(0.05f, 1));
     llama_sampler_chain_add(sampler, llama_sampler_init_dist(-1)); // Random seed
 
-    LOGI("Llama native initialized successfully. Threads: %d", ctx_params.n_threads);
+    LOGI("Llama native initialized successfully. Threads: decode %d, prefill %d",
+         thread_config.decode_threads, thread_config.prefill_threads);
     env->ReleaseStringUTFChars(model_path, path);
 }
 
@@ -77,10 +504,11 @@ Java_com_kakdela_p2p_ai_LlamaBridge_isReady(JNIEnv *env, jobject thiz) {
 }
 
 /**
- * Генерация ответа
+ * Генерация ответа целиком (без потоковой выдачи)
  */
 JNIEXPORT jstring JNICALL
 Java_com_kakdela_p2p_ai_LlamaBridge_prompt(JNIEnv *env, jobject thiz, jstring input_text) {
+    std::lock_guard<std::mutex> lock(generate_mutex);
     if (!model || !ctx || !sampler) {
         LOGE("Prompt called but AI not ready");
         return env->NewStringUTF("Error: AI bridge not initialized");
@@ -90,61 +518,257 @@ Java_com_kakdela_p2p_ai_LlamaBridge_prompt(JNIEnv *env, jobject thiz, jstring in
     std::string prompt(text);
     env->ReleaseStringUTFChars(input_text, text);
 
-    const struct llama_vocab *vocab = llama_model_get_vocab(model);
+    GenerationScope scope(0);
+    std::string response;
+    GenerationStats st;
+    bool ok = generate("", prompt, 256, [&](const char *piece, size_t len) {
+        response.append(piece, len);
+        return true;
+    }, st);
 
-    // 1. Токенизация
-    std::vector<llama_token> tokens(prompt.length() + 32);
-    int n_tokens = llama_tokenize(vocab, prompt.c_str(), (int)prompt.length(),
-                                  tokens.data(), (int)tokens.size(), true, true);
-    if (n_tokens < 0) {
-        tokens.resize(-n_tokens);
-        n_tokens = llama_tokenize(vocab, prompt.c_str(), (int)prompt.length(),
-                                  tokens.data(), (int)tokens.size(), true, true);
+    if (!ok) return env->NewStringUTF("Error: Decode failed");
+    return to_jstring(env, response);
+}
+
+/**
+ * Потоковая генерация: каждый завершённый фрагмент UTF-8 передаётся в
+ * callback.onPiece(byte[]): Boolean; false — остановить генерацию.
+ * system — неизменный блок (не вытесняется), conversation — диалог, растущий дописыванием.
+ * @return метрики (см. LlamaBridge.GenerationStats) или null при ошибке.
+ */
+JNIEXPORT jlongArray JNICALL
+Java_com_kakdela_p2p_ai_LlamaBridge_generate(JNIEnv *env, jobject thiz, jlong id, jstring system_text,
+                                            jstring conversation_text, jint max_tokens, jobject callback) {
+    std::lock_guard<std::mutex> lock(generate_mutex);
+    if (!model || !ctx || !sampler) {
+        LOGE("Generate called but AI not ready");
+        return nullptr;
     }
-    tokens.resize(n_tokens);
 
-    // 2. Обработка промпта (Prefill)
-    llama_batch batch = llama_batch_init(n_tokens, 0, 1);
-    for (int i = 0; i < n_tokens; i++) {
-        common_batch_add(batch, tokens[i], i, {0}, (i == n_tokens - 1));
+    const char *text = env->GetStringUTFChars(system_text, nullptr);
+    std::string system(text);
+    env->ReleaseStringUTFChars(system_text, text);
+    text = env->GetStringUTFChars(conversation_text, nullptr);
+    std::string conversation(text);
+    env->ReleaseStringUTFChars(conversation_text, text);
+
+    jclass callback_class = env->GetObjectClass(callback);
+    jmethodID on_piece = env->GetMethodID(callback_class, "onPiece", "([B)Z");
+    env->DeleteLocalRef(callback_class);
+    if (!on_piece) return nullptr;
+
+    GenerationScope scope(id);
+    GenerationStats st;
+    bool ok = generate(system, conversation, max_tokens, [&](const char *piece, size_t len) {
+        jbyteArray bytes = env->NewByteArray((jsize) len);
+        env->SetByteArrayRegion(bytes, 0, (jsize) len, reinterpret_cast<const jbyte *>(piece));
+        jboolean proceed = env->CallBooleanMethod(callback, on_piece, bytes);
+        env->DeleteLocalRef(bytes);
+        if (env->ExceptionCheck()) return false;
+        return proceed == JNI_TRUE;
+    }, st);
+
+    if (!ok || env->ExceptionCheck()) return nullptr;
+    if (st.n_gen > 0 && st.t_end > st.t_first) {
+        LOGI("Generated %lld tokens: prefill %lld new + %lld reused (%lld shifted) in %.0f ms, "
+             "ttft=%.0f ms, %.2f tok/s%s",
+             (long long) st.n_gen,
+             (long long) st.n_prefill, (long long) st.n_reused, (long long) st.n_shifted,
+             (st.t_prefill - st.t_start) / 1e6,
+             (st.t_first - st.t_start) / 1e6,
+             st.n_gen * 1e9 / (double) (st.t_end - st.t_first),
+             st.cancelled ? " (cancelled)" : "");
     }
+    return stats_to_array(env, st);
+}
 
-    if (llama_decode(ctx, batch) != 0) {
-        LOGE("Failed to decode prompt");
-        llama_batch_free(batch);
-        return env->NewStringUTF("Error: Decode failed");
+/**
+ * Запрос остановки генерации id (проверяется между шагами и внутри llama_decode).
+ * Если вызов ещё ждёт своей очереди, он завершится сразу после захвата блокировки.
+ */
+JNIEXPORT void JNICALL
+Java_com_kakdela_p2p_ai_LlamaBridge_cancel(JNIEnv *env, jobject thiz, jlong id) {
+    std::lock_guard<std::mutex> lock(cancel_mutex);
+    if (id == running_generation) {
+        cancel_requested.store(true);
+        return;
     }
+    // Отмена уже завершившегося вызова осталась бы в наборе навсегда: храним только последние
+    cancelled_generations.insert(id);
+    if (cancelled_generations.size() > MAX_CANCELLED_PENDING) {
+        cancelled_generations.erase(cancelled_generations.begin());
+    }
+}
 
-    // 3. Генерация (Inference)
-    std::string response = "";
-    llama_token curr_token;
-    int n_cur = n_tokens;
+/**
+ * Прогрев системного блока: KV-состояние берётся из файла state_path, если он создан для
+ * тех же токенов, иначе блок декодируется и состояние сохраняется в файл.
+ * После прогрева первый запрос с тем же system декодирует только диалог.
+ * @return true, если системный блок лежит в KV-кэше.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_kakdela_p2p_ai_LlamaBridge_warmup(JNIEnv *env, jobject thiz, jstring system_text, jstring state_path) {
+    std::lock_guard<std::mutex> lock(generate_mutex);
+    if (!model || !ctx) return JNI_FALSE;
 
-    for (int i = 0; i < 256; i++) { // Максимум 256 новых токенов
-        curr_token = llama_sampler_sample(sampler, ctx, -1);
-        
-        if (llama_vocab_is_eog(vocab, curr_token)) {
-            break;
-        }
+    const char *text = env->GetStringUTFChars(system_text, nullptr);
+    std::string system(text);
+    env->ReleaseStringUTFChars(system_text, text);
+    const char *path_chars = env->GetStringUTFChars(state_path, nullptr);
+    std::string path(path_chars);
+    env->ReleaseStringUTFChars(state_path, path_chars);
+
+    const int64_t t_start = now_ns();
+    std::vector<llama_token> keep = tokenize(llama_model_get_vocab(model), system, true);
+    const int n_keep = (int) keep.size();
+    if (n_keep == 0 || n_keep >= (int) llama_n_ctx(ctx)) return JNI_FALSE;
+
+    // Уже в кэше (повторный вызов)
+    if (cached_keep == n_keep && (int) cached_tokens.size() >= n_keep &&
+        std::equal(keep.begin(), keep.end(), cached_tokens.begin())) {
+        return JNI_TRUE;
+    }
+
+    reset_cache();
+
+    // 1. Сохранённое состояние
+    if (load_system_state(path, keep)) {
+        LOGI("System prompt state restored: %d tokens in %.0f ms", n_keep, (now_ns() - t_start) / 1e6);
+        return JNI_TRUE;
+    }
+
+    // 2. Prefill системного блока и сохранение
+    cancel_requested.store(false);
+    const int rc = decode_range(keep, 0, n_keep, false);
+    if (rc != 0) {
+        LOGE("System prompt prefill failed (%d)", rc);
+        reset_cache();
+        return JNI_FALSE;
+    }
+    cached_tokens = keep;
+    cached_keep = n_keep;
+
+    const size_t written = llama_state_seq_save_file(ctx, path.c_str(), 0, keep.data(), keep.size());
+    LOGI("System prompt evaluated: %d tokens in %.0f ms, state %s (%zu bytes)",
+         n_keep, (now_ns() - t_start) / 1e6, written > 0 ? "saved" : "not saved", written);
+    return JNI_TRUE;
+}
+
+/**
+ * Установка потоков и закрепления по ядрам (cpus == null — без закрепления) и размера
+ * микро-батча prefill. Сохраняется и при перезагрузке модели.
+ */
+JNIEXPORT void JNICALL
+Java_com_kakdela_p2p_ai_LlamaBridge_configure(JNIEnv *env, jobject thiz,
+                                             jint decode_threads, jintArray decode_cpus,
+                                             jint prefill_threads, jintArray prefill_cpus,
+                                             jint chunk) {
+    std::lock_guard<std::mutex> lock(generate_mutex);
+    ThreadConfig config;
+    config.decode_threads = std::max(1, (int) decode_threads);
+    config.prefill_threads = std::max(1, (int) prefill_threads);
+    config.decode_cpus = to_vector(env, decode_cpus);
+    config.prefill_cpus = to_vector(env, prefill_cpus);
+    prefill_chunk = std::max(1, std::min((int) chunk, MAX_PREFILL_CHUNK));
+    apply_thread_config(config);
+    LOGI("Thread config: decode %d (%zu cpus), prefill %d (%zu cpus), chunk %d",
+         config.decode_threads, config.decode_cpus.size(),
+         config.prefill_threads, config.prefill_cpus.size(), prefill_chunk);
+}
+
+/**
+ * Замер одной конфигурации на синтетическом промпте.
+ * prefill = true: n_tokens токенов микро-батчами по chunk; иначе n_tokens шагов по одному токену.
+ * KV-кэш сбрасывается. Конфигурация потоков и prefill_chunk на время замера заменяются
+ * и восстанавливаются перед возвратом, поэтому генерации между замерами идут с действующей.
+ * Если в кэше был системный блок и передан state_path (файл прогрева), блок загружается
+ * обратно под той же блокировкой: следующая генерация не декодирует его заново.
+ * @return токенов в секунду, 0 при ошибке.
+ */
+JNIEXPORT jdouble JNICALL
+Java_com_kakdela_p2p_ai_LlamaBridge_benchmarkConfig(JNIEnv *env, jobject thiz, jint threads, jintArray cpus,
+                                                   jboolean prefill, jint n_tokens, jint chunk,
+                                                   jstring state_path) {
+    std::lock_guard<std::mutex> lock(generate_mutex);
+    if (!model || !ctx) return 0.0;
+
+    std::string path;
+    if (state_path) {
+        const char *path_chars = env->GetStringUTFChars(state_path, nullptr);
+        path = path_chars;
+        env->ReleaseStringUTFChars(state_path, path_chars);
+    }
+    const std::vector<llama_token> system_block(cached_tokens.begin(), cached_tokens.begin() + cached_keep);
 
-        char piece[128];
-        int n_piece = llama_token_to_piece(vocab, curr_token, piece, sizeof(piece), 0, true);
-        if (n_piece > 0) {
-            response.append(piece, n_piece);
+    const ThreadConfig saved_config = thread_config;
+    const int saved_chunk = prefill_chunk;
+    ThreadConfig config = thread_config;
+    if (prefill == JNI_TRUE) {
+        config.prefill_threads = std::max(1, (int) threads);
+        config.prefill_cpus = to_vector(env, cpus);
+    } else {
+        config.decode_threads = std::max(1, (int) threads);
+        config.decode_cpus = to_vector(env, cpus);
+    }
+    apply_thread_config(config);
+    prefill_chunk = std::max(1, std::min((int) chunk, MAX_PREFILL_CHUNK));
+    cancel_requested.store(false);
+
+    // Возврат действующих настроек на любом пути выхода
+    struct Restore {
+        const ThreadConfig &config;
+        int chunk;
+        ~Restore() {
+            prefill_chunk = chunk;
+            apply_thread_config(config);
         }
+    } restore{saved_config, saved_chunk};
 
-        // Ручная очистка батча (так как llama_batch_clear может отсутствовать)
-        batch.n_tokens = 0; 
-        common_batch_add(batch, curr_token, n_cur, {0}, true);
+    const int n = std::max(1, std::min((int) n_tokens, (int) llama_n_ctx(ctx) / 2));
+    std::vector<llama_token> tokens = tokenize(llama_model_get_vocab(model),
+            "Как дела? Это тестовый текст для замера скорости модели. ", true);
+    if (tokens.size() < 2) return 0.0;
+    const std::vector<llama_token> text(tokens.begin() + 1, tokens.end());
+    while ((int) tokens.size() < n + 1) tokens.insert(tokens.end(), text.begin(), text.end());
+    tokens.resize(n + 1);
 
-        if (llama_decode(ctx, batch) != 0) {
-            break;
+    reset_cache();
+    double result = 0.0;
+    if (prefill == JNI_TRUE) {
+        // Прогрев: страницы весов (mmap) и пул потоков
+        decode_range(tokens, 0, std::min(8, n), false);
+        reset_cache();
+        const int64_t t0 = now_ns();
+        if (decode_range(tokens, 0, n, true) == 0) {
+            result = n * 1e9 / (double) std::max<int64_t>(1, now_ns() - t0);
         }
-        n_cur++;
+    } else {
+        llama_batch batch = llama_batch_init(1, 0, 1);
+        int rc = 0;
+        int64_t t0 = 0;
+        for (int i = 0; i <= n && rc == 0; i++) {
+            if (i == 1) t0 = now_ns(); // первый шаг — прогрев
+            batch.n_tokens = 0;
+            common_batch_add(batch, tokens[i], i, {0}, true);
+            rc = llama_decode(ctx, batch);
+        }
+        llama_batch_free(batch);
+        if (rc == 0) result = n * 1e9 / (double) std::max<int64_t>(1, now_ns() - t0);
+    }
+    reset_cache();
+    if (!path.empty() && !system_block.empty() && !load_system_state(path, system_block)) {
+        LOGE("System prompt state not restored after benchmark");
     }
+    return result;
+}
 
-    llama_batch_free(batch);
-    return env->NewStringUTF(response.c_str());
+/**
+ * Сброс KV-кэша (следующий запрос декодирует промпт целиком)
+ */
+JNIEXPORT void JNICALL
+Java_com_kakdela_p2p_ai_LlamaBridge_clearCache(JNIEnv *env, jobject thiz) {
+    std::lock_guard<std::mutex> lock(generate_mutex);
+    reset_cache();
 }
 
 } // extern "C"
@@ -9,3 +9,10 @@ JNIEXPORT jbyteArray JNICALL Java_com_termux_app_TermuxInstaller_getZip(JNIEnv *
     (*env)->SetByteArrayRegion(env, ret, 0, blob_size, blob);
     return ret;
 }
+
+/* The blob lives in .rodata for the lifetime of the process: expose it without a copy.
+ * The Java side must only read through the buffer (it wraps it with asReadOnlyBuffer()). */
+JNIEXPORT jobject JNICALL Java_com_termux_app_TermuxInstaller_getZipBuffer(JNIEnv *env, __attribute__((__unused__)) jobject This)
+{
+    return (*env)->NewDirectByteBuffer(env, blob, blob_size);
+}
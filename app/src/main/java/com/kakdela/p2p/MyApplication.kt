@@ -4,8 +4,14 @@ import android.app.Application
 import android.util.Log
 import com.kakdela.p2p.api.WebViewApiClient
 import com.kakdela.p2p.data.IdentityRepository
+import com.kakdela.p2p.data.local.ChatDatabase
 import com.kakdela.p2p.security.CryptoManager
+import com.kakdela.p2p.workers.ScheduledDispatcher
 import com.tom_roush.pdfbox.android.PDFBoxResourceLoader
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 import java.io.File
 
 class MyApplication : Application() {
@@ -39,6 +45,9 @@ class MyApplication : Application() {
                 Log.w(TAG, "Peer ID empty — waiting for registration")
             }
 
+            // 5. Отложенные сообщения: один будильник на ближайший срок
+            initScheduledDispatch()
+
         } catch (e: Exception) {
             Log.e(TAG, "Critical init error", e)
         }
@@ -62,6 +71,17 @@ class MyApplication : Application() {
         }
     }
 
+    private fun initScheduledDispatch() {
+        ScheduledDispatcher.cancelLegacyWork(this)
+        CoroutineScope(SupervisorJob() + Dispatchers.IO).launch {
+            try {
+                ScheduledDispatcher.rearm(this@MyApplication, ChatDatabase.getDatabase(this@MyApplication).messageDao())
+            } catch (e: Exception) {
+                Log.e(TAG, "Scheduled dispatch init error", e)
+            }
+        }
+    }
+
     override fun onTerminate() {
         WebViewApiClient.destroy()
         super.onTerminate()
@@ -4,10 +4,17 @@ import android.content.Context
 import android.net.ConnectivityManager
 import android.net.NetworkCapabilities
 import androidx.room.*
-import com.google.ai.client.generativeai.GenerativeModel
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 import com.kakdela.p2p.BuildConfig
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.onCompletion
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.withContext
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.OkHttpClient
@@ -16,19 +23,98 @@ import org.json.JSONObject
 import java.util.concurrent.TimeUnit
 
 // --- Database ---
-@Entity(tableName = "knowledge_table")
+/**
+ * [queryKey] — нормализованный вопрос ([KnowledgeBase.normalize]) для кэша ответов;
+ * у записей до версии 3 он пуст, и они в кэш не попадают.
+ */
+@Entity(tableName = "knowledge_table", indices = [Index("query_key")])
 data class KnowledgeEntity(
     @PrimaryKey(autoGenerate = true) val id: Long = 0,
     @ColumnInfo(name = "query_text") val query: String,
     @ColumnInfo(name = "ai_answer") val answer: String,
-    @ColumnInfo(name = "timestamp") val timestamp: Long = System.currentTimeMillis()
+    @ColumnInfo(name = "timestamp") val timestamp: Long = System.currentTimeMillis(),
+    @ColumnInfo(name = "query_key") val queryKey: String? = null
+)
+
+/**
+ * Полнотекстовый индекс по вопросам и ответам (FTS4 с внешним содержимым, docid = id знания).
+ * Синхронизируется триггерами Room для contentEntity.
+ */
+@Fts4(contentEntity = KnowledgeEntity::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity(tableName = "knowledge_fts")
+data class KnowledgeFts(
+    @ColumnInfo(name = "query_text") val query: String,
+    @ColumnInfo(name = "ai_answer") val answer: String
+)
+
+/**
+ * Вектор вопроса для семантического поиска: [KnowledgeEmbedder.DIM] значений float16 (little-endian).
+ * [model] — версия эмбеддера; векторы другой версии пересчитываются.
+ */
+@Entity(tableName = "knowledge_vectors")
+data class KnowledgeVectorEntity(
+    @PrimaryKey val id: Long,
+    val model: String,
+    val vector: ByteArray
+)
+
+/**
+ * Совпадение FTS: [info] — matchinfo(knowledge_fts, 'pcnalx'), по нему считается BM25.
+ */
+data class KnowledgeMatch(val id: Long, val info: ByteArray)
+
+data class KnowledgeText(
+    val id: Long,
+    @ColumnInfo(name = "query_text") val query: String
 )
 
 @Dao
 interface KnowledgeDao {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
-    suspend fun insert(knowledge: KnowledgeEntity)
+    suspend fun insert(knowledge: KnowledgeEntity): Long
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertVectors(vectors: List<KnowledgeVectorEntity>)
 
+    /**
+     * Последний ответ на тот же нормализованный вопрос не старше [since].
+     */
+    @Query(
+        "SELECT * FROM knowledge_table WHERE query_key = :key AND timestamp >= :since " +
+        "ORDER BY timestamp DESC LIMIT 1"
+    )
+    suspend fun findCached(key: String, since: Long): KnowledgeEntity?
+
+    @Query("SELECT * FROM knowledge_table WHERE id IN (:ids)")
+    suspend fun getByIds(ids: List<Long>): List<KnowledgeEntity>
+
+    /**
+     * Совпадения FTS, свежие первыми; ранжирование по BM25 — в [KnowledgeBase].
+     */
+    @Query(
+        "SELECT docid AS id, matchinfo(knowledge_fts, 'pcnalx') AS info FROM knowledge_fts " +
+        "WHERE knowledge_fts MATCH :match ORDER BY docid DESC LIMIT :limit"
+    )
+    suspend fun matchFts(match: String, limit: Int): List<KnowledgeMatch>
+
+    @Query("SELECT * FROM knowledge_vectors WHERE model = :model AND id > :afterId ORDER BY id LIMIT :limit")
+    suspend fun getVectors(model: String, afterId: Long, limit: Int): List<KnowledgeVectorEntity>
+
+    /**
+     * Знания без вектора текущей версии эмбеддера (старые записи или смена версии).
+     */
+    @Query(
+        "SELECT id, query_text FROM knowledge_table WHERE id NOT IN " +
+        "(SELECT id FROM knowledge_vectors WHERE model = :model) ORDER BY id LIMIT :limit"
+    )
+    suspend fun getWithoutVector(model: String, limit: Int): List<KnowledgeText>
+
+    @Query("DELETE FROM knowledge_vectors WHERE model != :model")
+    suspend fun deleteStaleVectors(model: String)
+
+    /**
+     * Прежний поиск подстрокой (полный просмотр таблицы); оставлен для сравнения в замере KnowledgeBenchmark (androidTest).
+     */
     @Query(
         "SELECT * FROM knowledge_table " +
         "WHERE query_text LIKE '%' || :search || '%' " +
@@ -37,7 +123,11 @@ interface KnowledgeDao {
     suspend fun findSimilar(search: String): List<KnowledgeEntity>
 }
 
-@Database(entities = [KnowledgeEntity::class], version = 1, exportSchema = false)
+@Database(
+    entities = [KnowledgeEntity::class, KnowledgeFts::class, KnowledgeVectorEntity::class],
+    version = 3,
+    exportSchema = false
+)
 abstract class AppDatabase : RoomDatabase() {
     abstract fun knowledgeDao(): KnowledgeDao
 
@@ -50,11 +140,62 @@ abstract class AppDatabase : RoomDatabase() {
                     context.applicationContext,
                     AppDatabase::class.java,
                     "ai_teacher_db"
-                ).build()
+                )
+                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3)
+                    .build()
                 INSTANCE = instance
                 instance
             }
         }
+
+        /**
+         * 2 -> 3: ключ кэша ответов. Старые записи остаются без ключа.
+         */
+        private val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `knowledge_table` ADD COLUMN `query_key` TEXT")
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_knowledge_table_query_key` ON `knowledge_table` (`query_key`)"
+                )
+            }
+        }
+
+        /**
+         * 1 -> 2: FTS4-индекс по вопросам и ответам (таблица и триггеры — как у Room для [KnowledgeFts])
+         * и таблица векторов. Векторы существующих знаний досчитывает [KnowledgeBase] в фоне.
+         */
+        private val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE VIRTUAL TABLE IF NOT EXISTS `knowledge_fts` USING FTS4(" +
+                        "`query_text` TEXT NOT NULL, `ai_answer` TEXT NOT NULL, " +
+                        "tokenize=unicode61, content=`knowledge_table`)"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_knowledge_fts_BEFORE_UPDATE " +
+                        "BEFORE UPDATE ON `knowledge_table` BEGIN DELETE FROM `knowledge_fts` WHERE `docid`=OLD.`rowid`; END"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_knowledge_fts_BEFORE_DELETE " +
+                        "BEFORE DELETE ON `knowledge_table` BEGIN DELETE FROM `knowledge_fts` WHERE `docid`=OLD.`rowid`; END"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_knowledge_fts_AFTER_UPDATE " +
+                        "AFTER UPDATE ON `knowledge_table` BEGIN INSERT INTO `knowledge_fts`(`docid`, `query_text`, `ai_answer`) " +
+                        "VALUES (NEW.`rowid`, NEW.`query_text`, NEW.`ai_answer`); END"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_knowledge_fts_AFTER_INSERT " +
+                        "AFTER INSERT ON `knowledge_table` BEGIN INSERT INTO `knowledge_fts`(`docid`, `query_text`, `ai_answer`) " +
+                        "VALUES (NEW.`rowid`, NEW.`query_text`, NEW.`ai_answer`); END"
+                )
+                db.execSQL("INSERT INTO knowledge_fts(knowledge_fts) VALUES('rebuild')")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `knowledge_vectors` (`id` INTEGER NOT NULL, " +
+                        "`model` TEXT NOT NULL, `vector` BLOB NOT NULL, PRIMARY KEY(`id`))"
+                )
+            }
+        }
     }
 }
 
@@ -94,123 +235,136 @@ object HybridAiEngine {
         "gemini-exp-1206"
     )
 
-    private fun createModel(modelName: String): GenerativeModel {
-        return GenerativeModel(
-            modelName = modelName,
-            apiKey = BuildConfig.GEMINI_API_KEY
-        )
-    }
+    private val localConversation = LocalConversation()
+
+    @Volatile private var cloud: CloudResponder? = null
 
+    private fun cloud(context: Context): CloudResponder =
+        cloud ?: synchronized(this) {
+            cloud ?: CloudResponder(
+                knowledge = KnowledgeBase.get(context),
+                client = GeminiCloudClient(BuildConfig.GEMINI_API_KEY),
+                models = modelPriorityList,
+                webSearch = WebSearcher::search
+            ).also { cloud = it }
+        }
+
+    /**
+     * Счётчики облачных запросов (кэш, объединение, вызовы моделей) для диагностики.
+     */
+    fun cloudStats(context: Context): String = cloud(context).stats.snapshot()
+
+    /**
+     * Ответ целиком (склейка [streamResponse]).
+     */
     suspend fun getResponse(context: Context, userPrompt: String): String =
         withContext(Dispatchers.IO) {
+            buildString { streamResponse(context, userPrompt).collect { append(it) } }
+        }
 
-            val db = AppDatabase.getDatabase(context).knowledgeDao()
-            val hasInternet = NetworkUtils.isNetworkAvailable(context)
+    /**
+     * Ответ по мере генерации: облачная модель отдаёт ответ одним фрагментом,
+     * локальная Llama — по токенам. Отмена сборщика останавливает локальную генерацию.
+     */
+    fun streamResponse(context: Context, userPrompt: String): Flow<String> = flow {
+        val knowledge = KnowledgeBase.get(context)
+        val cloud = cloud(context)
+
+        // --- Кэш ответов: тот же вопрос недавно уже задавался (работает и офлайн) ---
+        cloud.cached(userPrompt)?.let {
+            emit(it)
+            return@flow
+        }
 
-            // --- RAG: поиск похожих знаний ---
-            val keywords = userPrompt
-                .split(" ")
-                .filter { it.length > 4 }
-                .joinToString(" ")
+        val hasInternet = NetworkUtils.isNetworkAvailable(context)
 
-            val similarKnowledge =
-                if (keywords.isNotEmpty()) db.findSimilar(keywords) else emptyList()
+        // --- RAG: поиск похожих знаний (FTS/BM25 + векторы) ---
+        val similarKnowledge = knowledge.search(userPrompt)
 
-            val learnedContext = similarKnowledge.joinToString("\n") {
-                "Human: ${it.query}\nAI: ${it.answer}"
+        val learnedContext = similarKnowledge.joinToString("\n") {
+            "Human: ${it.query}\nAI: ${it.answer}"
+        }
+
+        // --- Cloud (Gemini / Gemma) ---
+        if (hasInternet && BuildConfig.GEMINI_API_KEY.isNotBlank()) {
+            val answer = cloud.respond(userPrompt, learnedContext)
+            if (answer != null) {
+                emit(answer)
+                return@flow
             }
+        }
 
-            // --- Cloud (Gemini / Gemma) ---
-            if (hasInternet && BuildConfig.GEMINI_API_KEY.isNotBlank()) {
-                var backoff = 400L
-
-                for (modelName in modelPriorityList) {
-                    try {
-                        val webInfo = try {
-                            WebSearcher.search(userPrompt)
-                        } catch (_: Exception) {
-                            ""
-                        }
-
-                        val prompt = """
-                            Контекст из памяти:
-                            $learnedContext
-
-                            Информация из интернета:
-                            $webInfo
-
-                            Вопрос пользователя:
-                            $userPrompt
-
-                            Ответь кратко, по делу, на русском языке.
-                        """.trimIndent()
-
-                        val response = createModel(modelName)
-                            .generateContent(prompt)
-                            .text
-                            ?.trim()
-                            ?: ""
-
-                        if (response.isNotEmpty()) {
-                            db.insert(
-                                KnowledgeEntity(
-                                    query = userPrompt,
-                                    answer = response
-                                )
-                            )
-                            return@withContext response
-                        }
-                    } catch (e: Exception) {
-                        val msg = e.message ?: ""
-
-                        // квоты / временные ошибки → пробуем следующую модель
-                        if (
-                            msg.contains("429") ||
-                            msg.contains("quota", true) ||
-                            msg.contains("500") ||
-                            msg.contains("503") ||
-                            msg.contains("404")
-                        ) {
-                            delay(backoff)
-                            backoff = (backoff * 1.5).toLong().coerceAtMost(3_000L)
-                            continue
-                        } else {
-                            break
-                        }
-                    }
+        // --- Local Llama (Offline) ---
+        if (LlamaBridge.isLibAvailable() && LlamaBridge.isReady()) {
+            emitAll(localConversation.ask(learnedContext, userPrompt).catch { e -> emit("Ошибка системы: ${e.message}") })
+        } else {
+            emit(
+                when {
+                    hasInternet -> "Сервисы ИИ временно недоступны."
+                    !ModelDownloadManager.isInstalled(context) -> "Для оффлайн-работы скачайте локальную модель."
+                    else -> "Локальная модель загружается…"
                 }
-            }
+            )
+        }
+    }.flowOn(Dispatchers.IO)
+}
 
-            // --- Local Llama (Offline) ---
-            try {
-                if (LlamaBridge.isLibAvailable() && LlamaBridge.isReady()) {
-                    val localPrompt = """
-                        <|system|>
-                        Ты полезный ассистент. Используй этот контекст:
-                        $learnedContext
-                        <|end|>
-
-                        <|user|>
-                        $userPrompt
-                        <|end|>
-
-                        <|assistant|>
-                    """.trimIndent()
-
-                    return@withContext LlamaBridge.prompt(localPrompt)
-                } else {
-                    if (hasInternet) {
-                        return@withContext "Сервисы ИИ временно недоступны."
-                    }
-                    if (!ModelDownloadManager.isInstalled(context)) {
-                        return@withContext "Для оффлайн-работы скачайте локальную модель."
+// --- Local conversation ---
+
+/**
+ * Диалог с локальной моделью в шаблоне Phi-3. Стенограмма только дописывается (вопрос,
+ * контекст из памяти и фактически выданный ответ, даже прерванный), поэтому нативная часть
+ * берёт прошлые ходы из KV-кэша и декодирует только новый ход.
+ * Найденные знания входят в ход пользователя, а не в системный блок: иначе префикс
+ * менялся бы на каждом запросе.
+ */
+class LocalConversation {
+
+    private val transcript = StringBuilder()
+
+    companion object {
+        const val SYSTEM_PROMPT = "<|system|>\nТы полезный ассистент. Отвечай кратко, на русском языке.<|end|>\n"
+
+        // Примерно вдвое больше окна n_ctx: окно всё равно сдвигается в нативной части,
+        // а эта граница лишь не даёт стенограмме расти бесконечно
+        private const val MAX_TRANSCRIPT_CHARS = 16_000
+        private const val TURN_START = "<|user|>\n"
+    }
+
+    fun ask(learnedContext: String, userPrompt: String, maxTokens: Int = LlamaBridge.DEFAULT_MAX_TOKENS): Flow<String> {
+        val turn = buildString {
+            append(TURN_START)
+            if (learnedContext.isNotBlank()) append("Контекст из памяти:\n").append(learnedContext).append("\n\n")
+            append(userPrompt)
+            append("<|end|>\n<|assistant|>\n")
+        }
+        val (base, conversation) = synchronized(transcript) {
+            trim()
+            transcript.toString().let { it to it + turn }
+        }
+        val answer = StringBuilder()
+        return LlamaBridge.stream(SYSTEM_PROMPT, conversation, maxTokens)
+            .onEach { answer.append(it) }
+            .onCompletion {
+                synchronized(transcript) {
+                    // Ход записывается, только если параллельно стенограмму никто не менял
+                    if (answer.isNotEmpty() && transcript.length == base.length) {
+                        transcript.append(turn).append(answer).append("<|end|>\n")
                     }
-                    return@withContext "Локальная модель загружается…"
                 }
-            } catch (e: Exception) {
-                return@withContext "Ошибка системы: ${e.message}"
             }
-        }
+    }
+
+    fun reset() {
+        synchronized(transcript) { transcript.setLength(0) }
+    }
+
+    // Удаляет старейшие ходы целиком (префикс изменится — следующий ход пересчитается полностью)
+    private fun trim() {
+        if (transcript.length <= MAX_TRANSCRIPT_CHARS) return
+        val cut = transcript.indexOf(TURN_START, transcript.length - MAX_TRANSCRIPT_CHARS / 2)
+        if (cut > 0) transcript.delete(0, cut) else transcript.setLength(0)
+    }
 }
 
 // --- Utilities ---
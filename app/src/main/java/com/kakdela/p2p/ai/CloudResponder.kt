@@ -0,0 +1,287 @@
+package com.kakdela.p2p.ai
+
+import android.util.Log
+import com.google.ai.client.generativeai.GenerativeModel
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.withContext
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.RequestBody.Companion.toRequestBody
+import org.json.JSONArray
+import org.json.JSONObject
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Облачная модель: ответ на готовый промпт. Ошибка — исключение;
+ * HTTP-статус по возможности передаётся через [CloudCallException].
+ */
+fun interface CloudModelClient {
+    suspend fun generate(model: String, prompt: String): String
+}
+
+class CloudCallException(val status: Int, message: String) : IOException(message)
+
+/**
+ * Клиент Gemini SDK; модели создаются один раз на имя, а не на каждую попытку.
+ */
+class GeminiCloudClient(private val apiKey: String) : CloudModelClient {
+    private val models = ConcurrentHashMap<String, GenerativeModel>()
+
+    override suspend fun generate(model: String, prompt: String): String =
+        models.getOrPut(model) { GenerativeModel(modelName = model, apiKey = apiKey) }
+            .generateContent(prompt)
+            .text
+            ?.trim()
+            .orEmpty()
+}
+
+/**
+ * REST-клиент того же API (models/{model}:generateContent) с настраиваемым адресом —
+ * для локальной заглушки (замер CloudResponderBenchmark в androidTest) или прокси.
+ */
+class RestCloudClient(
+    private val baseUrl: String,
+    private val apiKey: String,
+    private val client: OkHttpClient = OkHttpClient.Builder().callTimeout(30, TimeUnit.SECONDS).build()
+) : CloudModelClient {
+
+    override suspend fun generate(model: String, prompt: String): String {
+        val body = JSONObject()
+            .put("contents", JSONArray().put(JSONObject().put("parts", JSONArray().put(JSONObject().put("text", prompt)))))
+            .toString()
+            .toRequestBody("application/json".toMediaType())
+        val request = Request.Builder()
+            .url("${baseUrl.trimEnd('/')}/v1beta/models/$model:generateContent?key=$apiKey")
+            .post(body)
+            .build()
+        return withContext(Dispatchers.IO) {
+            client.newCall(request).execute().use { response ->
+                if (!response.isSuccessful) throw CloudCallException(response.code, "HTTP ${response.code} for $model")
+                JSONObject(response.body?.string().orEmpty())
+                    .optJSONArray("candidates")?.optJSONObject(0)
+                    ?.optJSONObject("content")?.optJSONArray("parts")?.optJSONObject(0)
+                    ?.optString("text")
+                    ?.trim()
+                    .orEmpty()
+            }
+        }
+    }
+}
+
+/**
+ * Облачные ответы с кэшем и учётом состояния моделей:
+ * - ответ на тот же нормализованный вопрос берётся из knowledge_table, пока не старше [cacheTtlMs];
+ * - одновременные одинаковые вопросы объединяются в один облачный запрос;
+ * - модель, вернувшая 429/404/5xx, пропускается до конца паузы, а не опрашивается на каждом вопросе;
+ * - веб-поиск выполняется один раз на вопрос, а не на каждую попытку модели.
+ */
+class CloudResponder(
+    private val knowledge: KnowledgeBase,
+    private val client: CloudModelClient,
+    private val models: List<String>,
+    private val webSearch: suspend (String) -> String,
+    private val cacheTtlMs: Long = DEFAULT_CACHE_TTL_MS,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    companion object {
+        private const val TAG = "CloudResponder"
+
+        const val DEFAULT_CACHE_TTL_MS = 24 * 60 * 60 * 1000L
+
+        // Паузы для модели после ошибки: квота растёт с каждым повтором, отсутствующая модель — надолго
+        private const val RATE_LIMIT_PAUSE_MS = 60_000L
+        private const val MAX_RATE_LIMIT_PAUSE_MS = 15 * 60_000L
+        private const val NOT_FOUND_PAUSE_MS = 6 * 60 * 60_000L
+        private const val SERVER_ERROR_PAUSE_MS = 15_000L
+    }
+
+    /**
+     * Счётчики с момента создания; [snapshot] — для логов и замеров.
+     */
+    class Stats {
+        val requests = AtomicInteger()
+        val cacheHits = AtomicInteger()
+        val collapsed = AtomicInteger()
+        val webSearches = AtomicInteger()
+        val modelCalls = AtomicInteger()
+        val modelFailures = AtomicInteger()
+        val skippedModels = AtomicInteger()
+        val cloudAnswers = AtomicInteger()
+        val cloudTimeMs = AtomicLong()
+
+        fun snapshot(): String =
+            "requests=${requests.get()}, cacheHits=${cacheHits.get()}, collapsed=${collapsed.get()}, " +
+                "webSearches=${webSearches.get()}, modelCalls=${modelCalls.get()}, failures=${modelFailures.get()}, " +
+                "skipped=${skippedModels.get()}, avgCloudMs=${cloudTimeMs.get() / maxOf(1, cloudAnswers.get())}"
+    }
+
+    private class Health(var blockedUntil: Long = 0L, var rateLimits: Int = 0)
+
+    val stats = Stats()
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val inFlight = ConcurrentHashMap<String, Deferred<String?>>()
+    private val health = ConcurrentHashMap<String, Health>()
+
+    /**
+     * Кэшированный ответ без обращения к сети (годится и офлайн).
+     */
+    suspend fun cached(prompt: String): String? =
+        knowledge.cachedAnswer(prompt, cacheTtlMs, clock())?.also { stats.cacheHits.incrementAndGet() }
+
+    /**
+     * Ответ облака или null, если ни одна модель не ответила.
+     * Отмена вызывающего не прерывает общий запрос: его могут ждать другие.
+     */
+    suspend fun respond(prompt: String, learnedContext: String): String? {
+        stats.requests.incrementAndGet()
+        cached(prompt)?.let { return it }
+
+        val key = KnowledgeBase.normalize(prompt)
+        // Ленивый старт: запрос начинает только тот, кто положил его в таблицу
+        val flight = inFlight.computeIfAbsent(key) {
+            scope.async(start = CoroutineStart.LAZY) {
+                try {
+                    // Ответ мог появиться, пока вопрос ждал в очереди
+                    knowledge.cachedAnswer(prompt, cacheTtlMs, clock()) ?: fetch(prompt, learnedContext)
+                } finally {
+                    inFlight.remove(key)
+                }
+            }
+        }
+        if (!flight.start()) stats.collapsed.incrementAndGet()
+        return flight.await()
+    }
+
+    /**
+     * Модели, которые сейчас не пропускаются (для диагностики).
+     */
+    fun healthyModels(): List<String> = models.filter { isHealthy(it) }
+
+    private suspend fun fetch(prompt: String, learnedContext: String): String? {
+        val start = System.nanoTime()
+        val available = healthyModels()
+        stats.skippedModels.addAndGet(models.size - available.size)
+        if (available.isEmpty()) return null
+
+        stats.webSearches.incrementAndGet()
+        val webInfo = try {
+            webSearch(prompt)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (_: Exception) {
+            ""
+        }
+        val fullPrompt = """
+            Контекст из памяти:
+            $learnedContext
+
+            Информация из интернета:
+            $webInfo
+
+            Вопрос пользователя:
+            $prompt
+
+            Ответь кратко, по делу, на русском языке.
+        """.trimIndent()
+
+        var backoff = 400L
+        for (model in available) {
+            // Параллельный запрос по другому вопросу мог уже отметить модель
+            if (!isHealthy(model)) {
+                stats.skippedModels.incrementAndGet()
+                continue
+            }
+            stats.modelCalls.incrementAndGet()
+            val response = try {
+                client.generate(model, fullPrompt)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                stats.modelFailures.incrementAndGet()
+                val status = statusOf(e)
+                if (!markFailed(model, status)) {
+                    Log.w(TAG, "Model $model failed: ${e.message}")
+                    break
+                }
+                // 404 — модели просто нет, ждать нечего; квоты, сбои сервера и сети — небольшая пауза
+                if (status != 404) {
+                    delay(backoff)
+                    backoff = (backoff * 1.5).toLong().coerceAtMost(3_000L)
+                }
+                continue
+            }
+            if (response.isEmpty()) continue
+
+            markHealthy(model)
+            knowledge.remember(prompt, response)
+            val elapsedMs = (System.nanoTime() - start) / 1_000_000
+            stats.cloudAnswers.incrementAndGet()
+            stats.cloudTimeMs.addAndGet(elapsedMs)
+            Log.i(TAG, "Answer from $model in $elapsedMs ms; ${stats.snapshot()}")
+            return response
+        }
+        Log.w(TAG, "No cloud answer in ${(System.nanoTime() - start) / 1_000_000} ms; ${stats.snapshot()}")
+        return null
+    }
+
+    private fun isHealthy(model: String): Boolean {
+        val h = health[model] ?: return true
+        return synchronized(h) { h.blockedUntil <= clock() }
+    }
+
+    private fun markHealthy(model: String) {
+        health[model]?.let { synchronized(it) { it.rateLimits = 0 } }
+    }
+
+    /**
+     * Пауза для модели по статусу ошибки.
+     * Сетевые ошибки (таймаут, DNS, обрыв — статус -1) не говорят ничего о самой модели:
+     * паузы нет, перебор продолжается со следующей.
+     * @return false — ошибка не временная (ключ, запрос: прочие 4xx), перебор моделей прекращается.
+     */
+    private fun markFailed(model: String, status: Int): Boolean {
+        if (status < 0) return true
+        val h = health.getOrPut(model) { Health() }
+        synchronized(h) {
+            val pause = when (status) {
+                429 -> (RATE_LIMIT_PAUSE_MS shl minOf(h.rateLimits++, 4)).coerceAtMost(MAX_RATE_LIMIT_PAUSE_MS)
+                404 -> NOT_FOUND_PAUSE_MS
+                in 500..599 -> SERVER_ERROR_PAUSE_MS
+                else -> return status !in 400..499
+            }
+            h.blockedUntil = clock() + pause
+            Log.i(TAG, "Model $model paused for ${pause / 1000} s (status $status)")
+        }
+        return true
+    }
+
+    // SDK не отдаёт код ответа отдельно — разбираем текст ошибки, как и раньше
+    private fun statusOf(e: Exception): Int {
+        if (e is CloudCallException) return e.status
+        // Таймаут, неизвестный хост, обрыв соединения
+        if (e is IOException) return -1
+        val msg = e.message ?: return -1
+        return when {
+            msg.contains("429") || msg.contains("quota", true) -> 429
+            msg.contains("404") -> 404
+            msg.contains("503") -> 503
+            msg.contains("500") -> 500
+            msg.contains("API key", true) -> 400
+            else -> -1
+        }
+    }
+}
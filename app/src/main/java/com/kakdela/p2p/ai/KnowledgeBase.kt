@@ -0,0 +1,352 @@
+package com.kakdela.p2p.ai
+
+import android.content.Context
+import android.util.Half
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.ln
+import kotlin.math.sqrt
+
+/**
+ * Память ассистента (ai_teacher_db): сохранение ответов и поиск похожих знаний для контекста.
+ *
+ * Поиск гибридный:
+ * - полнотекстовый по вопросам и ответам (knowledge_fts) с ранжированием BM25;
+ * - семантический по векторам вопросов ([KnowledgeEmbedder]), полный перебор
+ *   в памяти по компактной матрице float16;
+ * - списки объединяются по Reciprocal Rank Fusion: документ, найденный обоими способами,
+ *   поднимается выше, а шкалы BM25 и косинуса не нужно приводить друг к другу.
+ * Пока индекс векторов загружается (первый запрос после старта), работает только FTS.
+ */
+class KnowledgeBase internal constructor(private val dao: KnowledgeDao) {
+
+    companion object {
+        private const val TAG = "KnowledgeBase"
+
+        // Кандидаты каждого способа до объединения
+        private const val CANDIDATES = 20
+        // Верхняя граница совпадений FTS, по которым считается BM25 (свежие первыми)
+        private const val FTS_SCAN_LIMIT = 500
+        private const val MAX_TERMS = 12
+        private const val MIN_TERM = 3
+        // Длинные слова ищутся по префиксу без окончания: грубая замена стемминга для русского
+        private const val PREFIX_FROM = 6
+        private const val MIN_COSINE = 0.35f
+        private const val RRF_K = 60.0
+        private const val PAGE = 2_000
+
+        // BM25: насыщение частоты, нормализация по длине, веса колонок (вопрос, ответ)
+        private const val K1 = 1.2
+        private const val B = 0.75
+        private val COLUMN_WEIGHTS = doubleArrayOf(2.0, 1.0)
+
+        private val WORD = Regex("[\\p{L}\\p{N}]+")
+        private val STOP_WORDS = setOf(
+            "что", "как", "это", "для", "где", "кто", "или", "так", "уже", "его", "она", "они",
+            "мне", "меня", "тебя", "тебе", "есть", "был", "была", "было", "при", "над", "под",
+            "the", "and", "what", "how", "for", "are", "you", "this", "that"
+        )
+
+        @Volatile private var INSTANCE: KnowledgeBase? = null
+
+        fun get(context: Context): KnowledgeBase {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: KnowledgeBase(AppDatabase.getDatabase(context).knowledgeDao()).also { INSTANCE = it }
+            }
+        }
+
+        /**
+         * Ключ вопроса для кэша и объединения одинаковых запросов: регистр, пробелы
+         * и пунктуация не различаются («Что такое DHT?» == «что такое dht»).
+         */
+        fun normalize(text: String): String =
+            WORD.findAll(text.lowercase()).joinToString(" ") { it.value }
+
+        /**
+         * Выражение MATCH: значимые слова через OR (ранжирование решает BM25), длинные — по префиксу.
+         * @return null, если в запросе нет значимых слов.
+         */
+        fun buildMatch(text: String): String? {
+            val terms = WORD.findAll(text.lowercase())
+                .map { it.value }
+                .filter { it.length >= MIN_TERM && it !in STOP_WORDS }
+                .map { if (it.length >= PREFIX_FROM) it.dropLast(2) + "*" else it }
+                .distinct()
+                .take(MAX_TERMS)
+                .toList()
+            return terms.takeIf { it.isNotEmpty() }?.joinToString(" OR ")
+        }
+
+        /**
+         * BM25 по matchinfo 'pcnalx': p, c, n, среднее число токенов колонок (a),
+         * длины колонок строки (l), затем для каждой пары фраза/колонка — совпадения в строке,
+         * во всех строках и число строк с совпадением (x).
+         */
+        internal fun bm25(info: ByteArray): Double {
+            val ints = ByteBuffer.wrap(info).order(ByteOrder.nativeOrder()).asIntBuffer()
+            val phrases = ints.get(0)
+            val columns = ints.get(1)
+            val rows = ints.get(2).toDouble()
+            var score = 0.0
+            for (phrase in 0 until phrases) {
+                for (column in 0 until columns) {
+                    val x = 3 + 2 * columns + 3 * (phrase * columns + column)
+                    val tf = ints.get(x).toDouble()
+                    if (tf == 0.0) continue
+                    val df = ints.get(x + 2).toDouble()
+                    val avg = maxOf(1, ints.get(3 + column)).toDouble()
+                    val length = ints.get(3 + columns + column).toDouble()
+                    val idf = ln((rows - df + 0.5) / (df + 0.5) + 1.0)
+                    val weight = COLUMN_WEIGHTS.getOrElse(column) { 1.0 }
+                    score += weight * idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / avg))
+                }
+            }
+            return score
+        }
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val indexMutex = Mutex()
+    private val index = VectorIndex(KnowledgeEmbedder.DIM)
+    @Volatile private var indexReady = false
+    private var indexJob: Job? = null
+
+    /**
+     * Сохраняет ответ вместе с вектором вопроса; ответ попадает и в кэш [cachedAnswer].
+     */
+    suspend fun remember(query: String, answer: String) {
+        val id = dao.insert(KnowledgeEntity(query = query, answer = answer, queryKey = normalize(query)))
+        val vector = KnowledgeEmbedder.embed(query)
+        dao.insertVectors(listOf(KnowledgeVectorEntity(id, KnowledgeEmbedder.MODEL, KnowledgeEmbedder.toBytes(vector))))
+        indexMutex.withLock { if (indexReady) index.add(id, KnowledgeEmbedder.toHalf(vector)) }
+    }
+
+    /**
+     * Ответ на тот же вопрос (после [normalize]) не старше [ttlMs] или null.
+     */
+    suspend fun cachedAnswer(query: String, ttlMs: Long, now: Long = System.currentTimeMillis()): String? {
+        val key = normalize(query)
+        if (key.isEmpty()) return null
+        return dao.findCached(key, now - ttlMs)?.answer
+    }
+
+    /**
+     * До [limit] знаний, наиболее близких к [text], в порядке убывания релевантности.
+     */
+    suspend fun search(text: String, limit: Int = 3): List<KnowledgeEntity> {
+        startIndexLoad()
+        val start = System.nanoTime()
+        val fts = searchFts(text)
+        val vectors = if (indexReady) searchVectors(text) else emptyList()
+
+        val fused = HashMap<Long, Double>()
+        fts.forEachIndexed { rank, id -> fused.merge(id, 1.0 / (RRF_K + rank + 1), Double::plus) }
+        vectors.forEachIndexed { rank, id -> fused.merge(id, 1.0 / (RRF_K + rank + 1), Double::plus) }
+        val ids = fused.entries.sortedByDescending { it.value }.take(limit).map { it.key }
+        if (ids.isEmpty()) return emptyList()
+
+        val order = ids.withIndex().associate { it.value to it.index }
+        val result = dao.getByIds(ids).sortedBy { order[it.id] }
+        Log.d(TAG, "search: fts=${fts.size}, vectors=${vectors.size}, ${(System.nanoTime() - start) / 1000} µs")
+        return result
+    }
+
+    /**
+     * Кандидаты FTS по убыванию BM25.
+     */
+    internal suspend fun searchFts(text: String): List<Long> {
+        val match = buildMatch(text) ?: return emptyList()
+        return dao.matchFts(match, FTS_SCAN_LIMIT)
+            .map { it.id to bm25(it.info) }
+            .filter { it.second > 0 }
+            .sortedByDescending { it.second }
+            .take(CANDIDATES)
+            .map { it.first }
+    }
+
+    /**
+     * Кандидаты по косинусной близости вопроса (только при загруженном индексе).
+     */
+    internal fun searchVectors(text: String): List<Long> =
+        index.nearest(KnowledgeEmbedder.embed(text), CANDIDATES, MIN_COSINE)
+
+    /**
+     * Дожидается загрузки индекса векторов (для замеров).
+     */
+    internal suspend fun awaitIndex() {
+        startIndexLoad()
+        indexJob?.join()
+    }
+
+    private fun startIndexLoad() {
+        if (indexReady) return
+        synchronized(this) {
+            if (indexJob == null) indexJob = scope.launch {
+                try {
+                    loadIndex()
+                } catch (e: Exception) {
+                    // Поиск продолжает работать по FTS; загрузка повторится при следующем запросе
+                    Log.e(TAG, "Vector index load failed", e)
+                    synchronized(this@KnowledgeBase) { indexJob = null }
+                }
+            }
+        }
+    }
+
+    /**
+     * Досчитывает недостающие векторы, затем читает все векторы по возрастанию id.
+     * Поздние вставки из [remember] добавляются в индекс сами; последняя страница читается
+     * под тем же замком, поэтому между загрузкой и готовностью ничего не теряется.
+     */
+    private suspend fun loadIndex() {
+        val start = System.nanoTime()
+        val model = KnowledgeEmbedder.MODEL
+        dao.deleteStaleVectors(model)
+
+        var backfilled = 0
+        while (true) {
+            val missing = dao.getWithoutVector(model, PAGE)
+            if (missing.isEmpty()) break
+            dao.insertVectors(missing.map {
+                KnowledgeVectorEntity(it.id, model, KnowledgeEmbedder.toBytes(KnowledgeEmbedder.embed(it.query)))
+            })
+            backfilled += missing.size
+        }
+
+        var afterId = 0L
+        while (true) {
+            val page = dao.getVectors(model, afterId, PAGE)
+            if (page.isEmpty()) {
+                val done = indexMutex.withLock {
+                    val tail = dao.getVectors(model, afterId, PAGE)
+                    tail.forEach { index.add(it.id, KnowledgeEmbedder.fromBytes(it.vector)) }
+                    if (tail.isEmpty()) indexReady = true
+                    afterId = tail.lastOrNull()?.id ?: afterId
+                    indexReady
+                }
+                if (done) break else continue
+            }
+            page.forEach { index.add(it.id, KnowledgeEmbedder.fromBytes(it.vector)) }
+            afterId = page.last().id
+        }
+        Log.i(TAG, "Vector index: ${index.size} entries ($backfilled computed) in ${(System.nanoTime() - start) / 1_000_000} ms")
+    }
+}
+
+/**
+ * Локальный эмбеддер без модели: хеширование символьных триграмм слов в [DIM] измерений
+ * со случайным знаком, L2-нормировка. Триграммы устойчивы к окончаниям и опечаткам,
+ * которые FTS без стемминга пропускает. При смене алгоритма меняется [MODEL],
+ * и векторы пересчитываются.
+ */
+object KnowledgeEmbedder {
+    const val DIM = 128
+    const val MODEL = "hash3-128-v1"
+
+    private val WORD = Regex("[\\p{L}\\p{N}]+")
+
+    fun embed(text: String): FloatArray {
+        val v = FloatArray(DIM)
+        WORD.findAll(text.lowercase()).forEach { m ->
+            val word = " ${m.value} "
+            for (i in 0..word.length - 3) add(v, word.substring(i, i + 3).hashCode())
+            add(v, word.hashCode() * 31 + 7) // слово целиком
+        }
+        var norm = 0f
+        for (x in v) norm += x * x
+        if (norm > 0f) {
+            val inv = 1f / sqrt(norm)
+            for (i in v.indices) v[i] *= inv
+        }
+        return v
+    }
+
+    private fun add(v: FloatArray, hash: Int) {
+        // Перемешивание битов: hashCode коротких строк плохо распределён по младшим битам
+        var h = hash * -0x61c88647
+        h = h xor (h ushr 15)
+        v[(h ushr 1) % DIM] += if (h < 0) -1f else 1f
+    }
+
+    fun toHalf(v: FloatArray): ShortArray = ShortArray(v.size) { Half.toHalf(v[it]) }
+
+    fun toBytes(v: FloatArray): ByteArray {
+        val buffer = ByteBuffer.allocate(v.size * 2).order(ByteOrder.LITTLE_ENDIAN)
+        v.forEach { buffer.putShort(Half.toHalf(it)) }
+        return buffer.array()
+    }
+
+    fun fromBytes(bytes: ByteArray): ShortArray {
+        val out = ShortArray(bytes.size / 2)
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(out)
+        return out
+    }
+}
+
+/**
+ * Векторы float16 одной непрерывной матрицей: 100 тыс. записей по 128 измерений — 25 МБ,
+ * полный перебор — один линейный проход без объектов на запись.
+ */
+internal class VectorIndex(private val dim: Int) {
+
+    companion object {
+        // float16 -> float одной выборкой из таблицы вместо разбора битов в цикле
+        private val HALF_TO_FLOAT by lazy { FloatArray(65_536) { Half.toFloat(it.toShort()) } }
+    }
+
+    private var ids = LongArray(1_024)
+    private var data = ShortArray(1_024 * dim)
+
+    @Volatile var size = 0
+        private set
+
+    /**
+     * Добавление в конец; id должны возрастать (повторы и более старые id пропускаются).
+     */
+    @Synchronized
+    fun add(id: Long, vector: ShortArray) {
+        if (vector.size != dim || (size > 0 && id <= ids[size - 1])) return
+        if (size == ids.size) {
+            ids = ids.copyOf(size * 2)
+            data = data.copyOf(size * 2 * dim)
+        }
+        ids[size] = id
+        System.arraycopy(vector, 0, data, size * dim, dim)
+        size++
+    }
+
+    /**
+     * До [k] id с косинусом не ниже [minScore] (векторы нормированы, поэтому косинус — скалярное произведение).
+     */
+    @Synchronized
+    fun nearest(query: FloatArray, k: Int, minScore: Float): List<Long> {
+        val lut = HALF_TO_FLOAT
+        val bestIds = LongArray(k)
+        val bestScores = FloatArray(k) { Float.NEGATIVE_INFINITY }
+        var found = 0
+        for (row in 0 until size) {
+            val base = row * dim
+            var dot = 0f
+            for (i in 0 until dim) dot += query[i] * lut[data[base + i].toInt() and 0xFFFF]
+            if (dot < minScore || (found == k && dot <= bestScores[k - 1])) continue
+            // Вставка в отсортированный список лучших
+            var pos = if (found < k) found++ else k - 1
+            while (pos > 0 && bestScores[pos - 1] < dot) {
+                bestScores[pos] = bestScores[pos - 1]
+                bestIds[pos] = bestIds[pos - 1]
+                pos--
+            }
+            bestScores[pos] = dot
+            bestIds[pos] = ids[row]
+        }
+        return bestIds.take(found)
+    }
+}
@@ -0,0 +1,140 @@
+package com.kakdela.p2p.ai
+
+import android.content.Context
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.RandomAccessFile
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Настройки загрузки локальной модели (применяются при следующей загрузке).
+ */
+object LlamaSettings {
+    private const val PREFS = "ai_prefs"
+    private const val KEY_MMAP = "llama_use_mmap"
+    private const val KEY_MLOCK = "llama_use_mlock"
+
+    fun useMmap(context: Context): Boolean = prefs(context).getBoolean(KEY_MMAP, true)
+
+    fun useMlock(context: Context): Boolean = prefs(context).getBoolean(KEY_MLOCK, false)
+
+    fun setUseMmap(context: Context, value: Boolean) = prefs(context).edit().putBoolean(KEY_MMAP, value).apply()
+
+    fun setUseMlock(context: Context, value: Boolean) = prefs(context).edit().putBoolean(KEY_MLOCK, value).apply()
+
+    internal fun prefs(context: Context) = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+}
+
+/**
+ * Тёплый старт локальной модели: KV-состояние системного блока [LocalConversation.SYSTEM_PROMPT]
+ * хранится в filesDir/models и восстанавливается после перезапуска процесса вместо prefill.
+ *
+ * Имя файла — отпечаток модели + хеш шаблона: при смене модели или системного блока
+ * старое состояние просто не находится (и удаляется).
+ */
+object LlamaStateCache {
+
+    private const val TAG = "LlamaStateCache"
+    private const val KEY_FINGERPRINT = "model_fingerprint"
+
+    // Формат состояния зависит от параметров контекста в native-lib.cpp
+    private const val STATE_FORMAT = "ctx2048-v1"
+    private const val SAMPLE_BYTES = 1 shl 20
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val calibrating = AtomicBoolean(false)
+
+    /**
+     * Загрузка модели с настройками [LlamaSettings] и прогрев системного блока.
+     * При первой загрузке модели на устройстве калибровка потоков ([LlamaTuning]) идёт в фоне
+     * после прогрева, в паузах между генерациями; до её окончания действует конфигурация по умолчанию.
+     */
+    suspend fun loadAndWarm(context: Context, modelFile: File): Boolean = withContext(Dispatchers.IO) {
+        val start = System.nanoTime()
+        LlamaBridge.init(modelFile.absolutePath, LlamaSettings.useMmap(context), LlamaSettings.useMlock(context))
+        if (!LlamaBridge.isReady()) return@withContext false
+        val tuned = LlamaTuning.applyStored(context, modelFile)
+        val loadedAt = System.nanoTime()
+
+        val state = stateFile(context, modelFile)
+        val warm = LlamaBridge.warmup(LocalConversation.SYSTEM_PROMPT, state.absolutePath)
+        if (warm) removeStale(state)
+        Log.i(TAG, "Model load ${(loadedAt - start) / 1_000_000} ms, warm-up ${(System.nanoTime() - loadedAt) / 1_000_000} ms")
+        if (!tuned) calibrateInBackground(context.applicationContext, modelFile, state)
+        true
+    }
+
+    private fun calibrateInBackground(context: Context, modelFile: File, state: File) {
+        if (!calibrating.compareAndSet(false, true)) return
+        scope.launch {
+            try {
+                // Замеры ждут паузы в генерациях и сами возвращают системный блок из state
+                LlamaTuning.calibrate(context, modelFile, state.absolutePath)
+                if (LlamaBridge.isReady()) LlamaBridge.warmup(LocalConversation.SYSTEM_PROMPT, state.absolutePath)
+            } catch (e: Exception) {
+                Log.e(TAG, "Thread calibration failed", e)
+            } finally {
+                calibrating.set(false)
+            }
+        }
+    }
+
+    private fun stateFile(context: Context, modelFile: File): File {
+        val template = sha256((LocalConversation.SYSTEM_PROMPT + STATE_FORMAT).toByteArray()).take(16)
+        return File(modelFile.parentFile, "state-${fingerprint(context, modelFile).take(16)}-$template.bin")
+    }
+
+    private fun removeStale(current: File) {
+        current.parentFile
+            ?.listFiles { f -> f.name.startsWith("state-") && f.name.endsWith(".bin") && f.name != current.name }
+            ?.forEach { it.delete() }
+    }
+
+    /**
+     * Полный SHA-256, проверенный при загрузке, заменяет выборочный отпечаток: тот же файл
+     * с другого источника получает то же сохранённое состояние.
+     */
+    fun rememberFingerprint(context: Context, modelFile: File, sha256: String) {
+        LlamaSettings.prefs(context).edit().putString(KEY_FINGERPRINT, "${identity(modelFile)}|$sha256").apply()
+    }
+
+    private fun identity(modelFile: File) = "${modelFile.absolutePath}:${modelFile.length()}:${modelFile.lastModified()}"
+
+    /**
+     * Отпечаток модели: SHA-256 от размера и первого/последнего мегабайта файла.
+     * Полный хеш многогигабайтного файла занял бы секунды на каждом старте — ровно то,
+     * что здесь экономится; результат кешируется по пути, размеру и времени изменения.
+     */
+    private fun fingerprint(context: Context, modelFile: File): String {
+        val prefs = LlamaSettings.prefs(context)
+        val identity = identity(modelFile)
+        prefs.getString(KEY_FINGERPRINT, null)?.let {
+            if (it.substringBeforeLast('|') == identity) return it.substringAfterLast('|')
+        }
+
+        val digest = MessageDigest.getInstance("SHA-256")
+        RandomAccessFile(modelFile, "r").use { raf ->
+            val length = raf.length()
+            digest.update(length.toString().toByteArray())
+            val buffer = ByteArray(SAMPLE_BYTES)
+            for (offset in listOf(0L, maxOf(0L, length - SAMPLE_BYTES))) {
+                val n = minOf(SAMPLE_BYTES.toLong(), length - offset).toInt()
+                raf.seek(offset)
+                raf.readFully(buffer, 0, n)
+                digest.update(buffer, 0, n)
+            }
+        }
+        val hash = digest.digest().joinToString("") { "%02x".format(it) }
+        prefs.edit().putString(KEY_FINGERPRINT, "$identity|$hash").apply()
+        return hash
+    }
+
+    private fun sha256(bytes: ByteArray): String =
+        MessageDigest.getInstance("SHA-256").digest(bytes).joinToString("") { "%02x".format(it) }
+}
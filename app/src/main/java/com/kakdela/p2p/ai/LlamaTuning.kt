@@ -0,0 +1,175 @@
+package com.kakdela.p2p.ai
+
+import android.content.Context
+import android.util.Log
+import java.io.File
+
+/**
+ * Подбор потоков и ядер для локальной модели.
+ *
+ * На big.LITTLE потоки llama.cpp синхронизируются на каждом слое, и медленные ядра
+ * тормозят всю группу: «все ядра минус одно» часто проигрывает «только большим ядрам».
+ * Декодирование (упирается в память) и prefill (упирается в вычисления) выигрывают
+ * на разных конфигурациях, поэтому они замеряются отдельно. Победители сохраняются
+ * для пары модель + устройство, и калибровка проходит один раз.
+ */
+object LlamaTuning {
+
+    private const val TAG = "LlamaTuning"
+    private const val KEY_CONFIG = "llama_thread_config"
+    private const val FORMAT = "v1"
+
+    private const val DECODE_TOKENS = 8
+    private const val PREFILL_TOKENS = 64
+    private const val DEFAULT_CHUNK = 256
+    private val CHUNKS = listOf(16, 32, 64, 256)
+    // Пауза в переписке, после которой замер не мешает следующему ходу диалога
+    private const val IDLE_QUIET_MS = 60_000L
+
+    /** Набор ядер для замера; [cpus] == null — без закрепления. */
+    data class Candidate(val name: String, val threads: Int, val cpus: IntArray?)
+
+    data class Result(val candidate: Candidate, val prefill: Boolean, val chunk: Int, val tokensPerSec: Double) {
+        override fun toString(): String =
+            "${if (prefill) "prefill" else "decode"} ${candidate.name} threads=${candidate.threads}" +
+                (if (prefill) " chunk=$chunk" else "") + ": ${"%.2f".format(tokensPerSec)} tok/s"
+    }
+
+    private data class Config(
+        val decodeThreads: Int,
+        val decodeCpus: IntArray?,
+        val prefillThreads: Int,
+        val prefillCpus: IntArray?,
+        val chunk: Int
+    ) {
+        fun apply() = LlamaBridge.configure(decodeThreads, decodeCpus, prefillThreads, prefillCpus, chunk)
+
+        fun encode(): String = listOf(decodeThreads, cpus(decodeCpus), prefillThreads, cpus(prefillCpus), chunk)
+            .joinToString(";")
+
+        companion object {
+            private fun cpus(list: IntArray?) = list?.joinToString(",") ?: ""
+
+            private fun parseCpus(s: String): IntArray? =
+                if (s.isEmpty()) null else s.split(',').map { it.toInt() }.toIntArray()
+
+            fun decode(s: String): Config? = runCatching {
+                val p = s.split(';')
+                Config(p[0].toInt(), parseCpus(p[1]), p[2].toInt(), parseCpus(p[3]), p[4].toInt())
+            }.getOrNull()
+        }
+    }
+
+    /**
+     * Применяет сохранённую для этой модели и устройства конфигурацию.
+     * @return false — конфигурации нет, нужна [calibrate].
+     */
+    fun applyStored(context: Context, modelFile: File): Boolean {
+        val stored = LlamaSettings.prefs(context).getString(KEY_CONFIG, null) ?: return false
+        if (stored.substringBeforeLast('|') != identity(modelFile)) return false
+        val config = Config.decode(stored.substringAfterLast('|')) ?: return false
+        config.apply()
+        return true
+    }
+
+    /**
+     * Калибрует и сохраняет конфигурацию. Занимает секунды, поэтому вызывается в фоне после
+     * тёплого старта ([LlamaStateCache]). Каждый замер начинается только после [IDLE_QUIET_MS]
+     * без генераций, возвращает действующую конфигурацию и системный блок из [statePath]:
+     * генерации между замерами идут как обычно, теряется лишь префикс давно начатого диалога.
+     */
+    suspend fun calibrate(context: Context, modelFile: File, statePath: String) {
+        val start = System.nanoTime()
+        val results = measure(statePath, IDLE_QUIET_MS)
+        val config = pick(results) ?: return
+        config.apply()
+        LlamaSettings.prefs(context).edit().putString(KEY_CONFIG, "${identity(modelFile)}|${config.encode()}").apply()
+        Log.i(TAG, "Calibrated in ${(System.nanoTime() - start) / 1_000_000} ms: ${config.encode()}")
+    }
+
+    /**
+     * Сброс сохранённой конфигурации: калибровка пройдёт при следующей загрузке модели.
+     */
+    fun reset(context: Context) = LlamaSettings.prefs(context).edit().remove(KEY_CONFIG).apply()
+
+    /**
+     * Замер всех кандидатов: декодирование и prefill, затем размеры микро-батча
+     * на лучшей конфигурации prefill. Требует загруженной модели и сбрасывает KV-кэш;
+     * с [statePath] системный блок после каждого замера загружается обратно.
+     * Перед каждым замером ждёт [quietMs] без генераций ([LlamaBridge.awaitIdle]).
+     */
+    suspend fun measure(statePath: String? = null, quietMs: Long = 0): List<Result> {
+        if (!LlamaBridge.isLibAvailable() || !LlamaBridge.isReady()) return emptyList()
+        val candidates = candidates()
+        val results = mutableListOf<Result>()
+
+        suspend fun step(c: Candidate, prefill: Boolean, tokens: Int, chunk: Int): Result {
+            LlamaBridge.awaitIdle(quietMs)
+            return Result(c, prefill, chunk, LlamaBridge.benchmarkConfig(c.threads, c.cpus, prefill, tokens, chunk, statePath))
+        }
+
+        for (c in candidates) results += step(c, false, DECODE_TOKENS, DEFAULT_CHUNK)
+        for (c in candidates) results += step(c, true, PREFILL_TOKENS, DEFAULT_CHUNK)
+        results.filter { it.prefill }.maxByOrNull { it.tokensPerSec }?.candidate?.let { best ->
+            for (chunk in CHUNKS.filter { it != DEFAULT_CHUNK }) {
+                results += step(best, true, PREFILL_TOKENS, chunk)
+            }
+        }
+        results.forEach { Log.i(TAG, it.toString()) }
+        return results
+    }
+
+    private fun pick(results: List<Result>): Config? {
+        val decode = results.filter { !it.prefill && it.tokensPerSec > 0 }.maxByOrNull { it.tokensPerSec } ?: return null
+        val prefill = results.filter { it.prefill && it.tokensPerSec > 0 }.maxByOrNull { it.tokensPerSec } ?: return null
+        return Config(decode.candidate.threads, decode.candidate.cpus,
+            prefill.candidate.threads, prefill.candidate.cpus, prefill.chunk)
+    }
+
+    /**
+     * Кандидаты: без закрепления (как раньше — все ядра минус одно), все ядра,
+     * все кроме самого медленного кластера, только самый быстрый кластер;
+     * для каждого набора из k ядер — k и k-1 потоков.
+     */
+    internal fun candidates(): List<Candidate> {
+        val cores = Runtime.getRuntime().availableProcessors()
+        val result = mutableListOf(Candidate("unpinned", maxOf(1, cores - 1), null))
+
+        val tiers = cpuFrequencies().entries
+            .groupBy({ it.value }, { it.key })
+            .toSortedMap(compareByDescending { it })
+            .values.toList()
+        if (tiers.isEmpty()) return result
+
+        val sets = linkedMapOf<String, List<Int>>()
+        sets["all"] = tiers.flatten()
+        if (tiers.size > 1) sets["no-little"] = tiers.dropLast(1).flatten()
+        if (tiers.size > 2) sets["big"] = tiers.first()
+
+        for ((name, cpus) in sets) {
+            val mask = cpus.sorted().toIntArray()
+            for (threads in listOf(mask.size, mask.size - 1).filter { it >= 1 }.distinct()) {
+                result += Candidate("$name[${mask.joinToString(",")}]", threads, mask)
+            }
+        }
+        return result.distinctBy { it.threads to it.cpus?.toList() }
+    }
+
+    /** Максимальная частота каждого ядра, кГц (пусто, если sysfs недоступен). */
+    private fun cpuFrequencies(): Map<Int, Long> {
+        val present = runCatching { File("/sys/devices/system/cpu/present").readText().trim() }.getOrNull()
+            ?: return emptyMap()
+        val cpus = present.split(',').flatMap { range ->
+            val bounds = range.split('-').mapNotNull { it.trim().toIntOrNull() }
+            if (bounds.size == 2) (bounds[0]..bounds[1]).toList() else bounds
+        }
+        return cpus.associateWith { cpu ->
+            runCatching {
+                File("/sys/devices/system/cpu/cpu$cpu/cpufreq/cpuinfo_max_freq").readText().trim().toLong()
+            }.getOrDefault(0L)
+        }
+    }
+
+    private fun identity(modelFile: File): String =
+        "$FORMAT:${modelFile.absolutePath}:${modelFile.length()}:${android.os.Build.FINGERPRINT}"
+}
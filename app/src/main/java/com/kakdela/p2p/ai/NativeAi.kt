@@ -3,14 +3,19 @@ package com.kakdela.p2p.ai
 import android.content.Context
 import android.util.Log
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.channels.trySendBlocking
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import okhttp3.OkHttpClient
-import okhttp3.Request
 import java.io.File
-import java.io.FileInputStream
-import java.io.FileOutputStream
-import java.io.IOException
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 // --- Llama Bridge ---
 object LlamaBridge {
@@ -25,11 +30,161 @@ object LlamaBridge {
         }
     }
 
-    external fun init(modelPath: String)
+    private const val TAG = "LlamaBridge"
+    const val DEFAULT_MAX_TOKENS = 256
+    private const val IDLE_POLL_MS = 1_000L
+
+    /**
+     * Получатель фрагментов ответа из нативного кода (байты UTF-8, символы не разрезаны).
+     * Возвращает false, чтобы остановить генерацию.
+     */
+    fun interface TokenCallback {
+        fun onPiece(bytes: ByteArray): Boolean
+    }
+
+    /**
+     * Метрики последней генерации.
+     * [ttftMs] — время до первого токена (токенизация + prefill + первый сэмпл),
+     * [tokensPerSec] — скорость декодирования после первого токена.
+     * [reusedTokens] взяты из KV-кэша прошлого хода, [prefillTokens] декодированы заново,
+     * [shiftedTokens] вытеснены из начала диалога при заполнении окна.
+     */
+    data class GenerationStats(
+        val promptTokens: Int,
+        val generatedTokens: Int,
+        val prefillMs: Long,
+        val ttftMs: Long,
+        val totalMs: Long,
+        val tokensPerSec: Double,
+        val cancelled: Boolean,
+        val reusedTokens: Int,
+        val prefillTokens: Int,
+        val shiftedTokens: Int
+    ) {
+        companion object {
+            internal fun fromNative(raw: LongArray): GenerationStats {
+                val decodeNs = raw[5]
+                return GenerationStats(
+                    promptTokens = raw[0].toInt(),
+                    generatedTokens = raw[1].toInt(),
+                    prefillMs = raw[2] / 1_000_000,
+                    ttftMs = if (raw[3] >= 0) raw[3] / 1_000_000 else -1,
+                    totalMs = raw[4] / 1_000_000,
+                    tokensPerSec = if (decodeNs > 0) raw[1] * 1e9 / decodeNs else 0.0,
+                    cancelled = raw[6] != 0L,
+                    reusedTokens = raw[7].toInt(),
+                    prefillTokens = raw[8].toInt(),
+                    shiftedTokens = raw[9].toInt()
+                )
+            }
+        }
+    }
+
+    @Volatile
+    var lastStats: GenerationStats? = null
+        private set
+
+    private external fun initNative(modelPath: String, useMmap: Boolean, useMlock: Boolean)
     external fun isReady(): Boolean
+
+    /**
+     * Загрузка модели. [useMmap] — веса отображаются в память, а не копируются;
+     * [useMlock] — удерживаются в RAM (см. [LlamaSettings]).
+     */
+    fun init(modelPath: String, useMmap: Boolean = true, useMlock: Boolean = false) =
+        initNative(modelPath, useMmap, useMlock)
+
+    /**
+     * Кладёт [system] в KV-кэш: из файла [statePath], если он есть, иначе prefill с сохранением.
+     */
+    external fun warmup(system: String, statePath: String): Boolean
     external fun prompt(text: String): String
+    private external fun generate(id: Long, system: String, conversation: String, maxTokens: Int, callback: TokenCallback): LongArray?
+    private external fun cancel(id: Long)
+
+    // Идентификаторы вызовов generate: отмена относится к своему вызову, даже если он ещё в очереди
+    private val generationIds = AtomicLong()
+
+    // Генерации в очереди к generate_mutex и в работе; фоновая калибровка ждёт, пока их нет
+    private val activeGenerations = AtomicInteger()
+    @Volatile
+    private var lastGenerationEnd = 0L
+
+    /**
+     * Сбрасывает KV-кэш: следующий запрос декодирует промпт целиком.
+     */
+    external fun clearCache()
+
+    /**
+     * Потоки декодирования и prefill, закрепление по ядрам ([decodeCpus]/[prefillCpus],
+     * null — без закрепления) и размер микро-батча prefill. Переживает перезагрузку модели.
+     */
+    external fun configure(decodeThreads: Int, decodeCpus: IntArray?, prefillThreads: Int, prefillCpus: IntArray?, prefillChunk: Int)
+
+    /**
+     * Замер одной конфигурации потоков, токенов в секунду (0 — ошибка).
+     * Сбрасывает KV-кэш; действующая конфигурация после замера восстанавливается.
+     * [statePath] — файл прогрева ([warmup]): системный блок загружается из него обратно.
+     */
+    external fun benchmarkConfig(
+        threads: Int,
+        cpus: IntArray?,
+        prefill: Boolean,
+        nTokens: Int,
+        chunk: Int,
+        statePath: String?
+    ): Double
+
+    /**
+     * Ждёт, пока нет генераций и с окончания последней прошло [quietMs]: пока пользователь
+     * переписывается, префикс диалога в KV-кэше переиспользуется следующим ходом.
+     */
+    suspend fun awaitIdle(quietMs: Long) {
+        while (true) {
+            val wait = if (activeGenerations.get() > 0) quietMs
+            else lastGenerationEnd + quietMs - System.currentTimeMillis()
+            if (wait <= 0) return
+            delay(minOf(wait, IDLE_POLL_MS))
+        }
+    }
 
     fun isLibAvailable(): Boolean = isLibLoaded
+
+    /**
+     * Потоковая генерация: фрагменты ответа приходят по мере декодирования.
+     * [system] не вытесняется из окна; [conversation] — диалог, который от хода к ходу
+     * только дописывается: тогда его начало берётся из KV-кэша и декодируется лишь новый ход.
+     * Отмена сборщика останавливает генерацию после текущего шага декодирования
+     * (или прерывает prefill). Ошибка модели завершает поток исключением.
+     */
+    fun stream(system: String, conversation: String, maxTokens: Int = DEFAULT_MAX_TOKENS): Flow<String> = callbackFlow {
+        val finished = AtomicBoolean(false)
+        val id = generationIds.incrementAndGet()
+        launch(Dispatchers.IO) {
+            activeGenerations.incrementAndGet()
+            val raw = try {
+                generate(id, system, conversation, maxTokens) { bytes ->
+                    trySendBlocking(String(bytes, Charsets.UTF_8)).isSuccess
+                }
+            } finally {
+                lastGenerationEnd = System.currentTimeMillis()
+                activeGenerations.decrementAndGet()
+            }
+            finished.set(true)
+            if (raw == null) {
+                close(IllegalStateException("Local generation failed"))
+                return@launch
+            }
+            val stats = GenerationStats.fromNative(raw)
+            lastStats = stats
+            Log.i(TAG, "prefill=${stats.prefillMs} ms (${stats.prefillTokens} new, ${stats.reusedTokens} reused), " +
+                "ttft=${stats.ttftMs} ms, ${"%.2f".format(stats.tokensPerSec)} tok/s, " +
+                "generated=${stats.generatedTokens}, cancelled=${stats.cancelled}")
+            close()
+        }
+        // Сборщик ушёл раньше — прерываем нативный цикл, не дожидаясь следующего фрагмента
+        awaitClose { if (!finished.get()) cancel(id) }
+    }
 }
 
 // --- Download Manager ---
@@ -50,12 +205,15 @@ object ModelDownloadManager {
         return file.exists() && file.length() > 1_000_000_000L
     }
 
+    /**
+     * Загрузка модели параллельными диапазонами с докачкой после обрыва или перезапуска
+     * (см. [SegmentedDownloader]). Недокачанный файл не удаляется: повторный вызов продолжит его.
+     * Проверенный SHA-256 становится отпечатком модели для [LlamaStateCache].
+     * Без хеша от Hugging Face (X-Linked-Etag) файл не принимается: веса модели загружаются
+     * в нативный код, и непроверенный файл на диск не попадает.
+     */
     suspend fun download(context: Context, onProgress: (Int) -> Unit) = withContext(Dispatchers.IO) {
         val finalFile = getModelFile(context)
-        val tempFile = File(finalFile.parent, "$MODEL_FILENAME.tmp")
-
-        // Если остался мусор от прошлого раза - удаляем
-        if (tempFile.exists()) tempFile.delete()
 
         val client = OkHttpClient.Builder()
             .connectTimeout(30, TimeUnit.SECONDS)
@@ -63,64 +221,9 @@ object ModelDownloadManager {
             .followRedirects(true)
             .build()
 
-        val request = Request.Builder().url(MODEL_URL).build()
-
-        try {
-            val response = client.newCall(request).execute()
-            if (!response.isSuccessful) throw IOException("Download failed: ${response.code}")
-
-            val body = response.body ?: throw IOException("Empty body")
-            val totalBytes = body.contentLength()
-            var downloadedBytes = 0L
-            val buffer = ByteArray(8192) // 8KB buffer
-
-            body.byteStream().use { input ->
-                tempFile.outputStream().use { output ->
-                    var bytesRead: Int
-                    while (input.read(buffer).also { bytesRead = it } != -1) {
-                        output.write(buffer, 0, bytesRead)
-                        downloadedBytes += bytesRead
-                        if (totalBytes > 0) {
-                            onProgress(((downloadedBytes * 100) / totalBytes).toInt())
-                        }
-                    }
-                }
-            }
-
-            // --- КРИТИЧЕСКОЕ ИСПРАВЛЕНИЕ: Переименование ---
-            
-            // 1. Если целевой файл уже есть (например, битый), удаляем его
-            if (finalFile.exists()) {
-                if (!finalFile.delete()) {
-                    throw IOException("Cannot delete existing corrupted model file.")
-                }
-            }
-
-            // 2. Пытаемся сделать атомарный rename
-            val renameSuccess = tempFile.renameTo(finalFile)
-            
-            // 3. Если rename не сработал (бывает на некоторых Android), делаем копирование
-            if (!renameSuccess) {
-                Log.w("ModelDownload", "renameTo failed, trying manual copy...")
-                copyAndCleanup(tempFile, finalFile)
-            }
-
-        } catch (e: Exception) {
-            tempFile.delete() // Чистим за собой при ошибке
-            throw e
-        }
-    }
-
-    private fun copyAndCleanup(source: File, dest: File) {
-        FileInputStream(source).use { input ->
-            FileOutputStream(dest).use { output ->
-                input.copyTo(output)
-            }
-        }
-        if (dest.exists() && dest.length() > 0) {
-            source.delete()
-        } else {
-            throw IOException("Failed to copy temp file to final destination")
+        val result = SegmentedDownloader(client).download(MODEL_URL, finalFile, requireSha256 = true) { downloaded, total ->
+            onProgress((downloaded * 100 / total).toInt())
         }
+        LlamaStateCache.rememberFingerprint(context, finalFile, result.sha256)
     }
 }
@@ -0,0 +1,393 @@
+package com.kakdela.p2p.ai
+
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.util.Log
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import org.json.JSONArray
+import org.json.JSONObject
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Загрузка большого файла несколькими диапазонами (HTTP Range) параллельно.
+ *
+ * - Файл `<target>.tmp` выделяется сразу на полный размер; каждый сегмент пишет в свою
+ *   область позиционными записями FileChannel, без общей позиции и блокировок.
+ * - Карта сегментов (`<target>.parts`) сохраняется по ходу загрузки: после обрыва,
+ *   отмены или перезапуска процесса загрузка продолжается с сохранённых позиций.
+ *   If-Range с валидатором сервера гарантирует, что докачиваемые куски — от того же файла.
+ * - Обрыв соединения повторяется в пределах сегмента с паузой; сегмент сдаётся
+ *   после [maxRetries] попыток подряд без продвижения.
+ * - Перед атомарным переименованием файл проверяется по SHA-256 (ожидаемый хеш —
+ *   параметр или заголовок X-Linked-Etag, который отдаёт Hugging Face для LFS-файлов).
+ *   С requireSha256 загрузка без ожидаемого хеша отклоняется до скачивания тела.
+ */
+class SegmentedDownloader(
+    private val client: OkHttpClient,
+    private val segmentCount: Int = DEFAULT_SEGMENTS,
+    private val maxRetries: Int = DEFAULT_RETRIES
+) {
+
+    companion object {
+        private const val TAG = "SegmentedDownloader"
+
+        const val DEFAULT_SEGMENTS = 4
+        const val DEFAULT_RETRIES = 8
+
+        private const val BUFFER_SIZE = 256 * 1024
+        private const val HASH_BUFFER_SIZE = 1024 * 1024
+        // Как часто сохраняется карта сегментов: при обрыве теряется не больше этого объёма на сегмент
+        private const val SAVE_EVERY_BYTES = 8L * 1024 * 1024
+        private const val MAX_BACKOFF_MS = 10_000L
+
+        private val SHA256 = Regex("[0-9a-f]{64}")
+    }
+
+    data class Result(
+        val file: File,
+        val sha256: String,
+        val totalBytes: Long,
+        val fetchedBytes: Long,
+        val resumedBytes: Long,
+        val retries: Int,
+        val elapsedMs: Long
+    )
+
+    /** Сервер отдал другой файл (валидатор не совпал): докачка невозможна. */
+    private class RemoteChangedException(message: String) : IOException(message)
+
+    private class Segment(val start: Long, pos: Long, val end: Long) {
+        @Volatile var pos: Long = pos
+        val remaining: Long get() = end - pos
+    }
+
+    private class PartMap(
+        val url: String,
+        val length: Long,
+        val validator: String?,
+        val sha256: String?,
+        val ranged: Boolean,
+        val segments: List<Segment>
+    ) {
+        fun toJson(): String = JSONObject()
+            .put("url", url)
+            .put("length", length)
+            .put("validator", validator ?: JSONObject.NULL)
+            .put("sha256", sha256 ?: JSONObject.NULL)
+            .put("ranged", ranged)
+            .put("segments", JSONArray().apply {
+                segments.forEach { put(JSONArray().put(it.start).put(it.pos).put(it.end)) }
+            })
+            .toString()
+
+        companion object {
+            fun fromJson(text: String): PartMap {
+                val json = JSONObject(text)
+                val segments = json.getJSONArray("segments")
+                return PartMap(
+                    url = json.getString("url"),
+                    length = json.getLong("length"),
+                    validator = json.optString("validator").takeIf { !json.isNull("validator") },
+                    sha256 = json.optString("sha256").takeIf { !json.isNull("sha256") },
+                    ranged = json.getBoolean("ranged"),
+                    segments = List(segments.length()) { i ->
+                        val s = segments.getJSONArray(i)
+                        Segment(s.getLong(0), s.getLong(1), s.getLong(2))
+                    }
+                )
+            }
+        }
+    }
+
+    /**
+     * Загружает [url] в [target]. [expectedSha256] имеет приоритет над хешем от сервера;
+     * если ни того ни другого нет, хеш только вычисляется и возвращается, а при
+     * [requireSha256] загрузка отклоняется: непроверенный файл не попадает в [target].
+     * [onProgress] получает (загружено, всего) не чаще, чем меняется процент.
+     */
+    suspend fun download(
+        url: String,
+        target: File,
+        expectedSha256: String? = null,
+        requireSha256: Boolean = false,
+        onProgress: (Long, Long) -> Unit = { _, _ -> }
+    ): Result = withContext(Dispatchers.IO) {
+        try {
+            downloadOnce(url, target, expectedSha256, requireSha256, onProgress)
+        } catch (e: RemoteChangedException) {
+            // Файл на сервере сменился между сессиями — начинаем заново один раз
+            Log.w(TAG, "${e.message}; restarting from scratch")
+            discard(target)
+            downloadOnce(url, target, expectedSha256, requireSha256, onProgress)
+        }
+    }
+
+    /**
+     * Удаляет недокачанный файл и карту сегментов.
+     */
+    fun discard(target: File) {
+        tempFile(target).delete()
+        partFile(target).delete()
+    }
+
+    private suspend fun downloadOnce(
+        url: String,
+        target: File,
+        expectedSha256: String?,
+        requireSha256: Boolean,
+        onProgress: (Long, Long) -> Unit
+    ): Result {
+        val start = System.nanoTime()
+        val temp = tempFile(target)
+        val parts = partFile(target)
+
+        val map = loadMap(parts, url, temp) ?: probe(url).also {
+            temp.delete()
+            preallocate(temp, it.length)
+            saveMap(parts, it)
+        }
+        if (requireSha256 && expectedSha256 == null && map.sha256 == null) {
+            discard(target)
+            throw IOException("No SHA-256 to verify $url against")
+        }
+        val total = map.length
+        val resumed = map.segments.sumOf { it.pos - it.start }
+        if (resumed > 0) Log.i(TAG, "Resuming at $resumed of $total bytes")
+
+        val downloaded = AtomicLong(resumed)
+        val fetched = AtomicLong()
+        val retries = AtomicInteger()
+        val lastSaved = AtomicLong(resumed)
+        val lastPercent = AtomicInteger(-1)
+
+        // Отрицательное значение — откат сегмента без поддержки диапазонов
+        fun progress(bytes: Long) {
+            val now = downloaded.addAndGet(bytes)
+            if (bytes > 0) fetched.addAndGet(bytes)
+            val percent = if (total > 0) (now * 100 / total).toInt() else 0
+            if (lastPercent.getAndSet(percent) != percent) onProgress(now, total)
+            if (now - lastSaved.get() >= SAVE_EVERY_BYTES) {
+                lastSaved.set(now)
+                saveMap(parts, map)
+            }
+        }
+
+        RandomAccessFile(temp, "rw").use { raf ->
+            val channel = raf.channel
+            try {
+                coroutineScope {
+                    map.segments.filter { it.remaining > 0 }.map { segment ->
+                        async(Dispatchers.IO) { fetchSegment(map, segment, channel, retries, ::progress) }
+                    }.awaitAll()
+                }
+                channel.force(true)
+            } finally {
+                // И при ошибке, и при отмене: следующая попытка продолжит с этих позиций
+                saveMap(parts, map)
+            }
+        }
+
+        val expected = (expectedSha256 ?: map.sha256)?.lowercase()
+        val sha256 = sha256(temp)
+        if (expected != null && sha256 != expected) {
+            discard(target)
+            throw IOException("SHA-256 mismatch: expected $expected, got $sha256")
+        }
+
+        commit(temp, target)
+        parts.delete()
+        val elapsedMs = (System.nanoTime() - start) / 1_000_000
+        Log.i(TAG, "Downloaded $total bytes ($resumed resumed, ${fetched.get()} fetched, ${retries.get()} retries) " +
+            "in $elapsedMs ms, sha256=$sha256${if (expected != null) " (verified)" else ""}")
+        return Result(target, sha256, total, fetched.get(), resumed, retries.get(), elapsedMs)
+    }
+
+    /**
+     * Первый запрос bytes=0-0: размер (Content-Range), поддержка диапазонов, валидатор и хеш.
+     */
+    private fun probe(url: String): PartMap {
+        val request = Request.Builder().url(url).header("Range", "bytes=0-0").build()
+        client.newCall(request).execute().use { response ->
+            val ranged = response.code == 206
+            if (!ranged && response.code != 200) throw IOException("Download failed: ${response.code}")
+            val length = if (ranged) {
+                response.header("Content-Range")?.substringAfterLast('/')?.toLongOrNull()
+            } else {
+                response.body?.contentLength()?.takeIf { it >= 0 }
+            } ?: throw IOException("Unknown content length")
+
+            val validator = response.header("ETag")?.takeIf { !it.startsWith("W/") }
+                ?: response.header("Last-Modified")
+            val segments = if (ranged) split(length, segmentCount) else listOf(Segment(0, 0, length))
+            return PartMap(url, length, validator, linkedSha256(response), ranged, segments)
+        }
+    }
+
+    // Hugging Face отдаёт SHA-256 LFS-файла в X-Linked-Etag ответа-редиректа
+    private fun linkedSha256(response: Response): String? {
+        var r: Response? = response
+        while (r != null) {
+            val value = r.header("X-Linked-Etag")?.trim('"', ' ')?.lowercase()
+            if (value != null && SHA256.matches(value)) return value
+            r = r.priorResponse
+        }
+        return null
+    }
+
+    private fun split(length: Long, count: Int): List<Segment> {
+        val n = count.coerceIn(1, maxOf(1, (length / BUFFER_SIZE).toInt()))
+        val size = length / n
+        return List(n) { i ->
+            val from = i * size
+            Segment(from, from, if (i == n - 1) length else from + size)
+        }
+    }
+
+    private suspend fun fetchSegment(
+        map: PartMap,
+        segment: Segment,
+        channel: FileChannel,
+        retries: AtomicInteger,
+        progress: (Long) -> Unit
+    ) {
+        var failures = 0
+        val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+        while (segment.remaining > 0) {
+            coroutineContext.ensureActive()
+            val before = segment.pos
+            try {
+                val request = Request.Builder().url(map.url).apply {
+                    if (map.ranged) {
+                        header("Range", "bytes=${segment.pos}-${segment.end - 1}")
+                        map.validator?.let { header("If-Range", it) }
+                    }
+                }.build()
+                client.newCall(request).execute().use { response ->
+                    if (map.ranged && response.code == 200) throw RemoteChangedException("Server ignored If-Range for ${map.url}")
+                    if (response.code != if (map.ranged) 206 else 200) throw IOException("HTTP ${response.code}")
+                    if (map.ranged) {
+                        val range = response.header("Content-Range").orEmpty()
+                        if (!range.startsWith("bytes ${segment.pos}-")) throw IOException("Unexpected Content-Range: $range")
+                    }
+                    val source = response.body?.source() ?: throw IOException("Empty body")
+                    while (segment.remaining > 0) {
+                        coroutineContext.ensureActive()
+                        buffer.clear()
+                        buffer.limit(minOf(BUFFER_SIZE.toLong(), segment.remaining).toInt())
+                        if (source.read(buffer) < 0) throw EOFException("Connection closed at ${segment.pos}")
+                        buffer.flip()
+                        val n = buffer.remaining()
+                        var position = segment.pos
+                        while (buffer.hasRemaining()) position += channel.write(buffer, position)
+                        segment.pos = position
+                        progress(n.toLong())
+                    }
+                }
+            } catch (e: IOException) {
+                if (e is RemoteChangedException) throw e
+                if (segment.pos > before) failures = 0
+                if (++failures > maxRetries) throw IOException("Segment ${segment.start} failed after $maxRetries retries", e)
+                retries.incrementAndGet()
+                // Без поддержки диапазонов продолжить нельзя — только с начала
+                if (!map.ranged) {
+                    progress(-segment.pos)
+                    segment.pos = segment.start
+                }
+                val backoff = minOf(MAX_BACKOFF_MS, 500L shl minOf(failures - 1, 5))
+                Log.w(TAG, "Segment ${segment.start}: ${e.message}; retry in $backoff ms")
+                delay(backoff)
+            }
+        }
+    }
+
+    /**
+     * Карта годится, только если она для того же адреса и временный файл нужного размера.
+     */
+    private fun loadMap(parts: File, url: String, temp: File): PartMap? {
+        if (!parts.exists()) return null
+        val map = try {
+            PartMap.fromJson(parts.readText())
+        } catch (e: Exception) {
+            Log.w(TAG, "Corrupted part map, starting over: ${e.message}")
+            null
+        }
+        if (map == null || map.url != url || !map.ranged || !temp.exists() || temp.length() != map.length) {
+            parts.delete()
+            return null
+        }
+        return map
+    }
+
+    @Synchronized
+    private fun saveMap(parts: File, map: PartMap) {
+        // Запись через временный файл: карта не бывает наполовину записанной
+        val tmp = File(parts.parentFile, parts.name + ".new")
+        tmp.writeText(map.toJson())
+        if (!tmp.renameTo(parts)) {
+            parts.delete()
+            tmp.renameTo(parts)
+        }
+    }
+
+    /**
+     * Место под файл резервируется сразу (fallocate), поэтому нехватка памяти
+     * обнаруживается до загрузки, а не на 90%.
+     */
+    private fun preallocate(file: File, length: Long) {
+        RandomAccessFile(file, "rw").use { raf ->
+            try {
+                Os.posix_fallocate(raf.fd, 0, length)
+            } catch (e: ErrnoException) {
+                if (e.errno == OsConstants.ENOSPC) throw IOException("Not enough space for $length bytes", e)
+                // Файловая система без fallocate — хотя бы задаём размер
+                raf.setLength(length)
+            }
+        }
+    }
+
+    private fun sha256(file: File): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        RandomAccessFile(file, "r").use { raf ->
+            val channel = raf.channel
+            val buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE)
+            while (channel.read(buffer) >= 0) {
+                buffer.flip()
+                digest.update(buffer)
+                buffer.clear()
+            }
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    private fun commit(temp: File, target: File) {
+        if (temp.renameTo(target)) return
+        // rename поверх существующего файла на некоторых устройствах не срабатывает
+        if (target.exists() && !target.delete()) throw IOException("Cannot replace ${target.name}")
+        if (temp.renameTo(target)) return
+        temp.copyTo(target, overwrite = true)
+        temp.delete()
+    }
+
+    private fun tempFile(target: File) = File(target.parentFile, target.name + ".tmp")
+
+    private fun partFile(target: File) = File(target.parentFile, target.name + ".parts")
+}
@@ -64,6 +64,10 @@ data class ServerResponse(
 
     @SerializedName("error") 
     val error: String? = null,
+
+    // Время сервера (мс) на момент ответа — курсор для следующего get_nodes&since=
+    @SerializedName("server_time")
+    val serverTime: Long? = null,
     
     // Поля для отладки, если они включены в PHP (опционально)
     @SerializedName("debug_received_body")
@@ -72,3 +76,12 @@ data class ServerResponse(
     @SerializedName("action_received")
     val actionReceived: String? = null
 )
+
+/**
+ * Результат условного запроса get_nodes: при [notModified] список с прошлого раза не менялся.
+ */
+data class NodesResult(
+    val response: ServerResponse,
+    val etag: String? = null,
+    val notModified: Boolean = false
+)
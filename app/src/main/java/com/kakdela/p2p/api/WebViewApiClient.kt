@@ -22,7 +22,16 @@ import okhttp3.Request
 import okhttp3.RequestBody.Companion.toRequestBody
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 
+/**
+ * Клиент api.php за антибот-защитой хостинга: WebView проходит проверку и получает cookie,
+ * запросы выполняет OkHttp с тем же User-Agent и cookie.
+ *
+ * Независимые запросы выполняются параллельно. Общая у них только сессия: её
+ * восстановление (перезагрузка страницы в WebView) делается одним запросом, остальные ждут.
+ * Ответы сжимаются gzip (OkHttp сам отправляет Accept-Encoding и распаковывает тело).
+ */
 @SuppressLint("StaticFieldLeak")
 object WebViewApiClient {
 
@@ -33,9 +42,15 @@ object WebViewApiClient {
     private const val REQUEST_TIMEOUT_MS   = 20_000L
     private const val MAX_RETRIES          = 3
 
+    // Адрес api.php; другой задаётся только для локальной заглушки в тестах ([useDirectServer])
+    @Volatile
+    private var baseUrl = BASE_URL
+
     private var webView: WebView? = null
     private val isReady = AtomicBoolean(false)
-    private val mutex = Mutex()
+    // Поколение сессии: запрос, упавший на старой сессии, не сбрасывает уже восстановленную
+    private val sessionGeneration = AtomicInteger()
+    private val sessionMutex = Mutex()
     private val gson = Gson()
 
     private var okHttpClient: OkHttpClient? = null
@@ -114,71 +129,141 @@ object WebViewApiClient {
 
     suspend fun announceSelf(payload: UserPayload): ServerResponse {
         val bodyJson = gson.toJson(payload)
-        val url = "$BASE_URL?action=announce" 
+        val url = "$baseUrl?action=announce" 
         return executeRequest(url, "POST", bodyJson)
     }
 
-    suspend fun getAllNodes(): ServerResponse {
-        val url = "$BASE_URL?action=get_nodes"
-        return executeRequest(url, "GET", null)
+    suspend fun getAllNodes(): ServerResponse = getNodes(since = null, etag = null).response
+
+    /**
+     * Условная выборка каталога узлов.
+     * [since] — курсор (мс) предыдущей синхронизации: сервер, поддерживающий параметр, вернёт
+     * только изменившиеся узлы, остальные его игнорируют и отдают полный список.
+     * [etag] уходит в If-None-Match; ответ 304 даёт [NodesResult.notModified] без тела.
+     */
+    suspend fun getNodes(since: Long?, etag: String?): NodesResult {
+        val url = if (since != null) "$baseUrl?action=get_nodes&since=$since" else "$baseUrl?action=get_nodes"
+        val headers = if (etag != null) mapOf("If-None-Match" to etag) else emptyMap()
+        val raw = executeRaw(url, "GET", null, headers)
+        return NodesResult(
+            response = raw.response,
+            etag = raw.etag,
+            notModified = raw.notModified
+        )
     }
 
-    private suspend fun executeRequest(url: String, method: String, bodyJson: String?): ServerResponse = mutex.withLock {
+    private class RawResult(
+        val response: ServerResponse,
+        val etag: String? = null,
+        val notModified: Boolean = false
+    )
+
+    private suspend fun executeRequest(url: String, method: String, bodyJson: String?): ServerResponse =
+        executeRaw(url, method, bodyJson, emptyMap()).response
+
+    private suspend fun executeRaw(
+        url: String,
+        method: String,
+        bodyJson: String?,
+        headers: Map<String, String>
+    ): RawResult {
         repeat(MAX_RETRIES) { attempt ->
+            val generation = sessionGeneration.get()
             try {
                 waitForReady()
 
-                if (okHttpClient == null) throw Exception("OkHttp not initialized")
+                val client = okHttpClient ?: throw Exception("OkHttp not initialized")
 
-                return@withLock withContext(Dispatchers.IO) {
+                return withContext(Dispatchers.IO) {
                     val requestBuilder = Request.Builder().url(url)
-                    
+                    headers.forEach { (name, value) -> requestBuilder.header(name, value) }
+
                     if (method == "POST" && bodyJson != null) {
                         requestBuilder.post(bodyJson.toRequestBody(JSON_TYPE))
                     } else {
                         requestBuilder.get()
                     }
 
-                    val response = okHttpClient!!.newCall(requestBuilder.build()).execute()
-                    val responseBodyStr = response.body?.string()
+                    client.newCall(requestBuilder.build()).execute().use { response ->
+                        if (response.code == 304) {
+                            return@withContext RawResult(
+                                ServerResponse(success = true),
+                                etag = response.header("ETag"),
+                                notModified = true
+                            )
+                        }
 
-                    if (!response.isSuccessful) {
-                        if (response.code == 403 || response.code == 503 || response.code == 400) {
-                             throw Exception("HTTP ${response.code}")
+                        val responseBodyStr = response.body?.string()
+
+                        if (!response.isSuccessful) {
+                            if (response.code == 403 || response.code == 503 || response.code == 400) {
+                                throw Exception("HTTP ${response.code}")
+                            }
+                            return@withContext RawResult(ServerResponse(success = false, error = "HTTP ${response.code}"))
+                        }
+
+                        if (responseBodyStr == null || responseBodyStr.trim().startsWith("<")) {
+                            throw Exception("Session expired or Protection active")
                         }
-                        return@withContext ServerResponse(success = false, error = "HTTP ${response.code}")
-                    }
-                    
-                    if (responseBodyStr == null || responseBodyStr.trim().startsWith("<")) {
-                        throw Exception("Session expired or Protection active")
-                    }
 
-                    return@withContext gson.fromJson(responseBodyStr, ServerResponse::class.java)
+                        RawResult(
+                            gson.fromJson(responseBodyStr, ServerResponse::class.java),
+                            etag = response.header("ETag")
+                        )
+                    }
                 }
 
             } catch (e: Exception) {
                 Log.e(TAG, "Attempt ${attempt + 1} failed: ${e.message}")
-                isReady.set(false)
-                withContext(Dispatchers.Main) { webView?.loadUrl(BASE_URL) }
+                invalidateSession(generation)
                 delay(3000)
             }
         }
         // Используем именованные аргументы, чтобы избежать Type Mismatch
-        return@withLock ServerResponse(success = false, error = "Max retries reached")
+        return RawResult(ServerResponse(success = false, error = "Max retries reached"))
+    }
+
+    /**
+     * Сбрасывает сессию, если её не восстановил уже другой запрос после начала этого.
+     */
+    private suspend fun invalidateSession(generation: Int) = sessionMutex.withLock {
+        if (sessionGeneration.get() != generation) return@withLock
+        sessionGeneration.incrementAndGet()
+        isReady.set(false)
+        withContext(Dispatchers.Main) { webView?.loadUrl(BASE_URL) }
     }
 
+    /**
+     * Ждёт прохождения защиты. Страницу перезагружает только первый из ожидающих.
+     */
     private suspend fun waitForReady() {
         if (isReady.get()) return
-        withContext(Dispatchers.Main) { webView?.loadUrl(BASE_URL) }
-        try {
-            withTimeout(PAGE_LOAD_TIMEOUT_MS) {
-                while (!isReady.get()) delay(500)
+        sessionMutex.withLock {
+            if (isReady.get()) return
+            withContext(Dispatchers.Main) { webView?.loadUrl(BASE_URL) }
+            try {
+                withTimeout(PAGE_LOAD_TIMEOUT_MS) {
+                    while (!isReady.get()) delay(500)
+                }
+            } catch (e: Exception) {
+                Log.w(TAG, "Wait for ready timeout")
             }
-        } catch (e: Exception) {
-            Log.w(TAG, "Wait for ready timeout")
         }
     }
 
+    /**
+     * Работа с сервером без антибот-защиты (локальная заглушка api.php в инструментальных тестах):
+     * запросы идут обычным OkHttp, WebView не создаётся.
+     */
+    internal fun useDirectServer(url: String) {
+        baseUrl = url
+        okHttpClient = OkHttpClient.Builder()
+            .connectTimeout(5, TimeUnit.SECONDS)
+            .readTimeout(5, TimeUnit.SECONDS)
+            .build()
+        isReady.set(true)
+    }
+
     fun destroy() {
         Handler(Looper.getMainLooper()).post {
             webView?.destroy()
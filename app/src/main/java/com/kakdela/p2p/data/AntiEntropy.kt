@@ -0,0 +1,73 @@
+package com.kakdela.p2p.data
+
+import com.kakdela.p2p.data.local.NodeDigestEntry
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * AntiEntropy — чистая логика обмена дайджестами, общая для [PeerSyncRepository]
+ * и внутрипроцессной симуляции сходимости в тестах.
+ *
+ * Дайджест — Bloom-фильтр пар userHash:lastSeen (lastSeen округлён до [TIME_BUCKET]);
+ * ответ на него — записи, которых в фильтре нет. Ключи солятся случайным числом каждого
+ * дайджеста: иначе ложное срабатывание фильтра на отсутствующую запись повторялось бы
+ * в каждом раунде и узел никогда бы её не получил. Соль 0 — формат старых клиентов.
+ */
+internal object AntiEntropy {
+
+    const val FALSE_POSITIVE_RATE = 0.01
+    const val TIME_BUCKET = 60_000L     // lastSeen округляется до минуты
+
+    fun key(hash: String, lastSeen: Long, salt: Int) =
+        if (salt == 0) "$hash:${lastSeen / TIME_BUCKET}" else "$hash:${lastSeen / TIME_BUCKET}:$salt"
+
+    fun digest(entries: List<NodeDigestEntry>, salt: Int): BloomFilter {
+        val filter = BloomFilter.create(entries.size, FALSE_POSITIVE_RATE)
+        entries.forEach { filter.add(key(it.userHash, it.lastSeen, salt)) }
+        return filter
+    }
+
+    /**
+     * Хеши записей, которых нет у владельца [filter] (или его версия старее), не больше [limit].
+     * Запись о самом собеседнике [peerHash] не отправляется: о себе он знает лучше.
+     */
+    fun missing(
+        entries: List<NodeDigestEntry>,
+        filter: BloomFilter,
+        salt: Int,
+        peerHash: String,
+        limit: Int
+    ): List<String> =
+        entries.asSequence()
+            .filter { it.userHash != peerHash && !filter.mightContain(key(it.userHash, it.lastSeen, salt)) }
+            .map { it.userHash }
+            .take(limit)
+            .toList()
+}
+
+/**
+ * Бюджет на узел: не больше [limit] единиц за окно [windowMs].
+ * Ограничивает, сколько работы (и ответного трафика) один узел может вызвать у нас.
+ */
+internal class PeerBudget(private val windowMs: Long, private val limit: Int) {
+
+    private class Window(val start: Long, var used: Int)
+
+    private val windows = ConcurrentHashMap<String, Window>()
+
+    /** Забирает до [amount] единиц и возвращает, сколько выдано (0 — бюджет окна исчерпан). */
+    fun take(peer: String, amount: Int, now: Long = System.currentTimeMillis()): Int {
+        var granted = 0
+        windows.compute(peer) { _, current ->
+            val window = current?.takeIf { now - it.start < windowMs } ?: Window(now, 0)
+            granted = minOf(amount, limit - window.used).coerceAtLeast(0)
+            window.used += granted
+            window
+        }
+        return granted
+    }
+
+    /** Удаляет истёкшие окна, чтобы карта не росла с числом когда-либо виденных узлов. */
+    fun prune(now: Long = System.currentTimeMillis()) {
+        windows.entries.removeIf { now - it.value.start >= windowMs }
+    }
+}
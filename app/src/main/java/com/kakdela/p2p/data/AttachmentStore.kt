@@ -0,0 +1,248 @@
+package com.kakdela.p2p.data
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.media.MediaMetadataRetriever
+import android.net.Uri
+import android.util.Log
+import android.webkit.MimeTypeMap
+import com.kakdela.p2p.data.local.AttachmentEntity
+import com.kakdela.p2p.data.local.ChatDatabase
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.FileOutputStream
+import java.io.InputStream
+import java.security.MessageDigest
+import java.util.UUID
+
+/**
+ * AttachmentStore — content-addressed хранилище вложений в filesDir/attachments.
+ *
+ * Файл лежит по пути `attachments/<первые 2 символа хеша>/<sha256>`, поэтому одинаковое
+ * содержимое из разных чатов хранится один раз. Сообщения ссылаются на вложение по
+ * [com.kakdela.p2p.data.local.MessageEntity.fileHash]; счётчик ссылок ведут триггеры БД,
+ * а [collectGarbage] удаляет файлы, на которые больше никто не ссылается.
+ * Миниатюры создаются лениво при первом запросе.
+ */
+class AttachmentStore(context: Context) {
+
+    private val TAG = "AttachmentStore"
+    private val appContext = context.applicationContext
+    private val dao by lazy { ChatDatabase.getDatabase(appContext).attachmentDao() }
+
+    private val root = rootDir(appContext)
+    private val tmpDir = File(root, "tmp")
+    private val thumbDir = File(root, "thumbs")
+
+    companion object {
+        const val THUMB_SIZE = 256
+
+        private const val COPY_BUFFER = 64 * 1024
+        private const val GC_GRACE_PERIOD = 60 * 60 * 1000L      // Свежие вложения без ссылок ещё могут быть привязаны
+        private const val TMP_MAX_AGE = 24 * 60 * 60 * 1000L
+
+        fun rootDir(context: Context): File = File(context.filesDir, "attachments")
+
+        fun pathFor(root: File, hash: String): File = File(File(root, hash.take(2)), hash)
+
+        /**
+         * Пишет [bytes] в хранилище без обращения к БД (используется миграцией).
+         * @return SHA-256 содержимого.
+         */
+        fun writeBytes(root: File, bytes: ByteArray): String {
+            val hash = MessageDigest.getInstance("SHA-256").digest(bytes).toHex()
+            val target = pathFor(root, hash)
+            if (!target.exists()) {
+                target.parentFile?.mkdirs()
+                val tmp = File(target.parentFile, "$hash.part")
+                tmp.writeBytes(bytes)
+                if (!tmp.renameTo(target)) tmp.delete()
+            }
+            return hash
+        }
+
+        fun guessMime(fileName: String?): String? {
+            val ext = fileName?.substringAfterLast('.', "")?.lowercase().orEmpty()
+            return if (ext.isEmpty()) null else MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext)
+        }
+
+        private fun ByteArray.toHex(): String = joinToString("") { "%02x".format(it) }
+    }
+
+    /* ======================= ЗАПИСЬ ======================= */
+
+    fun newTempFile(): File {
+        tmpDir.mkdirs()
+        return File(tmpDir, UUID.randomUUID().toString())
+    }
+
+    /**
+     * Копирует содержимое [uri] в хранилище, хешируя на лету.
+     */
+    suspend fun importUri(uri: Uri, mime: String?): AttachmentEntity? = withContext(Dispatchers.IO) {
+        val temp = newTempFile()
+        try {
+            val digest = MessageDigest.getInstance("SHA-256")
+            val opened = appContext.contentResolver.openInputStream(uri)?.use { input ->
+                FileOutputStream(temp).use { output -> copyHashing(input, output, digest) }
+                true
+            } ?: false
+            if (!opened) return@withContext null
+            commit(temp, digest.digest().toHex(), mime)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to import $uri", e)
+            temp.delete()
+            null
+        }
+    }
+
+    /**
+     * Переносит готовый файл (например, принятый по сети) в хранилище.
+     * Исходный файл перемещается или удаляется, если такое содержимое уже есть.
+     */
+    suspend fun importFile(file: File, mime: String?): AttachmentEntity? = withContext(Dispatchers.IO) {
+        try {
+            val digest = MessageDigest.getInstance("SHA-256")
+            val buffer = ByteArray(COPY_BUFFER)
+            file.inputStream().use { input ->
+                while (true) {
+                    val n = input.read(buffer)
+                    if (n < 0) break
+                    digest.update(buffer, 0, n)
+                }
+            }
+            commit(file, digest.digest().toHex(), mime)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to import ${file.name}", e)
+            file.delete()
+            null
+        }
+    }
+
+    suspend fun putBytes(bytes: ByteArray, mime: String?): AttachmentEntity = withContext(Dispatchers.IO) {
+        val hash = writeBytes(root, bytes)
+        AttachmentEntity(hash = hash, size = bytes.size.toLong(), mime = mime).also { dao.insertIfAbsent(it) }
+    }
+
+    private suspend fun commit(temp: File, hash: String, mime: String?): AttachmentEntity {
+        val target = pathFor(root, hash)
+        val size = temp.length()
+        if (target.exists()) {
+            temp.delete() // Дедупликация: содержимое уже в хранилище
+        } else {
+            target.parentFile?.mkdirs()
+            if (!temp.renameTo(target)) {
+                temp.copyTo(target, overwrite = true)
+                temp.delete()
+            }
+        }
+        val entity = AttachmentEntity(hash = hash, size = size, mime = mime)
+        dao.insertIfAbsent(entity)
+        return dao.getByHash(hash) ?: entity
+    }
+
+    private fun copyHashing(input: InputStream, output: FileOutputStream, digest: MessageDigest) {
+        val buffer = ByteArray(COPY_BUFFER)
+        while (true) {
+            val n = input.read(buffer)
+            if (n < 0) break
+            digest.update(buffer, 0, n)
+            output.write(buffer, 0, n)
+        }
+    }
+
+    /* ======================= ЧТЕНИЕ ======================= */
+
+    fun fileFor(hash: String): File? = pathFor(root, hash).takeIf { it.exists() }
+
+    /**
+     * Миниатюра изображения или видео; создаётся при первом обращении и кешируется на диске.
+     */
+    suspend fun thumbnail(hash: String, mime: String?, maxSize: Int = THUMB_SIZE): File? = withContext(Dispatchers.IO) {
+        val thumb = File(thumbDir, "${hash}_$maxSize.jpg")
+        if (thumb.exists()) return@withContext thumb
+        val source = fileFor(hash) ?: return@withContext null
+
+        val bitmap = try {
+            when {
+                mime?.startsWith("image/") == true -> decodeSampled(source, maxSize)
+                mime?.startsWith("video/") == true -> videoFrame(source, maxSize)
+                else -> null
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Thumbnail failed for $hash: ${e.message}")
+            null
+        } ?: return@withContext null
+
+        thumbDir.mkdirs()
+        val tmp = File(thumbDir, "${thumb.name}.part")
+        FileOutputStream(tmp).use { bitmap.compress(Bitmap.CompressFormat.JPEG, 80, it) }
+        bitmap.recycle()
+        if (!tmp.renameTo(thumb)) tmp.delete()
+        thumb.takeIf { it.exists() }
+    }
+
+    private fun decodeSampled(file: File, maxSize: Int): Bitmap? {
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeFile(file.path, bounds)
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null
+
+        var sample = 1
+        while (bounds.outWidth / (sample * 2) >= maxSize && bounds.outHeight / (sample * 2) >= maxSize) sample *= 2
+        val decoded = BitmapFactory.decodeFile(file.path, BitmapFactory.Options().apply { inSampleSize = sample })
+            ?: return null
+        return scaleDown(decoded, maxSize)
+    }
+
+    private fun videoFrame(file: File, maxSize: Int): Bitmap? {
+        val retriever = MediaMetadataRetriever()
+        return try {
+            retriever.setDataSource(file.path)
+            retriever.getFrameAtTime(0)?.let { scaleDown(it, maxSize) }
+        } finally {
+            retriever.release()
+        }
+    }
+
+    private fun scaleDown(bitmap: Bitmap, maxSize: Int): Bitmap {
+        val longest = maxOf(bitmap.width, bitmap.height)
+        if (longest <= maxSize) return bitmap
+        val scale = maxSize.toFloat() / longest
+        val scaled = Bitmap.createScaledBitmap(
+            bitmap,
+            (bitmap.width * scale).toInt().coerceAtLeast(1),
+            (bitmap.height * scale).toInt().coerceAtLeast(1),
+            true
+        )
+        if (scaled !== bitmap) bitmap.recycle()
+        return scaled
+    }
+
+    /* ======================= СБОРКА МУСОРА ======================= */
+
+    /**
+     * Сверяет счётчики ссылок с messages и удаляет вложения (и их миниатюры) без ссылок.
+     */
+    suspend fun collectGarbage() = withContext(Dispatchers.IO) {
+        try {
+            dao.reconcileRefCounts()
+            val now = System.currentTimeMillis()
+            val orphans = dao.getUnreferenced(now - GC_GRACE_PERIOD)
+            if (orphans.isNotEmpty()) {
+                orphans.chunked(500).forEach { dao.deleteUnreferenced(it) }
+                orphans.forEach { hash ->
+                    // Ссылка могла появиться между выборкой и удалением — тогда запись осталась
+                    if (dao.getByHash(hash) != null) return@forEach
+                    pathFor(root, hash).delete()
+                    thumbDir.listFiles { f -> f.name.startsWith(hash) }?.forEach { it.delete() }
+                }
+            }
+            tmpDir.listFiles()?.filter { now - it.lastModified() > TMP_MAX_AGE }?.forEach { it.delete() }
+            Log.i(TAG, "GC removed ${orphans.size} attachments; store: ${dao.count()} files, ${dao.totalSize() / 1024} KB")
+        } catch (e: Exception) {
+            Log.w(TAG, "Attachment GC failed: ${e.message}")
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package com.kakdela.p2p.data
+
+import android.util.Base64
+import android.util.Log
+import com.kakdela.p2p.data.local.MessageDao
+import com.kakdela.p2p.data.local.MessageEntity
+import com.kakdela.p2p.security.CryptoManager
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import org.json.JSONObject
+import java.io.File
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.net.InetSocketAddress
+import java.net.StandardSocketOptions
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.nio.channels.FileChannel
+import java.security.SecureRandom
+import java.util.BitSet
+import java.util.TreeMap
+import java.util.concurrent.ConcurrentHashMap
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * AttachmentTransfer — потоковая передача вложений чата.
+ *
+ * Вместо одного ECIES-пакета с Base64 всего файла:
+ * 1. FILE_DESC — небольшой дескриптор (имя, размер, тип, сеансовый AES-ключ),
+ *    зашифрованный ECIES ключом получателя; пакет подписан как и любой UDP-пакет.
+ * 2. Чанки по [CHUNK_SIZE] — бинарные кадры на отдельном порту [DATA_PORT], каждый
+ *    зашифрован AES-GCM сеансовым ключом (AAD = "id:index"), читаются из файла
+ *    [AttachmentStore] по мере отправки. Кадр не больше [MAX_DATAGRAM] байт: без IP-фрагментации,
+ *    без Base64 и без подписи на каждый чанк — подлинность даёт GCM-тег сеансового ключа.
+ * 3. FILE_ACK — кумулятивное + выборочное подтверждение; отправитель держит в памяти
+ *    не больше [WINDOW] чанков и переотправляет неподтверждённые по таймауту.
+ *
+ * Получатель пишет чанки сразу во временный файл (позиционная запись) и по завершении
+ * переносит его в [AttachmentStore]; прогресс обеих сторон
+ * публикуется в [progress] для отображения в чате.
+ *
+ * Размер в дескрипторе выбирает собеседник, поэтому место под файл выделяется только в пределах
+ * [MAX_FILE_SIZE] и свободного места, и не больше [MAX_INCOMING_PER_PEER] приёмов от одного узла.
+ */
+class AttachmentTransfer(
+    private val dao: MessageDao,
+    private val identityRepo: IdentityRepository,
+    private val store: AttachmentStore,
+    private val scope: CoroutineScope
+) {
+
+    enum class State { ACTIVE, DONE, FAILED }
+
+    data class Progress(
+        val messageId: String,
+        val transferred: Long,
+        val total: Long,
+        val outgoing: Boolean,
+        val state: State = State.ACTIVE
+    ) {
+        val fraction: Float get() = if (total <= 0) 0f else (transferred.toFloat() / total).coerceIn(0f, 1f)
+    }
+
+    private data class Ack(val cumulative: Int, val selective: List<Int>)
+
+    private class OutgoingSession(val toHash: String) {
+        val acks = Channel<Ack>(Channel.CONFLATED)
+    }
+
+    /** Завершённый приём: помним, чтобы повторно подтвердить, если последний ACK потерялся. */
+    private class Completed(val fromHash: String, val fromIp: String, val totalChunks: Int, val at: Long)
+
+    private class IncomingSession(
+        val id: String,
+        val fromHash: String,
+        val fromIp: String,
+        val size: Long,
+        val totalChunks: Int,
+        val key: SecretKeySpec,
+        val file: File,
+        val mime: String?
+    ) {
+        private val raf = RandomAccessFile(file, "rw").apply { setLength(size) }
+        val channel: FileChannel = raf.channel
+        val received = BitSet(totalChunks)
+        var receivedCount = 0
+        var lastActivity = System.currentTimeMillis()
+
+        fun close() {
+            runCatching { channel.force(false) }
+            runCatching { raf.close() }
+        }
+    }
+
+    private val TAG = "AttachmentTransfer"
+    private val random = SecureRandom()
+
+    private val outgoing = ConcurrentHashMap<String, OutgoingSession>()
+    private val incoming = ConcurrentHashMap<String, IncomingSession>()
+    private val completed = ConcurrentHashMap<String, Completed>()
+
+    @Volatile
+    private var socket: DatagramChannel? = null
+
+    private val _progress = MutableStateFlow<Map<String, Progress>>(emptyMap())
+    val progress: StateFlow<Map<String, Progress>> = _progress.asStateFlow()
+
+    companion object {
+        const val DESC_TYPE = "FILE_DESC"
+        const val ACK_TYPE = "FILE_ACK"
+        val TYPES = setOf(DESC_TYPE, ACK_TYPE)
+
+        const val DATA_PORT = 8890
+
+        // Заголовок + id + 1 КБ + IV и GCM-тег укладываются в MAX_DATAGRAM
+        private const val CHUNK_SIZE = 1024
+        private const val MAX_DATAGRAM = 1200
+        private const val RECEIVE_BUFFER = 2048
+        private const val SOCKET_BUFFER = 1024 * 1024
+        private const val MAGIC: Short = 0x4B41 // "KA"
+        private const val VERSION: Byte = 1
+        private const val MAX_ID_BYTES = 64
+        private const val WINDOW = 64
+        private const val ACK_EVERY = 16
+        private const val ACK_TIMEOUT = 800L
+        private const val MAX_RETRIES = 8
+        private const val HANDSHAKE_ATTEMPTS = 3
+        private const val HANDSHAKE_TIMEOUT = 3_000L
+        private const val INCOMING_IDLE_TIMEOUT = 60_000L
+        // Дольше, чем отправитель ждёт подтверждений (MAX_RETRIES * ACK_TIMEOUT)
+        private const val COMPLETED_TTL = 120_000L
+        private const val KEY_SIZE = 16
+        private const val IV_SIZE = 12
+        private const val TAG_BITS = 128
+        private const val MAX_FILE_SIZE = 512L * 1024 * 1024
+        private const val FREE_SPACE_RESERVE = 50L * 1024 * 1024
+        private const val MAX_INCOMING_PER_PEER = 4
+
+        /**
+         * Текст сообщения-вложения в формате, понятном пузырям чата.
+         */
+        fun messageText(type: String, storedName: String): String =
+            if (type == "audio") "AUDIO: $storedName" else "FILE: $storedName"
+    }
+
+    init {
+        try {
+            val channel = DatagramChannel.open().apply {
+                setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER)
+                bind(InetSocketAddress(DATA_PORT))
+            }
+            socket = channel
+            scope.launch(Dispatchers.IO) { receiveLoop(channel) }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to bind attachment port $DATA_PORT", e)
+        }
+        scope.launch {
+            while (isActive) {
+                delay(INCOMING_IDLE_TIMEOUT / 2)
+                expireIdleSessions()
+            }
+        }
+    }
+
+    fun release() {
+        socket?.close()
+        socket = null
+        incoming.values.forEach { it.close() }
+        incoming.clear()
+    }
+
+    /**
+     * Отображаемое имя вложения: без пробелов, так как пузыри чата делят текст по пробелу.
+     */
+    fun displayName(fileName: String): String =
+        File(fileName).name.replace(Regex("\\s+"), "_").ifBlank { "file" }
+
+    /* ======================= ОТПРАВКА ======================= */
+
+    /**
+     * Отправляет вложение из хранилища ([source]) узлу [toHash] потоково.
+     * Память: не больше [WINDOW] чанков независимо от размера файла.
+     */
+    suspend fun send(
+        toHash: String,
+        messageId: String,
+        source: File,
+        name: String,
+        type: String,
+        mime: String?
+    ): Boolean =
+        withContext(Dispatchers.IO) {
+            val pubKey = identityRepo.getPeerPublicKey(toHash)
+            if (pubKey.isNullOrBlank()) {
+                Log.w(TAG, "No public key for ${toHash.take(8)}, attachment not sent")
+                return@withContext false
+            }
+            val ip = identityRepo.resolvePeerIp(toHash) ?: return@withContext false
+            val size = source.length()
+            if (size <= 0) return@withContext false
+            if (size > MAX_FILE_SIZE) {
+                Log.w(TAG, "Attachment $messageId is too large to send ($size bytes)")
+                return@withContext false
+            }
+            val totalChunks = ((size + CHUNK_SIZE - 1) / CHUNK_SIZE).toInt()
+
+            val keyBytes = ByteArray(KEY_SIZE).also { random.nextBytes(it) }
+            val key = SecretKeySpec(keyBytes, "AES")
+            val descriptor = JSONObject().apply {
+                put("id", messageId)
+                put("name", name)
+                put("type", type)
+                mime?.let { put("mime", it) }
+                put("size", size)
+                put("chunkSize", CHUNK_SIZE)
+                put("key", Base64.encodeToString(keyBytes, Base64.NO_WRAP))
+            }.toString()
+            val sealedDescriptor = CryptoManager.encryptMessage(descriptor, pubKey)
+            // encryptMessage при ошибке возвращает открытый текст — ключ в открытом виде не отправляем
+            if (sealedDescriptor == descriptor) return@withContext false
+            val channel = socket ?: return@withContext false
+            if (messageId.toByteArray(Charsets.UTF_8).size > MAX_ID_BYTES) return@withContext false
+
+            val session = OutgoingSession(toHash)
+            outgoing[messageId] = session
+            publish(Progress(messageId, 0, size, outgoing = true))
+            try {
+                var ready = false
+                repeat(HANDSHAKE_ATTEMPTS) {
+                    if (ready) return@repeat
+                    identityRepo.sendUdp(ip, DESC_TYPE, sealedDescriptor)
+                    ready = withTimeoutOrNull(HANDSHAKE_TIMEOUT) { session.acks.receive() } != null
+                }
+                if (!ready) {
+                    Log.w(TAG, "Attachment $messageId: receiver did not accept descriptor")
+                    return@withContext false
+                }
+
+                val ok = source.inputStream().buffered(CHUNK_SIZE * WINDOW).use { input ->
+                    streamChunks(messageId, channel, InetSocketAddress(ip, DATA_PORT), key, input, size, totalChunks, session)
+                }
+
+                publish(Progress(messageId, if (ok) size else 0, size, outgoing = true, state = if (ok) State.DONE else State.FAILED))
+                ok
+            } catch (e: Exception) {
+                Log.e(TAG, "Attachment $messageId send failed", e)
+                publish(Progress(messageId, 0, size, outgoing = true, state = State.FAILED))
+                false
+            } finally {
+                outgoing.remove(messageId)
+            }
+        }
+
+    private suspend fun streamChunks(
+        id: String,
+        channel: DatagramChannel,
+        to: InetSocketAddress,
+        key: SecretKeySpec,
+        input: InputStream,
+        size: Long,
+        totalChunks: Int,
+        session: OutgoingSession
+    ): Boolean {
+        val buffer = ByteArray(CHUNK_SIZE)
+        val unacked = TreeMap<Int, ByteArray>()
+        var next = 0
+        var acked = 0
+        var retries = 0
+
+        while (acked < totalChunks) {
+            while (next < totalChunks && unacked.size < WINDOW) {
+                val length = minOf(CHUNK_SIZE.toLong(), size - next.toLong() * CHUNK_SIZE).toInt()
+                if (readFully(input, buffer, length) != length) {
+                    Log.w(TAG, "Attachment $id: stream ended before declared size")
+                    return false
+                }
+                val frame = chunkFrame(id, next, seal(key, id, next, buffer, length))
+                unacked[next] = frame
+                channel.send(ByteBuffer.wrap(frame), to)
+                next++
+            }
+
+            val ack = withTimeoutOrNull(ACK_TIMEOUT) { session.acks.receive() }
+            if (ack == null) {
+                if (++retries > MAX_RETRIES) {
+                    Log.w(TAG, "Attachment $id: no acknowledgements, giving up at $acked/$totalChunks")
+                    return false
+                }
+                unacked.values.forEach { channel.send(ByteBuffer.wrap(it), to) }
+                continue
+            }
+
+            retries = 0
+            acked = maxOf(acked, ack.cumulative)
+            unacked.headMap(acked).clear()
+            ack.selective.forEach { unacked.remove(it) }
+            publish(Progress(id, minOf(acked.toLong() * CHUNK_SIZE, size), size, outgoing = true))
+        }
+        return true
+    }
+
+    private fun onAck(data: String, fromHash: String) {
+        val parts = data.split(':', limit = 3)
+        if (parts.size < 2) return
+        // Подтверждать передачу может только её получатель
+        val session = outgoing[parts[0]]?.takeIf { it.toHash == fromHash } ?: return
+        val cumulative = parts[1].toIntOrNull() ?: return
+        val selective = parts.getOrNull(2)?.split(',')?.mapNotNull { it.toIntOrNull() } ?: emptyList()
+        session.acks.trySend(Ack(cumulative, selective))
+    }
+
+    /* ======================= ПРИЁМ ======================= */
+
+    /**
+     * Вызывается из [IdentityRepository] для пакетов типов [TYPES] после проверки подписи.
+     */
+    fun handle(type: String, data: String, fromIp: String, fromHash: String) {
+        when (type) {
+            DESC_TYPE -> scope.launch { onDescriptor(data, fromIp, fromHash) }
+            ACK_TYPE -> onAck(data, fromHash)
+        }
+    }
+
+    private suspend fun onDescriptor(sealed: String, fromIp: String, fromHash: String) {
+        try {
+            val json = JSONObject(CryptoManager.decryptMessage(sealed))
+            val id = json.getString("id")
+
+            // Повтор дескриптора (потерян ACK) — просто подтверждаем ещё раз
+            incoming[id]?.takeIf { it.fromHash == fromHash }?.let {
+                sendAck(it)
+                return
+            }
+            if (incoming.containsKey(id) || ackCompleted(id, fromHash)) return
+
+            val size = json.getLong("size")
+            val chunkSize = json.getInt("chunkSize")
+            if (size <= 0 || size > MAX_FILE_SIZE || chunkSize != CHUNK_SIZE) {
+                Log.w(TAG, "Attachment descriptor from ${fromHash.take(8)} rejected: size=$size chunkSize=$chunkSize")
+                return
+            }
+            if (incomingFrom(fromHash) >= MAX_INCOMING_PER_PEER) {
+                Log.w(TAG, "Too many incoming attachments from ${fromHash.take(8)}, descriptor ignored")
+                return
+            }
+            val type = json.optString("type", "file")
+            val name = displayName(json.getString("name"))
+            val mime = json.optString("mime").ifBlank { null } ?: AttachmentStore.guessMime(name)
+            val key = SecretKeySpec(Base64.decode(json.getString("key"), Base64.NO_WRAP), "AES")
+            val file = store.newTempFile()
+            // Проверяем до того, как сессия выделит файл через setLength
+            val free = file.parentFile?.usableSpace ?: 0L
+            if (size > free - FREE_SPACE_RESERVE) {
+                Log.w(TAG, "Not enough space for attachment $id ($size bytes, $free free)")
+                return
+            }
+
+            // id выбран собеседником: существующее сообщение (своё или чужое) не перезаписываем
+            val inserted = dao.insertIfAbsent(
+                MessageEntity(
+                    messageId = id,
+                    chatId = fromHash,
+                    senderId = fromHash,
+                    receiverId = identityRepo.getMyId(),
+                    text = messageText(type, name),
+                    timestamp = System.currentTimeMillis(),
+                    isMe = false,
+                    status = "RECEIVING",
+                    messageType = type,
+                    fileName = name,
+                    fileMime = mime,
+                    fileSize = size
+                )
+            )
+            if (inserted == -1L) {
+                Log.w(TAG, "Attachment descriptor from ${fromHash.take(8)} reuses existing message id, ignored")
+                file.delete()
+                return
+            }
+
+            // Повторная проверка лимита вместе с регистрацией: дескрипторы обрабатываются параллельно
+            val session = synchronized(incoming) {
+                if (incomingFrom(fromHash) >= MAX_INCOMING_PER_PEER) null
+                else IncomingSession(id, fromHash, fromIp, size, ((size + CHUNK_SIZE - 1) / CHUNK_SIZE).toInt(), key, file, mime)
+                    .also { incoming[id] = it }
+            }
+            if (session == null) {
+                file.delete()
+                dao.updateStatus(id, "FAILED")
+                return
+            }
+            publish(Progress(id, 0, size, outgoing = false))
+            sendAck(session)
+        } catch (e: Exception) {
+            Log.w(TAG, "Invalid attachment descriptor from $fromIp: ${e.message}")
+        }
+    }
+
+    private fun incomingFrom(fromHash: String): Int = incoming.values.count { it.fromHash == fromHash }
+
+    /**
+     * Приём бинарных кадров чанков. Кадр: MAGIC, VERSION, длина id, id (UTF-8), индекс, IV + шифртекст.
+     */
+    private fun receiveLoop(channel: DatagramChannel) {
+        val buffer = ByteBuffer.allocate(RECEIVE_BUFFER)
+        while (channel.isOpen) {
+            try {
+                buffer.clear()
+                val from = channel.receive(buffer) as? InetSocketAddress ?: continue
+                buffer.flip()
+                if (buffer.remaining() < 8 || buffer.getShort() != MAGIC || buffer.get() != VERSION) continue
+                val idLength = buffer.get().toInt() and 0xFF
+                if (idLength == 0 || idLength > MAX_ID_BYTES || buffer.remaining() < idLength + 4) continue
+                val id = String(buffer.array(), buffer.arrayOffset() + buffer.position(), idLength, Charsets.UTF_8)
+                buffer.position(buffer.position() + idLength)
+                val index = buffer.getInt()
+                val sealed = ByteArray(buffer.remaining()).also { buffer.get(it) }
+                onChunk(id, index, sealed, from.address.hostAddress ?: continue)
+            } catch (e: Exception) {
+                if (channel.isOpen) Log.w(TAG, "Chunk frame handling error: ${e.message}")
+            }
+        }
+    }
+
+    private fun onChunk(id: String, index: Int, sealed: ByteArray, fromIp: String) {
+        // Кадры не подписаны: принимаем только с адреса, приславшего подписанный дескриптор
+        val session = incoming[id]?.takeIf { it.fromIp == fromIp }
+        if (session == null) {
+            // Повтор после завершения: отправитель не получил последний ACK
+            completed[id]?.takeIf { it.fromIp == fromIp }?.let { ackCompleted(id, it.fromHash) }
+            return
+        }
+        if (index !in 0 until session.totalChunks) return
+
+        val duplicate = synchronized(session) { session.received.get(index) }
+        if (duplicate) {
+            sendAck(session)
+            return
+        }
+
+        val plain = try {
+            open(session.key, id, index, sealed)
+        } catch (e: Exception) {
+            Log.w(TAG, "Attachment $id: chunk $index failed authentication")
+            return
+        }
+        val expected = minOf(CHUNK_SIZE.toLong(), session.size - index.toLong() * CHUNK_SIZE).toInt()
+        if (plain.size != expected) return
+
+        val buffer = ByteBuffer.wrap(plain)
+        var position = index.toLong() * CHUNK_SIZE
+        while (buffer.hasRemaining()) position += session.channel.write(buffer, position)
+
+        val (count, shouldAck, outOfOrder) = synchronized(session) {
+            if (session.received.get(index)) return
+            val inOrder = index == session.received.nextClearBit(0)
+            session.received.set(index)
+            session.receivedCount++
+            session.lastActivity = System.currentTimeMillis()
+            Triple(session.receivedCount, session.receivedCount % ACK_EVERY == 0, !inOrder)
+        }
+
+        if (count == session.totalChunks) {
+            complete(session)
+        } else if (shouldAck || outOfOrder) {
+            sendAck(session)
+            publish(Progress(id, minOf(count.toLong() * CHUNK_SIZE, session.size), session.size, outgoing = false))
+        }
+    }
+
+    private fun complete(session: IncomingSession) {
+        completed[session.id] = Completed(session.fromHash, session.fromIp, session.totalChunks, System.currentTimeMillis())
+        incoming.remove(session.id)
+        session.close()
+        sendAck(session)
+        scope.launch {
+            // Принятый файл переезжает в content-addressed хранилище; сообщение получает хеш
+            val stored = store.importFile(session.file, session.mime)
+            if (stored != null) {
+                dao.attachFile(session.id, stored.hash, stored.size, session.mime)
+                dao.updateStatus(session.id, "DELIVERED")
+            } else {
+                dao.updateStatus(session.id, "FAILED")
+            }
+            publish(
+                Progress(
+                    session.id, session.size, session.size, outgoing = false,
+                    state = if (stored != null) State.DONE else State.FAILED
+                )
+            )
+        }
+    }
+
+    private fun sendAck(session: IncomingSession) {
+        val ack = synchronized(session) {
+            val cumulative = session.received.nextClearBit(0).coerceAtMost(session.totalChunks)
+            val selective = StringBuilder()
+            var i = session.received.nextSetBit(cumulative)
+            while (i >= 0 && i < cumulative + 2 * WINDOW) {
+                if (selective.isNotEmpty()) selective.append(',')
+                selective.append(i)
+                i = session.received.nextSetBit(i + 1)
+            }
+            "${session.id}:$cumulative:$selective"
+        }
+        scope.launch { identityRepo.sendUdp(session.fromIp, ACK_TYPE, ack) }
+    }
+
+    /** Повторное финальное подтверждение завершённой передачи; false — такой передачи не было. */
+    private fun ackCompleted(id: String, fromHash: String): Boolean {
+        val done = completed[id]?.takeIf { it.fromHash == fromHash } ?: return false
+        scope.launch { identityRepo.sendUdp(done.fromIp, ACK_TYPE, "$id:${done.totalChunks}:") }
+        return true
+    }
+
+    private suspend fun expireIdleSessions() {
+        val now = System.currentTimeMillis()
+        completed.entries.removeIf { now - it.value.at > COMPLETED_TTL }
+        incoming.values.filter { now - it.lastActivity > INCOMING_IDLE_TIMEOUT }.forEach { session ->
+            if (incoming.remove(session.id) == null) return@forEach
+            session.close()
+            session.file.delete()
+            Log.w(TAG, "Attachment ${session.id} timed out at ${session.receivedCount}/${session.totalChunks}")
+            publish(Progress(session.id, 0, session.size, outgoing = false, state = State.FAILED))
+            dao.updateStatus(session.id, "FAILED")
+        }
+    }
+
+    /* ======================= ВСПОМОГАТЕЛЬНОЕ ======================= */
+
+    private fun publish(progress: Progress) {
+        _progress.update { current ->
+            // Завершённые записи держим только до следующего события: дальше статус берётся из БД
+            val active = current.filterValues { it.state == State.ACTIVE || it.messageId == progress.messageId }
+            active + (progress.messageId to progress)
+        }
+    }
+
+    private fun chunkFrame(id: String, index: Int, sealed: ByteArray): ByteArray {
+        val idBytes = id.toByteArray(Charsets.UTF_8)
+        return ByteBuffer.allocate(2 + 1 + 1 + idBytes.size + 4 + sealed.size).apply {
+            putShort(MAGIC)
+            put(VERSION)
+            put(idBytes.size.toByte())
+            put(idBytes)
+            putInt(index)
+            put(sealed)
+        }.array()
+    }
+
+    private fun seal(key: SecretKeySpec, id: String, index: Int, data: ByteArray, length: Int): ByteArray {
+        val iv = ByteArray(IV_SIZE).also { random.nextBytes(it) }
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.ENCRYPT_MODE, key, GCMParameterSpec(TAG_BITS, iv))
+        cipher.updateAAD("$id:$index".toByteArray(Charsets.UTF_8))
+        return iv + cipher.doFinal(data, 0, length)
+    }
+
+    private fun open(key: SecretKeySpec, id: String, index: Int, sealed: ByteArray): ByteArray {
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(TAG_BITS, sealed, 0, IV_SIZE))
+        cipher.updateAAD("$id:$index".toByteArray(Charsets.UTF_8))
+        return cipher.doFinal(sealed, IV_SIZE, sealed.size - IV_SIZE)
+    }
+
+    private fun readFully(input: InputStream, buffer: ByteArray, length: Int): Int {
+        var read = 0
+        while (read < length) {
+            val n = input.read(buffer, read, length - read)
+            if (n < 0) break
+            read += n
+        }
+        return read
+    }
+}
@@ -0,0 +1,89 @@
+package com.kakdela.p2p.data
+
+import java.nio.ByteBuffer
+import kotlin.math.ceil
+import kotlin.math.ln
+import kotlin.math.roundToInt
+
+/**
+ * Компактный Bloom-фильтр для дайджестов anti-entropy gossip.
+ *
+ * Хеширование детерминировано (FNV-1a + double hashing), поэтому фильтр,
+ * собранный на одном устройстве, корректно проверяется на другом.
+ */
+class BloomFilter private constructor(
+    private val bitCount: Int,
+    private val hashCount: Int,
+    private val bits: LongArray
+) {
+
+    fun add(key: String) {
+        forEachIndex(key) { bits[it ushr 6] = bits[it ushr 6] or (1L shl (it and 63)) }
+    }
+
+    fun mightContain(key: String): Boolean {
+        var result = true
+        forEachIndex(key) { if (bits[it ushr 6] and (1L shl (it and 63)) == 0L) result = false }
+        return result
+    }
+
+    /**
+     * Формат: [bitCount:int][hashCount:byte][bits...]
+     */
+    fun toBytes(): ByteArray {
+        val buffer = ByteBuffer.allocate(5 + bits.size * 8)
+        buffer.putInt(bitCount)
+        buffer.put(hashCount.toByte())
+        bits.forEach { buffer.putLong(it) }
+        return buffer.array()
+    }
+
+    private inline fun forEachIndex(key: String, action: (Int) -> Unit) {
+        val bytes = key.toByteArray(Charsets.UTF_8)
+        val h1 = fnv1a(bytes, FNV_OFFSET)
+        val h2 = fnv1a(bytes, FNV_OFFSET xor 0x5bd1e995) or 1
+        for (i in 0 until hashCount) {
+            action(((h1 + i * h2) and Int.MAX_VALUE) % bitCount)
+        }
+    }
+
+    companion object {
+        private const val FNV_OFFSET = 0x811c9dc5.toInt()
+        private const val FNV_PRIME = 0x01000193
+        private const val MAX_BITS = 1 shl 20
+
+        /**
+         * Фильтр под [expectedEntries] элементов с долей ложных срабатываний [falsePositiveRate].
+         */
+        fun create(expectedEntries: Int, falsePositiveRate: Double = 0.01): BloomFilter {
+            val n = expectedEntries.coerceAtLeast(1)
+            val m = ceil(-n * ln(falsePositiveRate) / (ln(2.0) * ln(2.0))).toInt()
+                .coerceIn(64, MAX_BITS)
+            val k = (m.toDouble() / n * ln(2.0)).roundToInt().coerceIn(1, 16)
+            return BloomFilter(m, k, LongArray((m + 63) / 64))
+        }
+
+        fun fromBytes(data: ByteArray): BloomFilter? = try {
+            val buffer = ByteBuffer.wrap(data)
+            val m = buffer.getInt()
+            val k = buffer.get().toInt()
+            val words = (m + 63) / 64
+            if (m !in 64..MAX_BITS || k !in 1..16 || buffer.remaining() != words * 8) {
+                null
+            } else {
+                BloomFilter(m, k, LongArray(words) { buffer.getLong() })
+            }
+        } catch (e: Exception) {
+            null
+        }
+
+        private fun fnv1a(bytes: ByteArray, seed: Int): Int {
+            var hash = seed
+            for (b in bytes) {
+                hash = hash xor (b.toInt() and 0xFF)
+                hash *= FNV_PRIME
+            }
+            return hash
+        }
+    }
+}
@@ -0,0 +1,785 @@
+package com.kakdela.p2p.data
+
+import android.util.Log
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import java.io.File
+import java.io.RandomAccessFile
+import java.net.InetSocketAddress
+import java.net.SocketAddress
+import java.net.StandardSocketOptions
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.DatagramChannel
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.BitSet
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * ChunkTransferEngine — движок передачи файлов чанками поверх отдельного UDP-порта.
+ *
+ * - Бинарные кадры вместо Base64 внутри JSON внутри подписанного JSON-пакета.
+ * - Файлы адресуются по содержимому: ID — корень [MerkleTree] над чанками,
+ *   каждый чанк приходит с доказательством и проверяется до записи на диск.
+ * - Загрузка идёт параллельно со всех узлов, у которых есть чанки (HAVE-битовые карты),
+ *   с выбором редчайших чанков первыми; у каждого источника своё окно с контролем
+ *   перегрузки (slow start + AIMD) и адаптивным RTO (RFC 6298).
+ * - Загружающий узел сразу раздаёт уже проверенные чанки другим участникам роя.
+ * - Один [FileChannel] на сессию с позиционной записью; полные файлы отображены в память.
+ * - Кадр не больше [MAX_DATAGRAM] байт: чанк уходит фрагментами и собирается получателем
+ *   до проверки, IP-фрагментации нет.
+ * - Порт не усиливает трафик: чанки и карты наличия отдаются только адресу, который
+ *   подтвердил, что получает наши пакеты (токен из ответа на HAVE_REQ), и не больше
+ *   [MAX_INDICES_PER_REQ] чанков на запрос. Неподтверждённый HAVE_REQ получает лишь токен,
+ *   который не больше самого запроса.
+ *
+ * Управляющие сообщения (манифест файла) идут через подписанный канал [IdentityRepository];
+ * здесь передаются только данные.
+ */
+class ChunkTransferEngine(private val port: Int = DATA_PORT) {
+
+    private val TAG = "ChunkTransferEngine"
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /**
+     * Источник чанков для ответов на REQ / HAVE_REQ: полный файл или незавершённая загрузка.
+     */
+    private interface ChunkSource {
+        val size: Long
+        val tree: MerkleTree
+        val isComplete: Boolean
+        fun hasChunk(index: Int): Boolean
+        fun haveBitfield(): BitSet
+        /** Дописывает [length] байт чанка [index] со смещения [offset] в [target] начиная с текущей позиции. */
+        fun readChunk(index: Int, offset: Int, length: Int, target: ByteBuffer)
+    }
+
+    private class SeededFile(
+        val channel: FileChannel,
+        private val mapped: MappedByteBuffer?,
+        override val tree: MerkleTree
+    ) : ChunkSource {
+        /** Последнее обращение к раздаче (System.nanoTime). */
+        @Volatile
+        var lastUsed = System.nanoTime()
+        override val size: Long = channel.size()
+        override val isComplete = true
+        override fun hasChunk(index: Int) = index in 0 until tree.leafCount
+        override fun haveBitfield() = BitSet()
+
+        override fun readChunk(index: Int, offset: Int, length: Int, target: ByteBuffer) {
+            val position = index.toLong() * CHUNK_SIZE + offset
+            if (mapped != null) {
+                val slice = mapped.duplicate()
+                slice.position(position.toInt())
+                slice.limit(position.toInt() + length)
+                target.put(slice)
+            } else {
+                readPositional(channel, position, length, target)
+            }
+        }
+    }
+
+    private val seeded = ConcurrentHashMap<String, SeededFile>()
+    private val sessions = ConcurrentHashMap<String, SwarmSession>()
+
+    @Volatile
+    private var socket: DatagramChannel? = null
+
+    // Ключ токенов подтверждения адреса; живёт до перезапуска процесса
+    private val tokenKey = SecretKeySpec(ByteArray(32).also { SecureRandom().nextBytes(it) }, "HmacSHA256")
+
+    companion object {
+        const val DATA_PORT = 8889
+        const val CHUNK_SIZE = 16 * 1024
+
+        private const val MAGIC: Short = 0x4B46 // "KF"
+        private const val VERSION: Byte = 3
+        private const val TYPE_REQ: Byte = 1
+        private const val TYPE_DATA: Byte = 2
+        private const val TYPE_HAVE_REQ: Byte = 3
+        private const val TYPE_HAVE: Byte = 4
+        private const val TYPE_TOKEN: Byte = 5
+
+        // Влезает в минимальный MTU IPv6 (1280) вместе с заголовками IP/UDP
+        private const val MAX_DATAGRAM = 1200
+        private const val RECEIVE_BUFFER = 2048
+        private const val MAX_INDICES_PER_REQ = 64
+        private const val SOCKET_BUFFER = 4 * 1024 * 1024
+
+        // Подтверждение адреса: HMAC(адрес, эпоха); действителен в текущей и прошлой эпохе
+        private const val TOKEN_SIZE = 16
+        private const val TOKEN_EPOCH_MS = 120_000L
+        // Неподтверждённый HAVE_REQ дополняется до этого размера: ответ-токен всегда меньше
+        private const val MIN_PROBE_SIZE = 160
+
+        private const val INITIAL_WINDOW = 16.0
+        private const val MAX_WINDOW = 1024.0
+        private const val INITIAL_RTO_MS = 300.0
+        private const val MIN_RTO_MS = 20.0
+        private const val MAX_RTO_MS = 3_000.0
+        private const val STALL_TIMEOUT_MS = 15_000L
+        private const val HAVE_REFRESH_MS = 3_000L
+        private const val MAX_STRIKES = 3               // Битых чанков до исключения источника
+
+        // Раздача без запросов дольше этого закрывается; одновременно раздаётся не больше MAX_SEEDED файлов
+        private const val SEED_IDLE_MS = 30 * 60_000L
+        private const val SEED_SWEEP_MS = 60_000L
+        private const val MAX_SEEDED = 32
+
+        fun chunkCount(size: Long): Int = ((size + CHUNK_SIZE - 1) / CHUNK_SIZE).toInt()
+
+        private fun readPositional(channel: FileChannel, offset: Long, length: Int, target: ByteBuffer) {
+            val limit = target.limit()
+            target.limit(target.position() + length)
+            var position = offset
+            while (target.hasRemaining()) {
+                val read = channel.read(target, position)
+                if (read <= 0) break
+                position += read
+            }
+            target.limit(limit)
+        }
+    }
+
+    /* ======================= LIFECYCLE ======================= */
+
+    fun start() {
+        if (socket != null) return
+        val channel = DatagramChannel.open().apply {
+            setOption(StandardSocketOptions.SO_REUSEADDR, true)
+            setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER)
+            setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER)
+            bind(InetSocketAddress(port))
+        }
+        socket = channel
+        scope.launch { receiveLoop(channel) }
+        scope.launch {
+            while (isActive) {
+                delay(SEED_SWEEP_MS)
+                closeIdleSeeds()
+            }
+        }
+    }
+
+    fun stop() {
+        socket?.close()
+        socket = null
+        scope.cancel()
+        sessions.values.forEach { it.close() }
+        sessions.clear()
+        seeded.keys.toList().forEach { unseed(it) }
+    }
+
+    /* ======================= SEEDING ======================= */
+
+    /**
+     * Начинает раздачу файла. Хеширует чанки, если дерево не передано.
+     * @return ID файла — hex-корень дерева Меркла.
+     */
+    fun seed(file: File, knownTree: MerkleTree? = null): String {
+        val channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)
+        val size = channel.size()
+        require(size > 0) { "Cannot seed empty file" }
+
+        val tree = knownTree ?: MerkleTree.fromChannel(channel, size, CHUNK_SIZE)
+        // Файлы больше 2 ГБ нельзя отобразить одним буфером — читаем их позиционно
+        val mapped = if (size <= Int.MAX_VALUE) channel.map(FileChannel.MapMode.READ_ONLY, 0, size) else null
+
+        val fileId = tree.rootHex()
+        seeded.put(fileId, SeededFile(channel, mapped, tree))?.let { runCatching { it.channel.close() } }
+
+        // Сверх лимита закрываем раздачи, к которым дольше всех не обращались
+        if (seeded.size > MAX_SEEDED) {
+            seeded.entries.filter { it.key != fileId }
+                .sortedBy { it.value.lastUsed }
+                .take(seeded.size - MAX_SEEDED)
+                .forEach { unseed(it.key) }
+        }
+        return fileId
+    }
+
+    /**
+     * Прекращает раздачу: закрывает канал и отпускает отображение файла
+     * (оно освобождается вместе с последней ссылкой на буфер).
+     */
+    fun unseed(fileId: String) {
+        seeded.remove(fileId)?.let { runCatching { it.channel.close() } }
+    }
+
+    fun isSeeding(fileId: String): Boolean = seeded.containsKey(fileId)
+
+    private fun closeIdleSeeds() {
+        val now = System.nanoTime()
+        seeded.entries
+            .filter { (now - it.value.lastUsed) / 1_000_000 > SEED_IDLE_MS }
+            .forEach {
+                Log.i(TAG, "Seeding ${it.key} idle, closing")
+                unseed(it.key)
+            }
+    }
+
+    private fun sourceFor(fileId: String): ChunkSource? =
+        seeded[fileId]?.also { it.lastUsed = System.nanoTime() } ?: sessions[fileId]
+
+    /* ======================= DOWNLOAD ======================= */
+
+    /**
+     * Скачивает файл [fileId] (hex-корень дерева Меркла) размером [size] со всех [sources],
+     * у которых он есть. После завершения файл автоматически раздаётся дальше.
+     * @return true, если все чанки получены и проверены.
+     */
+    suspend fun download(
+        fileId: String,
+        size: Long,
+        output: File,
+        sources: Collection<InetSocketAddress>,
+        onProgress: (received: Int, total: Int) -> Unit = { _, _ -> }
+    ): Boolean = withContext(Dispatchers.IO) {
+        val channel = socket ?: return@withContext false
+        val root = KademliaRoutingTable.idToBytes(fileId) ?: return@withContext false
+        if (size <= 0) return@withContext false
+        if (seeded.containsKey(fileId)) return@withContext false
+
+        val totalChunks = chunkCount(size)
+        val session = SwarmSession(fileId, MerkleTree.forRoot(root, totalChunks), output, size)
+        sessions[fileId] = session
+
+        val sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM)
+        var lastProbe = 0L
+        var complete = false
+        try {
+            while (!session.isComplete) {
+                ensureActive()
+                val now = System.nanoTime()
+
+                // Новый токен от источника — сразу повторяем HAVE_REQ, не дожидаясь обновления
+                if (session.probeRequested.getAndSet(false) || (now - lastProbe) / 1_000_000 > HAVE_REFRESH_MS) {
+                    lastProbe = now
+                    (sources + session.peerAddresses()).toSet().forEach {
+                        encodeProbe(sendBuffer, fileId, session.tokens[it])
+                        channel.send(sendBuffer, it)
+                    }
+                }
+
+                if (session.millisSinceProgress(now) > STALL_TIMEOUT_MS) {
+                    Log.w(TAG, "Transfer $fileId stalled at ${session.receivedCount}/$totalChunks")
+                    return@withContext false
+                }
+
+                session.nextRequests(now).forEach { (peer, indices) ->
+                    val token = session.tokens[peer] ?: return@forEach
+                    indices.chunked(MAX_INDICES_PER_REQ).forEach { batch ->
+                        encodeRequest(sendBuffer, fileId, token, batch)
+                        channel.send(sendBuffer, peer)
+                    }
+                }
+
+                onProgress(session.receivedCount, totalChunks)
+                withTimeoutOrNull(session.waitMillis(System.nanoTime())) { session.signal.receive() }
+            }
+            onProgress(totalChunks, totalChunks)
+            Log.i(TAG, "Transfer $fileId complete: ${session.stats()}")
+            complete = true
+            true
+        } finally {
+            sessions.remove(fileId)
+            session.close()
+            if (complete) {
+                runCatching { seed(output, session.tree) }
+                    .onFailure { Log.w(TAG, "Failed to start seeding $fileId: ${it.message}") }
+            }
+        }
+    }
+
+    /**
+     * Состояние роевой загрузки: полученные чанки, доступность по источникам,
+     * запросы в полёте и независимый контроль перегрузки для каждого источника.
+     */
+    private class SwarmSession(
+        val fileId: String,
+        override val tree: MerkleTree,
+        output: File,
+        override val size: Long
+    ) : ChunkSource {
+
+        private class PeerState {
+            var have: BitSet? = null           // null — у источника полный файл
+            val inFlight = HashMap<Int, Long>()
+            val retransmitted = HashSet<Int>()
+            var cwnd = INITIAL_WINDOW
+            var ssthresh = MAX_WINDOW
+            var srtt = -1.0
+            var rttvar = 0.0
+            var rto = INITIAL_RTO_MS
+            var strikes = 0
+            var delivered = 0
+
+            fun has(index: Int) = have?.get(index) ?: true
+        }
+
+        /** Чанк, собираемый из фрагментов; доказательство приходит с фрагментом по смещению 0. */
+        private class Assembly(length: Int) {
+            val bytes = ByteArray(length)
+            val offsets = HashSet<Int>()
+            var filled = 0
+            var proof: List<ByteArray>? = null
+        }
+
+        private val raf = RandomAccessFile(output, "rw").apply { setLength(size) }
+        val channel: FileChannel = raf.channel
+        val signal = Channel<Unit>(Channel.CONFLATED)
+
+        /** Токены подтверждения адреса, выданные источниками. */
+        val tokens = ConcurrentHashMap<SocketAddress, ByteArray>()
+        val probeRequested = AtomicBoolean(false)
+        private val assemblies = HashMap<Int, Assembly>()
+
+        private val totalChunks = tree.leafCount
+        private val received = BitSet(totalChunks)
+        @Volatile
+        var receivedCount = 0
+            private set
+
+        private val peers = HashMap<SocketAddress, PeerState>()
+        private val owner = HashMap<Int, SocketAddress>()     // чанк в полёте -> источник
+        private val availability = IntArray(totalChunks)
+        private val tieBreak = IntArray(totalChunks).also { arr ->
+            val random = Random()
+            for (i in arr.indices) arr[i] = random.nextInt()
+        }
+        private var order = IntArray(0)
+        private var orderDirty = true
+
+        private var lastProgress = System.nanoTime()
+        private val startedAt = System.nanoTime()
+        private var retransmits = 0
+        private var corrupt = 0
+
+        override val isComplete: Boolean get() = receivedCount >= totalChunks
+
+        @Synchronized
+        override fun hasChunk(index: Int) = index in 0 until totalChunks && received.get(index)
+
+        @Synchronized
+        override fun haveBitfield(): BitSet = received.clone() as BitSet
+
+        override fun readChunk(index: Int, offset: Int, length: Int, target: ByteBuffer) =
+            readPositional(channel, index.toLong() * CHUNK_SIZE + offset, length, target)
+
+        @Synchronized
+        fun peerAddresses(): List<SocketAddress> = peers.keys.toList()
+
+        @Synchronized
+        fun millisSinceProgress(now: Long): Long = (now - lastProgress) / 1_000_000
+
+        fun onToken(peer: SocketAddress, token: ByteArray) {
+            tokens[peer] = token
+            probeRequested.set(true)
+            signal.trySend(Unit)
+        }
+
+        /**
+         * Обновление карты наличия у источника. Неполная карта приходит страницами:
+         * [bitfield] описывает чанки начиная с [start], [span] штук.
+         */
+        @Synchronized
+        fun onHave(peer: SocketAddress, complete: Boolean, start: Int = 0, span: Int = 0, bitfield: BitSet = BitSet()) {
+            val known = peers[peer]
+            val state = known ?: PeerState().also { peers[peer] = it }
+            val oldHave = state.have
+            val newHave = if (complete) {
+                null
+            } else {
+                (oldHave?.clone() as BitSet? ?: BitSet(totalChunks)).also { merged ->
+                    for (i in maxOf(start, 0) until minOf(start + span, totalChunks)) merged.set(i, bitfield.get(i - start))
+                }
+            }
+
+            for (i in 0 until totalChunks) {
+                val had = known != null && (oldHave?.get(i) ?: true)
+                val has = newHave?.get(i) ?: true
+                if (had != has) availability[i] += if (has) 1 else -1
+            }
+            state.have = newHave
+            orderDirty = true
+        }
+
+        /**
+         * Запросы для каждого источника: сначала таймауты (с уменьшением окна источника),
+         * затем заполнение окон редчайшими доступными у источника чанками.
+         */
+        @Synchronized
+        fun nextRequests(now: Long): Map<SocketAddress, List<Int>> {
+            peers.values.forEach { state ->
+                val rtoNanos = (state.rto * 1_000_000).toLong()
+                val expired = state.inFlight.filterValues { now - it > rtoNanos }.keys
+                if (expired.isNotEmpty()) {
+                    state.ssthresh = maxOf(state.cwnd / 2, 2.0)
+                    state.cwnd = state.ssthresh
+                    state.rto = minOf(state.rto * 2, MAX_RTO_MS)
+                    expired.forEach {
+                        state.inFlight.remove(it)
+                        state.retransmitted.add(it)
+                        owner.remove(it)
+                        assemblies.remove(it)
+                    }
+                    retransmits += expired.size
+                }
+            }
+
+            if (orderDirty) rebuildOrder()
+
+            val result = HashMap<SocketAddress, MutableList<Int>>()
+            peers.forEach { (address, state) ->
+                if (state.strikes >= MAX_STRIKES) return@forEach
+                var free = state.cwnd.toInt() - state.inFlight.size
+                if (free <= 0) return@forEach
+
+                for (index in order) {
+                    if (free <= 0) break
+                    if (received.get(index) || owner.containsKey(index) || !state.has(index)) continue
+                    owner[index] = address
+                    state.inFlight[index] = now
+                    result.getOrPut(address) { ArrayList() }.add(index)
+                    free--
+                }
+            }
+            return result
+        }
+
+        private fun rebuildOrder() {
+            order = (0 until totalChunks)
+                .filter { !received.get(it) && availability[it] > 0 }
+                .sortedWith(compareBy<Int> { availability[it] }.thenBy { tieBreak[it] })
+                .toIntArray()
+            orderDirty = false
+        }
+
+        @Synchronized
+        fun waitMillis(now: Long): Long {
+            var deadline = Long.MAX_VALUE
+            peers.values.forEach { state ->
+                val oldest = state.inFlight.values.minOrNull() ?: return@forEach
+                deadline = minOf(deadline, oldest + (state.rto * 1_000_000).toLong())
+            }
+            if (deadline == Long.MAX_VALUE) return INITIAL_RTO_MS.toLong()
+            return ((deadline - now) / 1_000_000).coerceIn(1L, MAX_RTO_MS.toLong())
+        }
+
+        /**
+         * Приём фрагмента: сборка чанка только для запрошенных индексов; собранный чанк
+         * уходит в [onChunk].
+         */
+        fun onFragment(peer: SocketAddress, index: Int, offset: Int, proof: List<ByteArray>?, payload: ByteBuffer) {
+            if (index !in 0 until totalChunks) return
+            val expectedLength = minOf(CHUNK_SIZE.toLong(), size - index.toLong() * CHUNK_SIZE).toInt()
+            val length = payload.remaining()
+            if (length == 0 || offset < 0 || offset + length > expectedLength) return
+
+            val assembled = synchronized(this) {
+                if (received.get(index) || !owner.containsKey(index)) return
+                val assembly = assemblies.getOrPut(index) { Assembly(expectedLength) }
+                if (assembly.offsets.add(offset)) {
+                    payload.get(assembly.bytes, offset, length)
+                    assembly.filled += length
+                }
+                if (proof != null) assembly.proof = proof
+                val ready = assembly.proof
+                if (assembly.filled < expectedLength || ready == null) return
+                assemblies.remove(index)
+                assembly.bytes to ready
+            }
+            onChunk(peer, index, assembled.second, assembled.first)
+        }
+
+        /**
+         * Приём чанка: проверка по дереву Меркла, позиционная запись, обновление окна источника.
+         */
+        private fun onChunk(peer: SocketAddress, index: Int, proof: List<ByteArray>, bytes: ByteArray) {
+            synchronized(this) { if (received.get(index)) return }
+
+            if (!tree.verifyAndAbsorb(index, bytes, 0, bytes.size, proof)) {
+                synchronized(this) {
+                    corrupt++
+                    peers[peer]?.let {
+                        it.strikes++
+                        it.inFlight.remove(index)
+                    }
+                    if (owner[index] == peer) owner.remove(index)
+                }
+                Log.w(TAG, "Chunk $index of $fileId from $peer failed Merkle verification")
+                return
+            }
+
+            val buffer = ByteBuffer.wrap(bytes)
+            var position = index.toLong() * CHUNK_SIZE
+            while (buffer.hasRemaining()) position += channel.write(buffer, position)
+
+            synchronized(this) {
+                if (received.get(index)) return
+                received.set(index)
+                receivedCount++
+                val now = System.nanoTime()
+                lastProgress = now
+
+                owner.remove(index)?.let { source -> if (source != peer) peers[source]?.inFlight?.remove(index) }
+                peers[peer]?.let { state ->
+                    state.delivered++
+                    val sentAt = state.inFlight.remove(index)
+                    if (sentAt != null && index !in state.retransmitted) state.sampleRtt((now - sentAt) / 1_000_000.0)
+                    state.cwnd = minOf(if (state.cwnd < state.ssthresh) state.cwnd + 1 else state.cwnd + 1 / state.cwnd, MAX_WINDOW)
+                }
+            }
+            signal.trySend(Unit)
+        }
+
+        private fun PeerState.sampleRtt(rttMs: Double) {
+            if (srtt < 0) {
+                srtt = rttMs
+                rttvar = rttMs / 2
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs)
+                srtt = 0.875 * srtt + 0.125 * rttMs
+            }
+            rto = (srtt + 4 * rttvar).coerceIn(MIN_RTO_MS, MAX_RTO_MS)
+        }
+
+        @Synchronized
+        fun stats(): String {
+            val seconds = (System.nanoTime() - startedAt) / 1e9
+            val mb = size / (1024.0 * 1024.0)
+            val perPeer = peers.entries.joinToString { (address, state) -> "$address=${state.delivered}" }
+            return "%.1f MB in %.2f s (%.1f MB/s), sources=%d [%s], retransmits=%d, corrupt=%d"
+                .format(mb, seconds, mb / seconds, peers.size, perPeer, retransmits, corrupt)
+        }
+
+        fun close() {
+            signal.close()
+            runCatching { channel.force(false) }
+            runCatching { raf.close() }
+        }
+    }
+
+    /* ======================= WIRE ======================= */
+
+    private fun receiveLoop(channel: DatagramChannel) {
+        val buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER)
+        val sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM)
+        val mac = Mac.getInstance("HmacSHA256").apply { init(tokenKey) }
+
+        while (channel.isOpen) {
+            try {
+                buffer.clear()
+                val from = channel.receive(buffer) ?: continue
+                buffer.flip()
+                val frameLength = buffer.remaining()
+
+                if (buffer.remaining() < 5 || buffer.getShort() != MAGIC || buffer.get() != VERSION) continue
+                val type = buffer.get()
+                val fileId = readId(buffer) ?: continue
+                val token = readToken(buffer) ?: continue
+
+                when (type) {
+                    TYPE_HAVE_REQ -> {
+                        if (sourceFor(fileId) == null) continue
+                        when {
+                            token.isNotEmpty() && isValidToken(mac, token, from) ->
+                                serveHave(channel, sendBuffer, fileId, from)
+                            // Ответ на неподтверждённый адрес — только токен, и только на запрос не меньше ответа
+                            frameLength >= MIN_PROBE_SIZE ->
+                                sendToken(channel, sendBuffer, fileId, issueToken(mac, from, currentEpoch()), from)
+                        }
+                    }
+                    TYPE_REQ -> {
+                        if (token.isEmpty() || !isValidToken(mac, token, from)) continue
+                        serveRequest(channel, sendBuffer, fileId, buffer, from)
+                    }
+                    TYPE_TOKEN -> {
+                        if (token.size != TOKEN_SIZE) continue
+                        sessions[fileId]?.onToken(from, token)
+                    }
+                    TYPE_HAVE -> {
+                        val session = sessions[fileId] ?: continue
+                        val complete = buffer.get() == 1.toByte()
+                        if (complete) {
+                            session.onHave(from, true)
+                        } else {
+                            val start = buffer.getInt()
+                            val span = buffer.remaining() * 8
+                            session.onHave(from, false, start, span, BitSet.valueOf(buffer))
+                        }
+                        session.signal.trySend(Unit)
+                    }
+                    TYPE_DATA -> {
+                        val session = sessions[fileId] ?: continue
+                        val index = buffer.getInt()
+                        val offset = buffer.getInt()
+                        val proofCount = buffer.get().toInt() and 0xFF
+                        val proof = List(proofCount) {
+                            ByteArray(MerkleTree.HASH_SIZE).also { buffer.get(it) }
+                        }
+                        val length = buffer.getInt()
+                        if (length != buffer.remaining()) continue
+                        session.onFragment(from, index, offset, if (offset == 0) proof else null, buffer)
+                    }
+                }
+            } catch (e: Exception) {
+                if (channel.isOpen) Log.w(TAG, "Frame handling error: ${e.message}")
+            }
+        }
+    }
+
+    /* ======================= ADDRESS TOKENS ======================= */
+
+    private fun currentEpoch() = System.currentTimeMillis() / TOKEN_EPOCH_MS
+
+    private fun issueToken(mac: Mac, address: SocketAddress, epoch: Long): ByteArray {
+        val inet = address as? InetSocketAddress ?: return ByteArray(0)
+        mac.update(inet.address.address)
+        mac.update(ByteBuffer.allocate(12).putInt(inet.port).putLong(epoch).array())
+        return mac.doFinal().copyOf(TOKEN_SIZE)
+    }
+
+    private fun isValidToken(mac: Mac, token: ByteArray, address: SocketAddress): Boolean {
+        val epoch = currentEpoch()
+        return MessageDigest.isEqual(token, issueToken(mac, address, epoch)) ||
+            MessageDigest.isEqual(token, issueToken(mac, address, epoch - 1))
+    }
+
+    private fun sendToken(channel: DatagramChannel, sendBuffer: ByteBuffer, fileId: String, token: ByteArray, to: SocketAddress) {
+        if (token.size != TOKEN_SIZE) return
+        sendBuffer.clear()
+        writeHeader(sendBuffer, TYPE_TOKEN, fileId, token)
+        sendBuffer.flip()
+        channel.send(sendBuffer, to)
+    }
+
+    /* ======================= SERVING ======================= */
+
+    /**
+     * Карта наличия. Полный файл — один байт; неполная карта режется на страницы по размеру кадра.
+     */
+    private fun serveHave(channel: DatagramChannel, sendBuffer: ByteBuffer, fileId: String, to: SocketAddress) {
+        val source = sourceFor(fileId) ?: return
+        if (source.isComplete) {
+            sendBuffer.clear()
+            writeHeader(sendBuffer, TYPE_HAVE, fileId)
+            sendBuffer.put(1)
+            sendBuffer.flip()
+            channel.send(sendBuffer, to)
+            return
+        }
+
+        val bits = source.haveBitfield().toByteArray()
+        if (bits.isEmpty()) return
+        var from = 0
+        while (from < bits.size) {
+            sendBuffer.clear()
+            writeHeader(sendBuffer, TYPE_HAVE, fileId)
+            sendBuffer.put(0)
+            sendBuffer.putInt(from * 8)
+            val page = minOf(sendBuffer.remaining(), bits.size - from)
+            sendBuffer.put(bits, from, page)
+            sendBuffer.flip()
+            channel.send(sendBuffer, to)
+            from += page
+        }
+    }
+
+    /**
+     * Отвечает на REQ подтверждённого адреса: не больше [MAX_INDICES_PER_REQ] чанков,
+     * каждый — фрагментами не больше [MAX_DATAGRAM]; доказательство Меркла — в первом фрагменте.
+     */
+    private fun serveRequest(
+        channel: DatagramChannel,
+        sendBuffer: ByteBuffer,
+        fileId: String,
+        request: ByteBuffer,
+        to: SocketAddress
+    ) {
+        val source = sourceFor(fileId) ?: return
+        val count = (request.getShort().toInt() and 0xFFFF).coerceAtMost(MAX_INDICES_PER_REQ)
+        repeat(count) {
+            if (request.remaining() < 4) return
+            val index = request.getInt()
+            val position = index.toLong() * CHUNK_SIZE
+            if (index < 0 || position >= source.size || !source.hasChunk(index)) return@repeat
+            val proof = source.tree.proof(index) ?: return@repeat
+            val length = minOf(CHUNK_SIZE.toLong(), source.size - position).toInt()
+
+            var offset = 0
+            while (offset < length) {
+                sendBuffer.clear()
+                writeHeader(sendBuffer, TYPE_DATA, fileId)
+                sendBuffer.putInt(index)
+                sendBuffer.putInt(offset)
+                val fragmentProof = if (offset == 0) proof else emptyList()
+                if (sendBuffer.remaining() < 1 + fragmentProof.size * MerkleTree.HASH_SIZE + 4 + 1) return@repeat
+                sendBuffer.put(fragmentProof.size.toByte())
+                fragmentProof.forEach { sendBuffer.put(it) }
+                val piece = minOf(sendBuffer.remaining() - 4, length - offset)
+                sendBuffer.putInt(piece)
+                source.readChunk(index, offset, piece, sendBuffer)
+                sendBuffer.flip()
+                channel.send(sendBuffer, to)
+                offset += piece
+            }
+        }
+    }
+
+    /* ======================= WIRE ======================= */
+
+    /**
+     * HAVE_REQ всегда дополняется до [MIN_PROBE_SIZE]: если токен устарел, источник
+     * сможет ответить новым. Запрос идёт раз в [HAVE_REFRESH_MS], лишние байты не важны.
+     */
+    private fun encodeProbe(buffer: ByteBuffer, fileId: String, token: ByteArray?) {
+        buffer.clear()
+        writeHeader(buffer, TYPE_HAVE_REQ, fileId, token)
+        while (buffer.position() < MIN_PROBE_SIZE) buffer.put(0)
+        buffer.flip()
+    }
+
+    private fun encodeRequest(buffer: ByteBuffer, fileId: String, token: ByteArray, indices: List<Int>) {
+        buffer.clear()
+        writeHeader(buffer, TYPE_REQ, fileId, token)
+        buffer.putShort(indices.size.toShort())
+        indices.forEach { buffer.putInt(it) }
+        buffer.flip()
+    }
+
+    /** Заголовок: MAGIC, VERSION, тип, ID файла, токен (длина 0 — без токена). */
+    private fun writeHeader(buffer: ByteBuffer, type: Byte, fileId: String, token: ByteArray? = null) {
+        val id = fileId.toByteArray(Charsets.UTF_8)
+        buffer.putShort(MAGIC)
+        buffer.put(VERSION)
+        buffer.put(type)
+        buffer.put(id.size.toByte())
+        buffer.put(id)
+        buffer.put((token?.size ?: 0).toByte())
+        token?.let { buffer.put(it) }
+    }
+
+    private fun readId(buffer: ByteBuffer): String? {
+        val length = buffer.get().toInt() and 0xFF
+        if (length == 0 || buffer.remaining() < length) return null
+        val bytes = ByteArray(length)
+        buffer.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun readToken(buffer: ByteBuffer): ByteArray? {
+        if (!buffer.hasRemaining()) return null
+        val length = buffer.get().toInt() and 0xFF
+        if (buffer.remaining() < length) return null
+        return ByteArray(length).also { buffer.get(it) }
+    }
+}
@@ -0,0 +1,124 @@
+package com.kakdela.p2p.data
+
+import android.content.SharedPreferences
+import android.util.Log
+import com.kakdela.p2p.api.UserPayload
+import com.kakdela.p2p.api.WebViewApiClient
+import com.kakdela.p2p.data.local.NodeDao
+import com.kakdela.p2p.data.local.NodeEntity
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * DirectorySync — инкрементальная синхронизация каталога узлов с сервером (get_nodes).
+ *
+ * - Условный запрос: курсор `since` (время сервера прошлого ответа, с перекрытием) и ETag
+ *   из прошлого ответа в If-None-Match. Ответ 304 или пустая дельта не трогают БД.
+ * - В dht_nodes пишутся только узлы, которые действительно изменились; локальные поля
+ *   (email, passwordHash, isSynced) при этом сохраняются.
+ * - Одновременные вызовы (цикл синхронизации, контакты, экран нового чата) сливаются в один
+ *   запрос, а вызов в течение [MIN_REFRESH_MS] после успешной синхронизации сеть не трогает.
+ */
+class DirectorySync(
+    private val api: WebViewApiClient,
+    private val nodeDao: NodeDao,
+    private val peerDirectory: PeerDirectory,
+    private val prefs: SharedPreferences
+) {
+
+    private val TAG = "DirectorySync"
+    private val mutex = Mutex()
+
+    @Volatile
+    private var lastSyncAt = 0L
+
+    private companion object {
+        const val KEY_SINCE = "directory_since"
+        const val KEY_ETAG = "directory_etag"
+        const val MIN_REFRESH_MS = 30_000L
+        // Перекрытие курсора: узлы, записанные на сервере во время прошлого ответа, не теряются
+        const val SINCE_OVERLAP_MS = 60_000L
+        // Лимит переменных SQLite в одном запросе — 999
+        const val LOOKUP_CHUNK = 500
+    }
+
+    /**
+     * @param force игнорировать окно свежести (например, ручное обновление).
+     * @return число изменённых узлов или null, если сервер недоступен.
+     */
+    suspend fun sync(force: Boolean = false): Int? {
+        val requestedAt = System.currentTimeMillis()
+        return mutex.withLock {
+            // Пока ждали блокировку, синхронизацию мог выполнить другой вызов
+            if (lastSyncAt >= requestedAt || (!force && requestedAt - lastSyncAt < MIN_REFRESH_MS)) {
+                return@withLock 0
+            }
+
+            val since = prefs.getLong(KEY_SINCE, 0L).takeIf { it > 0 }
+            val etag = prefs.getString(KEY_ETAG, null)
+            val result = api.getNodes(since?.minus(SINCE_OVERLAP_MS), etag)
+
+            if (result.notModified) {
+                lastSyncAt = System.currentTimeMillis()
+                return@withLock 0
+            }
+            if (!result.response.success) {
+                Log.w(TAG, "get_nodes failed: ${result.response.error}")
+                return@withLock null
+            }
+
+            val users = result.response.users ?: emptyList()
+            val changed = applyDelta(users)
+
+            val cursor = result.response.serverTime ?: users.maxOfOrNull { it.lastSeen }
+            prefs.edit().apply {
+                if (cursor != null) putLong(KEY_SINCE, cursor)
+                if (result.etag != null) putString(KEY_ETAG, result.etag) else remove(KEY_ETAG)
+            }.apply()
+
+            lastSyncAt = System.currentTimeMillis()
+            Log.d(TAG, "Directory sync: received=${users.size}, changed=$changed")
+            changed
+        }
+    }
+
+    /**
+     * Сравнивает пришедшие узлы с локальными и записывает только отличающиеся.
+     */
+    private suspend fun applyDelta(users: List<UserPayload>): Int {
+        if (users.isEmpty()) return 0
+
+        val incoming = users.map {
+            NodeEntity(
+                userHash = it.hash,
+                phone_hash = it.phone_hash ?: "",
+                ip = it.ip,
+                port = it.port,
+                publicKey = it.publicKey,
+                phone = it.phone ?: "",
+                lastSeen = it.lastSeen
+            )
+        }.associateBy { it.userHash }
+
+        val local = HashMap<String, NodeEntity>(incoming.size)
+        incoming.keys.chunked(LOOKUP_CHUNK).forEach { chunk ->
+            nodeDao.getNodesByHashes(chunk).forEach { local[it.userHash] = it }
+        }
+
+        val changed = incoming.values.mapNotNull { remote ->
+            val current = local[remote.userHash] ?: return@mapNotNull remote
+            val merged = current.copy(
+                phone_hash = remote.phone_hash,
+                ip = remote.ip,
+                port = remote.port,
+                publicKey = remote.publicKey,
+                phone = remote.phone,
+                lastSeen = remote.lastSeen
+            )
+            merged.takeIf { it != current }
+        }
+
+        peerDirectory.saveServerRows(changed)
+        return changed.size
+    }
+}
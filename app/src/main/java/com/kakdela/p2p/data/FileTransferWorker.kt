@@ -1,197 +1,171 @@
 package com.kakdela.p2p.data
 
 import android.content.Context
-import android.util.Base64
 import android.util.Log
-import com.kakdela.p2p.security.CryptoManager
 import kotlinx.coroutines.*
 import org.json.JSONObject
 import java.io.File
-import java.io.RandomAccessFile
-import java.util.UUID
+import java.net.InetSocketAddress
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.TimeUnit
 
 /**
  * FileTransferWorker управляет сегментированной передачей файлов через P2P.
- * Реализует логику "сидирования" (раздачи) и "скачивания" чанками.
+ * Реализует логику "сидирования" (раздачи) и роевого "скачивания" чанками.
+ *
+ * ID файла — корень дерева Меркла ([MerkleTree]), поэтому один и тот же файл
+ * можно качать параллельно у всех узлов, которые его имеют, проверяя каждый чанк.
+ * Данные идут через [ChunkTransferEngine], манифесты — через подписанный канал [IdentityRepository].
  */
 class FileTransferWorker(
     private val context: Context,
     private val identityRepo: IdentityRepository
 ) {
     private val TAG = "FileTransferWorker"
-    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
-    private val seedingFiles = ConcurrentHashMap<String, File>()
-    private val activeDownloads = ConcurrentHashMap<String, DownloadSession>()
-
-    private val CHUNK_SIZE = 16 * 1024 // 16KB чанки для UDP стабильности
-
-    private val listener: (String, String, String, String) -> Unit = { type, data, fromIp, fromId ->
-        // Проверяем тип WEBRTC_SIGNAL (используется как транспорт в IdentityRepository)
-        if (type == "WEBRTC_SIGNAL") {
-            try {
-                val json = JSONObject(data)
-                val signalType = json.optString("sub_type")
-                val signalData = json.optString("payload")
-                
-                when (signalType) {
-                    "FILE_CHUNK_REQ" -> handleChunkRequest(signalData, fromIp, fromId)
-                    "FILE_CHUNK_DATA" -> handleChunkData(signalData)
-                }
+    private val engine = ChunkTransferEngine()
+
+    /**
+     * Описание файла, рассылаемое участникам: корень дерева, имя и размер.
+     */
+    data class FileManifest(val root: String, val name: String, val size: Long) {
+        fun toJson(): String = JSONObject().apply {
+            put("root", root)
+            put("name", name)
+            put("size", size)
+        }.toString()
+
+        companion object {
+            fun fromJson(json: String): FileManifest? = try {
+                val obj = JSONObject(json)
+                FileManifest(obj.getString("root"), obj.getString("name"), obj.getLong("size"))
+                    .takeIf { it.size > 0 && KademliaRoutingTable.isValidId(it.root) }
             } catch (e: Exception) {
-                Log.e(TAG, "Signal parsing error", e)
+                null
+            }
+        }
+    }
+
+    // Манифест -> IP узлов, объявивших его
+    private val knownManifests = ConcurrentHashMap<String, FileManifest>()
+    private val announcers = ConcurrentHashMap<String, MutableSet<String>>()
+
+    private val manifestListener: (String, String, String, String) -> Unit = { type, data, fromIp, _ ->
+        if (type == MANIFEST_TYPE) {
+            FileManifest.fromJson(data)?.let { manifest ->
+                knownManifests[manifest.root] = manifest
+                announcers.getOrPut(manifest.root) { ConcurrentHashMap.newKeySet() }.add(fromIp)
             }
         }
     }
 
-    init { 
-        identityRepo.addListener(listener) 
+    companion object {
+        const val MANIFEST_TYPE = "FILE_MANIFEST"
+
+        // Запас свободного места сверх размера файла
+        private const val FREE_SPACE_RESERVE = 50L * 1024 * 1024
+
+        /**
+         * Имя из манифеста — данные собеседника: оставляем только последний компонент пути,
+         * чтобы "../" и абсолютные пути не выводили запись за пределы каталога загрузок.
+         */
+        internal fun safeFileName(name: String): String? =
+            File(name.replace('\\', '/')).name
+                .trim()
+                .takeIf { it.isNotEmpty() && it != "." && it != ".." }
+
+        /** Свободное имя в [dir]: существующий файл с тем же именем не перезаписывается и не удаляется. */
+        private fun uniqueFile(dir: File, name: String): File {
+            var candidate = File(dir, name)
+            val base = name.substringBeforeLast('.')
+            val ext = name.substringAfterLast('.', "").let { if (it.isEmpty()) "" else ".$it" }
+            var n = 1
+            while (candidate.exists()) candidate = File(dir, "$base (${n++})$ext")
+            return candidate
+        }
+    }
+
+    init {
+        try {
+            engine.start()
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to bind transfer port ${ChunkTransferEngine.DATA_PORT}", e)
+        }
+        identityRepo.addListener(manifestListener)
     }
 
     fun release() {
-        identityRepo.removeListener(listener)
-        scope.cancel()
+        identityRepo.removeListener(manifestListener)
+        engine.stop()
     }
 
     /**
      * Регистрирует файл для раздачи другим участникам.
+     * @return манифест с корнем дерева Меркла в качестве ID.
      */
-    fun addFileToSeeding(file: File): String {
-        val fileId = UUID.randomUUID().toString()
-        seedingFiles[fileId] = file
-        Log.i(TAG, "File added to seeding: ${file.name}, ID: $fileId")
-        return fileId
-    }
-
-    private fun handleChunkRequest(jsonData: String, targetIp: String, targetHash: String) {
-        scope.launch {
-            try {
-                val json = JSONObject(jsonData)
-                val fileId = json.getString("file_id")
-                val chunkIndex = json.getInt("chunk_index")
-                val file = seedingFiles[fileId] ?: return@launch
-
-                RandomAccessFile(file, "r").use { raf ->
-                    val offset = chunkIndex.toLong() * CHUNK_SIZE
-                    if (offset >= file.length()) return@use
-                    
-                    raf.seek(offset)
-                    val buffer = ByteArray(CHUNK_SIZE)
-                    val read = raf.read(buffer)
-                    if (read <= 0) return@use
-
-                    val dataToSend = if (read == buffer.size) buffer else buffer.copyOf(read)
-                    
-                    val chunkDataJson = JSONObject().apply {
-                        put("file_id", fileId)
-                        put("chunk_index", chunkIndex)
-                        put("data", Base64.encodeToString(dataToSend, Base64.NO_WRAP))
-                    }
-
-                    val envelope = JSONObject().apply {
-                        put("sub_type", "FILE_CHUNK_DATA")
-                        put("payload", chunkDataJson.toString())
-                    }
-
-                    // ИСПРАВЛЕНО: 3 параметра (IP, Тип, Данные)
-                    identityRepo.sendSignaling(targetIp, "WEBRTC_SIGNAL", envelope.toString())
-                }
-            } catch (e: Exception) { 
-                Log.e(TAG, "Error handling chunk request", e) 
-            }
-        }
+    fun addFileToSeeding(file: File): FileManifest {
+        val fileId = engine.seed(file)
+        val manifest = FileManifest(fileId, file.name, file.length())
+        knownManifests[fileId] = manifest
+        Log.i(TAG, "File added to seeding: ${file.name}, ID: $fileId, chunks: ${ChunkTransferEngine.chunkCount(file.length())}")
+        return manifest
     }
 
     /**
-     * Скачивает файл у удаленного узла.
+     * Объявляет раздачу файла узлу [targetHash].
      */
-    suspend fun downloadFileP2P(targetIp: String, targetHash: String, fileId: String, fileName: String, totalChunks: Int): File? = withContext(Dispatchers.IO) {
-        val outputFile = File(context.getExternalFilesDir(null), fileName)
-        val session = DownloadSession(fileId, outputFile, totalChunks)
-        activeDownloads[fileId] = session
-
-        try {
-            // В продакшене реализуем простую стратегию переповторов
-            var attempts = 0
-            while (session.getRemainingChunks() > 0 && attempts < 3) {
-                for (i in 0 until totalChunks) {
-                    if (session.isChunkReceived(i)) continue
-
-                    val reqData = JSONObject().apply { 
-                        put("file_id", fileId)
-                        put("chunk_index", i) 
-                    }
-
-                    val envelope = JSONObject().apply {
-                        put("sub_type", "FILE_CHUNK_REQ")
-                        put("payload", reqData.toString())
-                    }
-
-                    // ИСПРАВЛЕНО: 3 параметра
-                    identityRepo.sendSignaling(targetIp, "WEBRTC_SIGNAL", envelope.toString())
-                    delay(20) // Пауза во избежание перегрузки UDP буфера
-                }
-                
-                // Ждем чанки текущего прохода
-                session.waitForCompletion(10, TimeUnit.SECONDS)
-                attempts++
-            }
-
-            if (session.getRemainingChunks() == 0) {
-                Log.i(TAG, "Download complete: $fileName")
-                outputFile
-            } else {
-                Log.e(TAG, "Download failed: missing ${session.getRemainingChunks()} chunks")
-                null
-            }
-        } finally {
-            activeDownloads.remove(fileId)
-        }
+    suspend fun announce(targetHash: String, manifest: FileManifest): Boolean {
+        val ip = identityRepo.resolvePeerIp(targetHash) ?: return false
+        return identityRepo.sendUdp(ip, MANIFEST_TYPE, manifest.toJson())
     }
 
-    private fun handleChunkData(jsonData: String) {
-        scope.launch {
-            try {
-                val json = JSONObject(jsonData)
-                val fileId = json.getString("file_id")
-                val session = activeDownloads[fileId] ?: return@launch
-                val chunkIndex = json.getInt("chunk_index")
-                val bytes = Base64.decode(json.getString("data"), Base64.NO_WRAP)
-
-                RandomAccessFile(session.file, "rw").use { raf ->
-                    raf.seek(chunkIndex.toLong() * CHUNK_SIZE)
-                    raf.write(bytes)
-                }
-                session.markChunkReceived(chunkIndex)
-            } catch (e: Exception) { 
-                Log.e(TAG, "Error handling chunk data", e)
-            }
-        }
+    fun getManifest(root: String): FileManifest? = knownManifests[root]
+
+    /** Прекращает раздачу файла и закрывает его отображение в память. */
+    fun stopSeeding(root: String) {
+        engine.unseed(root)
+        knownManifests.remove(root)
+        announcers.remove(root)
     }
 
     /**
-     * Сессия загрузки для отслеживания прогресса и целостности.
+     * Скачивает файл параллельно у всех известных источников: объявивших манифест,
+     * [extraIps] и активных узлов роя / Wi-Fi (у кого файла нет, просто не ответят на HAVE_REQ).
      */
-    private class DownloadSession(val fileId: String, val file: File, val totalChunks: Int) {
-        private val received = java.util.BitSet(totalChunks)
-        private val latch = java.util.concurrent.CountDownLatch(totalChunks)
-        
-        fun markChunkReceived(index: Int) {
-            synchronized(received) { 
-                if (index < totalChunks && !received.get(index)) { 
-                    received.set(index)
-                    latch.countDown() 
-                } 
-            }
+    suspend fun downloadFile(
+        manifest: FileManifest,
+        extraIps: Collection<String> = emptyList(),
+        onProgress: (received: Int, total: Int) -> Unit = { _, _ -> }
+    ): File? = withContext(Dispatchers.IO) {
+        val dir = context.getExternalFilesDir(null) ?: return@withContext null
+        val name = safeFileName(manifest.name) ?: run {
+            Log.w(TAG, "Rejected manifest with unusable file name")
+            return@withContext null
+        }
+        // Размер тоже от собеседника: проверяем до того, как движок выделит файл через setLength
+        if (manifest.size <= 0 || manifest.size > dir.usableSpace - FREE_SPACE_RESERVE) {
+            Log.w(TAG, "Not enough space for $name (${manifest.size} bytes)")
+            return@withContext null
         }
+        val outputFile = uniqueFile(dir, name)
 
-        fun isChunkReceived(index: Int): Boolean = synchronized(received) { received.get(index) }
+        val ips = LinkedHashSet<String>()
+        announcers[manifest.root]?.let { ips.addAll(it) }
+        ips.addAll(extraIps)
+        identityRepo.peerDirectory.activePeers().forEach { ips.add(it.ip) }
+        val sources = ips.map { InetSocketAddress(it, ChunkTransferEngine.DATA_PORT) }
+
+        if (sources.isEmpty()) {
+            Log.w(TAG, "No sources for ${manifest.name}")
+            return@withContext null
+        }
 
-        fun getRemainingChunks(): Int = totalChunks - received.cardinality()
-        
-        fun waitForCompletion(timeout: Long, unit: TimeUnit) {
-            latch.await(timeout, unit)
+        val complete = engine.download(manifest.root, manifest.size, outputFile, sources, onProgress)
+        if (complete) {
+            Log.i(TAG, "Download complete: ${manifest.name} (${sources.size} candidate sources)")
+            outputFile
+        } else {
+            Log.e(TAG, "Download failed: ${manifest.name}")
+            outputFile.delete()
+            null
         }
     }
 }
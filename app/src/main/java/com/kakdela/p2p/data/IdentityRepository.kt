@@ -10,6 +10,7 @@ import android.util.Log
 import com.kakdela.p2p.api.UserPayload
 import com.kakdela.p2p.api.WebViewApiClient
 import com.kakdela.p2p.data.local.ChatDatabase
+import com.kakdela.p2p.data.local.MessageEntity
 import com.kakdela.p2p.data.local.NodeEntity
 import com.kakdela.p2p.security.CryptoManager
 import kotlinx.coroutines.*
@@ -19,7 +20,6 @@ import java.net.DatagramSocket
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.security.MessageDigest
-import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
 
 class IdentityRepository(private val context: Context) {
@@ -47,14 +47,23 @@ class IdentityRepository(private val context: Context) {
     private val listeners =
         CopyOnWriteArrayList<(String, String, String, String) -> Unit>()
 
-    val wifiPeers = ConcurrentHashMap<String, String>()   // hash -> ip
-    val swarmPeers = ConcurrentHashMap<String, String>()  // hash -> ip
+    // Горячий каталог узлов (бывшие wifiPeers / swarmPeers) с отложенной записью в dht_nodes
+    val peerDirectory = PeerDirectory(nodeDao)
+
+    // Инкрементальная синхронизация каталога узлов с сервером
+    private val directorySync by lazy {
+        DirectorySync(api, nodeDao, peerDirectory, prefs)
+    }
 
     private companion object {
         const val SERVICE_TYPE = "_kakdela_p2p._udp."
         const val PORT = 8888
         const val SYNC_INTERVAL = 300_000L  // 5 minutes
         const val PEPPER = "7fb8a1d2c3e4f5a6b7c8d9e0f1a2b3c4"
+
+        // Старые версии не читают data у PING/PONG, поэтому возможности дописываются туда
+        const val CAPS_SEPARATOR = "|caps="
+        val CAPABILITIES = listOf(OutboundQueue.BUNDLE_CAPABILITY)
     }
 
     @Volatile
@@ -62,6 +71,7 @@ class IdentityRepository(private val context: Context) {
 
     private var udpSocket: DatagramSocket? = null
     private var networkScope: CoroutineScope? = null
+    private var inboundPipeline: InboundPipeline? = null
 
     /* ============================================================
        LIFECYCLE
@@ -101,6 +111,9 @@ class IdentityRepository(private val context: Context) {
         isRunning = false
         peerSyncRepository.stop()
 
+        inboundPipeline?.stop()
+        inboundPipeline = null
+
         networkScope?.cancel()
         networkScope = null
 
@@ -112,8 +125,7 @@ class IdentityRepository(private val context: Context) {
             nsdManager.stopServiceDiscovery(discoveryListener)
         } catch (_: Exception) {}
 
-        wifiPeers.clear()
-        swarmPeers.clear()
+        peerDirectory.resetSession()
     }
 
     /* ============================================================
@@ -121,6 +133,14 @@ class IdentityRepository(private val context: Context) {
        ============================================================ */
 
     private fun startUdpListener() = networkScope?.launch {
+        val pipeline = InboundPipeline(
+            processor = { processIncomingPacket(it.raw, it.fromIp) },
+            sink = { messageRepository.insertIncomingBatch(it) }
+        ).also {
+            inboundPipeline = it
+            it.start()
+        }
+
         try {
             udpSocket = DatagramSocket(null).apply {
                 reuseAddress = true
@@ -136,58 +156,75 @@ class IdentityRepository(private val context: Context) {
                 val fromIp = packet.address?.hostAddress ?: continue
                 val raw = String(packet.data, 0, packet.length, Charsets.UTF_8)
 
-                processIncomingPacket(raw, fromIp)
+                pipeline.submit(InboundPipeline.RawPacket(raw, fromIp))
             }
         } catch (e: Exception) {
             if (isRunning) Log.e(TAG, "UDP listener error", e)
         } finally {
             udpSocket?.close()
+            pipeline.stop()
+            Log.i(TAG, "Inbound pipeline stopped: ${pipeline.metricsSummary()}")
         }
     }
 
-    private fun processIncomingPacket(raw: String, fromIp: String) {
-        networkScope?.launch(Dispatchers.Default) {
-            try {
-                val json = JSONObject(raw)
-                val type = json.getString("type")
-                val fromHash = json.getString("from")
-                val pubKey = json.getString("pubkey")
-                val timestamp = json.getLong("timestamp")
-                val data = json.getString("data")
-                val signature = Base64.decode(json.getString("signature"), Base64.NO_WRAP)
-
-                if (!CryptoManager.verify(signature, (data + timestamp).toByteArray(), pubKey)) {
-                    Log.w(TAG, "Signature verification failed from $fromIp")
-                    return@launch
-                }
-
-                withContext(Dispatchers.IO) {
-                    nodeDao.updateNetworkInfo(fromHash, fromIp, PORT, pubKey, System.currentTimeMillis())
-                }
+    /**
+     * Стадия воркера [InboundPipeline]: проверка подписи и маршрутизация.
+     * Для чатовых пакетов возвращает расшифрованные сообщения для пакетной записи
+     * (пакет [OutboundQueue.BUNDLE_TYPE] несёт несколько сообщений).
+     */
+    private suspend fun processIncomingPacket(raw: String, fromIp: String): List<MessageEntity> {
+        try {
+            val json = JSONObject(raw)
+            val type = json.getString("type")
+            val fromHash = json.getString("from")
+            val pubKey = json.getString("pubkey")
+            val timestamp = json.getLong("timestamp")
+            val data = json.getString("data")
+            val signature = Base64.decode(json.getString("signature"), Base64.NO_WRAP)
+
+            if (!CryptoManager.verify(signature, (data + timestamp).toByteArray(), pubKey)) {
+                Log.w(TAG, "Signature verification failed from $fromIp")
+                return emptyList()
+            }
 
-                swarmPeers[fromHash] = fromIp
+            peerDirectory.touch(fromHash, fromIp, PORT, pubKey)
+            peerSyncRepository.onPeerSeen(fromHash, fromIp, PORT, pubKey)
+            if (type == "PING" || type == "PONG") {
+                val caps = data.substringAfter(CAPS_SEPARATOR, "")
+                peerDirectory.setCapabilities(fromHash, caps.split(',').filter { it.isNotBlank() }.toSet())
+            }
 
-                when {
-                    type == "PING" -> sendUdp(fromIp, "PONG", "alive")
-                    type == "PEER_SYNC" -> peerSyncRepository.handleIncoming(data, fromHash)
-                    type.startsWith("CHAT") -> messageRepository.handleIncoming(type, data, fromHash)
-                    else -> listeners.forEach { it(type, data, fromIp, fromHash) }
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Malformed packet from $fromIp", e)
+            when {
+                type == "PING" -> sendUdp(fromIp, "PONG", "alive")
+                type == PeerSyncRepository.FIND_NODE_TYPE -> peerSyncRepository.handleFindNode(data, fromIp)
+                type == PeerSyncRepository.FIND_NODE_RESP_TYPE -> peerSyncRepository.handleFindNodeResponse(data)
+                // Дайджест и вложения (запись на диск) не держат воркеры расшифровки
+                type == PeerSyncRepository.PEER_SYNC_TYPE ->
+                    inboundPipeline?.offload { peerSyncRepository.handleIncoming(data, fromHash, fromIp) }
+                type == OutboundQueue.BUNDLE_TYPE -> return messageRepository.decodeIncomingBundle(data, fromHash)
+                type.startsWith("CHAT") -> return listOfNotNull(messageRepository.decodeIncoming(type, data, fromHash))
+                type in AttachmentTransfer.TYPES ->
+                    inboundPipeline?.offload { messageRepository.attachments.handle(type, data, fromIp, fromHash) }
+                else -> listeners.forEach { it(type, data, fromIp, fromHash) }
             }
+        } catch (e: Exception) {
+            Log.e(TAG, "Malformed packet from $fromIp", e)
         }
+        return emptyList()
     }
 
     suspend fun sendUdp(ip: String, type: String, data: String): Boolean =
         withContext(Dispatchers.IO) {
             try {
                 val timestamp = System.currentTimeMillis()
-                val signature = CryptoManager.sign((data + timestamp).toByteArray())
+                val payload = if (type == "PING" || type == "PONG") {
+                    data + CAPS_SEPARATOR + CAPABILITIES.joinToString(",")
+                } else data
+                val signature = CryptoManager.sign((payload + timestamp).toByteArray())
 
                 val json = JSONObject().apply {
                     put("type", type)
-                    put("data", data)
+                    put("data", payload)
                     put("from", getMyId())
                     put("pubkey", CryptoManager.getMyPublicKeyStr())
                     put("timestamp", timestamp)
@@ -211,15 +248,21 @@ class IdentityRepository(private val context: Context) {
         sendUdp(targetIp, type, data)
 
     suspend fun sendSignaling(targetHash: String, data: String): Boolean {
-        val ip = wifiPeers[targetHash]
-            ?: swarmPeers[targetHash]
-            ?: getCachedNode(targetHash)?.ip
+        val ip = resolvePeerIp(targetHash) ?: return false
+        return sendUdp(ip, "SIGNALING", data)
+    }
 
-        if (ip.isNullOrBlank() || ip == "0.0.0.0") {
-            return false
-        }
+    /**
+     * Поиск адреса узла: активные соединения -> локальный кэш -> итеративный поиск по DHT.
+     * Сервер не используется.
+     */
+    suspend fun resolvePeerIp(targetHash: String): String? {
+        val known = peerDirectory.liveIp(targetHash)
+            ?: peerDirectory.resolve(targetHash)?.takeIf { it.hasAddress }?.ip
+        if (known != null) return known
 
-        return sendUdp(ip, "SIGNALING", data)
+        val found = peerSyncRepository.findNode(targetHash)?.ip
+        return if (found.isNullOrBlank() || found == "0.0.0.0") null else found
     }
 
     private suspend fun pingKnownNodes() {
@@ -234,37 +277,26 @@ class IdentityRepository(private val context: Context) {
        SYNC & DATA
        ============================================================ */
 
-    suspend fun fetchAllNodesFromServer(): List<UserPayload> = withContext(Dispatchers.IO) {
+    /**
+     * Синхронизирует каталог с сервером (дельтой, см. [DirectorySync]) и возвращает все
+     * известные узлы из локальной БД. При недоступности сервера — то, что уже есть локально.
+     */
+    suspend fun fetchAllNodesFromServer(force: Boolean = false): List<UserPayload> = withContext(Dispatchers.IO) {
         try {
-            val response = api.getAllNodes()
-            val users = response.users ?: emptyList()
-
-            nodeDao.upsertAll(users.map {
-                NodeEntity(
-                    userHash = it.hash,
-                    phone_hash = it.phone_hash ?: "",
-                    ip = it.ip ?: "0.0.0.0",
-                    port = it.port ?: PORT,
-                    publicKey = it.publicKey ?: "",
-                    phone = it.phone ?: "",
-                    lastSeen = it.lastSeen ?: System.currentTimeMillis()
-                )
-            })
-
-            users
+            directorySync.sync(force)
         } catch (e: Exception) {
-            Log.w(TAG, "fetchAllNodesFromServer failed, using local fallback", e)
-            nodeDao.getAllNodes().map {
-                UserPayload(
-                    hash = it.userHash,
-                    phone_hash = it.phone_hash,
-                    ip = it.ip,
-                    port = it.port,
-                    publicKey = it.publicKey,
-                    phone = it.phone,
-                    lastSeen = it.lastSeen
-                )
-            }
+            Log.w(TAG, "Directory sync failed, using local data", e)
+        }
+        nodeDao.getAllNodes().map {
+            UserPayload(
+                hash = it.userHash,
+                phone_hash = it.phone_hash,
+                ip = it.ip,
+                port = it.port,
+                publicKey = it.publicKey,
+                phone = it.phone,
+                lastSeen = it.lastSeen
+            )
         }
     }
 
@@ -287,7 +319,7 @@ class IdentityRepository(private val context: Context) {
             val response = api.announceSelf(payload)
             if (response.success) {
                 saveNodeToDb(payload)
-                fetchAllNodesFromServer()
+                directorySync.sync(force = true)
             } else {
                 Log.w(TAG, "announceSelf failed: $response")
             }
@@ -297,17 +329,16 @@ class IdentityRepository(private val context: Context) {
     }
 
     private suspend fun saveNodeToDb(node: UserPayload) {
-        nodeDao.upsert(
-            NodeEntity(
-                userHash = node.hash,
-                phone_hash = node.phone_hash ?: "",
-                ip = node.ip ?: "0.0.0.0",
-                port = node.port ?: PORT,
-                publicKey = node.publicKey ?: "",
-                phone = node.phone ?: "",
-                lastSeen = node.lastSeen ?: System.currentTimeMillis()
-            )
+        val entity = NodeEntity(
+            userHash = node.hash,
+            phone_hash = node.phone_hash ?: "",
+            ip = node.ip ?: "0.0.0.0",
+            port = node.port ?: PORT,
+            publicKey = node.publicKey ?: "",
+            phone = node.phone ?: "",
+            lastSeen = node.lastSeen ?: System.currentTimeMillis()
         )
+        peerDirectory.save(entity)
     }
 
     /* ============================================================
@@ -356,14 +387,20 @@ class IdentityRepository(private val context: Context) {
         targetHash: String,
         phone: String?,
         message: String
-    ): Boolean = withContext(Dispatchers.IO) {
-        val ip = wifiPeers[targetHash]
-            ?: swarmPeers[targetHash]
-            ?: getCachedNode(targetHash)?.ip
+    ): Boolean = sendMessageVia(resolvePeerIp(targetHash), phone, message)
 
+    /**
+     * Отправка по уже определённому адресу: UDP, при неудаче — SMS на [phone].
+     * Позволяет отправителю пачки сообщений разрешить адрес один раз.
+     */
+    suspend fun sendMessageVia(
+        ip: String?,
+        phone: String?,
+        message: String
+    ): Boolean = withContext(Dispatchers.IO) {
         var delivered = false
 
-        if (!ip.isNullOrBlank() && ip != "0.0.0.0") {
+        if (ip != null) {
             delivered = sendUdp(ip, "CHAT_MSG", message)
         }
 
@@ -401,11 +438,11 @@ class IdentityRepository(private val context: Context) {
         return id
     }
 
-    suspend fun getCachedNode(hash: String): NodeEntity? =
-        withContext(Dispatchers.IO) { nodeDao.getNodeByHash(hash) }
+    suspend fun getCachedNode(hash: String): PeerDirectory.PeerInfo? =
+        peerDirectory.resolve(hash)
 
     suspend fun getPeerPublicKey(hash: String): String? =
-        withContext(Dispatchers.IO) { nodeDao.getNodeByHash(hash)?.publicKey }
+        peerDirectory.resolve(hash)?.publicKey
 
     /**
      * Единая точка нормализации номера телефона.
@@ -460,7 +497,7 @@ class IdentityRepository(private val context: Context) {
                     val peerHash = r.serviceName.removePrefix("KakDela-")
 
                     if (peerHash != getMyId()) {
-                        wifiPeers[peerHash] = host
+                        peerDirectory.markWifi(peerHash, host)
                         networkScope?.launch { sendUdp(host, "PING", "discovery") }
                     }
                 }
@@ -470,7 +507,7 @@ class IdentityRepository(private val context: Context) {
         }
 
         override fun onServiceLost(s: NsdServiceInfo) {
-            wifiPeers.remove(s.serviceName.removePrefix("KakDela-"))
+            peerDirectory.clearWifi(s.serviceName.removePrefix("KakDela-"))
         }
 
         override fun onDiscoveryStarted(t: String) {}
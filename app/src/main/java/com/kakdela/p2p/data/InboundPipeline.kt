@@ -0,0 +1,255 @@
+package com.kakdela.p2p.data
+
+import android.util.Log
+import com.kakdela.p2p.data.local.MessageEntity
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ChannelResult
+import kotlinx.coroutines.selects.onTimeout
+import kotlinx.coroutines.selects.select
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * InboundPipeline — ограниченный конвейер входящих UDP-пакетов.
+ *
+ * Стадии:
+ * 1. Очередь из цикла приёма (ограниченный [Channel], политика переполнения [OverflowPolicy]).
+ * 2. Фиксированный пул воркеров: проверка подписи, дешифровка, разбор ([processor]);
+ *    один пакет может нести несколько сообщений (пачка исходящей очереди отправителя).
+ * 3. Пакетная запись сообщений: каждые [BATCH_SIZE] сообщений или [BATCH_WINDOW_MS] мс
+ *    одной транзакцией через [sink].
+ *
+ * Тяжёлая обработка (дайджест PEER_SYNC, вложения) передаётся через [offload] отдельным
+ * воркерам, чтобы не задерживать расшифровку чатовых пакетов.
+ *
+ * Вместо корутины на каждый датаграм — постоянное число корутин и транзакций.
+ * Конвейер живёт в собственной области: [stop] дорабатывает уже принятые пакеты
+ * и записывает расшифрованные сообщения, даже если сеть уже остановлена.
+ */
+class InboundPipeline(
+    private val processor: suspend (RawPacket) -> List<MessageEntity>,
+    private val sink: suspend (List<MessageEntity>) -> Unit,
+    private val overflowPolicy: OverflowPolicy = OverflowPolicy.DROP_NEWEST,
+    private val workerCount: Int = Runtime.getRuntime().availableProcessors().coerceIn(2, 4)
+) {
+
+    data class RawPacket(val raw: String, val fromIp: String, val receivedAt: Long = System.nanoTime())
+
+    enum class OverflowPolicy {
+        /** Цикл приёма ждёт свободного места; излишек теряется в буфере сокета ядра. */
+        BLOCK,
+        /** Новый пакет отбрасывается, очередь не трогаем. */
+        DROP_NEWEST
+    }
+
+    /**
+     * Накопительная статистика задержек стадии (в микросекундах).
+     */
+    class StageMetrics(val name: String) {
+        private val count = AtomicLong()
+        private val totalMicros = AtomicLong()
+        private val maxMicros = AtomicLong()
+
+        fun record(startNanos: Long) {
+            val micros = (System.nanoTime() - startNanos) / 1_000
+            count.incrementAndGet()
+            totalMicros.addAndGet(micros)
+            maxMicros.accumulateAndGet(micros) { a, b -> maxOf(a, b) }
+        }
+
+        override fun toString(): String {
+            val n = count.get()
+            val avg = if (n == 0L) 0 else totalMicros.get() / n
+            return "$name: n=$n avg=${avg}us max=${maxMicros.get()}us"
+        }
+    }
+
+    private val TAG = "InboundPipeline"
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+    private val packets = Channel<RawPacket>(QUEUE_CAPACITY)
+    private val messages = Channel<Pair<MessageEntity, Long>>(MESSAGE_QUEUE_CAPACITY)
+    private val slowTasks = Channel<suspend () -> Unit>(SLOW_QUEUE_CAPACITY)
+
+    private val dropped = AtomicLong()
+    private val slowDropped = AtomicLong()
+
+    val queueWait = StageMetrics("queue")
+    val processing = StageMetrics("verify+decrypt")
+    val persist = StageMetrics("batch-insert")
+
+    @Volatile
+    private var started = false
+
+    private companion object {
+        const val QUEUE_CAPACITY = 1024
+        const val MESSAGE_QUEUE_CAPACITY = 512
+        const val SLOW_QUEUE_CAPACITY = 256
+        const val SLOW_WORKERS = 2
+        const val BATCH_SIZE = 32
+        const val BATCH_WINDOW_MS = 50L
+        const val STOP_DRAIN_TIMEOUT = 5_000L
+        const val METRICS_LOG_INTERVAL = 60_000L
+    }
+
+    @Synchronized
+    fun start() {
+        if (started) return
+        started = true
+        val workers = (0 until workerCount).map { scope.launch { workerLoop() } }
+        val slow = (0 until SLOW_WORKERS).map { scope.launch(Dispatchers.IO) { slowLoop() } }
+        val batcher = scope.launch(Dispatchers.IO) { batchLoop() }
+
+        // Когда воркеры разобрали остаток очереди после stop(), новых сообщений не будет
+        scope.launch {
+            workers.joinAll()
+            messages.close()
+            slowTasks.close()
+            slow.joinAll()
+            batcher.join()
+            scope.cancel()
+        }
+        scope.launch {
+            while (isActive) {
+                delay(METRICS_LOG_INTERVAL)
+                Log.d(TAG, metricsSummary())
+            }
+        }
+    }
+
+    /**
+     * Прекращает приём. Уже принятые пакеты обрабатываются, а сообщения из очереди
+     * и незавершённой пачки записываются; через [STOP_DRAIN_TIMEOUT] всё, что осталось, отменяется.
+     * Повторный вызов безопасен.
+     */
+    fun stop() {
+        if (!packets.close()) return
+        scope.launch {
+            delay(STOP_DRAIN_TIMEOUT)
+            scope.cancel()
+        }
+    }
+
+    /**
+     * Вызывается из цикла приёма. Возвращает false, если пакет отброшен.
+     */
+    suspend fun submit(packet: RawPacket): Boolean = when (overflowPolicy) {
+        OverflowPolicy.BLOCK -> {
+            packets.send(packet)
+            true
+        }
+        OverflowPolicy.DROP_NEWEST -> {
+            val accepted = packets.trySend(packet).isSuccess
+            if (!accepted && dropped.incrementAndGet() % 100 == 1L) {
+                Log.w(TAG, "Inbound queue full, dropped ${dropped.get()} packets so far")
+            }
+            accepted
+        }
+    }
+
+    /**
+     * Ставит тяжёлый обработчик в отдельную очередь. Возвращает false, если она заполнена
+     * или конвейер остановлен: такие пакеты, как и переполнение [submit], отбрасываются.
+     */
+    fun offload(task: suspend () -> Unit): Boolean {
+        val accepted = slowTasks.trySend(task).isSuccess
+        if (!accepted && slowDropped.incrementAndGet() % 100 == 1L) {
+            Log.w(TAG, "Slow handler queue full, dropped ${slowDropped.get()} tasks so far")
+        }
+        return accepted
+    }
+
+    fun metricsSummary(): String =
+        "$queueWait; $processing; $persist; dropped=${dropped.get()}; slowDropped=${slowDropped.get()}"
+
+    private suspend fun workerLoop() {
+        for (packet in packets) {
+            queueWait.record(packet.receivedAt)
+            val start = System.nanoTime()
+            val decoded = try {
+                processor(packet)
+            } catch (e: Exception) {
+                Log.e(TAG, "Packet processing failed from ${packet.fromIp}", e)
+                emptyList()
+            }
+            processing.record(start)
+
+            // Запись в БД — ограниченная очередь: при её заполнении воркеры притормаживают приём
+            decoded.forEach { messages.send(it to System.nanoTime()) }
+        }
+    }
+
+    private suspend fun slowLoop() {
+        for (task in slowTasks) {
+            try {
+                task()
+            } catch (e: Exception) {
+                Log.e(TAG, "Slow handler failed", e)
+            }
+        }
+    }
+
+    /**
+     * Ждёт первое сообщение, затем добирает пачку в пределах окна. Выходит, когда
+     * очередь закрыта и пуста, записав последнюю пачку.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private suspend fun batchLoop() {
+        val batch = ArrayList<Pair<MessageEntity, Long>>(BATCH_SIZE)
+        var open = true
+        while (open) {
+            val first = messages.receiveCatching().getOrNull() ?: break
+            batch.add(first)
+            val deadline = System.currentTimeMillis() + BATCH_WINDOW_MS
+            while (batch.size < BATCH_SIZE) {
+                val remaining = deadline - System.currentTimeMillis()
+                if (remaining <= 0) break
+                // select забирает элемент или срабатывает по таймауту атомарно — сообщение не теряется
+                val next = select<ChannelResult<Pair<MessageEntity, Long>>?> {
+                    messages.onReceiveCatching { it }
+                    onTimeout(remaining) { null }
+                } ?: break
+                val item = next.getOrNull()
+                if (item == null) {
+                    open = false
+                    break
+                }
+                batch.add(item)
+            }
+
+            flush(batch)
+            batch.clear()
+        }
+    }
+
+    /**
+     * Пишет пачку одной транзакцией. Если транзакция упала, повторяет по одному сообщению,
+     * чтобы одно «плохое» сообщение не уносило с собой остальные расшифрованные.
+     * Метрика [persist] считается только для реально записанных сообщений.
+     */
+    private suspend fun flush(batch: List<Pair<MessageEntity, Long>>) {
+        try {
+            sink(batch.map { it.first })
+            batch.forEach { persist.record(it.second) }
+            return
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Log.w(TAG, "Batch insert of ${batch.size} messages failed, retrying one by one", e)
+        }
+        var failed = 0
+        for ((message, receivedAt) in batch) {
+            try {
+                sink(listOf(message))
+                persist.record(receivedAt)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                failed++
+                Log.e(TAG, "Insert of message ${message.messageId} failed", e)
+            }
+        }
+        if (failed > 0) Log.e(TAG, "Dropped $failed of ${batch.size} messages")
+    }
+}
@@ -0,0 +1,204 @@
+package com.kakdela.p2p.data
+
+import java.security.SecureRandom
+
+/**
+ * KademliaRoutingTable — таблица маршрутизации на k-бакетах с XOR-метрикой.
+ *
+ * Идентификаторы узлов — SHA-256 identity hash (64 hex-символа, 256 бит).
+ * Бакет i хранит узлы, у которых старший отличающийся от нашего ID бит имеет номер i,
+ * поэтому поиск любого узла сходится за O(log n) итераций FIND_NODE.
+ *
+ * Таблица потокобезопасна: все операции выполняются под монитором экземпляра.
+ */
+class KademliaRoutingTable(selfId: String) {
+
+    /**
+     * Запись о узле в таблице маршрутизации.
+     */
+    data class Contact(
+        val hash: String,
+        val ip: String,
+        val port: Int,
+        val publicKey: String,
+        val lastSeen: Long
+    )
+
+    /**
+     * Бакет: основные контакты в порядке LRU (голова — давно не отвечавший узел)
+     * и кэш замен для узлов, не поместившихся в заполненный бакет.
+     */
+    private class Bucket {
+        val contacts = LinkedHashMap<String, Contact>()
+        val replacements = LinkedHashMap<String, Contact>()
+        var lastTouched = 0L
+    }
+
+    private val selfBytes = idToBytes(selfId)
+        ?: throw IllegalArgumentException("Invalid node id: $selfId")
+
+    private val buckets = Array(ID_BITS) { Bucket() }
+    private val random = SecureRandom()
+
+    /**
+     * Добавляет или освежает контакт.
+     *
+     * @return null, если контакт размещён; иначе — самый старый контакт заполненного бакета,
+     * который нужно проверить на живость. Новый узел в этом случае попадает в кэш замен
+     * и займёт место старого через [evict], если тот не ответит.
+     */
+    @Synchronized
+    fun update(contact: Contact, now: Long = System.currentTimeMillis()): Contact? {
+        val index = bucketIndexOf(contact.hash) ?: return null
+        val bucket = buckets[index]
+        bucket.lastTouched = now
+
+        if (bucket.contacts.containsKey(contact.hash)) {
+            // Перемещаем в хвост LRU
+            bucket.contacts.remove(contact.hash)
+            bucket.contacts[contact.hash] = contact
+            return null
+        }
+
+        if (bucket.contacts.size < K) {
+            bucket.replacements.remove(contact.hash)
+            bucket.contacts[contact.hash] = contact
+            return null
+        }
+
+        bucket.replacements.remove(contact.hash)
+        bucket.replacements[contact.hash] = contact
+        while (bucket.replacements.size > K) {
+            bucket.replacements.remove(bucket.replacements.keys.first())
+        }
+        return bucket.contacts.values.first()
+    }
+
+    /**
+     * Удаляет не ответивший узел и продвигает на его место самый свежий кандидат из кэша замен.
+     */
+    @Synchronized
+    fun evict(hash: String) {
+        val index = bucketIndexOf(hash) ?: return
+        val bucket = buckets[index]
+        if (bucket.contacts.remove(hash) == null) return
+
+        val promoted = bucket.replacements.keys.lastOrNull() ?: return
+        bucket.replacements.remove(promoted)?.let { bucket.contacts[promoted] = it }
+    }
+
+    @Synchronized
+    fun find(hash: String): Contact? {
+        val index = bucketIndexOf(hash) ?: return null
+        return buckets[index].contacts[hash]
+    }
+
+    /**
+     * [count] ближайших к [target] узлов по XOR-метрике.
+     */
+    @Synchronized
+    fun closest(target: String, count: Int = K): List<Contact> {
+        val targetBytes = idToBytes(target) ?: return emptyList()
+        return buckets.asSequence()
+            .flatMap { it.contacts.values.asSequence() }
+            .sortedWith(distanceComparator(targetBytes))
+            .take(count)
+            .toList()
+    }
+
+    /**
+     * Индексы непустых бакетов, в которых не было активности дольше [interval] мс.
+     */
+    @Synchronized
+    fun staleBuckets(interval: Long, now: Long = System.currentTimeMillis()): List<Int> =
+        buckets.indices.filter { i ->
+            val bucket = buckets[i]
+            (bucket.contacts.isNotEmpty() || bucket.replacements.isNotEmpty()) &&
+                now - bucket.lastTouched > interval
+        }
+
+    @Synchronized
+    fun markRefreshed(index: Int, now: Long = System.currentTimeMillis()) {
+        buckets[index].lastTouched = now
+    }
+
+    /**
+     * Случайный ID, попадающий в бакет [index] — цель для FIND_NODE при обновлении бакета.
+     */
+    fun randomIdInBucket(index: Int): String {
+        val bytes = selfBytes.copyOf()
+        val bit = ID_BITS - 1 - index
+        val byteIdx = bit / 8
+        val bitInByte = 7 - bit % 8
+
+        val noise = ByteArray(ID_BYTES).also { random.nextBytes(it) }
+        val lowMask = (1 shl bitInByte) - 1
+        bytes[byteIdx] = ((bytes[byteIdx].toInt() xor (1 shl bitInByte)) and lowMask.inv() or
+            (noise[byteIdx].toInt() and lowMask)).toByte()
+        for (i in byteIdx + 1 until ID_BYTES) bytes[i] = noise[i]
+
+        return bytesToId(bytes)
+    }
+
+    @Synchronized
+    fun size(): Int = buckets.sumOf { it.contacts.size }
+
+    private fun bucketIndexOf(hash: String): Int? {
+        val bytes = idToBytes(hash) ?: return null
+        val index = bucketIndex(selfBytes, bytes)
+        return if (index < 0) null else index
+    }
+
+    companion object {
+        /** Размер бакета и число узлов в ответе на FIND_NODE. */
+        const val K = 8
+
+        const val ID_BITS = 256
+        private const val ID_BYTES = ID_BITS / 8
+
+        fun isValidId(hash: String): Boolean = idToBytes(hash) != null
+
+        /**
+         * Номер бакета: позиция старшего отличающегося бита (255 — самый дальний), -1 для своего ID.
+         */
+        fun bucketIndex(a: ByteArray, b: ByteArray): Int {
+            for (i in 0 until ID_BYTES) {
+                val x = (a[i].toInt() xor b[i].toInt()) and 0xFF
+                if (x != 0) {
+                    val leadingZeros = Integer.numberOfLeadingZeros(x) - 24
+                    return ID_BITS - 1 - (i * 8 + leadingZeros)
+                }
+            }
+            return -1
+        }
+
+        /**
+         * Сравнение узлов по XOR-расстоянию до [target].
+         */
+        fun distanceComparator(target: ByteArray): Comparator<Contact> = Comparator { c1, c2 ->
+            val a = idToBytes(c1.hash) ?: return@Comparator 1
+            val b = idToBytes(c2.hash) ?: return@Comparator -1
+            for (i in 0 until ID_BYTES) {
+                val da = (a[i].toInt() xor target[i].toInt()) and 0xFF
+                val db = (b[i].toInt() xor target[i].toInt()) and 0xFF
+                if (da != db) return@Comparator da.compareTo(db)
+            }
+            0
+        }
+
+        fun idToBytes(hash: String): ByteArray? {
+            if (hash.length != ID_BYTES * 2) return null
+            val out = ByteArray(ID_BYTES)
+            for (i in 0 until ID_BYTES) {
+                val hi = Character.digit(hash[i * 2], 16)
+                val lo = Character.digit(hash[i * 2 + 1], 16)
+                if (hi < 0 || lo < 0) return null
+                out[i] = ((hi shl 4) or lo).toByte()
+            }
+            return out
+        }
+
+        fun bytesToId(bytes: ByteArray): String =
+            bytes.joinToString("") { "%02x".format(it) }
+    }
+}
@@ -0,0 +1,163 @@
+package com.kakdela.p2p.data
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.BitSet
+
+/**
+ * MerkleTree — дерево SHA-256 над чанками файла; корень служит content-addressed ID файла.
+ *
+ * Листья: SHA-256(0x00 || chunk), узлы: SHA-256(0x01 || left || right).
+ * Непарный последний узел уровня поднимается на уровень выше без хеширования,
+ * поэтому форма дерева однозначно определяется числом чанков.
+ *
+ * Дерево может быть частичным: у загружающего узла сначала известен только корень,
+ * а каждый проверенный чанк добавляет свой путь и соседей — этого достаточно,
+ * чтобы самому выдавать доказательства для уже полученных чанков.
+ */
+class MerkleTree private constructor(val leafCount: Int) {
+
+    private val sizes = levelSizes(leafCount)
+    private val levels = Array(sizes.size) { ByteArray(sizes[it] * HASH_SIZE) }
+    private val known = Array(sizes.size) { BitSet(sizes[it]) }
+
+    val root: ByteArray
+        get() = node(levels.size - 1, 0)
+
+    fun rootHex(): String = KademliaRoutingTable.bytesToId(root)
+
+    /**
+     * Доказательство для чанка [index]: хеши соседей снизу вверх,
+     * или null, если часть пути неизвестна.
+     */
+    @Synchronized
+    fun proof(index: Int): List<ByteArray>? {
+        if (index !in 0 until leafCount) return null
+        val result = ArrayList<ByteArray>()
+        var idx = index
+        for (level in 0 until levels.size - 1) {
+            val sibling = idx xor 1
+            if (sibling < sizes[level]) {
+                if (!known[level].get(sibling)) return null
+                result.add(node(level, sibling))
+            }
+            idx = idx shr 1
+        }
+        return result
+    }
+
+    /**
+     * Проверяет чанк по доказательству и, при совпадении с корнем, запоминает путь.
+     */
+    @Synchronized
+    fun verifyAndAbsorb(index: Int, data: ByteArray, offset: Int, length: Int, proof: List<ByteArray>): Boolean {
+        if (index !in 0 until leafCount) return false
+
+        val path = ArrayList<Triple<Int, Int, ByteArray>>()   // (уровень, индекс, хеш)
+        var hash = leafHash(data, offset, length)
+        var idx = index
+        var used = 0
+
+        for (level in 0 until levels.size - 1) {
+            path.add(Triple(level, idx, hash))
+            val sibling = idx xor 1
+            if (sibling < sizes[level]) {
+                if (used >= proof.size) return false
+                val siblingHash = proof[used++]
+                if (siblingHash.size != HASH_SIZE) return false
+                path.add(Triple(level, sibling, siblingHash))
+                hash = if ((idx and 1) == 0) nodeHash(hash, siblingHash) else nodeHash(siblingHash, hash)
+            }
+            idx = idx shr 1
+        }
+
+        if (used != proof.size || !hash.contentEquals(root)) return false
+        path.forEach { (level, i, h) -> setNode(level, i, h) }
+        return true
+    }
+
+    private fun node(level: Int, index: Int): ByteArray =
+        levels[level].copyOfRange(index * HASH_SIZE, (index + 1) * HASH_SIZE)
+
+    private fun setNode(level: Int, index: Int, hash: ByteArray) {
+        System.arraycopy(hash, 0, levels[level], index * HASH_SIZE, HASH_SIZE)
+        known[level].set(index)
+    }
+
+    private fun computeUpperLevels() {
+        for (level in 1 until levels.size) {
+            for (i in 0 until sizes[level]) {
+                val left = 2 * i
+                val right = left + 1
+                val hash = if (right < sizes[level - 1]) {
+                    nodeHash(node(level - 1, left), node(level - 1, right))
+                } else {
+                    node(level - 1, left)
+                }
+                setNode(level, i, hash)
+            }
+        }
+    }
+
+    companion object {
+        const val HASH_SIZE = 32
+
+        private fun levelSizes(leafCount: Int): IntArray {
+            val sizes = ArrayList<Int>()
+            var n = leafCount.coerceAtLeast(1)
+            sizes.add(n)
+            while (n > 1) {
+                n = (n + 1) / 2
+                sizes.add(n)
+            }
+            return sizes.toIntArray()
+        }
+
+        fun leafHash(data: ByteArray, offset: Int, length: Int): ByteArray =
+            MessageDigest.getInstance("SHA-256").run {
+                update(0.toByte())
+                update(data, offset, length)
+                digest()
+            }
+
+        fun nodeHash(left: ByteArray, right: ByteArray): ByteArray =
+            MessageDigest.getInstance("SHA-256").run {
+                update(1.toByte())
+                update(left)
+                update(right)
+                digest()
+            }
+
+        /**
+         * Полное дерево по содержимому файла (для раздающей стороны).
+         */
+        fun fromChannel(channel: FileChannel, size: Long, chunkSize: Int): MerkleTree {
+            val count = ((size + chunkSize - 1) / chunkSize).toInt()
+            val tree = MerkleTree(count)
+            val buffer = ByteBuffer.allocate(chunkSize)
+            for (i in 0 until count) {
+                buffer.clear()
+                var position = i.toLong() * chunkSize
+                val length = minOf(chunkSize.toLong(), size - position).toInt()
+                buffer.limit(length)
+                while (buffer.hasRemaining()) {
+                    val read = channel.read(buffer, position)
+                    if (read <= 0) break
+                    position += read
+                }
+                tree.setNode(0, i, leafHash(buffer.array(), 0, buffer.position()))
+            }
+            tree.computeUpperLevels()
+            return tree
+        }
+
+        /**
+         * Частичное дерево, в котором известен только корень (для загружающей стороны).
+         */
+        fun forRoot(root: ByteArray, leafCount: Int): MerkleTree {
+            require(root.size == HASH_SIZE) { "Invalid Merkle root" }
+            return MerkleTree(leafCount).also { it.setNode(it.levels.size - 1, 0, root) }
+        }
+    }
+}
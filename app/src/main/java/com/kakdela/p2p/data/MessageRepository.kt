@@ -4,12 +4,14 @@ import android.content.Context
 import android.net.Uri
 import android.util.Base64
 import android.util.Log
+import com.kakdela.p2p.data.local.AttachmentEntity
 import com.kakdela.p2p.data.local.MessageDao
 import com.kakdela.p2p.data.local.MessageEntity
 import com.kakdela.p2p.security.CryptoManager
-import com.kakdela.p2p.workers.scheduleMessageWork
+import com.kakdela.p2p.workers.ScheduledDispatcher
 import kotlinx.coroutines.*
 import java.util.UUID
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * MessageRepository: Реализует отправку сообщений.
@@ -23,189 +25,209 @@ class MessageRepository(
     private val TAG = "MessageRepository"
     private val job = SupervisorJob()
     private val repositoryScope = CoroutineScope(job + Dispatchers.IO)
-    
-    private companion object {
-        const val MAX_DB_BLOB_SIZE = 1024 * 1024 // 1MB limit for SQLite
+
+    // Вложения: content-addressed хранилище на диске и потоковая передача
+    val attachmentStore = AttachmentStore(context)
+    val attachments = AttachmentTransfer(dao, identityRepo, attachmentStore, repositoryScope)
+
+    // Исходящие тексты: очередь на собеседника, пачки в один зашифрованный датаграм
+    private val outbound = OutboundQueue(dao, identityRepo, repositoryScope)
+
+    // Монотонное время: сообщения, отправленные в одну миллисекунду, сохраняют порядок
+    private val lastTimestamp = AtomicLong()
+
+    init {
+        repositoryScope.launch { attachmentStore.collectGarbage() }
     }
 
     /* ======================= ОТПРАВКА ======================= */
 
+    /**
+     * Немедленные сообщения ставятся в очередь собеседника синхронно, поэтому порядок
+     * вызовов совпадает с порядком записи и отправки; запись в БД делает очередь пачкой.
+     */
     fun sendText(toHash: String, text: String, scheduledTime: Long? = null) {
+        val isScheduled = scheduledTime != null && scheduledTime > System.currentTimeMillis()
+        val entity = MessageEntity(
+            messageId = UUID.randomUUID().toString(),
+            chatId = toHash,
+            senderId = identityRepo.getMyId(),
+            receiverId = toHash,
+            text = text,
+            timestamp = nextTimestamp(),
+            scheduledTime = scheduledTime,
+            isMe = true,
+            status = if (isScheduled) "SCHEDULED" else "PENDING",
+            messageType = "TEXT"
+        )
+
+        if (!isScheduled) {
+            outbound.submit(toHash, OutboundQueue.Outgoing(entity.messageId, text, entity))
+            return
+        }
         repositoryScope.launch {
             try {
-                val myId = identityRepo.getMyId()
-                val msgId = UUID.randomUUID().toString()
-                
-                // Пытаемся найти ноду. Если toHash похож на телефон, ищем по телефону или используем как есть.
-                val peer = identityRepo.getCachedNode(toHash)
-                val targetPhone = peer?.phone ?: if (toHash.matches(Regex("^[+]?[0-9]{10,15}$"))) toHash else null
-
-                val isScheduled = scheduledTime != null && scheduledTime > System.currentTimeMillis()
-
-                val entity = MessageEntity(
-                    messageId = msgId,
-                    chatId = toHash,
-                    senderId = myId,
-                    receiverId = toHash,
-                    text = text,
-                    timestamp = System.currentTimeMillis(),
-                    scheduledTime = scheduledTime,
-                    isMe = true,
-                    status = if (isScheduled) "SCHEDULED" else "PENDING",
-                    messageType = "TEXT"
-                )
-
                 dao.insert(entity)
-
-                if (isScheduled) {
-                    scheduleMessageWork(context, msgId, toHash, text, scheduledTime!!)
-                } else {
-                    // Передаем targetPhone явно, если он есть
-                    performNetworkSend(toHash, msgId, text, targetPhone)
-                }
+                ScheduledDispatcher.rearm(context, dao)
             } catch (e: Exception) {
-                Log.e(TAG, "Error sending text", e)
+                Log.e(TAG, "Error scheduling text", e)
+            }
+        }
+    }
+
+    /**
+     * Отправка уже записанных сообщений одного чата (наступило время отложенных) через очередь
+     * собеседника: все ставятся в очередь подряд и уходят общей пачкой в исходном порядке.
+     * @return для каждого сообщения — передано ли оно в сеть или SMS.
+     */
+    suspend fun sendScheduled(chatId: String, messages: List<MessageEntity>): List<Boolean> {
+        val results = messages.map { msg ->
+            CompletableDeferred<Boolean>().also {
+                outbound.submit(chatId, OutboundQueue.Outgoing(msg.messageId, msg.text, result = it))
             }
         }
+        return results.awaitAll()
     }
 
+    private fun nextTimestamp(): Long =
+        lastTimestamp.updateAndGet { last -> maxOf(System.currentTimeMillis(), last + 1) }
+
+    /**
+     * Вложение сохраняется в [AttachmentStore] (хеширование на лету), затем отправляется
+     * потоково через [AttachmentTransfer]: файл не читается в память целиком.
+     */
     fun sendFile(toHash: String, uri: Uri, type: String, fileName: String) {
         repositoryScope.launch {
             try {
-                val bytes = readBytes(uri) ?: return@launch
-                val base64Data = Base64.encodeToString(bytes, Base64.NO_WRAP)
                 val msgId = UUID.randomUUID().toString()
-                val peer = identityRepo.getCachedNode(toHash)
-                
-                // Протокол упаковки: FILEV1:длина_имени:имя:данные_base64
-                val payload = "FILEV1:${fileName.length}:$fileName:$base64Data"
+                val name = attachments.displayName(fileName)
+                val mime = context.contentResolver.getType(uri) ?: AttachmentStore.guessMime(name)
+                val stored = attachmentStore.importUri(uri, mime) ?: return@launch
 
                 val entity = MessageEntity(
                     messageId = msgId,
                     chatId = toHash,
                     senderId = identityRepo.getMyId(),
                     receiverId = toHash,
-                    text = "[Файл: $fileName]",
+                    text = AttachmentTransfer.messageText(type, name),
                     timestamp = System.currentTimeMillis(),
                     isMe = true,
-                    status = "PENDING",
+                    status = "SENDING",
                     messageType = type,
-                    fileName = fileName,
-                    fileBytes = if (bytes.size <= MAX_DB_BLOB_SIZE) bytes else null
+                    fileName = name,
+                    fileMime = mime,
+                    fileHash = stored.hash,
+                    fileSize = stored.size
                 )
 
                 dao.insert(entity)
-                performNetworkSend(toHash, msgId, payload, peer?.phone)
+                val source = attachmentStore.fileFor(stored.hash) ?: return@launch
+                val delivered = attachments.send(toHash, msgId, source, name, type, mime)
+                dao.updateStatus(msgId, if (delivered) "SENT" else "FAILED")
             } catch (e: Exception) {
                 Log.e(TAG, "Error processing file", e)
             }
         }
     }
 
-    /* ======================= СЕТЕВОЙ ЦИКЛ ======================= */
-
-    suspend fun performNetworkSend(
-        chatId: String,
-        messageId: String,
-        payload: String,
-        phone: String?
-    ): Boolean = withContext(Dispatchers.IO) {
-        try {
-            // 1. Проверяем наличие ключа шифрования
-            val pubKey = identityRepo.getPeerPublicKey(chatId)
-            
-            // ЛОГИКА ОТПРАВКИ SMS:
-            // Если публичного ключа нет (это обычный SMS контакт) ИЛИ мы явно шлем на номер телефона -> НЕ ШИФРУЕМ.
-            val shouldUseEncryption = !pubKey.isNullOrBlank() && (phone == null || identityRepo.wifiPeers.containsKey(chatId))
-
-            val finalPayload = if (shouldUseEncryption) {
-                CryptoManager.encryptMessage(payload, pubKey!!)
-            } else {
-                Log.i(TAG, "Sending unencrypted message (SMS mode) to $chatId")
-                payload
-            }
+    /* ======================= ПРИЕМ ======================= */
 
-            // 2. Транспорт через IdentityRepo
-            // Если chatId - это номер телефона, sendMessageSmart должен обработать это корректно через SMS fallback
-            val delivered = identityRepo.sendMessageSmart(chatId, phone, finalPayload)
-            
-            // 3. Обновление статуса
-            val finalStatus = if (delivered) "SENT" else "FAILED"
-            dao.updateStatus(messageId, finalStatus)
-            
-            delivered
+    /**
+     * Пакетная запись входящих сообщений одной транзакцией (стадия [InboundPipeline]).
+     */
+    suspend fun insertIncomingBatch(messages: List<MessageEntity>) {
+        if (messages.isEmpty()) return
+        dao.insertAll(messages)
+    }
+
+    /**
+     * Пачка сообщений из исходящей очереди собеседника: один шифртекст, JSON-массив текстов.
+     * Метки времени идут подряд, чтобы сохранить порядок отправки.
+     */
+    suspend fun decodeIncomingBundle(data: String, fromHash: String): List<MessageEntity> {
+        val texts = try {
+            OutboundQueue.decodeBundle(CryptoManager.decryptMessage(data))
         } catch (e: Exception) {
-            Log.e(TAG, "Network send critical failure", e)
-            dao.updateStatus(messageId, "FAILED")
-            false
+            Log.w(TAG, "Undecodable bundle from $fromHash: ${e.message}")
+            return emptyList()
+        }
+        val myId = identityRepo.getMyId()
+        return texts.map { text ->
+            MessageEntity(
+                messageId = UUID.randomUUID().toString(),
+                chatId = fromHash,
+                senderId = fromHash,
+                receiverId = myId,
+                text = text,
+                timestamp = nextTimestamp(),
+                isMe = false,
+                status = "DELIVERED",
+                messageType = "TEXT"
+            )
         }
     }
 
-    /* ======================= ПРИЕМ ======================= */
+    /**
+     * Дешифровка и разбор входящего пакета без записи в БД.
+     */
+    suspend fun decodeIncoming(type: String, data: String, fromHash: String): MessageEntity? {
+        // Попытка дешифровки. Если не удается (пришло обычное SMS), оставляем как есть.
+        val decrypted = try {
+            if (type == "SMS" && !data.contains("IV:")) {
+                 data // Это обычное SMS, не трогаем
+            } else {
+                CryptoManager.decryptMessage(data).ifEmpty { data }
+            }
+        } catch (e: Exception) { 
+            data // Ошибка дешифровки или простой текст
+        }
 
-    fun handleIncoming(type: String, data: String, fromHash: String) {
-        repositoryScope.launch {
+        var displayText = decrypted
+        var msgType = "TEXT"
+        var incomingFileName: String? = null
+        var incomingFile: AttachmentEntity? = null
+
+        // Разбор FILEV1 (только если это наш протокол)
+        if (decrypted.startsWith("FILEV1:")) {
             try {
-                // Попытка дешифровки. Если не удается (пришло обычное SMS), оставляем как есть.
-                val decrypted = try {
-                    if (type == "SMS" && !data.contains("IV:")) {
-                         data // Это обычное SMS, не трогаем
-                    } else {
-                        CryptoManager.decryptMessage(data).ifEmpty { data }
-                    }
-                } catch (e: Exception) { 
-                    data // Ошибка дешифровки или простой текст
-                }
-
-                var displayText = decrypted
-                var msgType = "TEXT"
-                var incomingFileName: String? = null
-                var incomingFileBytes: ByteArray? = null
-
-                // Разбор FILEV1 (только если это наш протокол)
-                if (decrypted.startsWith("FILEV1:")) {
-                    try {
-                        val content = decrypted.substring(7)
-                        val firstColon = content.indexOf(':')
-                        val nameLength = content.substring(0, firstColon).toInt()
-                        val nameStart = firstColon + 1
-                        val nameEnd = nameStart + nameLength
-                        
-                        incomingFileName = content.substring(nameStart, nameEnd)
-                        val base64Part = content.substring(nameEnd + 1)
-                        
-                        val bytes = Base64.decode(base64Part, Base64.NO_WRAP)
-                        incomingFileBytes = if (bytes.size <= MAX_DB_BLOB_SIZE) bytes else null
-                        
-                        displayText = "[Файл: $incomingFileName]"
-                        msgType = "FILE"
-                    } catch (e: Exception) {
-                        displayText = "[Ошибка файла]"
-                    }
-                }
-
-                dao.insert(MessageEntity(
-                    messageId = UUID.randomUUID().toString(),
-                    chatId = fromHash,
-                    senderId = fromHash,
-                    receiverId = identityRepo.getMyId(),
-                    text = displayText,
-                    timestamp = System.currentTimeMillis(),
-                    isMe = false,
-                    status = if (type == "SMS") "RECEIVED_SMS" else "DELIVERED",
-                    messageType = msgType,
-                    fileName = incomingFileName,
-                    fileBytes = incomingFileBytes
-                ))
+                val content = decrypted.substring(7)
+                val firstColon = content.indexOf(':')
+                val nameLength = content.substring(0, firstColon).toInt()
+                val nameStart = firstColon + 1
+                val nameEnd = nameStart + nameLength
+                
+                incomingFileName = attachments.displayName(content.substring(nameStart, nameEnd))
+                val base64Part = content.substring(nameEnd + 1)
+                
+                val bytes = Base64.decode(base64Part, Base64.NO_WRAP)
+                incomingFile = attachmentStore.putBytes(bytes, AttachmentStore.guessMime(incomingFileName))
+                
+                displayText = AttachmentTransfer.messageText("file", incomingFileName)
+                msgType = "FILE"
             } catch (e: Exception) {
-                Log.e(TAG, "handleIncoming error", e)
+                displayText = "[Ошибка файла]"
             }
         }
-    }
 
-    private fun readBytes(uri: Uri): ByteArray? = try {
-        context.contentResolver.openInputStream(uri)?.use { it.readBytes() }
-    } catch (e: Exception) { null }
+        return MessageEntity(
+            messageId = UUID.randomUUID().toString(),
+            chatId = fromHash,
+            senderId = fromHash,
+            receiverId = identityRepo.getMyId(),
+            text = displayText,
+            timestamp = nextTimestamp(),
+            isMe = false,
+            status = if (type == "SMS") "RECEIVED_SMS" else "DELIVERED",
+            messageType = msgType,
+            fileName = incomingFileName,
+            fileMime = incomingFile?.mime,
+            fileHash = incomingFile?.hash,
+            fileSize = incomingFile?.size
+        )
+    }
 
-    fun clear() { job.cancel() }
+    fun clear() {
+        attachments.release()
+        job.cancel()
+    }
 }
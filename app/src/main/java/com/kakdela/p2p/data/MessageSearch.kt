@@ -0,0 +1,66 @@
+package com.kakdela.p2p.data
+
+import com.kakdela.p2p.data.local.MessageSearchDao
+import com.kakdela.p2p.data.local.MessageSearchHit
+
+/**
+ * MessageSearch — поиск по тексту сообщений через FTS-индекс messages_fts.
+ *
+ * Пользовательский ввод превращается в выражение MATCH:
+ * - `"точная фраза"` — поиск фразы;
+ * - `слов*` — поиск по префиксу; последнее слово без кавычек (от двух символов) ищется
+ *   по префиксу автоматически, чтобы результаты появлялись по мере набора;
+ * - остальные слова объединяются через AND.
+ * Служебные символы синтаксиса FTS отбрасываются, поэтому ввод не может сломать запрос.
+ */
+class MessageSearch(private val dao: MessageSearchDao) {
+
+    /**
+     * Страница результатов; [next] передаётся в следующий вызов [search], null — страниц больше нет.
+     */
+    data class Page(val hits: List<MessageSearchHit>, val next: Cursor?)
+
+    data class Cursor(val timestamp: Long, val messageId: String)
+
+    companion object {
+        const val PAGE_SIZE = 30
+
+        // Префикс из одной буквы раскрывается почти во весь словарь индекса
+        private const val MIN_AUTO_PREFIX = 2
+
+        private val PHRASE = Regex("\"([^\"]*)\"?")
+        private val TERM = Regex("[\\p{L}\\p{N}_]+\\*?")
+
+        /**
+         * @return выражение MATCH или null, если в запросе нет ни одного слова.
+         */
+        fun buildMatch(input: String): String? {
+            val parts = ArrayList<String>()
+            var rest = input
+            PHRASE.findAll(input).forEach { m ->
+                val words = TERM.findAll(m.groupValues[1]).map { it.value.trimEnd('*').lowercase() }.toList()
+                if (words.isNotEmpty()) parts.add(words.joinToString(" ", "\"", "\""))
+                rest = rest.replace(m.value, " ")
+            }
+            val terms = TERM.findAll(rest).map { it.value.lowercase() }.toList()
+            terms.forEachIndexed { i, term ->
+                val word = term.trimEnd('*')
+                val autoPrefix = i == terms.lastIndex && word.length >= MIN_AUTO_PREFIX && !input.trimEnd().endsWith("\"")
+                parts.add(if (term.endsWith("*") || autoPrefix) "$word*" else word)
+            }
+            return parts.takeIf { it.isNotEmpty() }?.joinToString(" ")
+        }
+    }
+
+    suspend fun search(
+        query: String,
+        chatId: String? = null,
+        after: Cursor? = null,
+        limit: Int = PAGE_SIZE
+    ): Page {
+        val match = buildMatch(query) ?: return Page(emptyList(), null)
+        val hits = dao.search(match, chatId, after?.timestamp, after?.messageId, limit)
+        val next = if (hits.size == limit) hits.last().let { Cursor(it.timestamp, it.messageId) } else null
+        return Page(hits, next)
+    }
+}
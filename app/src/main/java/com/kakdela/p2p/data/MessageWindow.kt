@@ -0,0 +1,212 @@
+package com.kakdela.p2p.data
+
+import com.kakdela.p2p.data.local.MessageDao
+import com.kakdela.p2p.data.local.MessageEntity
+import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * MessageWindow — ограниченное окно сообщений чата с keyset-пагинацией по (timestamp, messageId).
+ *
+ * Окно состоит из смежных страниц; каждая страница — полуинтервал ключей [lo, hi)
+ * со своим наблюдателем Room, последняя страница открыта сверху и принимает новые сообщения.
+ * Изменение в БД перезапрашивает только небольшие диапазоны по индексу, а наружу
+ * публикуется новый снимок лишь тогда, когда изменилось содержимое какой-то страницы.
+ * Окно держит не больше [maxPages] страниц: при прокрутке вверх отбрасываются нижние, и наоборот.
+ * Время открытия чата не зависит от длины истории.
+ */
+class MessageWindow(
+    private val dao: MessageDao,
+    private val chatId: String,
+    private val scope: CoroutineScope,
+    private val pageSize: Int = 50,
+    private val maxPages: Int = 6
+) {
+
+    data class Snapshot(
+        val messages: List<MessageEntity> = emptyList(),
+        /** В БД есть сообщения старше окна. */
+        val hasOlder: Boolean = false,
+        /** В БД есть сообщения новее окна (последняя страница отброшена). */
+        val hasNewer: Boolean = false,
+        /**
+         * Номер снимка. [MessageEntity.equals] сравнивает только messageId, поэтому без него
+         * StateFlow не выпустил бы снимок, в котором изменился лишь статус сообщения.
+         */
+        val version: Long = 0
+    )
+
+    private data class Key(val ts: Long, val id: String) {
+        companion object {
+            val MIN = Key(Long.MIN_VALUE, "")
+        }
+    }
+
+    private class Page(val lo: Key, val hi: Key?) {
+        @Volatile
+        var items: List<MessageEntity> = emptyList()
+        var job: Job? = null
+    }
+
+    private val structure = Mutex()
+    private val pages = ArrayList<Page>()
+    @Volatile
+    private var hasOlder = false
+    @Volatile
+    private var hasNewer = false
+    private var version = 0L
+
+    private val _snapshot = MutableStateFlow(Snapshot())
+    val snapshot: StateFlow<Snapshot> = _snapshot.asStateFlow()
+
+    /**
+     * Загружает последнюю страницу чата и начинает наблюдение за ней.
+     */
+    suspend fun start() = structure.withLock {
+        val latest = dao.getLatestPage(chatId, pageSize).asReversed()
+        hasOlder = latest.size == pageSize
+        hasNewer = false
+        val lo = if (hasOlder) latest.first().key() else Key.MIN
+        addPage(Page(lo, null).also { it.items = latest }, atStart = false)
+        publish()
+    }
+
+    /**
+     * Подгружает страницу перед окном (прокрутка вверх).
+     */
+    suspend fun loadOlder() = structure.withLock {
+        if (!hasOlder) return@withLock
+        val oldest = synchronized(pages) { pages.firstOrNull() } ?: return@withLock
+
+        val before = dao.getPageBefore(chatId, oldest.lo.ts, oldest.lo.id, pageSize).asReversed()
+        if (before.isEmpty()) {
+            // Всё, что старше, уже удалено — расширяем нижнюю страницу до начала истории
+            replacePage(oldest, Page(Key.MIN, oldest.hi).also { it.items = oldest.items })
+            hasOlder = false
+        } else {
+            hasOlder = before.size == pageSize
+            val lo = if (hasOlder) before.first().key() else Key.MIN
+            addPage(Page(lo, oldest.lo).also { it.items = before }, atStart = true)
+            trim(dropNewest = true)
+        }
+        publish()
+    }
+
+    /**
+     * Подгружает страницу после окна (прокрутка вниз, если нижние страницы были отброшены).
+     */
+    suspend fun loadNewer() = structure.withLock {
+        if (!hasNewer) return@withLock
+        val newest = synchronized(pages) { pages.lastOrNull() } ?: return@withLock
+        val from = newest.hi ?: return@withLock
+
+        val after = dao.getPageFrom(chatId, from.ts, from.id, pageSize + 1)
+        val page = if (after.size <= pageSize) {
+            hasNewer = false
+            Page(from, null).also { it.items = after }
+        } else {
+            Page(from, after[pageSize].key()).also { it.items = after.take(pageSize) }
+        }
+        addPage(page, atStart = false)
+        trim(dropNewest = false)
+        publish()
+    }
+
+    fun close() {
+        synchronized(pages) {
+            pages.forEach { it.job?.cancel() }
+            pages.clear()
+        }
+    }
+
+    /* ======================= ВНУТРЕННЕЕ ======================= */
+
+    private fun addPage(page: Page, atStart: Boolean) {
+        synchronized(pages) {
+            if (atStart) pages.add(0, page) else pages.add(page)
+        }
+        observe(page)
+    }
+
+    private fun replacePage(old: Page, new: Page) {
+        old.job?.cancel()
+        synchronized(pages) {
+            val index = pages.indexOf(old)
+            if (index >= 0) pages[index] = new
+        }
+        observe(new)
+    }
+
+    private fun trim(dropNewest: Boolean) {
+        while (true) {
+            val dropped = synchronized(pages) {
+                if (pages.size <= maxPages) null
+                else if (dropNewest) pages.removeAt(pages.size - 1) else pages.removeAt(0)
+            } ?: break
+            dropped.job?.cancel()
+            // Страницы смежные: у оставшейся крайней страницы граница уже совпадает с отброшенной
+            if (dropNewest) hasNewer = true else hasOlder = true
+        }
+    }
+
+    private fun observe(page: Page) {
+        val flow = if (page.hi == null) {
+            dao.observeFrom(chatId, page.lo.ts, page.lo.id)
+        } else {
+            dao.observeRange(chatId, page.lo.ts, page.lo.id, page.hi.ts, page.hi.id)
+        }
+        page.job = scope.launch {
+            flow.distinctUntilChanged(::sameContent).collect { items ->
+                if (sameContent(page.items, items)) return@collect
+                page.items = items
+                if (page.hi == null && items.size > 2 * pageSize) {
+                    // Не дочерняя корутина: разделение отменит наблюдателя этой страницы
+                    scope.launch { splitTail(page) }
+                }
+                publish()
+            }
+        }
+    }
+
+    /**
+     * Открытая страница разрослась от входящих сообщений: делим её, чтобы страницы оставались мелкими.
+     */
+    private suspend fun splitTail(tail: Page) = structure.withLock {
+        val items = tail.items
+        if (synchronized(pages) { pages.lastOrNull() } !== tail || items.size <= 2 * pageSize) return@withLock
+
+        val boundary = items[items.size - pageSize].key()
+        replacePage(tail, Page(tail.lo, boundary).also { it.items = items.subList(0, items.size - pageSize) })
+        addPage(Page(boundary, null).also { it.items = items.subList(items.size - pageSize, items.size) }, atStart = false)
+        trim(dropNewest = false)
+        publish()
+    }
+
+    private fun publish() {
+        synchronized(pages) {
+            _snapshot.value = Snapshot(pages.flatMap { it.items }, hasOlder, hasNewer, ++version)
+        }
+    }
+
+    /**
+     * Сравнение страниц по полям, которые меняются у существующих сообщений.
+     */
+    private fun sameContent(a: List<MessageEntity>, b: List<MessageEntity>): Boolean {
+        if (a.size != b.size) return false
+        for (i in a.indices) {
+            val x = a[i]
+            val y = b[i]
+            if (x.messageId != y.messageId || x.status != y.status || x.isRead != y.isRead ||
+                x.fileHash != y.fileHash || x.text != y.text || x.timestamp != y.timestamp
+            ) return false
+        }
+        return true
+    }
+
+    private fun MessageEntity.key() = Key(timestamp, messageId)
+}
@@ -0,0 +1,214 @@
+package com.kakdela.p2p.data
+
+import android.util.Log
+import com.kakdela.p2p.data.local.MessageDao
+import com.kakdela.p2p.data.local.MessageEntity
+import com.kakdela.p2p.security.CryptoManager
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import org.json.JSONArray
+import org.json.JSONObject
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * OutboundQueue — очереди исходящих текстовых сообщений по собеседникам.
+ *
+ * У каждого собеседника своя FIFO-очередь и не больше одного обработчика, поэтому порядок
+ * внутри чата сохраняется. Обработчик ждёт [COALESCE_WINDOW_MS], забирает всё накопившееся
+ * и обрабатывает пачку целиком:
+ * - новые сообщения записываются одной транзакцией;
+ * - ключ, телефон и IP собеседника определяются один раз;
+ * - сообщения упаковываются в зашифрованные пакеты [BUNDLE_TYPE] (один ECIES и один датаграм
+ *   на пакет), размер пакета ограничен MTU;
+ * - статусы обновляются одним UPDATE ... WHERE messageId IN (...) на каждый итоговый статус.
+ *
+ * Старые версии принимают любой тип с префиксом CHAT за одно сообщение и сохранили бы массив
+ * пакета как текст, поэтому пакеты получают только узлы, объявившие [BUNDLE_CAPABILITY]
+ * в PING/PONG. Остальным и одиночные сообщения, и пачки уходят по одному CHAT_MSG;
+ * такому узлу один раз отправляется PING, чтобы узнать его возможности.
+ */
+class OutboundQueue(
+    private val dao: MessageDao,
+    private val identityRepo: IdentityRepository,
+    private val scope: CoroutineScope
+) {
+
+    /**
+     * Элемент очереди. [entity] != null — сообщение ещё не записано в БД.
+     * [result] получает итог доставки (для ожидающих, например отложенной отправки).
+     */
+    class Outgoing(
+        val messageId: String,
+        val text: String,
+        val entity: MessageEntity? = null,
+        val result: CompletableDeferred<Boolean>? = null
+    )
+
+    private class PeerQueue {
+        val items = ArrayDeque<Outgoing>()
+        var running = false
+    }
+
+    private val TAG = "OutboundQueue"
+    private val queues = HashMap<String, PeerQueue>()
+    private val probed: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    // Публичный ключ входит в каждый конверт; его JSON-представление не меняется
+    private val envelopeSize by lazy {
+        ENVELOPE_OVERHEAD + JSONObject.quote(CryptoManager.getMyPublicKeyStr()).length
+    }
+
+    private val bundlesSent = AtomicLong()
+    private val messagesSent = AtomicLong()
+
+    companion object {
+        const val BUNDLE_TYPE = "CHAT_BUNDLE"
+        const val BUNDLE_CAPABILITY = "bundle"
+
+        private const val COALESCE_WINDOW_MS = 25L
+        private const val MAX_BATCH = 64
+
+        // Датаграм без фрагментации при MTU 1500 с запасом на туннели
+        private const val DATAGRAM_BUDGET = 1400
+        // Поля конверта IdentityRepository.sendUdp, кроме pubkey и data
+        private const val ENVELOPE_OVERHEAD = 256
+        // ECIES (Tink, P-256 + AES-GCM): точка эфемерного ключа, IV, тег, префикс
+        private const val ECIES_OVERHEAD = 100
+        private const val MIN_BUNDLE_PLAINTEXT = 256
+
+        private val PHONE = Regex("^[+]?[0-9]{10,15}$")
+
+        /**
+         * Пакет — JSON-массив текстов в порядке отправки.
+         */
+        fun encodeBundle(texts: List<String>): String = JSONArray(texts).toString()
+
+        fun decodeBundle(plain: String): List<String> {
+            val array = JSONArray(plain)
+            return (0 until array.length()).map { array.getString(it) }
+        }
+    }
+
+    fun submit(chatId: String, item: Outgoing) {
+        val start = synchronized(queues) {
+            val queue = queues.getOrPut(chatId) { PeerQueue() }
+            queue.items.addLast(item)
+            if (queue.running) false else {
+                queue.running = true
+                true
+            }
+        }
+        if (start) scope.launch { drain(chatId) }
+    }
+
+    fun metricsSummary(): String = "bundles=${bundlesSent.get()}, messages=${messagesSent.get()}"
+
+    /* ======================= ОБРАБОТКА ======================= */
+
+    private suspend fun drain(chatId: String) {
+        while (true) {
+            delay(COALESCE_WINDOW_MS)
+            val batch = synchronized(queues) {
+                val queue = queues[chatId]
+                if (queue == null || queue.items.isEmpty()) {
+                    queues.remove(chatId)
+                    return
+                }
+                val taken = ArrayList<Outgoing>(minOf(queue.items.size, MAX_BATCH))
+                while (taken.size < MAX_BATCH && queue.items.isNotEmpty()) taken.add(queue.items.removeFirst())
+                taken
+            }
+            try {
+                flush(chatId, batch)
+            } catch (e: Exception) {
+                Log.e(TAG, "Outbound batch to $chatId failed", e)
+                runCatching { settle(batch.map { it to false }) }
+            }
+        }
+    }
+
+    private suspend fun flush(chatId: String, batch: List<Outgoing>) {
+        batch.mapNotNull { it.entity }.takeIf { it.isNotEmpty() }?.let { dao.insertAll(it) }
+
+        // Одно разрешение собеседника на пачку
+        val peer = identityRepo.getCachedNode(chatId)
+        val phone = peer?.phone ?: chatId.takeIf { it.matches(PHONE) }
+        val pubKey = peer?.publicKey
+        // Без ключа (обычный SMS-контакт) или при отправке на номер вне Wi-Fi — без шифрования
+        val encrypt = !pubKey.isNullOrBlank() && (phone == null || identityRepo.peerDirectory.isWifiPeer(chatId))
+        val ip = identityRepo.resolvePeerIp(chatId)
+
+        val results = ArrayList<Pair<Outgoing, Boolean>>(batch.size)
+        if (encrypt && ip != null) {
+            val bundles = identityRepo.peerDirectory.supports(chatId, BUNDLE_CAPABILITY)
+            if (!bundles && batch.size > 1 && probed.add(chatId)) {
+                // Ответный PONG объявит возможности собеседника для следующих пачек
+                scope.launch { identityRepo.sendUdp(ip, "PING", "capabilities") }
+            }
+            val groups = if (bundles) pack(batch, plaintextBudget()) else batch.map { listOf(it) }
+            for (group in groups) {
+                val delivered = if (group.size == 1) {
+                    identityRepo.sendUdp(ip, "CHAT_MSG", CryptoManager.encryptMessage(group[0].text, pubKey!!))
+                } else {
+                    identityRepo.sendUdp(ip, BUNDLE_TYPE, CryptoManager.encryptMessage(encodeBundle(group.map { it.text }), pubKey!!))
+                        .also { if (it) bundlesSent.incrementAndGet() }
+                }
+                if (delivered) {
+                    group.forEach { results.add(it to true) }
+                } else {
+                    // SMS-резерв — по одному сообщению, как и раньше
+                    group.forEach { item ->
+                        val payload = CryptoManager.encryptMessage(item.text, pubKey!!)
+                        results.add(item to identityRepo.sendMessageVia(null, phone, payload))
+                    }
+                }
+            }
+        } else {
+            if (!encrypt) Log.i(TAG, "Sending ${batch.size} unencrypted message(s) (SMS mode) to $chatId")
+            batch.forEach { item ->
+                val payload = if (encrypt) CryptoManager.encryptMessage(item.text, pubKey!!) else item.text
+                results.add(item to identityRepo.sendMessageVia(ip, phone, payload))
+            }
+        }
+        settle(results)
+    }
+
+    private suspend fun settle(results: List<Pair<Outgoing, Boolean>>) {
+        val (sent, failed) = results.partition { it.second }
+        if (sent.isNotEmpty()) dao.updateStatuses(sent.map { it.first.messageId }, "SENT")
+        if (failed.isNotEmpty()) dao.updateStatuses(failed.map { it.first.messageId }, "FAILED")
+        messagesSent.addAndGet(sent.size.toLong())
+        results.forEach { (item, delivered) -> item.result?.complete(delivered) }
+    }
+
+    /**
+     * Делит пачку на пакеты, не нарушая порядка; сообщение больше бюджета уходит отдельно.
+     */
+    private fun pack(batch: List<Outgoing>, budget: Int): List<List<Outgoing>> {
+        val groups = ArrayList<List<Outgoing>>()
+        var current = ArrayList<Outgoing>()
+        var size = 2 // []
+        for (item in batch) {
+            val itemSize = JSONArray(listOf(item.text)).toString().toByteArray(Charsets.UTF_8).size - 1
+            if (current.isNotEmpty() && size + itemSize > budget) {
+                groups.add(current)
+                current = ArrayList()
+                size = 2
+            }
+            current.add(item)
+            size += itemSize
+        }
+        if (current.isNotEmpty()) groups.add(current)
+        return groups
+    }
+
+    /**
+     * Сколько байт открытого текста помещается в один датаграм: конверт содержит
+     * наш публичный ключ и подпись, шифртекст кодируется в Base64.
+     */
+    private fun plaintextBudget(): Int =
+        ((DATAGRAM_BUDGET - envelopeSize) * 3 / 4 - ECIES_OVERHEAD).coerceAtLeast(MIN_BUNDLE_PLAINTEXT)
+}
@@ -5,7 +5,7 @@ import android.content.Context
 import android.content.Intent
 import android.provider.Telephony
 import android.util.Log
-import com.kakdela.p2p.data.local.ChatDatabase
+import com.kakdela.p2p.MyApplication
 import com.kakdela.p2p.data.local.NodeEntity
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -38,11 +38,10 @@ class P2PSmsReceiver : BroadcastReceiver() {
                 val port = parts[2].toInt()
                 val pubKey = parts[3]
 
-                val db = ChatDatabase.getDatabase(context)
-                val nodeDao = db.nodeDao()
+                val app = context.applicationContext as MyApplication
 
-                // Сохраняем узел в базу
-                nodeDao.upsert(NodeEntity(
+                // Сохраняем узел в базу через каталог, чтобы кэш узлов не разошёлся с ней
+                app.identityRepository.peerDirectory.save(NodeEntity(
                     userHash = hash,
                     phone_hash = "", // Можно сгенерировать из senderPhone
                     ip = ip,
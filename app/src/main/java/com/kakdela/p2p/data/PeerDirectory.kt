@@ -0,0 +1,289 @@
+package com.kakdela.p2p.data
+
+import android.util.Log
+import com.kakdela.p2p.data.local.NodeDao
+import com.kakdela.p2p.data.local.NodeEntity
+import kotlinx.coroutines.*
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * PeerDirectory — горячее представление узлов в памяти (hash -> ip/port/pubkey/lastSeen).
+ *
+ * Является основным источником для путей отправки и приёма: чтение идёт из
+ * [ConcurrentHashMap] без обращения к SQLite, а изменения копятся в наборе "грязных"
+ * записей и сбрасываются в dht_nodes одной транзакцией по таймеру или при достижении порога.
+ * Заменяет прежние wifiPeers / swarmPeers (флаги [PeerInfo.isWifi] и [PeerInfo.isActive]).
+ *
+ * Все записи узлов в dht_nodes идут через каталог ([save], [saveServerRows], [mergeNetwork]),
+ * поэтому кэш не расходится с таблицей. Размер кэша ограничен [MAX_PEERS]: при переполнении
+ * вытесняются давно не виденные узлы, в первую очередь не активные в этой сессии;
+ * записи с несохранёнными изменениями остаются до сброса.
+ */
+class PeerDirectory(private val nodeDao: NodeDao) {
+
+    data class PeerInfo(
+        val hash: String,
+        val ip: String,
+        val port: Int,
+        val publicKey: String,
+        val lastSeen: Long,
+        val phone: String? = null,
+        /** Узел найден через NSD в локальной сети. */
+        val isWifi: Boolean = false,
+        /** От узла в этой сессии пришёл пакет с проверенной подписью. */
+        val isActive: Boolean = false,
+        /** lastSeen, записанный в БД последним сбросом. */
+        val persistedLastSeen: Long = lastSeen,
+        /** Возможности протокола, объявленные узлом в подписанном PING/PONG в этой сессии. */
+        val capabilities: Set<String> = emptySet()
+    ) {
+        val hasAddress: Boolean get() = ip.isNotBlank() && ip != "0.0.0.0"
+    }
+
+    private val TAG = "PeerDirectory"
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    private val peers = ConcurrentHashMap<String, PeerInfo>()
+    private val dirty: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    // Отрицательный кэш: хеш -> время неудачного поиска в БД
+    private val misses = ConcurrentHashMap<String, Long>()
+
+    private val flushMutex = Mutex()
+
+    // Статистика для оценки нагрузки на SQLite
+    private val touches = AtomicLong()
+    private val flushes = AtomicLong()
+    private val rowsWritten = AtomicLong()
+
+    private companion object {
+        const val FLUSH_INTERVAL = 15_000L
+        const val DIRTY_THRESHOLD = 64
+        const val LAST_SEEN_GRANULARITY = 60_000L
+        const val MISS_TTL = 30_000L
+        const val MAX_PEERS = 2048
+        const val TRIM_TARGET = MAX_PEERS * 3 / 4
+    }
+
+    init {
+        scope.launch {
+            while (isActive) {
+                delay(FLUSH_INTERVAL)
+                flush()
+            }
+        }
+    }
+
+    /* ======================= ЧТЕНИЕ ======================= */
+
+    /** Только память, без обращения к БД. */
+    fun get(hash: String): PeerInfo? = peers[hash]
+
+    /**
+     * Запись узла: память, при промахе — однократная загрузка из dht_nodes.
+     */
+    suspend fun resolve(hash: String): PeerInfo? {
+        peers[hash]?.let { return it }
+
+        val now = System.currentTimeMillis()
+        misses[hash]?.let { if (now - it < MISS_TTL) return null }
+
+        val entity = withContext(Dispatchers.IO) { nodeDao.getNodeByHash(hash) }
+        if (entity == null) {
+            misses[hash] = now
+            return null
+        }
+        val loaded = entity.toPeerInfo()
+        return peers.merge(hash, loaded) { current, _ -> current }.also { trimIfNeeded() }
+    }
+
+    /** Адрес узла, если он известен в памяти (активный или Wi-Fi). */
+    fun liveIp(hash: String): String? =
+        peers[hash]?.takeIf { (it.isWifi || it.isActive) && it.hasAddress }?.ip
+
+    fun isWifiPeer(hash: String): Boolean = peers[hash]?.isWifi == true
+
+    fun supports(hash: String, capability: String): Boolean = peers[hash]?.capabilities?.contains(capability) == true
+
+    fun activePeers(): List<PeerInfo> = peers.values.filter { (it.isWifi || it.isActive) && it.hasAddress }
+
+    /* ======================= ЗАПИСЬ ======================= */
+
+    /**
+     * Узел прислал пакет с проверенной подписью. Запись в БД откладывается:
+     * lastSeen сбрасывается не чаще раза в [LAST_SEEN_GRANULARITY], сетевые данные — при изменении.
+     */
+    fun touch(hash: String, ip: String, port: Int, publicKey: String, now: Long = System.currentTimeMillis()) {
+        touches.incrementAndGet()
+        misses.remove(hash)
+
+        var created = false
+        val updated = peers.compute(hash) { _, current ->
+            current?.copy(ip = ip, port = port, publicKey = publicKey, lastSeen = now, isActive = true)
+                ?: PeerInfo(hash, ip, port, publicKey, now, isActive = true, persistedLastSeen = 0L)
+                    .also { created = true }
+        } ?: return
+
+        if (created) {
+            hydrate(hash)
+            trimIfNeeded()
+        }
+
+        if (updated.persistedLastSeen == 0L || now - updated.persistedLastSeen >= LAST_SEEN_GRANULARITY) {
+            markDirty(hash)
+        }
+    }
+
+    fun markWifi(hash: String, ip: String) {
+        var created = false
+        peers.compute(hash) { _, current ->
+            current?.copy(ip = ip, isWifi = true)
+                ?: PeerInfo(hash, ip, 8888, "", System.currentTimeMillis(), isWifi = true, persistedLastSeen = 0L)
+                    .also { created = true }
+        }
+        if (created) {
+            hydrate(hash)
+            trimIfNeeded()
+        }
+    }
+
+    /** Запись одного узла целиком (регистрация, SMS-визитка) с обновлением кэша. */
+    suspend fun save(node: NodeEntity) {
+        withContext(Dispatchers.IO) { nodeDao.upsert(node) }
+        absorb(listOf(node))
+    }
+
+    /** Изменённые строки каталога сервера ([DirectorySync]). */
+    suspend fun saveServerRows(nodes: List<NodeEntity>) {
+        if (nodes.isEmpty()) return
+        withContext(Dispatchers.IO) { nodeDao.updateCache(nodes) }
+        absorb(nodes)
+    }
+
+    /**
+     * Узлы из gossip и Kademlia: вставка неизвестных и обновление адреса, только если
+     * запись свежее ([NodeDao.mergeNetworkNodes]); ключи существующих записей не меняются.
+     */
+    suspend fun mergeNetwork(nodes: List<NodeEntity>) {
+        if (nodes.isEmpty()) return
+        withContext(Dispatchers.IO) { nodeDao.mergeNetworkNodes(nodes) }
+        absorb(nodes.map { it.copy(publicKey = "") })
+    }
+
+    private fun absorb(nodes: List<NodeEntity>) {
+        nodes.forEach { node ->
+            misses.remove(node.userHash)
+            peers.computeIfPresent(node.userHash) { _, current ->
+                val newer = node.lastSeen > current.lastSeen
+                current.copy(
+                    ip = if (newer) node.ip else current.ip,
+                    port = if (newer) node.port else current.port,
+                    publicKey = node.publicKey.ifBlank { current.publicKey },
+                    lastSeen = maxOf(node.lastSeen, current.lastSeen),
+                    phone = node.phone?.takeIf { it.isNotBlank() } ?: current.phone
+                )
+            }
+        }
+    }
+
+    /** Узел объявил свои возможности; запись уже создана [touch] для того же пакета. */
+    fun setCapabilities(hash: String, capabilities: Set<String>) {
+        peers.computeIfPresent(hash) { _, current ->
+            if (current.capabilities == capabilities) current else current.copy(capabilities = capabilities)
+        }
+    }
+
+    fun clearWifi(hash: String) {
+        peers.computeIfPresent(hash) { _, current -> current.copy(isWifi = false) }
+    }
+
+    /**
+     * Сброс флагов сессии при остановке сети; накопленные изменения сохраняются.
+     */
+    fun resetSession() {
+        scope.launch { flush() }
+        peers.replaceAll { _, info -> info.copy(isWifi = false, isActive = false, capabilities = emptySet()) }
+    }
+
+    private fun markDirty(hash: String) {
+        dirty.add(hash)
+        if (dirty.size >= DIRTY_THRESHOLD) scope.launch { flush() }
+    }
+
+    /**
+     * Записывает все "грязные" узлы одной транзакцией.
+     */
+    suspend fun flush() {
+        flushMutex.withLock { flushLocked() }
+    }
+
+    private suspend fun flushLocked() {
+        if (dirty.isEmpty()) return
+
+        val batch = dirty.toList()
+        dirty.removeAll(batch.toSet())
+
+        val entities = batch.mapNotNull { peers[it] }
+            .filter { it.publicKey.isNotBlank() }
+            .map { NodeEntity(userHash = it.hash, ip = it.ip, port = it.port, publicKey = it.publicKey, lastSeen = it.lastSeen) }
+        if (entities.isEmpty()) return
+
+        try {
+            withContext(Dispatchers.IO) { nodeDao.flushNetworkInfo(entities) }
+            entities.forEach { e ->
+                peers.computeIfPresent(e.userHash) { _, info -> info.copy(persistedLastSeen = e.lastSeen) }
+            }
+            flushes.incrementAndGet()
+            rowsWritten.addAndGet(entities.size.toLong())
+            Log.d(TAG, "Flushed ${entities.size} nodes (packets=${touches.get()}, flushes=${flushes.get()}, rows=${rowsWritten.get()})")
+        } catch (e: Exception) {
+            Log.w(TAG, "Write-behind flush failed, will retry: ${e.message}")
+            dirty.addAll(batch)
+        }
+    }
+
+    /**
+     * Догружает из БД поля, которых нет в пакете (телефон, а для записи из NSD — ключ),
+     * для впервые увиденного узла.
+     */
+    private fun hydrate(hash: String) {
+        scope.launch {
+            val entity = nodeDao.getNodeByHash(hash) ?: return@launch
+            peers.computeIfPresent(hash) { _, current ->
+                current.copy(
+                    phone = entity.phone ?: current.phone,
+                    publicKey = current.publicKey.ifBlank { entity.publicKey },
+                    persistedLastSeen = if (current.persistedLastSeen == 0L) entity.lastSeen else current.persistedLastSeen
+                )
+            }
+        }
+    }
+
+    /**
+     * Сокращает кэш до [TRIM_TARGET] записей: сначала не активные в сессии, среди них — давно
+     * не виденные. Грязные записи не трогаем, пока их не сбросит [flush].
+     */
+    private fun trimIfNeeded() {
+        if (peers.size <= MAX_PEERS) return
+        val excess = peers.size - TRIM_TARGET
+        peers.values
+            .asSequence()
+            .filter { it.hash !in dirty }
+            .sortedWith(compareBy<PeerInfo>({ it.isWifi || it.isActive }, { it.lastSeen }))
+            .take(excess)
+            .toList()
+            .forEach { victim -> peers.remove(victim.hash, victim) }
+    }
+
+    private fun NodeEntity.toPeerInfo() = PeerInfo(
+        hash = userHash,
+        ip = ip,
+        port = port,
+        publicKey = publicKey,
+        lastSeen = lastSeen,
+        phone = phone
+    )
+}
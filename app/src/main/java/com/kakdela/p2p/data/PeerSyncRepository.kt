@@ -1,16 +1,28 @@
 package com.kakdela.p2p.data
 
+import android.util.Base64
 import android.util.Log
 import com.kakdela.p2p.data.local.ChatDatabase
 import com.kakdela.p2p.data.local.NodeEntity
+import com.kakdela.p2p.data.KademliaRoutingTable.Contact
 import kotlinx.coroutines.*
 import org.json.JSONArray
 import org.json.JSONObject
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
 
 /**
- * PeerSyncRepository — движок "сплетен" (Gossip Protocol).
- * Позволяет узлам обмениваться списками контактов без сервера.
+ * PeerSyncRepository — движок обнаружения узлов без сервера.
+ *
+ * Основа — Kademlia-подобная таблица маршрутизации ([KademliaRoutingTable]) поверх
+ * SHA-256 identity hash: итеративный FIND_NODE находит любой узел за O(log n) запросов,
+ * бакеты периодически обновляются, а заполненные бакеты вытесняют только неживые узлы.
+ * Все узнанные контакты сохраняются в dht_nodes через [PeerDirectory].
+ *
+ * Поверх таблицы работает anti-entropy gossip: соседи обмениваются Bloom-дайджестами
+ * пар userHash→lastSeen и пересылают друг другу только отсутствующие или более свежие записи.
  */
 class PeerSyncRepository(
     private val identityRepository: IdentityRepository,
@@ -21,19 +33,58 @@ class PeerSyncRepository(
     private val nodeDao = database.nodeDao()
     private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
 
-    // Защита от спама: хеш узла -> время последней синхронизации
-    private val lastSyncFromPeer = ConcurrentHashMap<String, Long>()
+    // Защита от спама: первичный дайджест — раз в MIN_SYNC_INTERVAL_FROM_PEER,
+    // записи дельт — не больше двух раундов за то же окно
+    private val digestBudget = PeerBudget(MIN_SYNC_INTERVAL_FROM_PEER, 1)
+    private val deltaBudget = PeerBudget(MIN_SYNC_INTERVAL_FROM_PEER, 2 * MAX_DELTA_PER_ROUND)
 
-    private companion object {
-        const val SYNC_INTERVAL = 60_000L
-        const val MAX_NODES_PER_PACKET = 8
+    // Ответный дайджест принимаем только от соседа, которому сами отправили первичный: хеш -> время
+    private val awaitingReply = ConcurrentHashMap<String, Long>()
+
+    // Ожидающие ответа FIND_NODE: rpc id -> результат
+    private val pendingLookups = ConcurrentHashMap<String, CompletableDeferred<List<Contact>>>()
+
+    // Проверки живости при переполнении бакета: хеш узла -> сигнал о любом пакете от него
+    private val pendingPings = ConcurrentHashMap<String, CompletableDeferred<Unit>>()
+
+    private val random = SecureRandom()
+
+    @Volatile
+    private var routingTable: KademliaRoutingTable? = null
+
+    companion object {
+        const val FIND_NODE_TYPE = "FIND_NODE"
+        const val FIND_NODE_RESP_TYPE = "FIND_NODE_RESP"
         const val PEER_SYNC_TYPE = "PEER_SYNC"
-        const val MIN_SYNC_INTERVAL_FROM_PEER = 30_000L
+
+        private const val SYNC_INTERVAL = 60_000L
+        private const val MIN_SYNC_INTERVAL_FROM_PEER = 30_000L
+
+        private const val ALPHA = 3                       // Параллелизм итеративного поиска
+        private const val RPC_TIMEOUT = 2_000L
+        private const val PING_TIMEOUT = 3_000L
+        private const val BUCKET_REFRESH_INTERVAL = 15 * 60_000L
+        private const val ROUTING_BOOTSTRAP_LIMIT = 500
+
+        private const val REPLY_WINDOW = 10_000L
+        private const val MAX_NODES_PER_PACKET = 8
+        private const val MAX_DELTA_PER_ROUND = 64
+
+        /**
+         * Ключ из чужого пакета принимается, только если это ключ самого узла:
+         * identity hash — SHA-256 от публичного ключа (см. CryptoManager.getMyIdentityHash).
+         */
+        fun isKeyOfNode(hash: String, publicKey: String): Boolean {
+            if (publicKey.isBlank()) return false
+            val digest = MessageDigest.getInstance("SHA-256").digest(publicKey.toByteArray(Charsets.UTF_8))
+            return digest.joinToString("") { "%02x".format(it) }.equals(hash, ignoreCase = true)
+        }
     }
 
     fun start() {
         scope.launch {
             delay(5000) // Даем время на инициализацию UDP
+            bootstrapFromDb()
             startGossipLoop()
         }
     }
@@ -54,94 +105,59 @@ class PeerSyncRepository(
     }
 
     private suspend fun performGossipSync() {
-        // 1. Собираем кандидатов для отправки (активные + недавние из истории)
-        val candidates = (identityRepository.swarmPeers.keys + identityRepository.wifiPeers.keys).toMutableSet()
-        
-        if (candidates.isEmpty()) {
-            // Если нет активных соединений, берем 5 недавних из БД
-            candidates.addAll(nodeDao.getRecentNodes(5).map { it.userHash })
-        }
-        
-        // Исключаем себя
-        candidates.remove(identityRepository.getMyId())
-        if (candidates.isEmpty()) return
-
-        // 2. Выбираем 2 случайные цели
-        val targets = candidates.shuffled().take(2)
-
-        // 3. Выбираем, о ком рассказать (случайная выборка из всей БД)
-        val nodesToSend = nodeDao.getAllNodes().shuffled().take(MAX_NODES_PER_PACKET)
-        if (nodesToSend.isEmpty()) return
-
-        val payload = buildSyncPayload(nodesToSend)
-
-        // 4. Отправляем
-        targets.forEach { targetHash ->
-            // Пытаемся найти IP (в памяти или в БД)
-            val ip = identityRepository.swarmPeers[targetHash]
-                ?: identityRepository.wifiPeers[targetHash]
-                ?: nodeDao.getNodeByHash(targetHash)?.ip
-
-            if (!ip.isNullOrBlank() && ip != "0.0.0.0") {
-                identityRepository.sendUdp(ip!!, PEER_SYNC_TYPE, payload)
-            }
+        val table = table() ?: return
+
+        // 1. Поиск собственного ID наполняет ближайшие к нам бакеты
+        lookup(identityRepository.getMyId())
+
+        // 2. Обновление бакетов, в которых давно не было активности
+        table.staleBuckets(BUCKET_REFRESH_INTERVAL).forEach { index ->
+            table.markRefreshed(index)
+            lookup(table.randomIdInBucket(index))
         }
-    }
 
-    suspend fun handleIncoming(data: String, fromHash: String) {
+        // 3. Anti-entropy раунд с одним случайным соседом
         val now = System.currentTimeMillis()
-        val last = lastSyncFromPeer[fromHash] ?: 0
-        if (now - last < MIN_SYNC_INTERVAL_FROM_PEER) return
-        lastSyncFromPeer[fromHash] = now
+        digestBudget.prune(now)
+        deltaBudget.prune(now)
+        awaitingReply.entries.removeIf { now - it.value > REPLY_WINDOW }
 
-        try {
-            val json = JSONObject(data)
-            val nodesArray = json.optJSONArray("nodes") ?: return
-            mergeIncomingNodes(nodesArray)
-        } catch (e: Exception) {
-            Log.e(TAG, "Failed to parse gossip packet", e)
+        val neighbour = table.closest(identityRepository.getMyId()).randomOrNull() ?: return
+        awaitingReply[neighbour.hash] = now
+        sendDigest(neighbour.ip, reply = false)
+    }
+
+    /* ======================= ANTI-ENTROPY ======================= */
+
+    private suspend fun sendDigest(ip: String, reply: Boolean) {
+        val salt = random.nextInt().takeIf { it != 0 } ?: 1
+        val filter = AntiEntropy.digest(nodeDao.getDigestEntries(), salt)
+
+        val payload = JSONObject().apply {
+            put("digest", Base64.encodeToString(filter.toBytes(), Base64.NO_WRAP))
+            put("salt", salt)
+            put("reply", reply)
         }
+        identityRepository.sendUdp(ip, PEER_SYNC_TYPE, payload.toString())
     }
 
-    private suspend fun mergeIncomingNodes(nodes: JSONArray) {
-        withContext(Dispatchers.IO) {
-            for (i in 0 until nodes.length()) {
-                val obj = nodes.getJSONObject(i)
-                val hash = obj.getString("hash")
-                
-                if (hash == identityRepository.getMyId()) continue
+    /**
+     * Отвечает на дайджест собеседника записями, которых у него нет (или его версия старее),
+     * а на первичный дайджест — ещё и своим, чтобы синхронизация была двусторонней.
+     */
+    private suspend fun handleDigest(json: JSONObject, fromHash: String, fromIp: String) {
+        val filter = BloomFilter.fromBytes(Base64.decode(json.getString("digest"), Base64.NO_WRAP)) ?: return
 
-                val ip = obj.optString("ip", "0.0.0.0")
-                val port = obj.optInt("port", 8888) 
-                val publicKey = obj.optString("publicKey", "")
-                val lastSeen = obj.optLong("lastSeen", 0L) 
-
-                if (hash.isBlank() || publicKey.isBlank()) continue
-
-                val local = nodeDao.getNodeByHash(hash)
-
-                if (local == null) {
-                    // Новый узел -> сохраняем и пингуем
-                    nodeDao.upsert(
-                        NodeEntity(
-                            userHash = hash,
-                            phone_hash = "",
-                            ip = ip,
-                            port = port,
-                            publicKey = publicKey,
-                            phone = "",
-                            lastSeen = lastSeen
-                        )
-                    )
-                    if (ip != "0.0.0.0") identityRepository.sendUdp(ip, "PING", "gossip_discovery")
-                } else {
-                    // Обновляем, только если данные свежее
-                    if (lastSeen > local.lastSeen) {
-                        nodeDao.updateNetworkInfo(hash, ip, port, local.publicKey, lastSeen)
-                    }
-                }
+        val salt = json.optInt("salt", 0)
+        val missing = AntiEntropy.missing(nodeDao.getDigestEntries(), filter, salt, fromHash, MAX_DELTA_PER_ROUND)
+
+        if (missing.isNotEmpty()) {
+            nodeDao.getNodesByHashes(missing).chunked(MAX_NODES_PER_PACKET).forEach { batch ->
+                identityRepository.sendUdp(fromIp, PEER_SYNC_TYPE, buildSyncPayload(batch))
             }
         }
+
+        if (!json.optBoolean("reply", false)) sendDigest(fromIp, reply = true)
     }
 
     private fun buildSyncPayload(nodes: List<NodeEntity>): String {
@@ -158,4 +174,266 @@ class PeerSyncRepository(
         }
         return JSONObject().put("nodes", arr).toString()
     }
+
+    /* ======================= ROUTING TABLE ======================= */
+
+    private fun table(): KademliaRoutingTable? {
+        routingTable?.let { return it }
+        val myId = identityRepository.getMyId()
+        if (!KademliaRoutingTable.isValidId(myId)) return null
+        return synchronized(this) {
+            routingTable ?: KademliaRoutingTable(myId).also { routingTable = it }
+        }
+    }
+
+    private suspend fun bootstrapFromDb() {
+        val table = table() ?: return
+        nodeDao.getRecentNodes(ROUTING_BOOTSTRAP_LIMIT)
+            .filter { it.ip != "0.0.0.0" && it.publicKey.isNotBlank() }
+            .forEach { table.update(it.toContact(), it.lastSeen) }
+        Log.i(TAG, "Routing table bootstrapped with ${table.size()} nodes")
+    }
+
+    /**
+     * Вызывается для каждого пакета с проверенной подписью: узел жив, освежаем его в таблице.
+     * Если бакет заполнен, проверяем самый старый узел и вытесняем его только при отсутствии ответа.
+     */
+    fun onPeerSeen(hash: String, ip: String, port: Int, publicKey: String) {
+        pendingPings.remove(hash)?.complete(Unit)
+
+        val table = table() ?: return
+        val contact = Contact(hash, ip, port, publicKey, System.currentTimeMillis())
+        val oldest = table.update(contact) ?: return
+
+        if (pendingPings.containsKey(oldest.hash)) return
+        val alive = CompletableDeferred<Unit>()
+        pendingPings[oldest.hash] = alive
+
+        scope.launch {
+            identityRepository.sendUdp(oldest.ip, "PING", "liveness")
+            val answered = withTimeoutOrNull(PING_TIMEOUT) { alive.await() } != null
+            pendingPings.remove(oldest.hash)
+            if (!answered) {
+                table.evict(oldest.hash)
+                table.update(contact)
+            }
+        }
+    }
+
+    /**
+     * Адрес узла: сначала таблица маршрутизации, затем итеративный поиск по DHT.
+     */
+    suspend fun findNode(hash: String): Contact? {
+        val table = table() ?: return null
+        table.find(hash)?.let { return it }
+        if (!KademliaRoutingTable.isValidId(hash)) return null
+        return lookup(hash).firstOrNull { it.hash == hash }
+    }
+
+    /**
+     * Итеративный FIND_NODE: опрашиваем по [ALPHA] ближайших ещё не опрошенных узлов,
+     * пока очередной раунд не перестанет приближать нас к цели.
+     * Возвращает до K ближайших к [target] узлов.
+     */
+    suspend fun lookup(target: String): List<Contact> {
+        val table = table() ?: return emptyList()
+        val targetBytes = KademliaRoutingTable.idToBytes(target) ?: return emptyList()
+        val comparator = KademliaRoutingTable.distanceComparator(targetBytes)
+        val myId = identityRepository.getMyId()
+
+        val shortlist = HashMap<String, Contact>()
+        table.closest(target).forEach { shortlist[it.hash] = it }
+        val queried = HashSet<String>()
+        val discovered = ArrayList<Contact>()
+
+        while (true) {
+            val closest = shortlist.values.sortedWith(comparator).take(KademliaRoutingTable.K)
+            if (closest.any { it.hash == target }) break
+
+            val round = closest.filter { it.hash !in queried }.take(ALPHA)
+            if (round.isEmpty()) break
+            round.forEach { queried.add(it.hash) }
+
+            val responses = coroutineScope {
+                round.map { async { queryFindNode(it, target) } }.awaitAll()
+            }
+
+            responses.forEachIndexed { i, result ->
+                if (result == null) {
+                    // Узел не ответил — исключаем из кандидатов
+                    shortlist.remove(round[i].hash)
+                    return@forEachIndexed
+                }
+                result.filter { it.hash != myId && it.hash !in shortlist && it.hash !in queried }.forEach {
+                    shortlist[it.hash] = it
+                    discovered.add(it)
+                }
+            }
+        }
+
+        persistContacts(discovered)
+        pingUnknown(discovered.map { it.hash to it.ip })
+        return shortlist.values.sortedWith(comparator).take(KademliaRoutingTable.K)
+    }
+
+    private suspend fun queryFindNode(peer: Contact, target: String): List<Contact>? {
+        val rpcId = UUID.randomUUID().toString()
+        val deferred = CompletableDeferred<List<Contact>>()
+        pendingLookups[rpcId] = deferred
+
+        return try {
+            val request = JSONObject().apply {
+                put("rpc", rpcId)
+                put("target", target)
+            }.toString()
+
+            if (!identityRepository.sendUdp(peer.ip, FIND_NODE_TYPE, request)) return null
+            withTimeoutOrNull(RPC_TIMEOUT) { deferred.await() }
+        } finally {
+            pendingLookups.remove(rpcId)
+        }
+    }
+
+    suspend fun handleFindNode(data: String, fromIp: String) {
+        val table = table() ?: return
+        try {
+            val json = JSONObject(data)
+            val rpcId = json.getString("rpc")
+            val target = json.getString("target")
+
+            val response = JSONObject().apply {
+                put("rpc", rpcId)
+                put("nodes", contactsToJson(table.closest(target)))
+            }
+            identityRepository.sendUdp(fromIp, FIND_NODE_RESP_TYPE, response.toString())
+        } catch (e: Exception) {
+            Log.w(TAG, "Malformed FIND_NODE: ${e.message}")
+        }
+    }
+
+    fun handleFindNodeResponse(data: String) {
+        try {
+            val json = JSONObject(data)
+            val deferred = pendingLookups[json.getString("rpc")] ?: return
+            val nodes = json.optJSONArray("nodes") ?: JSONArray()
+
+            val contacts = (0 until nodes.length()).mapNotNull { i ->
+                val obj = nodes.getJSONObject(i)
+                val hash = obj.optString("hash")
+                val ip = obj.optString("ip", "0.0.0.0")
+                if (!KademliaRoutingTable.isValidId(hash) || ip == "0.0.0.0") return@mapNotNull null
+                // Ключи третьих узлов не доверяем на слово: без совпадения с хешем храним только адрес,
+                // настоящий ключ придёт в подписанном пакете самого узла
+                val publicKey = obj.optString("publicKey", "")
+                Contact(
+                    hash = hash,
+                    ip = ip,
+                    port = obj.optInt("port", 8888),
+                    publicKey = if (isKeyOfNode(hash, publicKey)) publicKey else "",
+                    lastSeen = obj.optLong("lastSeen", 0L)
+                )
+            }
+            deferred.complete(contacts)
+        } catch (e: Exception) {
+            Log.w(TAG, "Malformed FIND_NODE_RESP: ${e.message}")
+        }
+    }
+
+    private suspend fun persistContacts(contacts: List<Contact>) {
+        if (contacts.isEmpty()) return
+        try {
+            identityRepository.peerDirectory.mergeNetwork(contacts.map {
+                NodeEntity(
+                    userHash = it.hash,
+                    ip = it.ip,
+                    port = it.port,
+                    publicKey = it.publicKey,
+                    lastSeen = it.lastSeen
+                )
+            })
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to persist routing contacts: ${e.message}")
+        }
+    }
+
+    private fun contactsToJson(contacts: List<Contact>): JSONArray {
+        val arr = JSONArray()
+        contacts.forEach {
+            arr.put(JSONObject().apply {
+                put("hash", it.hash)
+                put("ip", it.ip)
+                put("port", it.port)
+                put("publicKey", it.publicKey)
+                put("lastSeen", it.lastSeen)
+            })
+        }
+        return arr
+    }
+
+    private fun NodeEntity.toContact() = Contact(userHash, ip, port, publicKey, lastSeen)
+
+    /**
+     * Обработка PEER_SYNC: дайджест ({"digest": ...}) или дельта записей ({"nodes": [...]}).
+     * Дельты в том же формате присылают и старые клиенты со случайной выборкой узлов.
+     */
+    suspend fun handleIncoming(data: String, fromHash: String, fromIp: String) {
+        try {
+            val json = JSONObject(data)
+
+            if (json.has("digest")) {
+                // Каждый принятый дайджест стоит нам до MAX_DELTA_PER_ROUND записей ответа:
+                // ответный — только на наш запрос, первичный — не чаще интервала
+                val accepted = if (json.optBoolean("reply", false)) {
+                    awaitingReply.remove(fromHash) != null
+                } else {
+                    digestBudget.take(fromHash, 1) > 0
+                }
+                if (accepted) handleDigest(json, fromHash, fromIp)
+                return
+            }
+
+            val nodesArray = json.optJSONArray("nodes") ?: return
+            val allowed = deltaBudget.take(fromHash, minOf(nodesArray.length(), MAX_DELTA_PER_ROUND))
+            if (allowed > 0) mergeIncomingNodes(nodesArray, allowed)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to parse gossip packet", e)
+        }
+    }
+
+    /**
+     * Применяет дельту одной транзакцией Room вместо чтения и записи по каждому узлу.
+     */
+    private suspend fun mergeIncomingNodes(nodes: JSONArray, limit: Int) {
+        val myId = identityRepository.getMyId()
+        val entities = (0 until minOf(nodes.length(), limit)).mapNotNull { i ->
+            val obj = nodes.getJSONObject(i)
+            val hash = obj.optString("hash")
+            val publicKey = obj.optString("publicKey", "")
+            // Записи с чужим ключом отбрасываем целиком, как и в FIND_NODE_RESP
+            if (hash == myId || !isKeyOfNode(hash, publicKey)) return@mapNotNull null
+
+            NodeEntity(
+                userHash = hash,
+                ip = obj.optString("ip", "0.0.0.0"),
+                port = obj.optInt("port", 8888),
+                publicKey = publicKey,
+                lastSeen = obj.optLong("lastSeen", 0L)
+            )
+        }
+        if (entities.isEmpty()) return
+
+        identityRepository.peerDirectory.mergeNetwork(entities)
+        pingUnknown(entities.map { it.userHash to it.ip })
+    }
+
+    /**
+     * Неизвестные таблице маршрутизации узлы пингуем: подписанный ответ добавит их
+     * в бакеты через [onPeerSeen] уже с проверенным ключом.
+     */
+    private suspend fun pingUnknown(nodes: List<Pair<String, String>>) {
+        val table = table() ?: return
+        nodes
+            .filter { (hash, ip) -> ip != "0.0.0.0" && table.find(hash) == null }
+            .forEach { (_, ip) -> identityRepository.sendUdp(ip, "PING", "discovery") }
+    }
 }
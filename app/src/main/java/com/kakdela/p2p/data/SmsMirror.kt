@@ -0,0 +1,235 @@
+package com.kakdela.p2p.data
+
+import android.Manifest
+import android.content.Context
+import android.content.pm.PackageManager
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
+import android.provider.Telephony
+import android.util.Log
+import androidx.core.content.ContextCompat
+import com.kakdela.p2p.data.local.ChatDatabase
+import com.kakdela.p2p.data.local.SmsEntity
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * SmsMirror — зеркало системных SMS в локальной таблице sms_mirror.
+ *
+ * Первый запуск переносит всё хранилище SMS одним фоновым проходом, дальше при каждом
+ * уведомлении ContentObserver забираются только строки с _ID выше водяного знака
+ * (MAX(smsId) в зеркале), плюс исходящие, которые ещё в очереди, и строки из URI уведомления
+ * (так замечаются удаления). Уведомления схлопываются: пока идёт синхронизация, новые
+ * запросы сливаются в один. Экраны читают только зеркало по индексу нормализованного адреса.
+ */
+class SmsMirror private constructor(context: Context) {
+
+    private val TAG = "SmsMirror"
+    private val appContext = context.applicationContext
+    private val dao = ChatDatabase.getDatabase(appContext).smsDao()
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    private val requests = Channel<Unit>(Channel.CONFLATED)
+    private val touchedIds: MutableSet<Long> = ConcurrentHashMap.newKeySet()
+    private val started = AtomicBoolean(false)
+    private val observerRegistered = AtomicBoolean(false)
+    @Volatile
+    private var reconciled = false
+
+    private val observer = object : ContentObserver(Handler(Looper.getMainLooper())) {
+        override fun onChange(selfChange: Boolean, uri: Uri?) {
+            uri?.lastPathSegment?.toLongOrNull()?.let { touchedIds.add(it) }
+            requests.trySend(Unit)
+        }
+    }
+
+    companion object {
+        private const val BATCH = 500
+        private const val NATIONAL_DIGITS = 10
+        private val PENDING_TYPES = listOf(
+            Telephony.Sms.MESSAGE_TYPE_OUTBOX,
+            Telephony.Sms.MESSAGE_TYPE_QUEUED
+        )
+        private val PROJECTION = arrayOf(
+            Telephony.Sms._ID,
+            Telephony.Sms.ADDRESS,
+            Telephony.Sms.BODY,
+            Telephony.Sms.DATE,
+            Telephony.Sms.TYPE
+        )
+
+        @Volatile
+        private var INSTANCE: SmsMirror? = null
+
+        fun getInstance(context: Context): SmsMirror {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: SmsMirror(context).also { INSTANCE = it }
+            }
+        }
+
+        /**
+         * Ключ адреса: национальный номер — последние [NATIONAL_DIGITS] цифр, поэтому
+         * +7XXXXXXXXXX, 8XXXXXXXXXX и XXXXXXXXXX дают один ключ. Короткие номера
+         * сравниваются всеми цифрами, буквенные отправители («Bank») — по самому имени.
+         */
+        fun normalizeAddress(address: String): String {
+            val digits = address.filter { it.isDigit() }
+            return when {
+                digits.isEmpty() -> address.trim().lowercase()
+                digits.length > NATIONAL_DIGITS -> digits.takeLast(NATIONAL_DIGITS)
+                else -> digits
+            }
+        }
+    }
+
+    /**
+     * Запускает цикл синхронизации и подписку на изменения. Повторный вызов
+     * (например, после выдачи разрешения READ_SMS) лишь запрашивает синхронизацию.
+     */
+    fun start() {
+        if (started.compareAndSet(false, true)) {
+            scope.launch {
+                for (request in requests) {
+                    try {
+                        sync()
+                    } catch (e: CancellationException) {
+                        throw e
+                    } catch (e: Exception) {
+                        Log.e(TAG, "SMS sync failed", e)
+                    }
+                }
+            }
+        }
+        requestSync()
+    }
+
+    fun requestSync() {
+        requests.trySend(Unit)
+    }
+
+    fun observeThread(address: String): Flow<List<SmsEntity>> = dao.observeThread(normalizeAddress(address))
+
+    fun observeLatestPerAddress(): Flow<List<SmsEntity>> = dao.observeLatestPerAddress()
+
+    /* ======================= СИНХРОНИЗАЦИЯ ======================= */
+
+    private suspend fun sync() {
+        if (ContextCompat.checkSelfPermission(appContext, Manifest.permission.READ_SMS)
+            != PackageManager.PERMISSION_GRANTED
+        ) return
+        registerObserver()
+
+        val start = System.currentTimeMillis()
+        val watermark = dao.maxId() ?: 0L
+        val added = pull("${Telephony.Sms._ID} > ?", arrayOf(watermark.toString()))
+
+        // Исходящие в очереди меняют TYPE у того же _ID, а URI уведомления указывает на изменённую строку
+        val recheck = HashSet<Long>()
+        recheck.addAll(dao.getIdsByType(PENDING_TYPES))
+        touchedIds.toList().forEach { id ->
+            touchedIds.remove(id)
+            if (id <= watermark) recheck.add(id)
+        }
+        if (recheck.isNotEmpty()) refresh(recheck)
+
+        if (!reconciled) {
+            reconcileDeletions()
+            reconciled = true
+        }
+        if (added > 0) Log.i(TAG, "Mirrored $added SMS in ${System.currentTimeMillis() - start} ms (watermark $watermark)")
+    }
+
+    private fun registerObserver() {
+        if (!observerRegistered.compareAndSet(false, true)) return
+        try {
+            appContext.contentResolver.registerContentObserver(Telephony.Sms.CONTENT_URI, true, observer)
+        } catch (e: SecurityException) {
+            observerRegistered.set(false)
+        }
+    }
+
+    /**
+     * Переносит строки по условию, вставляя пачками по мере чтения курсора.
+     * @return число перенесённых строк.
+     */
+    private suspend fun pull(selection: String, args: Array<String>): Int {
+        var count = 0
+        val batch = ArrayList<SmsEntity>(BATCH)
+        appContext.contentResolver.query(
+            Telephony.Sms.CONTENT_URI, PROJECTION, selection, args, "${Telephony.Sms._ID} ASC"
+        )?.use { cursor ->
+            val idIdx = cursor.getColumnIndexOrThrow(Telephony.Sms._ID)
+            val addressIdx = cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS)
+            val bodyIdx = cursor.getColumnIndexOrThrow(Telephony.Sms.BODY)
+            val dateIdx = cursor.getColumnIndexOrThrow(Telephony.Sms.DATE)
+            val typeIdx = cursor.getColumnIndexOrThrow(Telephony.Sms.TYPE)
+
+            while (cursor.moveToNext()) {
+                val address = cursor.getString(addressIdx) ?: continue
+                batch.add(
+                    SmsEntity(
+                        smsId = cursor.getLong(idIdx),
+                        address = address,
+                        addressKey = normalizeAddress(address),
+                        body = cursor.getString(bodyIdx).orEmpty(),
+                        date = cursor.getLong(dateIdx),
+                        type = cursor.getInt(typeIdx)
+                    )
+                )
+                if (batch.size == BATCH) {
+                    dao.upsertAll(batch)
+                    count += batch.size
+                    batch.clear()
+                }
+            }
+        }
+        if (batch.isNotEmpty()) {
+            dao.upsertAll(batch)
+            count += batch.size
+        }
+        return count
+    }
+
+    /**
+     * Перечитывает уже перенесённые строки; пропавшие в системе удаляются из зеркала.
+     */
+    private suspend fun refresh(ids: Collection<Long>) {
+        ids.chunked(BATCH).forEach { chunk ->
+            val present = HashSet<Long>()
+            appContext.contentResolver.query(
+                Telephony.Sms.CONTENT_URI,
+                arrayOf(Telephony.Sms._ID),
+                "${Telephony.Sms._ID} IN (${chunk.joinToString(",")})",
+                null,
+                null
+            )?.use { cursor ->
+                while (cursor.moveToNext()) present.add(cursor.getLong(0))
+            }
+            if (present.isNotEmpty()) pull("${Telephony.Sms._ID} IN (${present.joinToString(",")})", emptyArray())
+            val gone = chunk.filter { it !in present }
+            if (gone.isNotEmpty()) dao.deleteByIds(gone)
+        }
+    }
+
+    /**
+     * Один раз за процесс сверяет набор _ID с системой: удаления, сделанные, пока
+     * приложение не работало, уведомлением не приходят. Читается только колонка _ID.
+     */
+    private suspend fun reconcileDeletions() {
+        val system = HashSet<Long>()
+        appContext.contentResolver.query(
+            Telephony.Sms.CONTENT_URI, arrayOf(Telephony.Sms._ID), null, null, null
+        )?.use { cursor ->
+            while (cursor.moveToNext()) system.add(cursor.getLong(0))
+        } ?: return
+
+        val gone = dao.getAllIds().filter { it !in system }
+        gone.chunked(BATCH).forEach { dao.deleteByIds(it) }
+        if (gone.isNotEmpty()) Log.i(TAG, "Removed ${gone.size} SMS deleted outside the app")
+    }
+}
@@ -0,0 +1,286 @@
+package com.kakdela.p2p.data
+
+import android.content.ContentUris
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.media.MediaMetadataRetriever
+import android.os.Build
+import android.provider.MediaStore
+import android.util.Log
+import android.util.LruCache
+import android.util.Size
+import android.widget.ImageView
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import java.io.File
+import java.io.FileOutputStream
+import java.util.WeakHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Миниатюра, которую может получить [ThumbnailLoader]. [key] однозначно задаёт картинку:
+ * в него входят дата изменения и размер, поэтому изменённый файл получит новую миниатюру.
+ */
+sealed class ThumbnailRequest(val key: String) {
+
+    /** Видео из MediaStore: ключ — id и DATE_MODIFIED. */
+    class Video(val id: Long, val dateModified: Long, val width: Int = 320, val height: Int = 180) :
+        ThumbnailRequest("v_${id}_${dateModified}_${width}x$height")
+
+    /** Изображение или видео на диске (файловый менеджер). */
+    class LocalFile(val path: String, val lastModified: Long, val isVideo: Boolean, val maxSize: Int = 128) :
+        ThumbnailRequest("f_${Integer.toHexString(path.hashCode())}_${path.length}_${lastModified}_$maxSize")
+
+    /** Вложение чата: файл миниатюры уже кеширует [AttachmentStore], здесь только память. */
+    class Attachment(val hash: String, val mime: String?) : ThumbnailRequest("a_$hash")
+}
+
+/**
+ * ThumbnailLoader — общий конвейер миниатюр для плейлиста видео, файлового менеджера
+ * и превью вложений в чате.
+ *
+ * - декодирование идёт на [DECODE_THREADS] фоновых потоках, главный поток только ставит картинку;
+ * - отменённый запрос (строка списка переиспользована, элемент ушёл с экрана) не декодируется,
+ *   одинаковые одновременные запросы объединяются в одно декодирование;
+ * - в памяти — LRU, ограниченный байтами растров, на диске — JPEG в cacheDir/thumbs,
+ *   вытесняются давно не использованные файлы сверх [DISK_MAX_BYTES];
+ * - [prefetch] заранее готовит следующий экран списка.
+ */
+class ThumbnailLoader internal constructor(context: Context) {
+
+    private val appContext = context.applicationContext
+    private val diskDir = File(appContext.cacheDir, "thumbs")
+    private val diskBytes = AtomicLong(-1)
+
+    private val decoder = Executors.newFixedThreadPool(DECODE_THREADS) { r ->
+        Thread(r, "thumbnail-${THREADS.incrementAndGet()}").apply { priority = Thread.NORM_PRIORITY - 1 }
+    }.asCoroutineDispatcher()
+    private val scope = CoroutineScope(SupervisorJob() + decoder)
+
+    private val memory = object : LruCache<String, Bitmap>(memoryBudget()) {
+        override fun sizeOf(key: String, value: Bitmap): Int = value.allocationByteCount
+    }
+
+    private class Pending(val deferred: Deferred<Bitmap?>) {
+        var waiters = 0
+    }
+
+    private val inflight = HashMap<String, Pending>()
+
+    // Текущая загрузка каждой ImageView; трогается только с главного потока
+    private val viewJobs = WeakHashMap<ImageView, Job>()
+
+    companion object {
+        private const val TAG = "ThumbnailLoader"
+        private const val DECODE_THREADS = 2
+        private const val MEMORY_MAX_BYTES = 32 * 1024 * 1024
+        private const val DISK_MAX_BYTES = 64L * 1024 * 1024
+        private val THREADS = AtomicInteger()
+
+        @Volatile private var INSTANCE: ThumbnailLoader? = null
+
+        fun get(context: Context): ThumbnailLoader {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: ThumbnailLoader(context).also { INSTANCE = it }
+            }
+        }
+
+        // Не больше 1/8 кучи приложения: миниатюры не должны вытеснять остальное
+        private fun memoryBudget(): Int =
+            minOf(Runtime.getRuntime().maxMemory() / 8, MEMORY_MAX_BYTES.toLong()).toInt()
+    }
+
+    /** Миниатюра из памяти без ожидания; null — её надо загрузить через [load]. */
+    fun cached(request: ThumbnailRequest): Bitmap? = memory.get(request.key)
+
+    /**
+     * Миниатюра или null, если её нельзя построить. Отмена вызывающей корутины снимает
+     * её интерес к запросу; декодирование прерывается, когда запрос больше никому не нужен.
+     */
+    suspend fun load(request: ThumbnailRequest): Bitmap? {
+        memory.get(request.key)?.let { return it }
+
+        val pending = synchronized(inflight) {
+            inflight.getOrPut(request.key) {
+                val deferred = scope.async(start = CoroutineStart.LAZY) { produce(request) }
+                Pending(deferred).also { created ->
+                    deferred.invokeOnCompletion { synchronized(inflight) { inflight.remove(request.key, created) } }
+                }
+            }.also { it.waiters++ }
+        }
+        pending.deferred.start()
+        try {
+            return pending.deferred.await()
+        } finally {
+            synchronized(inflight) {
+                if (--pending.waiters == 0 && !pending.deferred.isCompleted) {
+                    pending.deferred.cancel()
+                    inflight.remove(request.key, pending)
+                }
+            }
+        }
+    }
+
+    /**
+     * Готовит миниатюры заранее. Приостанавливается, пока все не загружены;
+     * отмена (например, через collectLatest при следующей прокрутке) снимает оставшиеся.
+     */
+    suspend fun prefetch(requests: List<ThumbnailRequest>) = coroutineScope {
+        requests.filter { memory.get(it.key) == null }.forEach { launch { load(it) } }
+    }
+
+    /**
+     * Загрузка в [view] для списков на View (RecyclerView): предыдущий запрос этой же
+     * строки отменяется, картинка ставится, только если строка всё ещё показывает [request].
+     */
+    fun into(view: ImageView, request: ThumbnailRequest, owner: CoroutineScope, placeholder: Int = 0) {
+        viewJobs.remove(view)?.cancel()
+        memory.get(request.key)?.let {
+            view.setImageBitmap(it)
+            return
+        }
+        if (placeholder != 0) view.setImageResource(placeholder) else view.setImageDrawable(null)
+        val job = owner.launch(Dispatchers.Main.immediate) {
+            val bitmap = load(request)
+            if (bitmap != null) view.setImageBitmap(bitmap)
+        }
+        viewJobs[view] = job
+        job.invokeOnCompletion { view.post { viewJobs.remove(view, job) } }
+    }
+
+    /** Отмена загрузки в [view] при переиспользовании строки. */
+    fun cancel(view: ImageView) {
+        viewJobs.remove(view)?.cancel()
+    }
+
+    /* ======================= ДЕКОДИРОВАНИЕ ======================= */
+
+    private suspend fun produce(request: ThumbnailRequest): Bitmap? {
+        val onDisk = request !is ThumbnailRequest.Attachment
+        val file = File(diskDir, "${request.key}.jpg")
+
+        if (onDisk && file.exists()) {
+            BitmapFactory.decodeFile(file.path)?.let { bitmap ->
+                file.setLastModified(System.currentTimeMillis())
+                memory.put(request.key, bitmap)
+                return bitmap
+            }
+        }
+
+        coroutineContext.ensureActive()
+        val bitmap = try {
+            decode(request)
+        } catch (e: Exception) {
+            Log.w(TAG, "Thumbnail failed for ${request.key}: ${e.message}")
+            null
+        } ?: return null
+
+        memory.put(request.key, bitmap)
+        if (onDisk) writeToDisk(file, bitmap)
+        return bitmap
+    }
+
+    private suspend fun decode(request: ThumbnailRequest): Bitmap? = when (request) {
+        is ThumbnailRequest.Video -> {
+            val uri = ContentUris.withAppendedId(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, request.id)
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                appContext.contentResolver.loadThumbnail(uri, Size(request.width, request.height), null)
+            } else {
+                @Suppress("DEPRECATION")
+                MediaStore.Video.Thumbnails.getThumbnail(
+                    appContext.contentResolver, request.id, MediaStore.Video.Thumbnails.MINI_KIND, null
+                )
+            }
+        }
+        is ThumbnailRequest.LocalFile ->
+            if (request.isVideo) videoFrame(request.path, request.maxSize) else decodeSampled(request.path, request.maxSize)
+        is ThumbnailRequest.Attachment ->
+            AttachmentStore(appContext).thumbnail(request.hash, request.mime)?.let { BitmapFactory.decodeFile(it.path) }
+    }
+
+    private fun decodeSampled(path: String, maxSize: Int): Bitmap? {
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeFile(path, bounds)
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null
+
+        var sample = 1
+        while (bounds.outWidth / (sample * 2) >= maxSize && bounds.outHeight / (sample * 2) >= maxSize) sample *= 2
+        val decoded = BitmapFactory.decodeFile(path, BitmapFactory.Options().apply { inSampleSize = sample })
+            ?: return null
+        return scaleDown(decoded, maxSize)
+    }
+
+    private fun videoFrame(path: String, maxSize: Int): Bitmap? {
+        val retriever = MediaMetadataRetriever()
+        return try {
+            retriever.setDataSource(path)
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                retriever.getScaledFrameAtTime(0, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, maxSize, maxSize)
+            } else {
+                retriever.getFrameAtTime(0)?.let { scaleDown(it, maxSize) }
+            }
+        } finally {
+            retriever.release()
+        }
+    }
+
+    private fun scaleDown(bitmap: Bitmap, maxSize: Int): Bitmap {
+        val longest = maxOf(bitmap.width, bitmap.height)
+        if (longest <= maxSize) return bitmap
+        val scale = maxSize.toFloat() / longest
+        val scaled = Bitmap.createScaledBitmap(
+            bitmap,
+            (bitmap.width * scale).toInt().coerceAtLeast(1),
+            (bitmap.height * scale).toInt().coerceAtLeast(1),
+            true
+        )
+        if (scaled !== bitmap) bitmap.recycle()
+        return scaled
+    }
+
+    /* ======================= ДИСКОВЫЙ КЭШ ======================= */
+
+    private fun writeToDisk(file: File, bitmap: Bitmap) {
+        try {
+            diskDir.mkdirs()
+            val tmp = File(diskDir, "${file.name}.part")
+            FileOutputStream(tmp).use { bitmap.compress(Bitmap.CompressFormat.JPEG, 80, it) }
+            if (!tmp.renameTo(file)) {
+                tmp.delete()
+                return
+            }
+            if (diskBytes.get() < 0) diskBytes.compareAndSet(-1, diskDir.listFiles()?.sumOf { it.length() } ?: 0)
+            else diskBytes.addAndGet(file.length())
+            if (diskBytes.get() > DISK_MAX_BYTES) trimDisk()
+        } catch (e: Exception) {
+            Log.w(TAG, "Disk cache write failed: ${e.message}")
+        }
+    }
+
+    /** Удаляет давно не читанные файлы, пока кэш не станет на четверть меньше лимита. */
+    @Synchronized
+    private fun trimDisk() {
+        val files = diskDir.listFiles()?.sortedBy { it.lastModified() } ?: return
+        var total = files.sumOf { it.length() }
+        val target = DISK_MAX_BYTES * 3 / 4
+        for (file in files) {
+            if (total <= target) break
+            val length = file.length()
+            if (file.delete()) total -= length
+        }
+        diskBytes.set(total)
+    }
+}
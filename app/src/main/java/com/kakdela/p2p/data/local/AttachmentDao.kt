@@ -0,0 +1,45 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface AttachmentDao {
+
+    /**
+     * Регистрирует вложение; если такое содержимое уже есть — ничего не делает (дедупликация).
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertIfAbsent(attachment: AttachmentEntity)
+
+    @Query("SELECT * FROM attachments WHERE hash = :hash LIMIT 1")
+    suspend fun getByHash(hash: String): AttachmentEntity?
+
+    /**
+     * Пересчёт ссылок по messages.fileHash. Исправляет расхождения, которые триггеры
+     * не ловят (REPLACE-вставка сообщения с тем же ID не вызывает DELETE-триггер).
+     */
+    @Query("""
+        UPDATE attachments SET refCount = (
+            SELECT COUNT(*) FROM messages WHERE messages.fileHash = attachments.hash
+        )
+    """)
+    suspend fun reconcileRefCounts()
+
+    /**
+     * Вложения без ссылок, добавленные раньше [olderThan].
+     */
+    @Query("SELECT hash FROM attachments WHERE refCount <= 0 AND createdAt < :olderThan")
+    suspend fun getUnreferenced(olderThan: Long): List<String>
+
+    @Query("DELETE FROM attachments WHERE hash IN (:hashes) AND refCount <= 0")
+    suspend fun deleteUnreferenced(hashes: List<String>)
+
+    @Query("SELECT COUNT(*) FROM attachments")
+    suspend fun count(): Int
+
+    @Query("SELECT COALESCE(SUM(size), 0) FROM attachments")
+    suspend fun totalSize(): Long
+}
@@ -0,0 +1,42 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * Запись content-addressed хранилища вложений.
+ * Сам файл лежит на диске по пути, производному от [hash]; в БД — только метаданные.
+ */
+@Entity(
+    tableName = "attachments",
+    indices = [Index(value = ["refCount"])]
+)
+data class AttachmentEntity(
+    /**
+     * SHA-256 содержимого (hex). Одинаковые файлы из разных чатов хранятся один раз.
+     */
+    @PrimaryKey
+    val hash: String,
+
+    /**
+     * Размер файла в байтах.
+     */
+    val size: Long,
+
+    /**
+     * MIME-тип, определённый при сохранении.
+     */
+    val mime: String? = null,
+
+    /**
+     * Число сообщений, ссылающихся на вложение (messages.fileHash).
+     * Поддерживается триггерами БД, см. [ChatDatabase].
+     */
+    val refCount: Int = 0,
+
+    /**
+     * Время добавления в хранилище; свежие записи без ссылок не удаляются сборщиком.
+     */
+    val createdAt: Long = System.currentTimeMillis()
+)
@@ -1,26 +1,41 @@
 package com.kakdela.p2p.data.local
 
 import android.content.Context
+import android.util.Log
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.RoomDatabase.JournalMode
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.kakdela.p2p.data.AttachmentStore
 
 /**
  * Основная база данных для P2P чата.
- * Хранит сообщения и информацию об узлах (NodeEntity).
+ * Хранит сообщения, информацию об узлах (NodeEntity), метаданные вложений (AttachmentEntity),
+ * сводки чатов для главного экрана (ChatSummaryEntity), зеркало системных SMS (SmsEntity)
+ * и полнотекстовый индекс сообщений (MessageFts).
  */
 @Database(
-    entities = [MessageEntity::class, NodeEntity::class],
-    version = 3,
+    entities = [
+        MessageEntity::class, NodeEntity::class, AttachmentEntity::class,
+        ChatSummaryEntity::class, SmsEntity::class, MessageFts::class
+    ],
+    version = 10,
     exportSchema = false
 )
 abstract class ChatDatabase : RoomDatabase() {
 
     abstract fun messageDao(): MessageDao
     abstract fun nodeDao(): NodeDao
+    abstract fun attachmentDao(): AttachmentDao
+    abstract fun chatSummaryDao(): ChatSummaryDao
+    abstract fun smsDao(): SmsDao
+    abstract fun messageSearchDao(): MessageSearchDao
 
     companion object {
+        private const val TAG = "ChatDatabase"
+
         @Volatile
         private var INSTANCE: ChatDatabase? = null
 
@@ -34,6 +49,12 @@ abstract class ChatDatabase : RoomDatabase() {
                     ChatDatabase::class.java,
                     "chat_p2p_secure.db"
                 )
+                    .addMigrations(
+                        migration3To4(context.applicationContext),
+                        MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7, MIGRATION_7_8,
+                        MIGRATION_8_9, MIGRATION_9_10
+                    )
+                    .addCallback(Triggers)
                     .fallbackToDestructiveMigration() // Автоматическая миграция при смене версии
                     .setJournalMode(JournalMode.WRITE_AHEAD_LOGGING) // Улучшенная производительность при параллельных операциях
                     .build()
@@ -41,5 +62,306 @@ abstract class ChatDatabase : RoomDatabase() {
                 instance
             }
         }
+
+        /**
+         * Триггеры, поддерживающие производные данные:
+         * - attachments.refCount по messages.fileHash;
+         * - chat_summaries (последнее сообщение, непрочитанные, телефон собеседника);
+         * - messages_fts при REPLACE-вставке (остальные изменения ловят триггеры Room для FTS).
+         * Создаются при каждом открытии (IF NOT EXISTS), поэтому переживают и миграцию,
+         * и деструктивное пересоздание схемы.
+         */
+        internal object Triggers : RoomDatabase.Callback() {
+            override fun onOpen(db: SupportSQLiteDatabase) {
+                db.execSQL("""
+                    CREATE TRIGGER IF NOT EXISTS messages_attachment_insert AFTER INSERT ON messages
+                    WHEN NEW.fileHash IS NOT NULL
+                    BEGIN
+                        UPDATE attachments SET refCount = refCount + 1 WHERE hash = NEW.fileHash;
+                    END
+                """)
+                db.execSQL("""
+                    CREATE TRIGGER IF NOT EXISTS messages_attachment_delete AFTER DELETE ON messages
+                    WHEN OLD.fileHash IS NOT NULL
+                    BEGIN
+                        UPDATE attachments SET refCount = refCount - 1 WHERE hash = OLD.fileHash;
+                    END
+                """)
+                db.execSQL("""
+                    CREATE TRIGGER IF NOT EXISTS messages_attachment_update AFTER UPDATE OF fileHash ON messages
+                    WHEN OLD.fileHash IS NOT NEW.fileHash
+                    BEGIN
+                        UPDATE attachments SET refCount = refCount - 1 WHERE hash = OLD.fileHash;
+                        UPDATE attachments SET refCount = refCount + 1 WHERE hash = NEW.fileHash;
+                    END
+                """)
+                // REPLACE удаляет старую строку без DELETE-триггеров: без этого в индексе остаётся её docid
+                db.execSQL("""
+                    CREATE TRIGGER IF NOT EXISTS messages_fts_replace BEFORE INSERT ON messages
+                    BEGIN
+                        DELETE FROM messages_fts
+                        WHERE docid = (SELECT rowid FROM messages WHERE messageId = NEW.messageId);
+                    END
+                """)
+                createSummaryTriggers(db)
+            }
+        }
+
+        private fun createSummaryTriggers(db: SupportSQLiteDatabase) {
+            // REPLACE удаляет старую строку без DELETE-триггеров (recursive_triggers выключен),
+            // поэтому её вклад в непрочитанные снимается заранее
+            db.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS messages_summary_replace BEFORE INSERT ON messages
+                BEGIN
+                    UPDATE chat_summaries SET unreadCount = MAX(0, unreadCount - 1)
+                    WHERE chatId = (
+                        SELECT chatId FROM messages
+                        WHERE messageId = NEW.messageId AND isMe = 0 AND isRead = 0
+                    );
+                END
+            """)
+            db.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS messages_summary_insert AFTER INSERT ON messages
+                WHEN NEW.chatId != 'global'
+                BEGIN
+                    INSERT OR IGNORE INTO chat_summaries
+                        (chatId, lastMessageId, lastText, lastTimestamp, lastIsMe, unreadCount, peerPhone)
+                    VALUES (NEW.chatId, '', '', -1, 0, 0,
+                        (SELECT phone FROM dht_nodes WHERE userHash = NEW.chatId));
+                    UPDATE chat_summaries SET
+                        lastMessageId = NEW.messageId, lastText = NEW.text,
+                        lastTimestamp = NEW.timestamp, lastIsMe = NEW.isMe
+                    WHERE chatId = NEW.chatId AND (lastTimestamp < NEW.timestamp
+                        OR (lastTimestamp = NEW.timestamp AND lastMessageId <= NEW.messageId));
+                    UPDATE chat_summaries SET unreadCount = unreadCount + 1
+                    WHERE chatId = NEW.chatId AND NEW.isMe = 0 AND NEW.isRead = 0;
+                END
+            """)
+            // Последнее сообщение пересчитывается только если удалено именно оно — по индексу (chatId, timestamp, messageId)
+            db.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS messages_summary_delete AFTER DELETE ON messages
+                WHEN OLD.chatId != 'global'
+                BEGIN
+                    UPDATE chat_summaries SET unreadCount = MAX(0, unreadCount - 1)
+                    WHERE chatId = OLD.chatId AND OLD.isMe = 0 AND OLD.isRead = 0;
+                    DELETE FROM chat_summaries
+                    WHERE chatId = OLD.chatId AND NOT EXISTS (SELECT 1 FROM messages WHERE chatId = OLD.chatId);
+                    UPDATE chat_summaries SET (lastMessageId, lastText, lastTimestamp, lastIsMe) = (
+                        SELECT messageId, text, timestamp, isMe FROM messages
+                        WHERE chatId = OLD.chatId
+                        ORDER BY timestamp DESC, messageId DESC
+                        LIMIT 1
+                    )
+                    WHERE chatId = OLD.chatId AND lastMessageId = OLD.messageId;
+                END
+            """)
+            db.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS messages_summary_read AFTER UPDATE OF isRead ON messages
+                WHEN OLD.isRead IS NOT NEW.isRead AND NEW.isMe = 0 AND NEW.chatId != 'global'
+                BEGIN
+                    UPDATE chat_summaries
+                    SET unreadCount = MAX(0, unreadCount + CASE WHEN NEW.isRead THEN -1 ELSE 1 END)
+                    WHERE chatId = NEW.chatId;
+                END
+            """)
+            db.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS nodes_summary_insert AFTER INSERT ON dht_nodes
+                BEGIN
+                    UPDATE chat_summaries SET peerPhone = NEW.phone
+                    WHERE chatId = NEW.userHash AND peerPhone IS NOT NEW.phone;
+                END
+            """)
+            db.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS nodes_summary_phone AFTER UPDATE OF phone ON dht_nodes
+                WHEN OLD.phone IS NOT NEW.phone
+                BEGIN
+                    UPDATE chat_summaries SET peerPhone = NEW.phone WHERE chatId = NEW.userHash;
+                END
+            """)
+        }
+
+        /**
+         * 9 -> 10: исходный срок отложенного сообщения, от которого считается отказ от повторов.
+         * Отложенные сообщения, которые прежний диспетчер захватил статусом PENDING и не вернул,
+         * снова ставятся в расписание.
+         */
+        private val MIGRATION_9_10 = object : Migration(9, 10) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE messages ADD COLUMN firstScheduledTime INTEGER")
+                db.execSQL("UPDATE messages SET status = 'SCHEDULED' WHERE status = 'PENDING' AND scheduledTime IS NOT NULL")
+            }
+        }
+
+        /**
+         * 8 -> 9: ключ addressKey в зеркале SMS стал национальным номером. Зеркало очищается,
+         * и первая синхронизация [com.kakdela.p2p.data.SmsMirror] заполняет его с новыми ключами.
+         */
+        private val MIGRATION_8_9 = object : Migration(8, 9) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DELETE FROM sms_mirror")
+            }
+        }
+
+        /**
+         * 7 -> 8: FTS4-индекс по messages.text. Таблица и триггеры синхронизации повторяют
+         * то, что Room создаёт для [MessageFts]; индекс заполняется из существующих сообщений.
+         */
+        private val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE VIRTUAL TABLE IF NOT EXISTS `messages_fts` " +
+                        "USING FTS4(`text` TEXT NOT NULL, tokenize=unicode61, content=`messages`)"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_messages_fts_BEFORE_UPDATE " +
+                        "BEFORE UPDATE ON `messages` BEGIN DELETE FROM `messages_fts` WHERE `docid`=OLD.`rowid`; END"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_messages_fts_BEFORE_DELETE " +
+                        "BEFORE DELETE ON `messages` BEGIN DELETE FROM `messages_fts` WHERE `docid`=OLD.`rowid`; END"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_messages_fts_AFTER_UPDATE " +
+                        "AFTER UPDATE ON `messages` BEGIN INSERT INTO `messages_fts`(`docid`, `text`) " +
+                        "VALUES (NEW.`rowid`, NEW.`text`); END"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_messages_fts_AFTER_INSERT " +
+                        "AFTER INSERT ON `messages` BEGIN INSERT INTO `messages_fts`(`docid`, `text`) " +
+                        "VALUES (NEW.`rowid`, NEW.`text`); END"
+                )
+                db.execSQL("INSERT INTO messages_fts(messages_fts) VALUES('rebuild')")
+            }
+        }
+
+        /**
+         * 6 -> 7: зеркало системных SMS. Таблица создаётся пустой — её заполняет
+         * первая синхронизация [com.kakdela.p2p.data.SmsMirror] в фоне.
+         */
+        private val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `sms_mirror` (
+                        `smsId` INTEGER NOT NULL, `address` TEXT NOT NULL, `addressKey` TEXT NOT NULL,
+                        `body` TEXT NOT NULL, `date` INTEGER NOT NULL, `type` INTEGER NOT NULL,
+                        PRIMARY KEY(`smsId`))
+                """)
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_sms_mirror_addressKey_date` ON `sms_mirror` (`addressKey`, `date`)"
+                )
+            }
+        }
+
+        /**
+         * 5 -> 6: материализованные сводки чатов; заполняются из существующих сообщений.
+         */
+        private val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `chat_summaries` (
+                        `chatId` TEXT NOT NULL, `lastMessageId` TEXT NOT NULL, `lastText` TEXT NOT NULL,
+                        `lastTimestamp` INTEGER NOT NULL, `lastIsMe` INTEGER NOT NULL,
+                        `unreadCount` INTEGER NOT NULL, `peerPhone` TEXT,
+                        PRIMARY KEY(`chatId`))
+                """)
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_chat_summaries_lastTimestamp` ON `chat_summaries` (`lastTimestamp`)"
+                )
+                db.execSQL(ChatSummaryEntity.REBUILD_SQL)
+            }
+        }
+
+        /**
+         * 4 -> 5: составной индекс (chatId, timestamp, messageId) для keyset-пагинации;
+         * он же покрывает поиск по chatId, поэтому одиночный индекс удаляется.
+         */
+        private val MIGRATION_4_5 = object : Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP INDEX IF EXISTS `index_messages_chatId`")
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_messages_chatId_timestamp_messageId` " +
+                        "ON `messages` (`chatId`, `timestamp`, `messageId`)"
+                )
+            }
+        }
+
+        /**
+         * 3 -> 4: BLOB fileBytes выносится из messages в хранилище [AttachmentStore],
+         * сообщения получают fileHash / fileSize. Таблица пересоздаётся, так как колонку
+         * нельзя удалить через ALTER TABLE на всех поддерживаемых версиях SQLite.
+         */
+        private fun migration3To4(context: Context) = object : Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `attachments` (
+                        `hash` TEXT NOT NULL, `size` INTEGER NOT NULL, `mime` TEXT,
+                        `refCount` INTEGER NOT NULL, `createdAt` INTEGER NOT NULL,
+                        PRIMARY KEY(`hash`))
+                """)
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_attachments_refCount` ON `attachments` (`refCount`)")
+
+                db.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `messages_new` (
+                        `messageId` TEXT NOT NULL, `chatId` TEXT NOT NULL, `senderId` TEXT NOT NULL,
+                        `receiverId` TEXT NOT NULL, `text` TEXT NOT NULL, `timestamp` INTEGER NOT NULL,
+                        `isMe` INTEGER NOT NULL, `isRead` INTEGER NOT NULL, `status` TEXT NOT NULL,
+                        `scheduledTime` INTEGER, `messageType` TEXT NOT NULL, `fileName` TEXT,
+                        `fileMime` TEXT, `fileHash` TEXT, `fileSize` INTEGER, `contactPhone` TEXT,
+                        PRIMARY KEY(`messageId`))
+                """)
+                db.execSQL("""
+                    INSERT INTO messages_new (messageId, chatId, senderId, receiverId, text, timestamp, isMe,
+                        isRead, status, scheduledTime, messageType, fileName, fileMime, contactPhone)
+                    SELECT messageId, chatId, senderId, receiverId, text, timestamp, isMe,
+                        isRead, status, scheduledTime, messageType, fileName, fileMime, contactPhone
+                    FROM messages
+                """)
+
+                // BLOB-ы читаются по одному, чтобы не переполнить CursorWindow
+                val root = AttachmentStore.rootDir(context)
+                val ids = ArrayList<String>()
+                db.query("SELECT messageId FROM messages WHERE fileBytes IS NOT NULL").use { c ->
+                    while (c.moveToNext()) ids.add(c.getString(0))
+                }
+                var moved = 0
+                ids.forEach { id ->
+                    db.query("SELECT fileBytes, fileMime, fileName FROM messages WHERE messageId = ?", arrayOf(id)).use { c ->
+                        if (!c.moveToFirst()) return@use
+                        val bytes = c.getBlob(0) ?: return@use
+                        val mime = c.getString(1) ?: AttachmentStore.guessMime(c.getString(2))
+                        val hash = try {
+                            AttachmentStore.writeBytes(root, bytes)
+                        } catch (e: Exception) {
+                            Log.w(TAG, "Attachment of $id not migrated: ${e.message}")
+                            return@use
+                        }
+                        db.execSQL(
+                            "INSERT OR IGNORE INTO attachments (hash, size, mime, refCount, createdAt) VALUES (?, ?, ?, 0, ?)",
+                            arrayOf<Any?>(hash, bytes.size.toLong(), mime, System.currentTimeMillis())
+                        )
+                        db.execSQL(
+                            "UPDATE messages_new SET fileHash = ?, fileSize = ?, fileMime = ? WHERE messageId = ?",
+                            arrayOf<Any?>(hash, bytes.size.toLong(), mime, id)
+                        )
+                        moved++
+                    }
+                }
+
+                db.execSQL("DROP TABLE messages")
+                db.execSQL("ALTER TABLE messages_new RENAME TO messages")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_chatId` ON `messages` (`chatId`)") // Заменяется в 4 -> 5
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_timestamp` ON `messages` (`timestamp`)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_status` ON `messages` (`status`)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_scheduledTime` ON `messages` (`scheduledTime`)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_fileHash` ON `messages` (`fileHash`)")
+
+                db.execSQL("""
+                    UPDATE attachments SET refCount = (
+                        SELECT COUNT(*) FROM messages WHERE messages.fileHash = attachments.hash
+                    )
+                """)
+                Log.i(TAG, "Migration 3->4: moved $moved attachments out of messages")
+            }
+        }
     }
 }
@@ -0,0 +1,35 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Dao
+import androidx.room.Query
+import androidx.room.Transaction
+import kotlinx.coroutines.flow.Flow
+
+@Dao
+interface ChatSummaryDao {
+
+    /**
+     * Список чатов для главного экрана: один проход по индексу lastTimestamp, без подзапросов.
+     */
+    @Query("SELECT * FROM chat_summaries ORDER BY lastTimestamp DESC")
+    fun observeSummaries(): Flow<List<ChatSummaryEntity>>
+
+    @Query("SELECT * FROM chat_summaries WHERE chatId = :chatId LIMIT 1")
+    suspend fun getSummary(chatId: String): ChatSummaryEntity?
+
+    @Query("DELETE FROM chat_summaries")
+    suspend fun clear()
+
+    @Query(ChatSummaryEntity.REBUILD_SQL)
+    suspend fun insertFromMessages()
+
+    /**
+     * Полный пересчёт сводок из messages. В обычной работе сводки ведут триггеры,
+     * пересчёт нужен для сверки и замеров.
+     */
+    @Transaction
+    suspend fun rebuild() {
+        clear()
+        insertFromMessages()
+    }
+}
@@ -0,0 +1,47 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * Материализованная сводка чата для главного экрана: последнее сообщение,
+ * число непрочитанных и телефон собеседника из dht_nodes.
+ * Поддерживается триггерами на messages и dht_nodes (см. [ChatDatabase]),
+ * поэтому список чатов — один проход по индексу [lastTimestamp].
+ */
+@Entity(
+    tableName = "chat_summaries",
+    indices = [Index(value = ["lastTimestamp"])]
+)
+data class ChatSummaryEntity(
+    @PrimaryKey
+    val chatId: String,
+    val lastMessageId: String,
+    val lastText: String,
+    val lastTimestamp: Long,
+    val lastIsMe: Boolean,
+    val unreadCount: Int = 0,
+    val peerPhone: String? = null
+) {
+    companion object {
+        /**
+         * Полный пересчёт из messages (миграция и периодическая сверка).
+         * Последнее сообщение чата берётся по индексу (chatId, timestamp, messageId).
+         */
+        const val REBUILD_SQL = """
+            INSERT OR REPLACE INTO chat_summaries
+                (chatId, lastMessageId, lastText, lastTimestamp, lastIsMe, unreadCount, peerPhone)
+            SELECT c.chatId, m.messageId, m.text, m.timestamp, m.isMe,
+                (SELECT COUNT(*) FROM messages u WHERE u.chatId = c.chatId AND u.isMe = 0 AND u.isRead = 0),
+                (SELECT phone FROM dht_nodes WHERE userHash = c.chatId)
+            FROM (SELECT DISTINCT chatId FROM messages WHERE chatId != 'global') AS c
+            JOIN messages AS m ON m.messageId = (
+                SELECT messageId FROM messages
+                WHERE chatId = c.chatId
+                ORDER BY timestamp DESC, messageId DESC
+                LIMIT 1
+            )
+        """
+    }
+}
@@ -21,6 +21,63 @@ interface MessageDao {
     """)
     fun observeMessages(chatId: String): Flow<List<MessageEntity>>
 
+    /* === Keyset-пагинация по (timestamp, messageId), индекс chatId+timestamp+messageId === */
+
+    /**
+     * Последние [limit] сообщений чата (от новых к старым).
+     */
+    @Query("""
+        SELECT * FROM messages
+        WHERE chatId = :chatId
+        ORDER BY timestamp DESC, messageId DESC
+        LIMIT :limit
+    """)
+    suspend fun getLatestPage(chatId: String, limit: Int): List<MessageEntity>
+
+    /**
+     * Страница строго до ключа (от новых к старым).
+     */
+    @Query("""
+        SELECT * FROM messages
+        WHERE chatId = :chatId AND (timestamp, messageId) < (:ts, :id)
+        ORDER BY timestamp DESC, messageId DESC
+        LIMIT :limit
+    """)
+    suspend fun getPageBefore(chatId: String, ts: Long, id: String, limit: Int): List<MessageEntity>
+
+    /**
+     * Страница начиная с ключа включительно (от старых к новым).
+     */
+    @Query("""
+        SELECT * FROM messages
+        WHERE chatId = :chatId AND (timestamp, messageId) >= (:ts, :id)
+        ORDER BY timestamp ASC, messageId ASC
+        LIMIT :limit
+    """)
+    suspend fun getPageFrom(chatId: String, ts: Long, id: String, limit: Int): List<MessageEntity>
+
+    /**
+     * Наблюдение за загруженной страницей: ключи в полуинтервале [lo, hi).
+     */
+    @Query("""
+        SELECT * FROM messages
+        WHERE chatId = :chatId
+        AND (timestamp, messageId) >= (:loTs, :loId)
+        AND (timestamp, messageId) < (:hiTs, :hiId)
+        ORDER BY timestamp ASC, messageId ASC
+    """)
+    fun observeRange(chatId: String, loTs: Long, loId: String, hiTs: Long, hiId: String): Flow<List<MessageEntity>>
+
+    /**
+     * Наблюдение за последней (открытой сверху) страницей: ключи от lo включительно.
+     */
+    @Query("""
+        SELECT * FROM messages
+        WHERE chatId = :chatId AND (timestamp, messageId) >= (:loTs, :loId)
+        ORDER BY timestamp ASC, messageId ASC
+    """)
+    fun observeFrom(chatId: String, loTs: Long, loId: String): Flow<List<MessageEntity>>
+
     /**
      * Получает список последних сообщений из каждого чата для главного экрана.
      * Исключает системный чат 'global'.
@@ -45,6 +102,13 @@ interface MessageDao {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     suspend fun insert(message: MessageEntity)
 
+    /**
+     * Вставка, не затрагивающая существующую запись с тем же messageId.
+     * Для id, выбранных собеседником: @return -1, если такое сообщение уже есть.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertIfAbsent(message: MessageEntity): Long
+
     /**
      * Массовая вставка сообщений.
      */
@@ -57,6 +121,19 @@ interface MessageDao {
     @Query("UPDATE messages SET status = :status WHERE messageId = :id")
     suspend fun updateStatus(id: String, status: String)
 
+    /**
+     * Один статус для пачки сообщений одним запросом (исходящие очереди).
+     */
+    @Query("UPDATE messages SET status = :status WHERE messageId IN (:ids)")
+    suspend fun updateStatuses(ids: List<String>, status: String)
+
+    /**
+     * Привязка вложения из хранилища к сообщению после сохранения файла.
+     * Счётчик ссылок в attachments обновляет триггер.
+     */
+    @Query("UPDATE messages SET fileHash = :hash, fileSize = :size, fileMime = :mime WHERE messageId = :id")
+    suspend fun attachFile(id: String, hash: String, size: Long, mime: String?)
+
     /**
      * Выборка сообщений, время отправки которых наступило или уже прошло.
      * Критически важен для корректной работы фонового планировщика (WorkManager).
@@ -68,9 +145,42 @@ interface MessageDao {
         WHERE scheduledTime IS NOT NULL 
         AND scheduledTime <= :currentTime 
         AND status = 'SCHEDULED'
+        ORDER BY scheduledTime ASC, timestamp ASC
     """)
     suspend fun getPendingScheduledMessages(currentTime: Long): List<MessageEntity>
 
+    /**
+     * Ближайший срок среди ещё не отправленных отложенных сообщений (по индексу scheduledTime).
+     */
+    @Query("SELECT MIN(scheduledTime) FROM messages WHERE status = 'SCHEDULED'")
+    suspend fun getNextScheduledTime(): Long?
+
+    /**
+     * Возвращает сообщения в расписание (повтор после неудачной отправки).
+     * Исходный срок сохраняется в firstScheduledTime при первом повторе.
+     */
+    @Query("""
+        UPDATE messages
+        SET status = 'SCHEDULED',
+            firstScheduledTime = COALESCE(firstScheduledTime, scheduledTime),
+            scheduledTime = :time
+        WHERE messageId IN (:ids)
+    """)
+    suspend fun reschedule(ids: List<String>, time: Long)
+
+    /**
+     * Снимает захват диспетчера с сообщений, которые ещё не отправлены и не отклонены.
+     */
+    @Query("UPDATE messages SET status = 'SCHEDULED' WHERE messageId IN (:ids) AND status = 'DISPATCHING'")
+    suspend fun releaseDispatching(ids: List<String>)
+
+    /**
+     * Возвращает в расписание все захваченные сообщения: диспетчер, который их взял,
+     * погиб вместе с процессом (одновременно работает только один).
+     */
+    @Query("UPDATE messages SET status = 'SCHEDULED' WHERE status = 'DISPATCHING'")
+    suspend fun recoverDispatching(): Int
+
     /**
      * Помечает все непрочитанные входящие сообщения в конкретном чате как прочитанные.
      */
@@ -12,10 +12,11 @@ import androidx.room.PrimaryKey
 @Entity(
     tableName = "messages",
     indices = [
-        Index(value = ["chatId"]), 
+        Index(value = ["chatId", "timestamp", "messageId"]), // Keyset-пагинация внутри чата
         Index(value = ["timestamp"]),
         Index(value = ["status"]),
-        Index(value = ["scheduledTime"]) // Индекс оптимизирован для выборки отложенных задач WorkManager-ом
+        Index(value = ["scheduledTime"]), // Индекс оптимизирован для выборки отложенных задач WorkManager-ом
+        Index(value = ["fileHash"])
     ]
 )
 data class MessageEntity(
@@ -69,6 +70,7 @@ data class MessageEntity(
      * SCHEDULED - запланировано на будущее время
      * SENT - успешно отправлено в P2P сеть
      * DELIVERED - получено подтверждение доставки
+     * DISPATCHING - отложенное сообщение захвачено диспетчером на время отправки
      * FAILED - ошибка после всех попыток ретрая
      */
     val status: String = "PENDING",
@@ -79,6 +81,13 @@ data class MessageEntity(
      */
     val scheduledTime: Long? = null,
 
+    /**
+     * Исходный срок отложенного сообщения. Повторы после неудачной отправки сдвигают
+     * [scheduledTime], а отказ от доставки отсчитывается от этого срока.
+     * null — повторов ещё не было, исходный срок в [scheduledTime].
+     */
+    val firstScheduledTime: Long? = null,
+
     /**
      * Тип контента: "TEXT", "IMAGE", "FILE", "AUDIO".
      */
@@ -95,10 +104,15 @@ data class MessageEntity(
     val fileMime: String? = null,
     
     /**
-     * Байтовое содержимое для мелких файлов (до 512КБ).
-     * Для крупных файлов рекомендуется хранить путь в [text] или [fileName].
+     * SHA-256 содержимого вложения — ключ в хранилище [com.kakdela.p2p.data.AttachmentStore].
+     * Сами байты в БД не хранятся.
+     */
+    val fileHash: String? = null,
+
+    /**
+     * Размер вложения в байтах.
      */
-    val fileBytes: ByteArray? = null,
+    val fileSize: Long? = null,
     
     /**
      * Номер телефона из Discovery, если сообщение связано с контактом.
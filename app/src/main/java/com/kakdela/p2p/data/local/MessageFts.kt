@@ -0,0 +1,17 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+
+/**
+ * Полнотекстовый индекс по messages.text (FTS4 с внешним содержимым).
+ * Текст хранится только в messages; индекс синхронизируют триггеры, которые Room
+ * создаёт для contentEntity, плюс триггер REPLACE-вставки в [ChatDatabase].
+ * docid строки индекса равен rowid сообщения.
+ */
+@Fts4(contentEntity = MessageEntity::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity(tableName = "messages_fts")
+data class MessageFts(
+    val text: String
+)
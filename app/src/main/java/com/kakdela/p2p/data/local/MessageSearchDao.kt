@@ -0,0 +1,66 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Dao
+import androidx.room.Query
+
+/**
+ * Найденное сообщение. В [snippet] совпадения обрамлены символами
+ * [MessageSearchHit.MATCH_START] и [MessageSearchHit.MATCH_END].
+ */
+data class MessageSearchHit(
+    val messageId: String,
+    val chatId: String,
+    val timestamp: Long,
+    val isMe: Boolean,
+    val snippet: String
+) {
+    companion object {
+        const val MATCH_START = '\u0002'
+        const val MATCH_END = '\u0003'
+    }
+}
+
+@Dao
+interface MessageSearchDao {
+
+    /**
+     * Поиск по FTS-индексу, от новых к старым, с keyset-пагинацией по (timestamp, messageId).
+     * [match] — уже собранное выражение FTS (см. [com.kakdela.p2p.data.MessageSearch]);
+     * [chatId] = null ищет по всем чатам; [beforeTs] = null — первая страница.
+     */
+    @Query("""
+        SELECT m.messageId, m.chatId, m.timestamp, m.isMe,
+            snippet(messages_fts, char(2), char(3), '…', -1, 12) AS snippet
+        FROM messages_fts
+        JOIN messages AS m ON m.rowid = messages_fts.docid
+        WHERE messages_fts MATCH :match
+            AND (:chatId IS NULL OR m.chatId = :chatId)
+            AND (:beforeTs IS NULL OR (m.timestamp, m.messageId) < (:beforeTs, :beforeId))
+        ORDER BY m.timestamp DESC, m.messageId DESC
+        LIMIT :limit
+    """)
+    suspend fun search(
+        match: String,
+        chatId: String?,
+        beforeTs: Long?,
+        beforeId: String?,
+        limit: Int
+    ): List<MessageSearchHit>
+
+    /**
+     * Пересобирает индекс из messages (миграция, сверка).
+     */
+    @Query("INSERT INTO messages_fts(messages_fts) VALUES('rebuild')")
+    suspend fun rebuildIndex()
+
+    /**
+     * Поиск подстрокой без индекса — только для сравнения в замерах.
+     */
+    @Query("""
+        SELECT messageId, chatId, timestamp, isMe, text AS snippet FROM messages
+        WHERE text LIKE '%' || :needle || '%'
+        ORDER BY timestamp DESC, messageId DESC
+        LIMIT :limit
+    """)
+    suspend fun searchLike(needle: String, limit: Int): List<MessageSearchHit>
+}
@@ -36,6 +36,22 @@ interface NodeDao {
     @Query("SELECT * FROM dht_nodes ORDER BY lastSeen DESC LIMIT 2500")
     suspend fun getAllNodes(): List<NodeEntity>
 
+    /**
+     * Лёгкая выборка (хеш + lastSeen) для построения gossip-дайджеста без чтения публичных ключей.
+     */
+    @Query("""
+        SELECT userHash, lastSeen FROM dht_nodes
+        WHERE ip != '0.0.0.0' AND publicKey != ''
+        ORDER BY lastSeen DESC LIMIT 2500
+    """)
+    suspend fun getDigestEntries(): List<NodeDigestEntry>
+
+    /**
+     * Полные записи по списку хешей (ответ на дайджест собеседника).
+     */
+    @Query("SELECT * FROM dht_nodes WHERE userHash IN (:hashes)")
+    suspend fun getNodesByHashes(hashes: List<String>): List<NodeEntity>
+
     /**
      * Вставка или обновление одного узла.
      * Используется при прямом контакте или серверной синхронизации.
@@ -70,6 +86,52 @@ interface NodeDao {
         timestamp: Long
     )
 
+    /**
+     * Вставка узлов, которых ещё нет в базе. Существующие записи (с телефоном, email и т.д.) не затираются.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertIfAbsent(nodes: List<NodeEntity>)
+
+    /**
+     * Обновление сетевых данных, только если пришедшая информация свежее локальной.
+     */
+    @Query("""
+        UPDATE dht_nodes
+        SET ip = :newIp,
+            port = :newPort,
+            lastSeen = :timestamp
+        WHERE userHash = :hash AND lastSeen < :timestamp
+    """)
+    suspend fun updateNetworkInfoIfNewer(
+        hash: String,
+        newIp: String,
+        newPort: Int,
+        timestamp: Long
+    )
+
+    /**
+     * Слияние узлов, полученных от других пиров (DHT lookup / gossip), одной транзакцией.
+     * Новые узлы вставляются, известные — обновляются только при более свежем lastSeen.
+     */
+    @Transaction
+    suspend fun mergeNetworkNodes(nodes: List<NodeEntity>) {
+        if (nodes.isEmpty()) return
+        insertIfAbsent(nodes)
+        nodes.forEach { updateNetworkInfoIfNewer(it.userHash, it.ip, it.port, it.lastSeen) }
+        trimCache()
+    }
+
+    /**
+     * Write-behind сброс горячего каталога узлов ([com.kakdela.p2p.data.PeerDirectory]).
+     * Одна транзакция на пачку вместо отдельной записи на каждый входящий пакет.
+     */
+    @Transaction
+    suspend fun flushNetworkInfo(nodes: List<NodeEntity>) {
+        if (nodes.isEmpty()) return
+        insertIfAbsent(nodes)
+        nodes.forEach { updateNetworkInfo(it.userHash, it.ip, it.port, it.publicKey, it.lastSeen) }
+    }
+
     /**
      * Помечает узел как успешно синхронизированный с сервером.
      * Используется для оптимизации повторных sync-запросов.
@@ -117,3 +179,11 @@ interface NodeDao {
     @Query("DELETE FROM dht_nodes WHERE lastSeen < :timestampThreshold")
     suspend fun deleteStaleNodes(timestampThreshold: Long)
 }
+
+/**
+ * Проекция dht_nodes для anti-entropy дайджеста.
+ */
+data class NodeDigestEntry(
+    val userHash: String,
+    val lastSeen: Long
+)
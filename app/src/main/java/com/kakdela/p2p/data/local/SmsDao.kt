@@ -0,0 +1,46 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import kotlinx.coroutines.flow.Flow
+
+@Dao
+interface SmsDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun upsertAll(sms: List<SmsEntity>)
+
+    /**
+     * Водяной знак: всё с _ID не больше него уже перенесено.
+     */
+    @Query("SELECT MAX(smsId) FROM sms_mirror")
+    suspend fun maxId(): Long?
+
+    @Query("SELECT smsId FROM sms_mirror WHERE type IN (:types)")
+    suspend fun getIdsByType(types: List<Int>): List<Long>
+
+    @Query("SELECT smsId FROM sms_mirror ORDER BY smsId")
+    suspend fun getAllIds(): List<Long>
+
+    @Query("DELETE FROM sms_mirror WHERE smsId IN (:ids)")
+    suspend fun deleteByIds(ids: List<Long>)
+
+    /**
+     * Переписка с одним адресом — диапазон индекса (addressKey, date).
+     */
+    @Query("SELECT * FROM sms_mirror WHERE addressKey = :addressKey ORDER BY date ASC")
+    fun observeThread(addressKey: String): Flow<List<SmsEntity>>
+
+    /**
+     * Последнее SMS каждого адреса. SQLite берёт «голые» колонки из строки с MAX(date),
+     * поэтому это один проход по индексу (addressKey, date) без коррелированных подзапросов.
+     */
+    @Query("""
+        SELECT smsId, address, addressKey, body, MAX(date) AS date, type
+        FROM sms_mirror
+        GROUP BY addressKey
+    """)
+    fun observeLatestPerAddress(): Flow<List<SmsEntity>>
+}
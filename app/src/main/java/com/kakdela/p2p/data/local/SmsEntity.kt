@@ -0,0 +1,35 @@
+package com.kakdela.p2p.data.local
+
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * Локальная копия системного SMS (Telephony.Sms), см. [com.kakdela.p2p.data.SmsMirror].
+ * Ключ [addressKey] — нормализованный адрес, по нему строятся и диалог, и список чатов.
+ */
+@Entity(
+    tableName = "sms_mirror",
+    indices = [Index(value = ["addressKey", "date"])]
+)
+data class SmsEntity(
+    /**
+     * Telephony.Sms._ID. Монотонно растёт, поэтому служит водяным знаком синхронизации.
+     */
+    @PrimaryKey
+    val smsId: Long,
+
+    /**
+     * Адрес в том виде, в каком его хранит система.
+     */
+    val address: String,
+
+    val addressKey: String,
+    val body: String,
+    val date: Long,
+
+    /**
+     * Telephony.Sms.TYPE (1 — входящее, 2 — отправленное, 4/6 — в очереди на отправку).
+     */
+    val type: Int
+)
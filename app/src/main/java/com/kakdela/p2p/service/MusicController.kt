@@ -0,0 +1,172 @@
+package com.kakdela.p2p.service
+
+import android.content.ComponentName
+import android.content.Context
+import android.util.Log
+import androidx.core.content.ContextCompat
+import androidx.media3.common.MediaItem
+import androidx.media3.common.MediaMetadata
+import androidx.media3.common.Player
+import androidx.media3.session.MediaController
+import androidx.media3.session.SessionToken
+import com.google.common.util.concurrent.ListenableFuture
+import com.kakdela.p2p.model.AudioTrack
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+
+/**
+ * MusicController — единый API управления музыкой для [com.kakdela.p2p.ui.player.MusicManager]
+ * и [com.kakdela.p2p.ui.player.PlayerViewModel]. Команды уходят в плеер
+ * [MusicPlaybackService] через MediaController; своего плеера у UI нет.
+ *
+ * Вызывается с главного потока. Команды, отданные до подключения к сервису,
+ * выполняются сразу после него. Если сервис остановился, любая следующая команда
+ * подключается к нему заново.
+ */
+object MusicController {
+
+    private const val TAG = "MusicController"
+
+    /** Что играет сейчас; [queueIndex] — позиция в очереди, -1 — очередь пуста. */
+    data class State(
+        val currentTrack: AudioTrack? = null,
+        val queueIndex: Int = -1,
+        val isPlaying: Boolean = false,
+        val shuffle: Boolean = false,
+        val repeatMode: Int = Player.REPEAT_MODE_OFF
+    )
+
+    private val _state = MutableStateFlow(State())
+    val state: StateFlow<State> = _state.asStateFlow()
+
+    private var queue: List<AudioTrack> = emptyList()
+    // Контекст приложения из первого connect: команды без контекста переподключаются с ним
+    private var appContext: Context? = null
+    private var controller: MediaController? = null
+    private var connecting: ListenableFuture<MediaController>? = null
+    private val pending = ArrayDeque<(MediaController) -> Unit>()
+
+    private val listener = object : Player.Listener {
+        override fun onEvents(player: Player, events: Player.Events) = publish(player)
+    }
+
+    val currentPosition: Long
+        get() = controller?.currentPosition ?: 0L
+
+    val duration: Long
+        get() = controller?.duration?.coerceAtLeast(0L) ?: 0L
+
+    /** Подключение к сервису (запускает его при необходимости). Повторный вызов ничего не делает. */
+    fun connect(context: Context) {
+        if (controller != null || connecting != null) return
+        val app = context.applicationContext
+        appContext = app
+        val token = SessionToken(app, ComponentName(app, MusicPlaybackService::class.java))
+        val future = MediaController.Builder(app, token)
+            .setListener(object : MediaController.Listener {
+                override fun onDisconnected(controller: MediaController) {
+                    if (this@MusicController.controller !== controller) return
+                    this@MusicController.controller = null
+                    controller.removeListener(listener)
+                    controller.release()
+                    // Плеер ушёл вместе с сервисом: UI не должен показывать прежний трек как играющий
+                    queue = emptyList()
+                    _state.value = State()
+                }
+            })
+            .buildAsync()
+        connecting = future
+        future.addListener({
+            connecting = null
+            val connected = try {
+                future.get()
+            } catch (e: Exception) {
+                Log.e(TAG, "Session connection failed", e)
+                pending.clear()
+                return@addListener
+            }
+            controller = connected
+            connected.addListener(listener)
+            publish(connected)
+            while (pending.isNotEmpty()) pending.removeFirst()(connected)
+        }, ContextCompat.getMainExecutor(app))
+    }
+
+    /**
+     * Играет [tracks] с позиции [index]. Если это та же очередь, что уже в плеере,
+     * выполняется только переход: подготовленные и буферизованные треки не перезагружаются.
+     * [repeatMode] применяется только при загрузке новой очереди, null — режим плеера не меняется.
+     */
+    fun play(context: Context, tracks: List<AudioTrack>, index: Int, repeatMode: Int? = null) = withController(context) { c ->
+        if (index !in tracks.indices) return@withController
+        if (isCurrentQueue(c, tracks)) {
+            c.seekTo(index, 0L)
+        } else {
+            queue = tracks.toList()
+            c.setMediaItems(queue.map { it.toMediaItem() }, index, 0L)
+            repeatMode?.let { c.repeatMode = it }
+            c.prepare()
+        }
+        c.play()
+    }
+
+    fun togglePlayPause() = withController(null) { c ->
+        if (c.isPlaying) c.pause() else c.play()
+    }
+
+    fun next() = withController(null) { it.seekToNextMediaItem() }
+
+    fun previous() = withController(null) { it.seekToPreviousMediaItem() }
+
+    fun seekTo(positionMs: Long) = withController(null) { it.seekTo(positionMs) }
+
+    fun setShuffle(enabled: Boolean) = withController(null) { it.shuffleModeEnabled = enabled }
+
+    fun setRepeatMode(mode: Int) = withController(null) { it.repeatMode = mode }
+
+    private fun withController(context: Context?, action: (MediaController) -> Unit) {
+        controller?.let {
+            action(it)
+            return
+        }
+        // Без подключения и без контекста для него команду некому выполнить
+        val connectWith = context ?: appContext
+        if (connecting == null && connectWith == null) return
+        pending.addLast(action)
+        connectWith?.let { connect(it) }
+    }
+
+    private fun isCurrentQueue(c: MediaController, tracks: List<AudioTrack>): Boolean {
+        if (c.mediaItemCount != tracks.size || queue.size != tracks.size) return false
+        for (i in tracks.indices) if (queue[i].id != tracks[i].id) return false
+        return true
+    }
+
+    private fun publish(player: Player) {
+        val index = player.currentMediaItemIndex
+        val id = player.currentMediaItem?.mediaId?.toLongOrNull()
+        val track = queue.getOrNull(index)?.takeIf { it.id == id }
+        _state.value = State(
+            currentTrack = track,
+            queueIndex = if (track != null) index else -1,
+            isPlaying = player.isPlaying,
+            shuffle = player.shuffleModeEnabled,
+            repeatMode = player.repeatMode
+        )
+    }
+
+    private fun AudioTrack.toMediaItem(): MediaItem =
+        MediaItem.Builder()
+            .setUri(uri)
+            .setMediaId(id.toString())
+            .setMediaMetadata(
+                MediaMetadata.Builder()
+                    .setTitle(title)
+                    .setArtist(artist)
+                    .setAlbumTitle(albumTitle)
+                    .setArtworkUri(albumArt)
+                    .build()
+            )
+            .build()
+}
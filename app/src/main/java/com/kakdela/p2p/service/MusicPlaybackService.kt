@@ -1,27 +1,55 @@
 package com.kakdela.p2p.service
 
-import androidx.media3.common.Player
+import android.content.Intent
+import androidx.media3.common.AudioAttributes
+import androidx.media3.common.C
+import androidx.media3.exoplayer.DefaultLoadControl
 import androidx.media3.exoplayer.ExoPlayer
 import androidx.media3.session.MediaSession
 import androidx.media3.session.MediaSessionService
 
+/**
+ * Единственный движок воспроизведения музыки. Плеер и очередь живут здесь,
+ * UI управляет ими через [MusicController] (MediaController этой сессии).
+ *
+ * Очередь — плейлист ExoPlayer: следующий трек читается и декодируется тем же
+ * аудио-рендерером заранее, поэтому переход между треками идёт без паузы и без
+ * подготовки нового плеера, а задержка/заполнение кодера (MP3/AAC) вырезаются.
+ */
 class MusicPlaybackService : MediaSessionService() {
 
-    private var player: ExoPlayer? = null
     private var mediaSession: MediaSession? = null
 
+    companion object {
+        // Буфер с запасом: следующий трек успевает загрузиться до конца текущего
+        private const val MIN_BUFFER_MS = 30_000
+        private const val MAX_BUFFER_MS = 120_000
+        private const val BUFFER_FOR_PLAYBACK_MS = 500
+        private const val BUFFER_AFTER_REBUFFER_MS = 2_000
+    }
+
     override fun onCreate() {
         super.onCreate()
-        
-        // Инициализируем ExoPlayer
-        player = ExoPlayer.Builder(this)
+
+        val loadControl = DefaultLoadControl.Builder()
+            .setBufferDurationsMs(MIN_BUFFER_MS, MAX_BUFFER_MS, BUFFER_FOR_PLAYBACK_MS, BUFFER_AFTER_REBUFFER_MS)
+            .setPrioritizeTimeOverSizeThresholds(true)
+            .build()
+
+        val player = ExoPlayer.Builder(this)
+            .setLoadControl(loadControl)
+            .setAudioAttributes(
+                AudioAttributes.Builder()
+                    .setUsage(C.USAGE_MEDIA)
+                    .setContentType(C.AUDIO_CONTENT_TYPE_MUSIC)
+                    .build(),
+                true
+            )
             .setHandleAudioBecomingNoisy(true)
+            .setWakeMode(C.WAKE_MODE_LOCAL)
             .build()
 
-        // Инициализируем MediaSession
-        player?.let {
-            mediaSession = MediaSession.Builder(this, it).build()
-        }
+        mediaSession = MediaSession.Builder(this, player).build()
     }
 
     // Метод возвращает текущую сессию для контроллеров (например, уведомлений или UI)
@@ -29,14 +57,20 @@ class MusicPlaybackService : MediaSessionService() {
         return mediaSession
     }
 
+    // Приложение смахнули из недавних: без воспроизведения сервис не нужен
+    override fun onTaskRemoved(rootIntent: Intent?) {
+        val player = mediaSession?.player
+        if (player == null || !player.playWhenReady || player.mediaItemCount == 0) {
+            stopSelf()
+        }
+    }
+
     override fun onDestroy() {
         mediaSession?.run {
             player.release()
             release()
         }
         mediaSession = null
-        player = null
         super.onDestroy()
     }
 }
-
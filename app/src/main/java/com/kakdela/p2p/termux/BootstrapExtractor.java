@@ -0,0 +1,347 @@
+package com.termux.app;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Extracts the bootstrap zip straight from the native {@link ByteBuffer} it is embedded in.
+ *
+ * The central directory is parsed up front, so every entry's offset and size are known and
+ * entries can be inflated by a worker pool instead of one {@link java.util.zip.ZipInputStream}.
+ * All directories (including symlink parents) are created before extraction starts, files
+ * get their final mode when they are created, and symlinks are created in parallel.
+ */
+final class BootstrapExtractor {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SYMLINKS_ENTRY = "SYMLINKS.txt";
+
+    /** Per-phase timings and counts of one extraction. */
+    static final class Timings {
+        long parseMs;
+        long directoriesMs;
+        long extractMs;
+        long symlinksMs;
+        int directories;
+        int files;
+        int executables;
+        int symlinks;
+        long bytes;
+        int threads;
+
+        @Override
+        public String toString() {
+            return "parse=" + parseMs + "ms, directories=" + directoriesMs + "ms (" + directories + ")" +
+                ", extract=" + extractMs + "ms (" + files + " files, " + executables + " executable, " +
+                (bytes / 1024) + " KiB, " + threads + " threads)" +
+                ", symlinks=" + symlinksMs + "ms (" + symlinks + ")";
+        }
+    }
+
+    private static final class Entry {
+        String name;
+        int method;
+        long crc;
+        int compressedSize;
+        int size;
+        int localHeaderOffset;
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> INPUT = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private static final ThreadLocal<byte[]> OUTPUT = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private BootstrapExtractor() {}
+
+    /**
+     * Extracts {@code zip} into {@code stagingPath} and creates the symlinks from SYMLINKS.txt.
+     *
+     * @throws Exception on a malformed archive or any I/O error; the caller discards the staging directory.
+     */
+    static Timings extract(ByteBuffer zip, String stagingPath) throws Exception {
+        final Timings timings = new Timings();
+        final ByteBuffer buffer = zip.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+
+        // 1. Central directory and symlink list
+        long start = System.nanoTime();
+        final List<Entry> entries = readCentralDirectory(buffer);
+        final List<Entry> files = new ArrayList<>(entries.size());
+        final List<Pair<String, String>> symlinks = new ArrayList<>(50);
+        final TreeSet<String> directories = new TreeSet<>();
+
+        for (Entry entry : entries) {
+            if (entry.name.contains("../") || entry.name.startsWith("/"))
+                throw new ZipException("Unsafe entry name: " + entry.name);
+
+            if (entry.name.equals(SYMLINKS_ENTRY)) {
+                for (String line : new String(readEntry(buffer, entry), StandardCharsets.UTF_8).split("\n")) {
+                    if (line.isEmpty()) continue;
+                    String[] parts = line.split("←");
+                    if (parts.length != 2)
+                        throw new RuntimeException("Malformed symlink line: " + line);
+                    String newPath = stagingPath + "/" + parts[1];
+                    symlinks.add(Pair.create(parts[0], newPath));
+                    directories.add(new File(newPath).getParent());
+                }
+            } else if (entry.isDirectory()) {
+                directories.add(new File(stagingPath, entry.name).getPath());
+            } else {
+                files.add(entry);
+                directories.add(new File(stagingPath, entry.name).getParent());
+            }
+        }
+        if (symlinks.isEmpty())
+            throw new RuntimeException("No SYMLINKS.txt encountered");
+        timings.parseMs = elapsedMs(start);
+
+        // 2. Directories, parents first (sorted paths put a parent before its children)
+        start = System.nanoTime();
+        for (String path : directories) {
+            File directory = new File(path);
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+                throw new IOException("Failed to create directory " + path);
+        }
+        timings.directories = directories.size();
+        timings.directoriesMs = elapsedMs(start);
+
+        // 3. Files: largest first, so one huge entry does not finish last on a single worker
+        start = System.nanoTime();
+        Collections.sort(files, (a, b) -> Integer.compare(b.compressedSize, a.compressedSize));
+        final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        final AtomicLong bytes = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>(files.size());
+            for (Entry entry : files) {
+                final boolean executable = isExecutable(entry.name);
+                if (executable) timings.executables++;
+                tasks.add(pool.submit(() -> {
+                    writeEntry(buffer, entry, stagingPath + "/" + entry.name, executable ? 0700 : 0600);
+                    bytes.addAndGet(entry.size);
+                    return null;
+                }));
+            }
+            awaitAll(tasks);
+            timings.files = files.size();
+            timings.bytes = bytes.get();
+            timings.threads = threads;
+            timings.extractMs = elapsedMs(start);
+
+            // 4. Symlinks: parents already exist, links are independent of each other
+            start = System.nanoTime();
+            tasks.clear();
+            for (Pair<String, String> symlink : symlinks) {
+                tasks.add(pool.submit(() -> {
+                    Os.symlink(symlink.first, symlink.second);
+                    return null;
+                }));
+            }
+            awaitAll(tasks);
+            timings.symlinks = symlinks.size();
+            timings.symlinksMs = elapsedMs(start);
+        } finally {
+            pool.shutdownNow();
+        }
+        return timings;
+    }
+
+    /** Same set of paths the installer used to chmod 0700 after extraction. */
+    private static boolean isExecutable(String name) {
+        return name.startsWith("bin/")
+            || name.startsWith("libexec")
+            || name.startsWith("lib/apt/apt-helper")
+            || name.startsWith("lib/apt/methods");
+    }
+
+    private static List<Entry> readCentralDirectory(ByteBuffer zip) throws ZipException {
+        int eocd = -1;
+        for (int i = zip.limit() - EOCD_MIN_SIZE; i >= Math.max(0, zip.limit() - EOCD_MIN_SIZE - MAX_COMMENT); i--) {
+            if (zip.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0)
+            throw new ZipException("End of central directory not found");
+
+        int count = zip.getShort(eocd + 10) & 0xFFFF;
+        int offset = zip.getInt(eocd + 16);
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (zip.getInt(offset) != CEN_SIGNATURE)
+                throw new ZipException("Bad central directory entry at " + offset);
+
+            int nameLength = zip.getShort(offset + 28) & 0xFFFF;
+            int extraLength = zip.getShort(offset + 30) & 0xFFFF;
+            int commentLength = zip.getShort(offset + 32) & 0xFFFF;
+
+            Entry entry = new Entry();
+            entry.method = zip.getShort(offset + 10) & 0xFFFF;
+            entry.crc = zip.getInt(offset + 16) & 0xFFFFFFFFL;
+            entry.compressedSize = zip.getInt(offset + 20);
+            entry.size = zip.getInt(offset + 24);
+            entry.localHeaderOffset = zip.getInt(offset + 42);
+
+            byte[] name = new byte[nameLength];
+            ByteBuffer view = zip.duplicate();
+            view.position(offset + 46);
+            view.get(name);
+            entry.name = new String(name, StandardCharsets.UTF_8);
+
+            if (entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED)
+                throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+
+            entries.add(entry);
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /** Offset of the entry data: the local header's name and extra lengths can differ from the central ones. */
+    private static int dataOffset(ByteBuffer zip, Entry entry) throws ZipException {
+        int local = entry.localHeaderOffset;
+        if (zip.getInt(local) != LOC_SIGNATURE)
+            throw new ZipException("Bad local header for " + entry.name);
+        return local + 30 + (zip.getShort(local + 26) & 0xFFFF) + (zip.getShort(local + 28) & 0xFFFF);
+    }
+
+    private static byte[] readEntry(ByteBuffer zip, Entry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(entry.size, 0));
+        copyEntry(zip, entry, (data, length) -> out.write(data, 0, length));
+        return out.toByteArray();
+    }
+
+    private static void writeEntry(ByteBuffer zip, Entry entry, String path, int mode) throws IOException {
+        final FileDescriptor fd;
+        try {
+            // The mode is set on creation, which replaces a separate chmod per executable
+            fd = Os.open(path, OsConstants.O_CREAT | OsConstants.O_WRONLY | OsConstants.O_TRUNC, mode);
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to create " + path, e);
+        }
+        try {
+            copyEntry(zip, entry, (data, length) -> {
+                int written = 0;
+                while (written < length)
+                    written += Os.write(fd, data, written, length - written);
+            });
+        } finally {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException ignored) {}
+        }
+    }
+
+    private interface Sink {
+        void write(byte[] data, int length) throws IOException, ErrnoException;
+    }
+
+    private static void copyEntry(ByteBuffer zip, Entry entry, Sink sink) throws IOException {
+        final ByteBuffer view = zip.duplicate();
+        final int start = dataOffset(zip, entry);
+        final int end = start + entry.compressedSize;
+        final byte[] input = INPUT.get();
+        final byte[] output = OUTPUT.get();
+        final CRC32 crc = new CRC32();
+        long total = 0;
+        view.position(start);
+
+        try {
+            if (entry.method == METHOD_STORED) {
+                while (view.position() < end) {
+                    int n = Math.min(output.length, end - view.position());
+                    view.get(output, 0, n);
+                    crc.update(output, 0, n);
+                    sink.write(output, n);
+                    total += n;
+                }
+            } else {
+                Inflater inflater = INFLATER.get();
+                inflater.reset();
+                boolean padded = false;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        int n = Math.min(input.length, end - view.position());
+                        if (n > 0) {
+                            view.get(input, 0, n);
+                            inflater.setInput(input, 0, n);
+                        } else if (!padded) {
+                            // Raw inflate may ask for one byte past the end of the stream
+                            padded = true;
+                            input[0] = 0;
+                            inflater.setInput(input, 0, 1);
+                        } else {
+                            throw new ZipException("Truncated entry " + entry.name);
+                        }
+                    }
+                    int n = inflater.inflate(output);
+                    if (n == 0 && inflater.needsDictionary())
+                        throw new ZipException("Unsupported preset dictionary in " + entry.name);
+                    if (n > 0) {
+                        crc.update(output, 0, n);
+                        sink.write(output, n);
+                        total += n;
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt entry " + entry.name + ": " + e.getMessage());
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to write " + entry.name, e);
+        }
+
+        if (total != (entry.size & 0xFFFFFFFFL) || crc.getValue() != entry.crc)
+            throw new ZipException("Size or CRC mismatch for " + entry.name);
+    }
+
+    private static void awaitAll(List<Future<?>> tasks) throws Exception {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (java.util.concurrent.ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw e;
+            }
+        }
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
@@ -7,7 +7,6 @@ import android.content.Context;
 import android.os.Build;
 import android.os.Environment;
 import android.system.Os;
-import android.util.Pair;
 import android.view.WindowManager;
 
 import com.kakdela.p2p.R;
@@ -23,15 +22,8 @@ import com.termux.shared.termux.TermuxConstants;
 import com.termux.shared.termux.TermuxUtils;
 import com.termux.shared.termux.shell.command.environment.TermuxShellEnvironment;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.nio.ByteBuffer;
 
 import static com.termux.shared.termux.TermuxConstants.TERMUX_PREFIX_DIR;
 import static com.termux.shared.termux.TermuxConstants.TERMUX_PREFIX_DIR_PATH;
@@ -180,113 +172,28 @@ public final class TermuxInstaller {
                         return;
                     }
 
-                    final byte[] buffer = new byte[8096];
-                    final List<Pair<String, String>> symlinks =
-                        new ArrayList<>(50);
+                    long start = System.nanoTime();
+                    final ByteBuffer zipBuffer = loadZipBuffer();
+                    final long mapMs = (System.nanoTime() - start) / 1_000_000;
 
-                    final byte[] zipBytes = loadZipBytes();
-
-                    try (ZipInputStream zipInput =
-                             new ZipInputStream(
-                                 new ByteArrayInputStream(zipBytes))) {
-
-                        ZipEntry zipEntry;
-
-                        while ((zipEntry = zipInput.getNextEntry()) != null) {
-
-                            if (zipEntry.getName().equals("SYMLINKS.txt")) {
-
-                                BufferedReader symlinksReader =
-                                    new BufferedReader(
-                                        new InputStreamReader(zipInput));
-
-                                String line;
-
-                                while ((line = symlinksReader.readLine()) != null) {
-
-                                    String[] parts = line.split("←");
-
-                                    if (parts.length != 2)
-                                        throw new RuntimeException(
-                                            "Malformed symlink line: " + line);
-
-                                    String oldPath = parts[0];
-                                    String newPath =
-                                        TERMUX_STAGING_PREFIX_DIR_PATH + "/" + parts[1];
-
-                                    symlinks.add(Pair.create(oldPath, newPath));
-
-                                    error = ensureDirectoryExists(
-                                        new File(newPath).getParentFile());
-
-                                    if (error != null) {
-                                        showBootstrapErrorDialog(
-                                            activity, whenDone,
-                                            Error.getErrorMarkdownString(error));
-                                        return;
-                                    }
-                                }
-
-                            } else {
-
-                                String zipEntryName = zipEntry.getName();
-
-                                File targetFile =
-                                    new File(TERMUX_STAGING_PREFIX_DIR_PATH,
-                                        zipEntryName);
-
-                                boolean isDirectory = zipEntry.isDirectory();
-
-                                error = ensureDirectoryExists(
-                                    isDirectory
-                                        ? targetFile
-                                        : targetFile.getParentFile());
-
-                                if (error != null) {
-                                    showBootstrapErrorDialog(
-                                        activity, whenDone,
-                                        Error.getErrorMarkdownString(error));
-                                    return;
-                                }
-
-                                if (!isDirectory) {
-
-                                    try (FileOutputStream outStream =
-                                             new FileOutputStream(targetFile)) {
-
-                                        int readBytes;
-                                        while ((readBytes =
-                                            zipInput.read(buffer)) != -1) {
-
-                                            outStream.write(buffer, 0, readBytes);
-                                        }
-                                    }
-
-                                    if (zipEntryName.startsWith("bin/")
-                                        || zipEntryName.startsWith("libexec")
-                                        || zipEntryName.startsWith("lib/apt/apt-helper")
-                                        || zipEntryName.startsWith("lib/apt/methods")) {
-
-                                        Os.chmod(targetFile.getAbsolutePath(), 0700);
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    if (symlinks.isEmpty())
-                        throw new RuntimeException("No SYMLINKS.txt encountered");
-
-                    for (Pair<String, String> symlink : symlinks) {
-                        Os.symlink(symlink.first, symlink.second);
-                    }
+                    final BootstrapExtractor.Timings timings =
+                        BootstrapExtractor.extract(zipBuffer, TERMUX_STAGING_PREFIX_DIR_PATH);
 
+                    start = System.nanoTime();
                     if (!TERMUX_STAGING_PREFIX_DIR.renameTo(TERMUX_PREFIX_DIR)) {
                         throw new RuntimeException(
                             "Moving termux prefix staging to prefix directory failed");
                     }
 
+                    final long renameMs = (System.nanoTime() - start) / 1_000_000;
+
+                    start = System.nanoTime();
                     TermuxShellEnvironment.writeEnvironmentToFile(activity);
+                    final long environmentMs = (System.nanoTime() - start) / 1_000_000;
+
+                    Logger.logInfo(LOG_TAG,
+                        "Bootstrap installed: map=" + mapMs + "ms, " + timings +
+                            ", rename=" + renameMs + "ms, environment=" + environmentMs + "ms");
 
                     activity.runOnUiThread(whenDone);
 
@@ -521,10 +428,17 @@ public final class TermuxInstaller {
         }.start();
     }
 
-    private static Error ensureDirectoryExists(File directory) {
-        return FileUtils.createDirectoryFile(directory.getAbsolutePath());
+    /**
+     * The embedded bootstrap zip as a read-only direct buffer over the library's data,
+     * without copying it to the Java heap.
+     */
+    public static ByteBuffer loadZipBuffer() {
+        System.loadLibrary("termux-bootstrap");
+        return getZipBuffer().asReadOnlyBuffer();
     }
 
+    public static native ByteBuffer getZipBuffer();
+
     public static byte[] loadZipBytes() {
         System.loadLibrary("termux-bootstrap");
         return getZip();
@@ -30,13 +30,18 @@ import androidx.compose.runtime.*
 import androidx.compose.ui.*
 import androidx.compose.ui.draw.*
 import androidx.compose.ui.graphics.Color
+import androidx.compose.ui.graphics.asImageBitmap
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.text.font.FontWeight
 import androidx.compose.ui.text.style.TextOverflow
 import androidx.compose.ui.unit.*
+import com.kakdela.p2p.data.AttachmentStore
+import com.kakdela.p2p.data.AttachmentTransfer
 import com.kakdela.p2p.data.IdentityRepository
+import com.kakdela.p2p.data.ThumbnailRequest
 import com.kakdela.p2p.data.local.MessageEntity
 import com.kakdela.p2p.ui.call.CallActivity
+import com.kakdela.p2p.ui.components.rememberThumbnail
 import kotlinx.coroutines.delay
 import java.io.File
 import java.io.IOException
@@ -48,18 +53,26 @@ private val NeonGreen = Color(0xFF00FF9D)
 private val NeonPurple = Color(0xFFB042FF)
 private val DarkBackground = Color(0xFF0A0A0A)
 private val SurfaceGray = Color(0xFF1E1E1E)
+private const val PAGE_PREFETCH_DISTANCE = 10
 
 @OptIn(ExperimentalMaterial3Api::class, ExperimentalFoundationApi::class)
 @Composable
 fun ChatScreen(
     chatPartnerId: String,
     messages: List<MessageEntity>,
+    messagesVersion: Long = 0,
+    transfers: Map<String, AttachmentTransfer.Progress> = emptyMap(),
     identityRepository: IdentityRepository,
     onSendMessage: (String) -> Unit,
     onSendFile: (Uri, String) -> Unit,
     onSendAudio: (Uri, Int) -> Unit,
     onScheduleMessage: (String, Long) -> Unit,
-    onBack: () -> Unit
+    onBack: () -> Unit,
+    hasOlder: Boolean = false,
+    hasNewer: Boolean = false,
+    onLoadOlder: () -> Unit = {},
+    onLoadNewer: () -> Unit = {},
+    onSearch: (() -> Unit)? = null
 ) {
     val context = LocalContext.current
     val listState = rememberLazyListState()
@@ -74,13 +87,27 @@ fun ChatScreen(
         }
     }
     
-    // Автопрокрутка к последнему сообщению
-    LaunchedEffect(messages.size) {
-        if (messages.isNotEmpty()) {
+    // Автопрокрутка к последнему сообщению — только когда появилось новое последнее сообщение,
+    // а не при подгрузке старых страниц сверху
+    val lastMessageId = messages.lastOrNull()?.messageId
+    LaunchedEffect(lastMessageId) {
+        if (messages.isNotEmpty() && !hasNewer) {
             listState.animateScrollToItem(messages.size - 1)
         }
     }
 
+    // Подгрузка страниц у краёв окна
+    LaunchedEffect(listState, hasOlder) {
+        if (!hasOlder) return@LaunchedEffect
+        snapshotFlow { listState.firstVisibleItemIndex }
+            .collect { if (it < PAGE_PREFETCH_DISTANCE) onLoadOlder() }
+    }
+    LaunchedEffect(listState, hasNewer) {
+        if (!hasNewer) return@LaunchedEffect
+        snapshotFlow { listState.layoutInfo.visibleItemsInfo.lastOrNull()?.index ?: 0 }
+            .collect { if (it > listState.layoutInfo.totalItemsCount - PAGE_PREFETCH_DISTANCE) onLoadNewer() }
+    }
+
     val filePicker = rememberLauncherForActivityResult(
         ActivityResultContracts.GetContent()
     ) { uri: Uri? ->
@@ -116,6 +143,11 @@ fun ChatScreen(
                     }
                 },
                 actions = {
+                    if (onSearch != null) {
+                        IconButton(onClick = onSearch) {
+                            Icon(Icons.Default.Search, "Search", tint = NeonCyan)
+                        }
+                    }
                     IconButton(onClick = { startCall(context, chatPartnerId, isVideo = false) }) {
                         Icon(Icons.Default.Call, "Call", tint = NeonCyan)
                     }
@@ -148,6 +180,8 @@ fun ChatScreen(
             items(messages, key = { it.messageId + it.timestamp }) { message ->
                 ChatBubble(
                     message = message,
+                    version = messagesVersion,
+                    transfer = transfers[message.messageId],
                     modifier = Modifier.animateItemPlacement()
                 )
             }
@@ -333,6 +367,9 @@ fun ChatInputArea(
 @Composable
 fun ChatBubble(
     message: MessageEntity,
+    // MessageEntity равны по messageId: по версии перерисовывается смена статуса у того же сообщения
+    @Suppress("UNUSED_PARAMETER") version: Long = 0,
+    transfer: AttachmentTransfer.Progress? = null,
     modifier: Modifier = Modifier
 ) {
     val isMe = message.isMe
@@ -363,6 +400,7 @@ fun ChatBubble(
                 Spacer(Modifier.width(8.dp))
                 MessageBubbleContent(
                     message = message,
+                    transfer = transfer,
                     shape = shape,
                     color = bubbleColor,
                     borderColor = borderColor
@@ -371,6 +409,7 @@ fun ChatBubble(
         } else {
             MessageBubbleContent(
                 message = message,
+                transfer = transfer,
                 shape = shape,
                 color = bubbleColor,
                 borderColor = borderColor
@@ -382,6 +421,7 @@ fun ChatBubble(
 @Composable
 fun MessageBubbleContent(
     message: MessageEntity,
+    transfer: AttachmentTransfer.Progress? = null,
     shape: RoundedCornerShape,
     color: Color,
     borderColor: Color
@@ -397,8 +437,8 @@ fun MessageBubbleContent(
             val content = message.text ?: ""
 
             when {
-                content.startsWith("AUDIO:") -> AudioPlayerBubble(content)
-                content.startsWith("FILE:") -> FileBubble(content)
+                content.startsWith("AUDIO:") -> AudioPlayerBubble(content, message.fileHash)
+                content.startsWith("FILE:") -> FileBubble(content, message.fileHash, message.fileMime)
                 else -> Text(
                     text = content,
                     color = Color.White,
@@ -407,6 +447,17 @@ fun MessageBubbleContent(
                 )
             }
 
+            if (transfer != null && transfer.state == AttachmentTransfer.State.ACTIVE) {
+                LinearProgressIndicator(
+                    progress = transfer.fraction,
+                    color = NeonCyan,
+                    trackColor = Color.Gray.copy(alpha = 0.3f),
+                    modifier = Modifier.fillMaxWidth().padding(top = 6.dp)
+                )
+            } else if (message.status == "FAILED" && message.isMedia()) {
+                Text("Ошибка передачи", fontSize = 10.sp, color = Color.Red.copy(alpha = 0.8f), modifier = Modifier.padding(top = 4.dp))
+            }
+
             Row(
                 modifier = Modifier.align(Alignment.End).padding(top = 6.dp),
                 verticalAlignment = Alignment.CenterVertically
@@ -432,15 +483,18 @@ fun MessageBubbleContent(
 }
 
 @Composable
-fun AudioPlayerBubble(content: String) {
+fun AudioPlayerBubble(content: String, fileHash: String? = null) {
     val context = LocalContext.current
     val trimmed = content.removePrefix("AUDIO:").trim()
     val parts = trimmed.split(" ", limit = 2)
     val fileName = parts[0]
     val storedDuration = if (parts.size > 1) parts[1].removeSuffix("s").toIntOrNull() ?: 0 else 0
 
-    val audioDir = remember { File(context.filesDir, "audios") }
-    val audioFile = remember(fileName) { File(audioDir, fileName) }
+    // Вложения лежат в хранилище по хешу; старые записи — в audios/ по имени
+    val audioFile = remember(fileName, fileHash) {
+        fileHash?.let { AttachmentStore.pathFor(AttachmentStore.rootDir(context), it) }
+            ?: File(File(context.filesDir, "audios"), fileName)
+    }
 
     // Если файл не найден локально (например, SMS без вложения), просто показываем имя
     if (!audioFile.exists()) {
@@ -544,7 +598,7 @@ fun AudioPlayerBubble(content: String) {
 }
 
 @Composable
-fun FileBubble(content: String) {
+fun FileBubble(content: String, fileHash: String? = null, mime: String? = null) {
     val context = LocalContext.current
     val trimmed = content.removePrefix("FILE:").trim()
     val parts = trimmed.split(" ", limit = 2)
@@ -552,8 +606,13 @@ fun FileBubble(content: String) {
     
     // Попытка открыть файл (просто заглушка для логики открытия, так как в SMS файлы передаются как ссылки или MMS)
     // Здесь предполагается, что если это P2P, файл лежит локально
-    val fileDir = remember { File(context.filesDir, "files").apply { mkdirs() } }
-    val file = remember(displayName) { File(fileDir, displayName) }
+    val file = remember(displayName, fileHash) {
+        fileHash?.let { AttachmentStore.pathFor(AttachmentStore.rootDir(context), it) }
+            ?: File(File(context.filesDir, "files"), displayName)
+    }
+
+    // Миниатюра создаётся лениво в фоне: файл кеширует хранилище, растр — общий кэш в памяти
+    val thumbnail = rememberThumbnail(fileHash?.let { ThumbnailRequest.Attachment(it, mime) })
 
     Row(
         modifier = Modifier
@@ -565,7 +624,7 @@ fun FileBubble(content: String) {
                             context, "${context.packageName}.provider", file
                         )
                         val intent = Intent(Intent.ACTION_VIEW).apply {
-                            setDataAndType(uri, "*/*") // Mime type лучше определять точнее
+                            setDataAndType(uri, mime ?: "*/*")
                             flags = Intent.FLAG_GRANT_READ_URI_PERMISSION
                         }
                         context.startActivity(intent)
@@ -579,7 +638,16 @@ fun FileBubble(content: String) {
             .padding(4.dp),
         verticalAlignment = Alignment.CenterVertically
     ) {
-        Icon(Icons.Default.Description, contentDescription = "File", tint = NeonCyan)
+        val preview = thumbnail
+        if (preview != null) {
+            Image(
+                bitmap = preview.asImageBitmap(),
+                contentDescription = displayName,
+                modifier = Modifier.size(64.dp).clip(RoundedCornerShape(8.dp))
+            )
+        } else {
+            Icon(Icons.Default.Description, contentDescription = "File", tint = NeonCyan)
+        }
         Spacer(Modifier.width(8.dp))
         Column {
             Text(text = displayName, color = Color.White, fontWeight = FontWeight.Bold, maxLines = 1, overflow = TextOverflow.Ellipsis)
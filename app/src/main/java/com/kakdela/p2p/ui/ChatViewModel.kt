@@ -1,23 +1,20 @@
 package com.kakdela.p2p.ui
 
 import android.app.Application
-import android.database.ContentObserver
 import android.net.Uri
-import android.os.Handler
-import android.os.Looper
 import android.provider.Telephony
-import android.util.Log
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
+import com.kakdela.p2p.data.AttachmentTransfer
 import com.kakdela.p2p.data.IdentityRepository
 import com.kakdela.p2p.data.MessageRepository
+import com.kakdela.p2p.data.MessageWindow
+import com.kakdela.p2p.data.SmsMirror
 import com.kakdela.p2p.data.local.ChatDatabase
 import com.kakdela.p2p.data.local.MessageEntity
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.withContext
 
 /**
  * ChatViewModel: Управляет UI-состоянием чата.
@@ -34,13 +31,35 @@ class ChatViewModel(
     private val db = ChatDatabase.getDatabase(application)
     private val messageDao = db.messageDao()
     private val nodeDao = db.nodeDao()
+    private val smsMirror = SmsMirror.getInstance(application)
 
     private var partnerHash: String = ""
     private var partnerPhone: String? = null
 
+    /**
+     * Сообщения чата и номер их версии. [MessageEntity.equals] сравнивает только messageId,
+     * поэтому без [version] StateFlow и Compose пропустили бы смену статуса или прочтения.
+     */
+    data class ChatMessages(
+        val items: List<MessageEntity> = emptyList(),
+        val version: Long = 0
+    )
+
     // Единый поток сообщений (P2P + SMS)
-    private val _messages = MutableStateFlow<List<MessageEntity>>(emptyList())
-    val messages: StateFlow<List<MessageEntity>> = _messages.asStateFlow()
+    private val _messages = MutableStateFlow(ChatMessages())
+    val messages: StateFlow<ChatMessages> = _messages.asStateFlow()
+    private var version = 0L
+
+    // Окно истории сверх загруженного: для подгрузки при прокрутке
+    private val _hasOlder = MutableStateFlow(false)
+    val hasOlder: StateFlow<Boolean> = _hasOlder.asStateFlow()
+    private val _hasNewer = MutableStateFlow(false)
+    val hasNewer: StateFlow<Boolean> = _hasNewer.asStateFlow()
+
+    private var window: MessageWindow? = null
+
+    // Прогресс потоковой передачи вложений по messageId
+    val transfers: StateFlow<Map<String, AttachmentTransfer.Progress>> = messageRepo.attachments.progress
 
     /**
      * Инициализация чата.
@@ -53,8 +72,11 @@ class ChatViewModel(
             // 1. Пытаемся определить номер телефона
             partnerPhone = resolvePhoneNumber(identifier)
 
-            // 2. Создаем Flow для локальной БД (P2P история + сохраненные нами SMS)
-            val dbFlow = messageDao.observeMessages(identifier)
+            // 2. Окно истории из локальной БД (keyset-страницы, а не весь чат)
+            val messageWindow = MessageWindow(messageDao, identifier, viewModelScope)
+            window?.close()
+            window = messageWindow
+            messageWindow.start()
 
             // 3. Создаем Flow для системных SMS (если есть номер телефона)
             val smsFlow = if (!partnerPhone.isNullOrBlank()) {
@@ -64,12 +86,14 @@ class ChatViewModel(
             }
 
             // 4. Объединяем потоки
-            combine(dbFlow, smsFlow) { dbMsgs, smsMsgs ->
-                mergeMessages(dbMsgs, smsMsgs)
+            combine(messageWindow.snapshot, smsFlow) { snapshot, smsMsgs ->
+                _hasOlder.value = snapshot.hasOlder
+                _hasNewer.value = snapshot.hasNewer
+                mergeMessages(snapshot.messages, smsMsgs.inWindowOf(snapshot))
             }
-            .distinctUntilChanged()
             .collect { list ->
-                _messages.value = list
+                // Каждый выпуск combine — изменение окна или SMS, даже если messageId те же
+                _messages.value = ChatMessages(list, ++version)
             }
         }
     }
@@ -92,95 +116,84 @@ class ChatViewModel(
     }
 
     /**
-     * Считывает системные SMS через ContentProvider и подписывается на изменения.
+     * Переписка по SMS из локального зеркала: выборка по индексу нормализованного адреса,
+     * без запросов к ContentProvider. Зеркало само догружает новые SMS по уведомлениям.
      */
-    private fun observeSystemSms(phoneNumber: String): Flow<List<MessageEntity>> = callbackFlow {
-        val uri = Telephony.Sms.CONTENT_URI
-        
-        // Функция чтения SMS
-        fun load(): List<MessageEntity> {
-            val list = mutableListOf<MessageEntity>()
-            try {
-                // Ищем SMS по адресу (номеру). Нормализация номера сложная тема,
-                // здесь используем упрощенный поиск 'like' для надежности
-                val selection = "${Telephony.Sms.ADDRESS} LIKE ?"
-                val selectionArgs = arrayOf("%${phoneNumber.takeLast(10)}%") 
-                
-                context.contentResolver.query(
-                    uri,
-                    arrayOf(Telephony.Sms._ID, Telephony.Sms.BODY, Telephony.Sms.DATE, Telephony.Sms.TYPE),
-                    selection,
-                    selectionArgs,
-                    "${Telephony.Sms.DATE} DESC"
-                )?.use { cursor ->
-                    val bodyIdx = cursor.getColumnIndex(Telephony.Sms.BODY)
-                    val dateIdx = cursor.getColumnIndex(Telephony.Sms.DATE)
-                    val typeIdx = cursor.getColumnIndex(Telephony.Sms.TYPE) // 1 = Inbox, 2 = Sent
-
-                    while (cursor.moveToNext()) {
-                        val type = cursor.getInt(typeIdx)
-                        val isMe = type == Telephony.Sms.MESSAGE_TYPE_SENT
-                        
-                        list.add(MessageEntity(
-                            messageId = "sms_${cursor.getLong(dateIdx)}", // Генерируем ID
-                            chatId = partnerHash,
-                            senderId = if (isMe) identityRepo.getMyId() else partnerHash,
-                            receiverId = if (isMe) partnerHash else identityRepo.getMyId(),
-                            text = cursor.getString(bodyIdx) ?: "",
-                            timestamp = cursor.getLong(dateIdx),
-                            isMe = isMe,
-                            status = if (isMe) "SENT_SMS" else "RECEIVED_SMS",
-                            messageType = "TEXT"
-                        ))
-                    }
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Error loading system SMS", e)
+    private fun observeSystemSms(phoneNumber: String): Flow<List<MessageEntity>> {
+        smsMirror.start()
+        val myId = identityRepo.getMyId()
+        return smsMirror.observeThread(phoneNumber).map { thread ->
+            thread.map { sms ->
+                val isMe = sms.type == Telephony.Sms.MESSAGE_TYPE_SENT
+                MessageEntity(
+                    messageId = "sms_${sms.smsId}",
+                    chatId = partnerHash,
+                    senderId = if (isMe) myId else partnerHash,
+                    receiverId = if (isMe) partnerHash else myId,
+                    text = sms.body,
+                    timestamp = sms.date,
+                    isMe = isMe,
+                    status = if (isMe) "SENT_SMS" else "RECEIVED_SMS",
+                    messageType = "TEXT"
+                )
             }
-            return list
-        }
+        }.flowOn(Dispatchers.Default)
+    }
 
-        // Отправляем начальные данные
-        trySend(load())
+    fun loadOlder() {
+        viewModelScope.launch(Dispatchers.IO) { window?.loadOlder() }
+    }
 
-        // Регистрируем наблюдателя за изменениями в БД SMS
-        val observer = object : ContentObserver(Handler(Looper.getMainLooper())) {
-            override fun onChange(selfChange: Boolean) {
-                trySend(load())
-            }
-        }
-        try {
-            context.contentResolver.registerContentObserver(uri, true, observer)
-        } catch (e: SecurityException) {
-            // Нет прав
-        }
+    fun loadNewer() {
+        viewModelScope.launch(Dispatchers.IO) { window?.loadNewer() }
+    }
 
-        awaitClose {
-            context.contentResolver.unregisterContentObserver(observer)
-        }
-    }.flowOn(Dispatchers.IO)
+    override fun onCleared() {
+        window?.close()
+        super.onCleared()
+    }
+
+    /**
+     * SMS, попадающие во временной диапазон окна: за его пределами они появятся
+     * вместе с соответствующими страницами истории.
+     */
+    private fun List<MessageEntity>.inWindowOf(snapshot: MessageWindow.Snapshot): List<MessageEntity> {
+        val from = if (snapshot.hasOlder) snapshot.messages.firstOrNull()?.timestamp ?: Long.MIN_VALUE else Long.MIN_VALUE
+        val to = if (snapshot.hasNewer) snapshot.messages.lastOrNull()?.timestamp ?: Long.MAX_VALUE else Long.MAX_VALUE
+        return filter { it.timestamp in from..to }
+    }
 
     /**
      * Объединяет сообщения из локальной БД и системные SMS.
      * Убирает дубликаты (если мы сохранили отправленное SMS в БД, оно есть и в системе).
+     *
+     * Оба списка отсортированы по времени, поэтому слияние идёт одним проходом двумя указателями;
+     * для каждого SMS проверяются только локальные сообщения в пределах [SMS_DUPLICATE_WINDOW_MS].
      */
     private fun mergeMessages(local: List<MessageEntity>, system: List<MessageEntity>): List<MessageEntity> {
-        val merged = ArrayList<MessageEntity>()
-        merged.addAll(local)
-        
-        // Добавляем системные SMS, если похожих нет в локальной базе
-        // Критерий похожести: время (в пределах 2 сек) и текст
+        if (system.isEmpty()) return local
+        val merged = ArrayList<MessageEntity>(local.size + system.size)
+        var i = 0   // следующий локальный для вывода
+        var lo = 0  // первый локальный, не старше окна дубликатов текущего SMS
+
         for (sysMsg in system) {
-            val isDuplicate = local.any { locMsg ->
-                val timeDiff = kotlin.math.abs(locMsg.timestamp - sysMsg.timestamp)
-                timeDiff < 2000 && locMsg.text == sysMsg.text
-            }
-            if (!isDuplicate) {
-                merged.add(sysMsg)
+            while (i < local.size && local[i].timestamp <= sysMsg.timestamp) merged.add(local[i++])
+            while (lo < local.size && local[lo].timestamp <= sysMsg.timestamp - SMS_DUPLICATE_WINDOW_MS) lo++
+
+            // Критерий похожести: время (в пределах 2 сек) и текст
+            var isDuplicate = false
+            var j = lo
+            while (j < local.size && local[j].timestamp < sysMsg.timestamp + SMS_DUPLICATE_WINDOW_MS) {
+                if (local[j].text == sysMsg.text) {
+                    isDuplicate = true
+                    break
+                }
+                j++
             }
+            if (!isDuplicate) merged.add(sysMsg)
         }
-        
-        return merged.sortedBy { it.timestamp }
+        while (i < local.size) merged.add(local[i++])
+        return merged
     }
 
     /* === Методы отправки (без изменений логики) === */
@@ -213,4 +226,8 @@ class ChatViewModel(
         if (text.isBlank() || partnerHash.isBlank()) return
         messageRepo.sendText(partnerHash, text, scheduledTime = timestamp)
     }
+
+    private companion object {
+        const val SMS_DUPLICATE_WINDOW_MS = 2_000L
+    }
 }
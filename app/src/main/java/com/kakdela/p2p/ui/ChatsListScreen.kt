@@ -15,6 +15,7 @@ import androidx.compose.foundation.lazy.items
 import androidx.compose.foundation.shape.CircleShape
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.Add
+import androidx.compose.material.icons.filled.Search
 import androidx.compose.material.icons.filled.Sms
 import androidx.compose.material3.*
 import androidx.compose.runtime.*
@@ -174,8 +175,16 @@ fun ChatListItem(
                     color = Color.LightGray.copy(alpha = 0.6f),
                     maxLines = 1,
                     overflow = TextOverflow.Ellipsis,
-                    style = MaterialTheme.typography.bodyMedium
+                    style = MaterialTheme.typography.bodyMedium,
+                    modifier = Modifier.weight(1f)
                 )
+
+                if (chat.unreadCount > 0) {
+                    Spacer(Modifier.width(8.dp))
+                    Badge(containerColor = Color(0xFF00FFFF), contentColor = Color.Black) {
+                        Text(if (chat.unreadCount > 99) "99+" else chat.unreadCount.toString())
+                    }
+                }
             }
         }
     }
@@ -217,6 +226,11 @@ fun ChatsListScreen(
                         color = Color(0xFF00FFFF)
                     )
                 },
+                actions = {
+                    IconButton(onClick = { navController.navigate(Routes.buildSearchRoute()) }) {
+                        Icon(Icons.Default.Search, contentDescription = "Поиск", tint = Color(0xFF00FFFF))
+                    }
+                },
                 colors = TopAppBarDefaults.centerAlignedTopAppBarColors(
                     containerColor = Color.Black
                 )
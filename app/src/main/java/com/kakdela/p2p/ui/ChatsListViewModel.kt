@@ -1,14 +1,13 @@
 package com.kakdela.p2p.ui
 
 import android.app.Application
-import android.provider.Telephony
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
+import com.kakdela.p2p.data.SmsMirror
 import com.kakdela.p2p.data.local.ChatDatabase
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.withContext
 import java.text.SimpleDateFormat
 import java.util.*
 
@@ -19,6 +18,7 @@ import java.util.*
  * lastMessageIsSms — тип последнего сообщения (для иконки)
  * p2pHash         — hash P2P-чата (если есть)
  * phoneNumber     — номер телефона (если есть)
+ * unreadCount     — число непрочитанных входящих P2P-сообщений
  */
 data class ChatDisplay(
     val id: String,
@@ -28,14 +28,15 @@ data class ChatDisplay(
     val timestamp: Long,
     val lastMessageIsSms: Boolean,
     val p2pHash: String? = null,
-    val phoneNumber: String? = null
+    val phoneNumber: String? = null,
+    val unreadCount: Int = 0
 )
 
 class ChatsListViewModel(application: Application) : AndroidViewModel(application) {
 
     private val db = ChatDatabase.getDatabase(application)
-    private val messageDao = db.messageDao()
-    private val nodeDao = db.nodeDao()
+    private val summaryDao = db.chatSummaryDao()
+    private val smsMirror = SmsMirror.getInstance(application)
 
     private val _dbChats = MutableStateFlow<List<ChatDisplay>>(emptyList())
     private val _smsChats = MutableStateFlow<List<ChatDisplay>>(emptyList())
@@ -66,7 +67,8 @@ class ChatsListViewModel(application: Application) : AndroidViewModel(applicatio
                 latest.copy(
                     p2pHash = p2pHash,
                     phoneNumber = phoneNumber,
-                    title = phoneNumber ?: latest.title
+                    title = phoneNumber ?: latest.title,
+                    unreadCount = items.sumOf { it.unreadCount }
                 )
             }.sortedByDescending { it.timestamp }
         }.stateIn(
@@ -80,107 +82,66 @@ class ChatsListViewModel(application: Application) : AndroidViewModel(applicatio
 
     init {
         observeDbChats()
+        observeSms()
         refreshSms()
     }
 
+    /**
+     * Запрашивает синхронизацию зеркала SMS (например, после выдачи разрешения READ_SMS).
+     */
     fun refreshSms() {
-        viewModelScope.launch(Dispatchers.IO) {
-            _smsChats.value = loadSystemSms()
-        }
+        smsMirror.start()
     }
 
     /**
-     * Наблюдение за P2P чатами из Room
+     * Наблюдение за P2P чатами из Room.
+     * Сводки (последнее сообщение, непрочитанные, телефон) ведутся триггерами БД,
+     * поэтому здесь нет ни подзапроса по messages, ни поиска узла на каждый чат.
      */
     private fun observeDbChats() {
         viewModelScope.launch(Dispatchers.IO) {
-            messageDao.observeLastMessages()
+            summaryDao.observeSummaries()
                 .distinctUntilChanged()
-                .collect { messages ->
-                    val chats = messages
-                        .filter { it.chatId != "global" }
-                        .map { msg ->
-                            val node = runCatching {
-                                nodeDao.getNodeByHash(msg.chatId)
-                            }.getOrNull()
-
-                            val phone = node?.phone
-
-                            ChatDisplay(
-                                id = msg.chatId,
-                                title = phone ?: msg.chatId,
-                                lastMessage = if (msg.isMe) "Вы: ${msg.text}" else msg.text,
-                                time = formatTimestamp(msg.timestamp),
-                                timestamp = msg.timestamp,
-                                lastMessageIsSms = false,
-                                p2pHash = msg.chatId,
-                                phoneNumber = phone
-                            )
-                        }
-
-                    _dbChats.value = chats
+                .collect { summaries ->
+                    _dbChats.value = summaries.map { s ->
+                        ChatDisplay(
+                            id = s.chatId,
+                            title = s.peerPhone ?: s.chatId,
+                            lastMessage = if (s.lastIsMe) "Вы: ${s.lastText}" else s.lastText,
+                            time = formatTimestamp(s.lastTimestamp),
+                            timestamp = s.lastTimestamp,
+                            lastMessageIsSms = false,
+                            p2pHash = s.chatId,
+                            phoneNumber = s.peerPhone,
+                            unreadCount = s.unreadCount
+                        )
+                    }
                 }
         }
     }
 
     /**
-     * Загрузка SMS из системной БД
-     * Один чат = один номер (берём самое свежее сообщение)
+     * SMS-чаты из локального зеркала: последнее сообщение каждого адреса.
+     * Один чат = один нормализованный номер.
      */
-    private suspend fun loadSystemSms(): List<ChatDisplay> = withContext(Dispatchers.IO) {
-        val context = getApplication<Application>()
-        val result = mutableListOf<ChatDisplay>()
-        val processed = HashSet<String>()
-
-        val projection = arrayOf(
-            Telephony.Sms.ADDRESS,
-            Telephony.Sms.BODY,
-            Telephony.Sms.DATE
-        )
-
-        val sortOrder = "${Telephony.Sms.DATE} DESC"
-
-        try {
-            context.contentResolver.query(
-                Telephony.Sms.CONTENT_URI,
-                projection,
-                null,
-                null,
-                sortOrder
-            )?.use { cursor ->
-                val addressIdx = cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS)
-                val bodyIdx = cursor.getColumnIndexOrThrow(Telephony.Sms.BODY)
-                val dateIdx = cursor.getColumnIndexOrThrow(Telephony.Sms.DATE)
-
-                while (cursor.moveToNext()) {
-                    val address = cursor.getString(addressIdx) ?: continue
-                    val normalized = normalizePhoneNumber(address)
-
-                    if (!processed.add(normalized)) continue
-
-                    val body = cursor.getString(bodyIdx)
-                    val date = cursor.getLong(dateIdx)
-
-                    result.add(
+    private fun observeSms() {
+        viewModelScope.launch(Dispatchers.IO) {
+            smsMirror.observeLatestPerAddress()
+                .distinctUntilChanged()
+                .collect { latest ->
+                    _smsChats.value = latest.map { sms ->
                         ChatDisplay(
-                            id = address,
-                            title = address,
-                            lastMessage = body.orEmpty(),
-                            time = formatTimestamp(date),
-                            timestamp = date,
+                            id = sms.address,
+                            title = sms.address,
+                            lastMessage = sms.body,
+                            time = formatTimestamp(sms.date),
+                            timestamp = sms.date,
                             lastMessageIsSms = true,
-                            phoneNumber = address
+                            phoneNumber = sms.address
                         )
-                    )
+                    }
                 }
-            }
-        } catch (_: SecurityException) {
-            return@withContext emptyList()
-        } catch (_: Exception) {
-            return@withContext emptyList()
         }
-
-        result
     }
 
     private fun formatTimestamp(timestamp: Long?): String {
@@ -199,19 +160,7 @@ class ChatsListViewModel(application: Application) : AndroidViewModel(applicatio
         }
     }
 
-    /**
-     * Нормализация номера:
-     * - только цифры
-     * - 8XXXXXXXXXX → 7XXXXXXXXXX
-     */
-    private fun normalizePhoneNumber(phone: String): String {
-        val digits = phone.replace(Regex("[^0-9]"), "")
-        return if (digits.length == 11 && digits.startsWith("8")) {
-            "7${digits.substring(1)}"
-        } else {
-            digits
-        }
-    }
+    private fun normalizePhoneNumber(phone: String): String = SmsMirror.normalizeAddress(phone)
 
     private fun isValidPhoneNumber(input: String): Boolean {
         val digits = input.replace(Regex("[^0-9]"), "")
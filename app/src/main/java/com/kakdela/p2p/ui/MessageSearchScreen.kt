@@ -0,0 +1,181 @@
+package com.kakdela.p2p.ui
+
+import androidx.compose.foundation.background
+import androidx.compose.foundation.clickable
+import androidx.compose.foundation.layout.*
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.lazy.rememberLazyListState
+import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.filled.ArrowBack
+import androidx.compose.material.icons.filled.Close
+import androidx.compose.material3.*
+import androidx.compose.runtime.*
+import androidx.compose.ui.Alignment
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.graphics.Color
+import androidx.compose.ui.text.AnnotatedString
+import androidx.compose.ui.text.SpanStyle
+import androidx.compose.ui.text.buildAnnotatedString
+import androidx.compose.ui.text.font.FontWeight
+import androidx.compose.ui.text.style.TextOverflow
+import androidx.compose.ui.text.withStyle
+import androidx.compose.ui.unit.dp
+import androidx.lifecycle.viewmodel.compose.viewModel
+import com.kakdela.p2p.data.local.MessageSearchHit
+import java.text.SimpleDateFormat
+import java.util.*
+
+private val SearchAccent = Color(0xFF00FFFF)
+private const val LOAD_MORE_DISTANCE = 5
+
+/**
+ * Экран поиска по сообщениям. [chatId] ограничивает поиск одним чатом.
+ */
+@OptIn(ExperimentalMaterial3Api::class)
+@Composable
+fun MessageSearchScreen(
+    chatId: String?,
+    onOpenChat: (String) -> Unit,
+    onBack: () -> Unit
+) {
+    val vm: MessageSearchViewModel = viewModel()
+    val query by vm.query.collectAsState()
+    val results by vm.results.collectAsState()
+    val hasMore by vm.hasMore.collectAsState()
+    val listState = rememberLazyListState()
+
+    LaunchedEffect(chatId) { vm.setChat(chatId) }
+
+    LaunchedEffect(listState, hasMore) {
+        if (!hasMore) return@LaunchedEffect
+        snapshotFlow { listState.layoutInfo.visibleItemsInfo.lastOrNull()?.index ?: 0 }
+            .collect { if (it > listState.layoutInfo.totalItemsCount - LOAD_MORE_DISTANCE) vm.loadMore() }
+    }
+
+    Scaffold(
+        containerColor = Color.Black,
+        topBar = {
+            TopAppBar(
+                colors = TopAppBarDefaults.topAppBarColors(containerColor = Color.Black),
+                navigationIcon = {
+                    IconButton(onClick = onBack) {
+                        Icon(Icons.Default.ArrowBack, "Назад", tint = SearchAccent)
+                    }
+                },
+                title = {
+                    TextField(
+                        value = query,
+                        onValueChange = vm::onQueryChange,
+                        placeholder = { Text(if (chatId == null) "Поиск по сообщениям" else "Поиск в чате") },
+                        singleLine = true,
+                        colors = TextFieldDefaults.colors(
+                            focusedContainerColor = Color.Transparent,
+                            unfocusedContainerColor = Color.Transparent,
+                            focusedTextColor = Color.White,
+                            unfocusedTextColor = Color.White,
+                            cursorColor = SearchAccent,
+                            focusedIndicatorColor = SearchAccent
+                        ),
+                        modifier = Modifier.fillMaxWidth()
+                    )
+                },
+                actions = {
+                    if (query.isNotEmpty()) {
+                        IconButton(onClick = { vm.onQueryChange("") }) {
+                            Icon(Icons.Default.Close, "Очистить", tint = Color.Gray)
+                        }
+                    }
+                }
+            )
+        }
+    ) { padding ->
+        Box(
+            modifier = Modifier
+                .fillMaxSize()
+                .padding(padding)
+                .background(Color.Black)
+        ) {
+            if (results.isEmpty()) {
+                if (query.isNotBlank()) {
+                    Text(
+                        "Ничего не найдено",
+                        color = Color.Gray,
+                        modifier = Modifier.align(Alignment.Center)
+                    )
+                }
+            } else {
+                LazyColumn(state = listState, modifier = Modifier.fillMaxSize()) {
+                    items(results, key = { it.messageId }) { hit ->
+                        SearchHitItem(hit, showChat = chatId == null) { onOpenChat(hit.chatId) }
+                        HorizontalDivider(thickness = 0.5.dp, color = Color.White.copy(alpha = 0.1f))
+                    }
+                }
+            }
+        }
+    }
+}
+
+@Composable
+private fun SearchHitItem(hit: MessageSearchHit, showChat: Boolean, onClick: () -> Unit) {
+    Column(
+        modifier = Modifier
+            .fillMaxWidth()
+            .clickable(onClick = onClick)
+            .padding(horizontal = 16.dp, vertical = 10.dp)
+    ) {
+        Row(
+            modifier = Modifier.fillMaxWidth(),
+            horizontalArrangement = Arrangement.SpaceBetween
+        ) {
+            Text(
+                text = when {
+                    !showChat -> if (hit.isMe) "Вы" else ""
+                    hit.isMe -> "Вы → ${rememberContactName(hit.chatId)}"
+                    else -> rememberContactName(hit.chatId)
+                },
+                color = SearchAccent,
+                fontWeight = FontWeight.Bold,
+                maxLines = 1,
+                overflow = TextOverflow.Ellipsis,
+                style = MaterialTheme.typography.bodyMedium,
+                modifier = Modifier.weight(1f)
+            )
+            Text(
+                text = remember(hit.timestamp) {
+                    SimpleDateFormat("dd.MM.yy HH:mm", Locale.getDefault()).format(Date(hit.timestamp))
+                },
+                color = Color.Gray,
+                style = MaterialTheme.typography.labelSmall
+            )
+        }
+        Spacer(Modifier.height(4.dp))
+        Text(
+            text = remember(hit.snippet) { highlight(hit.snippet) },
+            color = Color.LightGray,
+            maxLines = 3,
+            overflow = TextOverflow.Ellipsis,
+            style = MaterialTheme.typography.bodyMedium
+        )
+    }
+}
+
+/**
+ * Превращает разметку совпадений из snippet() FTS в выделение цветом.
+ */
+private fun highlight(snippet: String): AnnotatedString = buildAnnotatedString {
+    var i = 0
+    while (i < snippet.length) {
+        val start = snippet.indexOf(MessageSearchHit.MATCH_START, i)
+        if (start < 0) {
+            append(snippet.substring(i))
+            break
+        }
+        append(snippet.substring(i, start))
+        val end = snippet.indexOf(MessageSearchHit.MATCH_END, start + 1).let { if (it < 0) snippet.length else it }
+        withStyle(SpanStyle(color = SearchAccent, fontWeight = FontWeight.Bold)) {
+            append(snippet.substring(start + 1, end))
+        }
+        i = end + 1
+    }
+}
@@ -0,0 +1,79 @@
+package com.kakdela.p2p.ui
+
+import android.app.Application
+import androidx.lifecycle.AndroidViewModel
+import androidx.lifecycle.viewModelScope
+import com.kakdela.p2p.data.MessageSearch
+import com.kakdela.p2p.data.local.ChatDatabase
+import com.kakdela.p2p.data.local.MessageSearchHit
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.FlowPreview
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.*
+import kotlinx.coroutines.launch
+
+/**
+ * Поиск по сообщениям: запрос выполняется по мере набора (с задержкой),
+ * результаты догружаются страницами при прокрутке.
+ */
+@OptIn(FlowPreview::class)
+class MessageSearchViewModel(application: Application) : AndroidViewModel(application) {
+
+    private val search = MessageSearch(ChatDatabase.getDatabase(application).messageSearchDao())
+
+    private val _query = MutableStateFlow("")
+    val query: StateFlow<String> = _query.asStateFlow()
+
+    private val _results = MutableStateFlow<List<MessageSearchHit>>(emptyList())
+    val results: StateFlow<List<MessageSearchHit>> = _results.asStateFlow()
+
+    private val _hasMore = MutableStateFlow(false)
+    val hasMore: StateFlow<Boolean> = _hasMore.asStateFlow()
+
+    private val chatId = MutableStateFlow<String?>(null)
+    private var next: MessageSearch.Cursor? = null
+    private var moreJob: Job? = null
+
+    init {
+        viewModelScope.launch(Dispatchers.IO) {
+            combine(_query.debounce(QUERY_DEBOUNCE_MS), chatId) { text, chat -> text to chat }
+                .distinctUntilChanged()
+                .collectLatest { (text, chat) ->
+                    moreJob?.cancel()
+                    val page = search.search(text, chat)
+                    next = page.next
+                    _results.value = page.hits
+                    _hasMore.value = page.next != null
+                }
+        }
+    }
+
+    /**
+     * Ограничивает поиск одним чатом (null — все чаты).
+     */
+    fun setChat(chatId: String?) {
+        this.chatId.value = chatId
+    }
+
+    fun onQueryChange(text: String) {
+        _query.value = text
+    }
+
+    fun loadMore() {
+        val cursor = next ?: return
+        if (moreJob?.isActive == true) return
+        val text = _query.value
+        val chat = chatId.value
+        moreJob = viewModelScope.launch(Dispatchers.IO) {
+            val page = search.search(text, chat, after = cursor)
+            if (text != _query.value) return@launch
+            next = page.next
+            _results.value = _results.value + page.hits
+            _hasMore.value = page.next != null
+        }
+    }
+
+    private companion object {
+        const val QUERY_DEBOUNCE_MS = 150L
+    }
+}
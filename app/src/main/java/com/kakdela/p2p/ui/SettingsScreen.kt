@@ -31,6 +31,7 @@ import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
 import androidx.navigation.NavController
 import coil.compose.AsyncImage
+import com.kakdela.p2p.ai.LlamaSettings
 import com.kakdela.p2p.data.IdentityRepository
 import com.kakdela.p2p.data.local.ChatDatabase
 import com.kakdela.p2p.data.local.NodeEntity
@@ -63,6 +64,8 @@ fun SettingsScreen(
     var isSyncing by remember { mutableStateOf(false) }
     var manualHash by remember { mutableStateOf("") }
     var isAdding by remember { mutableStateOf(false) }
+    var useMmap by remember { mutableStateOf(LlamaSettings.useMmap(context)) }
+    var useMlock by remember { mutableStateOf(LlamaSettings.useMlock(context)) }
 
     // Функция обновления списка узлов из локальной БД
     val loadLocalNodes: () -> Unit = {
@@ -79,7 +82,7 @@ fun SettingsScreen(
         scope.launch {
             isSyncing = true
             try {
-                val serverUsers = identityRepository.fetchAllNodesFromServer()
+                val serverUsers = identityRepository.fetchAllNodesFromServer(force = true)
                 withContext(Dispatchers.Main) {
                     Toast.makeText(context, "Обновлено: ${serverUsers.size} узлов", Toast.LENGTH_SHORT).show()
                 }
@@ -311,9 +314,30 @@ fun SettingsScreen(
                 }
             }
 
+            Spacer(Modifier.height(12.dp))
+
+            // ===== 5. Локальный ИИ =====
+            Card(
+                modifier = Modifier.fillMaxWidth(),
+                colors = CardDefaults.cardColors(containerColor = Color(0xFF111111)),
+                shape = RoundedCornerShape(16.dp)
+            ) {
+                Column(Modifier.padding(horizontal = 16.dp, vertical = 8.dp)) {
+                    Text("Локальная модель (при следующей загрузке)", color = Color.White, fontSize = 14.sp)
+                    SettingSwitch("Отображать файл в память (mmap)", useMmap) {
+                        useMmap = it
+                        LlamaSettings.setUseMmap(context, it)
+                    }
+                    SettingSwitch("Удерживать в RAM (mlock)", useMlock) {
+                        useMlock = it
+                        LlamaSettings.setUseMlock(context, it)
+                    }
+                }
+            }
+
             Spacer(Modifier.height(20.dp))
 
-            // ===== 5. Список контактов =====
+            // ===== 6. Список контактов =====
             Text("Ваша сеть (${nodes.size})", color = Color.Gray, fontSize = 12.sp, modifier = Modifier.align(Alignment.Start))
 
             LazyColumn(modifier = Modifier.weight(1f).fillMaxWidth()) {
@@ -380,3 +404,18 @@ fun SettingsScreen(
         }
     }
 }
+
+@Composable
+private fun SettingSwitch(title: String, checked: Boolean, onChange: (Boolean) -> Unit) {
+    Row(
+        modifier = Modifier.fillMaxWidth(),
+        verticalAlignment = Alignment.CenterVertically
+    ) {
+        Text(title, color = Color.Gray, fontSize = 13.sp, modifier = Modifier.weight(1f))
+        Switch(
+            checked = checked,
+            onCheckedChange = onChange,
+            colors = SwitchDefaults.colors(checkedThumbColor = Color.Black, checkedTrackColor = Color.Cyan)
+        )
+    }
+}
@@ -331,8 +331,7 @@ class CallActivity : ComponentActivity() {
 
     private fun sendCallSignal(subtype: String, payload: String) {
         lifecycleScope.launch(Dispatchers.IO) {
-            val ip = identityRepo.wifiPeers[targetHash]
-                ?: identityRepo.swarmPeers[targetHash]
+            val ip = identityRepo.peerDirectory.liveIp(targetHash)
                 ?: identityRepo.fetchAllNodesFromServer().find { it.hash == targetHash }?.ip
 
             if (ip == null || ip == "0.0.0.0") {
@@ -14,6 +14,7 @@ import androidx.compose.material.icons.filled.CloudOff
 import androidx.compose.material.icons.filled.Download
 import androidx.compose.material.icons.filled.Memory
 import androidx.compose.material.icons.filled.Send
+import androidx.compose.material.icons.filled.Stop
 import androidx.compose.material3.*
 import androidx.compose.runtime.*
 import androidx.compose.ui.Alignment
@@ -39,10 +40,10 @@ fun AiChatScreen(vm: AiChatViewModel = viewModel()) {
     val messages = vm.displayMessages
     val listState = rememberLazyListState()
 
-    // Автоскролл к последнему сообщению
-    LaunchedEffect(messages.size) {
+    // Автоскролл к последнему сообщению (и по мере роста потокового ответа)
+    LaunchedEffect(messages.size, messages.lastOrNull()?.text?.length) {
         if (messages.isNotEmpty()) {
-            listState.animateScrollToItem(messages.size - 1)
+            listState.scrollToItem(messages.size - 1)
         }
     }
 
@@ -85,7 +86,7 @@ fun AiChatScreen(vm: AiChatViewModel = viewModel()) {
                     Spacer(Modifier.height(8.dp))
                 }
 
-                if (vm.isTyping.value) {
+                if (vm.isTyping.value && messages.lastOrNull()?.isMine != false) {
                     item {
                         Text(
                             "Печатает...",
@@ -130,20 +131,28 @@ fun AiChatScreen(vm: AiChatViewModel = viewModel()) {
                         singleLine = true
                     )
                     Spacer(Modifier.width(8.dp))
-                    IconButton(
-                        onClick = {
-                            if (input.isNotBlank()) {
-                                vm.sendMessage(input)
-                                input = ""
-                            }
-                        },
-                        colors = IconButtonDefaults.iconButtonColors(
-                            containerColor = NeonGreen,
-                            disabledContainerColor = Color.Gray
-                        ),
-                        enabled = !vm.isTyping.value
-                    ) {
-                        Icon(Icons.Default.Send, contentDescription = "Send", tint = Color.Black)
+                    if (vm.isTyping.value) {
+                        IconButton(
+                            onClick = { vm.stopGeneration() },
+                            colors = IconButtonDefaults.iconButtonColors(containerColor = NeonPurple)
+                        ) {
+                            Icon(Icons.Default.Stop, contentDescription = "Stop", tint = Color.Black)
+                        }
+                    } else {
+                        IconButton(
+                            onClick = {
+                                if (input.isNotBlank()) {
+                                    vm.sendMessage(input)
+                                    input = ""
+                                }
+                            },
+                            colors = IconButtonDefaults.iconButtonColors(
+                                containerColor = NeonGreen,
+                                disabledContainerColor = Color.Gray
+                            )
+                        ) {
+                            Icon(Icons.Default.Send, contentDescription = "Send", tint = Color.Black)
+                        }
                     }
                 }
             } else {
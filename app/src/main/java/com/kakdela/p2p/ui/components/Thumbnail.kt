@@ -0,0 +1,24 @@
+package com.kakdela.p2p.ui.components
+
+import android.graphics.Bitmap
+import androidx.compose.runtime.Composable
+import androidx.compose.runtime.produceState
+import androidx.compose.runtime.remember
+import androidx.compose.ui.platform.LocalContext
+import com.kakdela.p2p.data.ThumbnailLoader
+import com.kakdela.p2p.data.ThumbnailRequest
+
+/**
+ * Миниатюра через общий [ThumbnailLoader]: из памяти — сразу, иначе после фоновой загрузки.
+ * Элемент, ушедший из композиции (прокрутка), отменяет свой запрос.
+ */
+@Composable
+fun rememberThumbnail(request: ThumbnailRequest?): Bitmap? {
+    val context = LocalContext.current
+    val loader = remember { ThumbnailLoader.get(context) }
+    return produceState(request?.let { loader.cached(it) }, request?.key) {
+        // Состояние переживает смену ключа: сначала убираем картинку прежнего элемента
+        value = request?.let { loader.cached(it) }
+        if (value == null && request != null) value = loader.load(request)
+    }.value
+}
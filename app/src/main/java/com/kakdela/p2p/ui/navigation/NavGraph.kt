@@ -193,11 +193,16 @@ fun NavGraph(
                     vm.initChat(chatId)
                 }
 
-                val messages by vm.messages.collectAsState()
+                val chat by vm.messages.collectAsState()
+                val transfers by vm.transfers.collectAsState()
+                val hasOlder by vm.hasOlder.collectAsState()
+                val hasNewer by vm.hasNewer.collectAsState()
 
                 ChatScreen(
                     chatPartnerId = chatId,
-                    messages = messages,
+                    messages = chat.items,
+                    messagesVersion = chat.version,
+                    transfers = transfers,
                     identityRepository = identityRepository,
                     onSendMessage = vm::sendMessage,
                     onSendFile = vm::sendFile,
@@ -208,6 +213,28 @@ fun NavGraph(
                         )
                     },
                     onScheduleMessage = vm::scheduleMessage,
+                    onBack = { navController.popBackStack() },
+                    hasOlder = hasOlder,
+                    hasNewer = hasNewer,
+                    onLoadOlder = vm::loadOlder,
+                    onLoadNewer = vm::loadNewer,
+                    onSearch = { navController.navigate(Routes.buildSearchRoute(chatId)) }
+                )
+            }
+
+            composable(
+                route = Routes.SEARCH,
+                arguments = listOf(
+                    navArgument("chatId") {
+                        type = NavType.StringType
+                        nullable = true
+                        defaultValue = null
+                    }
+                )
+            ) { entry ->
+                MessageSearchScreen(
+                    chatId = entry.arguments?.getString("chatId"),
+                    onOpenChat = { navController.navigate(Routes.buildChatRoute(it)) },
                     onBack = { navController.popBackStack() }
                 )
             }
@@ -27,6 +27,9 @@ object Routes {
     // Шаблон для NavHost: "chat/{chatId}"
     const val CHAT_DIRECT = "chat/{chatId}"
 
+    // Поиск по сообщениям; chatId необязателен и ограничивает поиск одним чатом
+    const val SEARCH = "search?chatId={chatId}"
+
     // --- ИНСТРУМЕНТЫ (DEALS) ---
     const val CALCULATOR = "calculator"
     const val TEXT_EDITOR = "text_editor"
@@ -54,4 +57,8 @@ object Routes {
     fun buildChatRoute(chatId: String): String {
         return "chat/$chatId"
     }
+
+    fun buildSearchRoute(chatId: String? = null): String {
+        return if (chatId == null) "search" else "search?chatId=$chatId"
+    }
 }
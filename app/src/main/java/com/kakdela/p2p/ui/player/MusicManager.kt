@@ -2,21 +2,45 @@ package com.kakdela.p2p.ui.player
 
 import android.content.ContentUris
 import android.content.Context
-import android.media.MediaPlayer
 import android.net.Uri
 import android.provider.MediaStore
 import androidx.compose.runtime.*
+import androidx.media3.common.Player
 import com.kakdela.p2p.model.AudioTrack
+import com.kakdela.p2p.service.MusicController
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 
+/**
+ * Состояние музыки для Compose-экранов. Играет [com.kakdela.p2p.service.MusicPlaybackService]
+ * через [MusicController]: очередь — весь [tracks], следующий трек буферизуется заранее,
+ * переключение не создаёт и не готовит плеер на главном потоке.
+ */
 object MusicManager {
     var tracks = mutableStateListOf<AudioTrack>()
     var currentIndex by mutableIntStateOf(-1)
+        private set
     var isPlaying by mutableStateOf(false)
-    private var mediaPlayer: MediaPlayer? = null
+        private set
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
 
     val currentTrack: AudioTrack?
         get() = if (currentIndex in tracks.indices) tracks[currentIndex] else null
 
+    init {
+        // Переходы и пауза приходят от сервиса, в том числе из уведомления и PlayerViewModel
+        scope.launch {
+            MusicController.state.collect { state ->
+                val id = state.currentTrack?.id
+                currentIndex = if (id == null) -1 else tracks.indexOfFirst { it.id == id }
+                isPlaying = state.isPlaying
+            }
+        }
+    }
+
     // ✅ Эту функцию вызывает MainActivity
     fun loadTracks(context: Context) {
         val fetched = fetchAudioTracksFromSystem(context)
@@ -26,43 +50,22 @@ object MusicManager {
 
     fun playTrack(context: Context, index: Int) {
         if (index !in tracks.indices) return
-        
-        mediaPlayer?.stop()
-        mediaPlayer?.release()
-        
-        try {
-            mediaPlayer = MediaPlayer.create(context, tracks[index].uri).apply {
-                setOnCompletionListener { playNext(context) }
-                start()
-            }
-            currentIndex = index
-            isPlaying = true
-        } catch (e: Exception) {
-            e.printStackTrace()
-        }
+        // Как и раньше, после последнего трека — снова первый; режим, выбранный в плеере, не сбрасывается
+        MusicController.play(context, tracks.toList(), index, repeatMode = Player.REPEAT_MODE_ALL)
     }
 
     fun togglePlayPause() {
-        if (mediaPlayer == null) return
-        if (isPlaying) {
-            mediaPlayer?.pause()
-            isPlaying = false
-        } else {
-            mediaPlayer?.start()
-            isPlaying = true
-        }
+        MusicController.togglePlayPause()
     }
 
     fun playNext(context: Context) {
         if (tracks.isEmpty()) return
-        val nextIndex = (currentIndex + 1) % tracks.size
-        playTrack(context, nextIndex)
+        if (currentIndex == -1) playTrack(context, 0) else MusicController.next()
     }
 
     fun playPrevious(context: Context) {
         if (tracks.isEmpty()) return
-        val prevIndex = if (currentIndex - 1 < 0) tracks.size - 1 else currentIndex - 1
-        playTrack(context, prevIndex)
+        if (currentIndex == -1) playTrack(context, tracks.size - 1) else MusicController.previous()
     }
 
     // Внутренняя логика сканирования
@@ -1,6 +1,5 @@
 package com.kakdela.p2p.ui.player
 
-import android.annotation.SuppressLint
 import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
@@ -19,7 +18,6 @@ import android.os.Handler
 import android.os.Looper
 import android.provider.MediaStore
 import android.util.Rational
-import android.util.Size
 import android.view.*
 import android.view.animation.AlphaAnimation
 import android.widget.*
@@ -28,6 +26,7 @@ import androidx.activity.result.contract.ActivityResultContracts
 import androidx.core.content.ContextCompat
 import androidx.core.view.WindowInsetsCompat
 import androidx.core.view.WindowInsetsControllerCompat
+import androidx.lifecycle.lifecycleScope
 import androidx.media3.common.*
 import androidx.media3.exoplayer.ExoPlayer
 import androidx.media3.ui.PlayerView
@@ -35,16 +34,23 @@ import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.google.android.material.bottomsheet.BottomSheetDialog
 import com.kakdela.p2p.R
+import com.kakdela.p2p.data.ThumbnailLoader
+import com.kakdela.p2p.data.ThumbnailRequest
 import android.Manifest
 import android.app.PictureInPictureParams
 import android.content.ContentUris
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.text.SimpleDateFormat
 import java.util.*
 
 data class VideoModel(
     val id: Long,
     val title: String,
-    val uri: Uri
+    val uri: Uri,
+    val dateModified: Long = 0L
 )
 
 class VideoPlayerActivity : ComponentActivity() {
@@ -107,6 +113,14 @@ class VideoPlayerActivity : ComponentActivity() {
 
     private var batteryReceiver: BroadcastReceiver? = null
 
+    private val thumbnails by lazy { ThumbnailLoader.get(this) }
+    private var prefetchJob: Job? = null
+
+    companion object {
+        // Список видео живёт дольше активити: при неизменной версии MediaStore повторный запрос не нужен
+        @Volatile private var cachedVideos: Pair<String, List<VideoModel>>? = null
+    }
+
     private val permissionLauncher =
         registerForActivityResult(ActivityResultContracts.RequestPermission()) { granted ->
             if (granted) loadVideos()
@@ -463,47 +477,89 @@ class VideoPlayerActivity : ComponentActivity() {
     }
 
     private fun loadVideos() {
-        val uri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI
-        val projection = arrayOf(MediaStore.Video.Media._ID, MediaStore.Video.Media.DISPLAY_NAME)
-        val cursor = contentResolver.query(uri, projection, null, null, null)
+        lifecycleScope.launch {
+            val videos = withContext(Dispatchers.IO) { queryVideos() }
+
+            playlist.clear()
+            playlist.addAll(videos)
+            player.setMediaItems(videos.map { MediaItem.fromUri(it.uri) })
+
+            if (playlist.isNotEmpty()) {
+                videoTitle.text = playlist[0].title
+                player.prepare()
+                player.playWhenReady = true
+                showControls()
+            }
+        }
+    }
 
-        playlist.clear()
-        player.clearMediaItems()
+    /**
+     * Видео из MediaStore. На Android 11+ версия и поколение MediaStore меняются при любом
+     * изменении медиатеки, поэтому пока они прежние, используется список прошлого запроса.
+     */
+    private fun queryVideos(): List<VideoModel> {
+        val stamp = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            MediaStore.getVersion(this) + ":" + MediaStore.getGeneration(this, MediaStore.VOLUME_EXTERNAL)
+        } else {
+            null
+        }
+        cachedVideos?.let { (cachedStamp, videos) -> if (stamp != null && stamp == cachedStamp) return videos }
 
-        cursor?.use {
+        val uri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI
+        val projection = arrayOf(
+            MediaStore.Video.Media._ID,
+            MediaStore.Video.Media.DISPLAY_NAME,
+            MediaStore.Video.Media.DATE_MODIFIED
+        )
+        val videos = mutableListOf<VideoModel>()
+        contentResolver.query(uri, projection, null, null, null)?.use {
             val idCol = it.getColumnIndexOrThrow(MediaStore.Video.Media._ID)
             val nameCol = it.getColumnIndexOrThrow(MediaStore.Video.Media.DISPLAY_NAME)
+            val modifiedCol = it.getColumnIndexOrThrow(MediaStore.Video.Media.DATE_MODIFIED)
             while (it.moveToNext()) {
                 val id = it.getLong(idCol)
                 val name = it.getString(nameCol)
-                val videoUri = ContentUris.withAppendedId(uri, id)
-                playlist.add(VideoModel(id, name, videoUri))
-                player.addMediaItem(MediaItem.fromUri(videoUri))
+                videos.add(VideoModel(id, name, ContentUris.withAppendedId(uri, id), it.getLong(modifiedCol)))
             }
         }
-
-        if (playlist.isNotEmpty()) {
-            videoTitle.text = playlist[0].title
-            player.prepare()
-            player.playWhenReady = true
-            showControls()
-        }
+        if (stamp != null) cachedVideos = stamp to videos
+        return videos
     }
 
     private fun showPlaylist() {
         val dialog = BottomSheetDialog(this)
         val view = layoutInflater.inflate(R.layout.layout_playlist, null)
         val rv = view.findViewById<RecyclerView>(R.id.rv_playlist)
-        rv.layoutManager = LinearLayoutManager(this)
+        val layoutManager = LinearLayoutManager(this)
+        rv.layoutManager = layoutManager
         rv.adapter = PlaylistAdapter(playlist, currentIndex) { pos ->
             player.seekTo(pos, C.TIME_UNSET)
             player.play()
             dialog.dismiss()
         }
+        // Миниатюры следующего экрана готовятся заранее; новая прокрутка отменяет прежнюю подготовку
+        rv.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            private var prefetchedFrom = -1
+
+            override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+                val first = layoutManager.findFirstVisibleItemPosition()
+                val last = layoutManager.findLastVisibleItemPosition()
+                if (first == RecyclerView.NO_POSITION || last + 1 == prefetchedFrom) return
+                prefetchedFrom = last + 1
+                prefetchThumbnails(last + 1, last - first + 1)
+            }
+        })
+        dialog.setOnDismissListener { prefetchJob?.cancel() }
         dialog.setContentView(view)
         dialog.show()
     }
 
+    private fun prefetchThumbnails(from: Int, count: Int) {
+        val requests = playlist.drop(from).take(count).map { ThumbnailRequest.Video(it.id, it.dateModified) }
+        prefetchJob?.cancel()
+        prefetchJob = lifecycleScope.launch { thumbnails.prefetch(requests) }
+    }
+
     private fun toggleFullscreen() {
         isFullscreen = !isFullscreen
         requestedOrientation = if (isFullscreen) ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE else ActivityInfo.SCREEN_ORIENTATION_PORTRAIT
@@ -534,6 +590,7 @@ class VideoPlayerActivity : ComponentActivity() {
 
     override fun onDestroy() {
         super.onDestroy()
+        prefetchJob?.cancel()
         player.release()
         handler.removeCallbacksAndMessages(null)
         batteryReceiver?.let { unregisterReceiver(it) }
@@ -553,7 +610,6 @@ class VideoPlayerActivity : ComponentActivity() {
         override fun onCreateViewHolder(parent: ViewGroup, viewType: Int) =
             VH(LayoutInflater.from(parent.context).inflate(R.layout.item_video, parent, false))
 
-        @SuppressLint("NewApi")
         override fun onBindViewHolder(holder: VH, pos: Int) {
             val item = list[pos]
             holder.title.text = item.title
@@ -566,17 +622,20 @@ class VideoPlayerActivity : ComponentActivity() {
                 holder.title.setShadowLayer(5f, 0f, 0f, neonCyan)
             }
 
-            val bitmap = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                contentResolver.loadThumbnail(ContentUris.withAppendedId(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, item.id), Size(320, 180), null)
-            } else {
-                @Suppress("DEPRECATION")
-                MediaStore.Video.Thumbnails.getThumbnail(contentResolver, item.id, MediaStore.Video.Thumbnails.MINI_KIND, null)
-            }
-            holder.thumb.setImageBitmap(bitmap)
+            thumbnails.into(
+                holder.thumb,
+                ThumbnailRequest.Video(item.id, item.dateModified),
+                lifecycleScope,
+                android.R.drawable.ic_menu_gallery
+            )
 
             holder.itemView.setOnClickListener { onClick(pos) }
         }
 
+        override fun onViewRecycled(holder: VH) {
+            thumbnails.cancel(holder.thumb)
+        }
+
         override fun getItemCount() = list.size
     }
 }
@@ -3,6 +3,7 @@ package com.kakdela.p2p.ui.screens
 import android.content.Intent
 import android.net.Uri
 import androidx.activity.compose.BackHandler
+import androidx.compose.foundation.Image
 import androidx.compose.foundation.background
 import androidx.compose.foundation.clickable
 import androidx.compose.foundation.gestures.detectDragGesturesAfterLongPress
@@ -10,22 +11,33 @@ import androidx.compose.foundation.horizontalScroll
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.foundation.rememberScrollState
+import androidx.compose.foundation.shape.RoundedCornerShape
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.*
 import androidx.compose.material3.*
 import androidx.compose.runtime.*
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
+import androidx.compose.ui.draw.clip
 import androidx.compose.ui.graphics.Color
+import androidx.compose.ui.graphics.asImageBitmap
 import androidx.compose.ui.input.pointer.pointerInput
+import androidx.compose.ui.layout.ContentScale
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
 import androidx.lifecycle.viewmodel.compose.viewModel
+import com.kakdela.p2p.data.AttachmentStore
+import com.kakdela.p2p.data.ThumbnailLoader
+import com.kakdela.p2p.data.ThumbnailRequest
 import com.kakdela.p2p.model.FileItem
+import com.kakdela.p2p.ui.components.rememberThumbnail
 import com.kakdela.p2p.ui.theme.KakdelaTheme
 import com.kakdela.p2p.viewmodel.FileManagerViewModel
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.launch
 
 @OptIn(ExperimentalMaterial3Api::class)
@@ -39,6 +51,7 @@ fun FileManagerScreen(
     val scrollState = rememberScrollState()
     var searchQuery by remember { mutableStateOf("") }
     var showNewFolderDialog by remember { mutableStateOf(false) }
+    val listState = rememberLazyListState()
 
     // Обработка кнопки "Назад" на устройстве
     BackHandler(enabled = true) {
@@ -127,15 +140,27 @@ fun FileManagerScreen(
                     }
                 }
 
+                val filteredList =
+                    if (searchQuery.isEmpty()) vm.filesList
+                    else vm.filesList.filter {
+                        it.name.contains(searchQuery, ignoreCase = true)
+                    }
+
+                // Миниатюры следующего экрана готовятся заранее; новая прокрутка отменяет прежнюю подготовку
+                LaunchedEffect(listState, filteredList) {
+                    val loader = ThumbnailLoader.get(context)
+                    snapshotFlow {
+                        val visible = listState.layoutInfo.visibleItemsInfo
+                        (visible.lastOrNull()?.index ?: -1) + 1 to visible.size
+                    }.distinctUntilChanged().collectLatest { (from, count) ->
+                        loader.prefetch(filteredList.drop(from).take(count).mapNotNull { it.thumbnailRequest() })
+                    }
+                }
+
                 LazyColumn(
+                    state = listState,
                     modifier = Modifier.fillMaxSize()
                 ) {
-                    val filteredList =
-                        if (searchQuery.isEmpty()) vm.filesList
-                        else vm.filesList.filter {
-                            it.name.contains(searchQuery, ignoreCase = true)
-                        }
-
                     items(filteredList) { item ->
                         FileListItem(
                             item = item,
@@ -231,18 +256,30 @@ fun FileListItem(
             verticalAlignment = Alignment.CenterVertically
         ) {
 
-            Icon(
-                imageVector = if (item.isDirectory)
-                    Icons.Default.Folder
-                else
-                    Icons.Default.Description,
-                contentDescription = null,
-                tint = if (item.isDirectory)
-                    Color(0xFFFF00C8)
-                else
-                    Color(0xFFD700FF),
-                modifier = Modifier.size(32.dp)
-            )
+            val thumbnail = rememberThumbnail(remember(item) { item.thumbnailRequest() })
+            if (thumbnail != null) {
+                Image(
+                    bitmap = thumbnail.asImageBitmap(),
+                    contentDescription = null,
+                    contentScale = ContentScale.Crop,
+                    modifier = Modifier
+                        .size(32.dp)
+                        .clip(RoundedCornerShape(4.dp))
+                )
+            } else {
+                Icon(
+                    imageVector = if (item.isDirectory)
+                        Icons.Default.Folder
+                    else
+                        Icons.Default.Description,
+                    contentDescription = null,
+                    tint = if (item.isDirectory)
+                        Color(0xFFFF00C8)
+                    else
+                        Color(0xFFD700FF),
+                    modifier = Modifier.size(32.dp)
+                )
+            }
 
             Column(
                 modifier = Modifier
@@ -298,6 +335,17 @@ fun FileListItem(
     }
 }
 
+/** Миниатюра нужна только изображениям и видео. */
+private fun FileItem.thumbnailRequest(): ThumbnailRequest? {
+    if (isDirectory) return null
+    val mime = AttachmentStore.guessMime(name) ?: return null
+    return when {
+        mime.startsWith("image/") -> ThumbnailRequest.LocalFile(path, lastModified, isVideo = false)
+        mime.startsWith("video/") -> ThumbnailRequest.LocalFile(path, lastModified, isVideo = true)
+        else -> null
+    }
+}
+
 @Composable
 fun NewFolderDialog(
     onDismiss: () -> Unit,
@@ -11,10 +11,12 @@ import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
 import com.kakdela.p2p.ai.HybridAiEngine
 import com.kakdela.p2p.ai.LlamaBridge
+import com.kakdela.p2p.ai.LlamaStateCache
 import com.kakdela.p2p.ai.ModelDownloadManager
 import com.kakdela.p2p.ai.NetworkUtils
 import com.kakdela.p2p.model.ChatMessage
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
 
 class AiChatViewModel(app: Application) : AndroidViewModel(app) {
@@ -33,6 +35,8 @@ class AiChatViewModel(app: Application) : AndroidViewModel(app) {
     val isModelDownloaded = mutableStateOf(false)
     val isOnline = mutableStateOf(false)
 
+    private var generationJob: Job? = null
+
     init {
         refreshSystemStatus()
     }
@@ -56,7 +60,8 @@ class AiChatViewModel(app: Application) : AndroidViewModel(app) {
             try {
                 val modelFile = ModelDownloadManager.getModelFile(context)
                 if (modelFile.exists()) {
-                    LlamaBridge.init(modelFile.absolutePath)
+                    // Загрузка (mmap) и восстановление системного блока из сохранённого состояния
+                    LlamaStateCache.loadAndWarm(context, modelFile)
                     Log.d("AiVM", "Local Llama initialized")
                 }
             } catch (e: Exception) {
@@ -66,27 +71,49 @@ class AiChatViewModel(app: Application) : AndroidViewModel(app) {
     }
 
     fun sendMessage(text: String) {
-        if (text.isBlank()) return
+        if (text.isBlank() || isTyping.value) return
         
         // Добавляем сообщение юзера сразу
         fullHistory.add(ChatMessage(text = text, isMine = true))
         isTyping.value = true
 
-        viewModelScope.launch {
+        generationJob = viewModelScope.launch {
             val ctx = getApplication<Application>()
             
             // Обновляем статус сети перед запросом
             isOnline.value = NetworkUtils.isNetworkAvailable(ctx)
 
-            // Запрашиваем ответ. 
-            // Это работает параллельно с загрузкой, если есть интернет.
-            val response = HybridAiEngine.getResponse(ctx, text)
-            
-            fullHistory.add(ChatMessage(text = response, isMine = false))
-            isTyping.value = false
+            // Ответ отображается по мере генерации: пузырь ИИ появляется с первым фрагментом
+            // и дополняется на месте. Это работает параллельно с загрузкой, если есть интернет.
+            val answer = StringBuilder()
+            var index = -1
+            try {
+                HybridAiEngine.streamResponse(ctx, text).collect { piece ->
+                    answer.append(piece)
+                    if (index < 0) {
+                        fullHistory.add(ChatMessage(text = answer.toString(), isMine = false))
+                        index = fullHistory.lastIndex
+                    } else {
+                        fullHistory[index] = fullHistory[index].copy(text = answer.toString())
+                    }
+                }
+            } finally {
+                if (index < 0) {
+                    fullHistory.add(ChatMessage(text = if (answer.isEmpty()) "…" else answer.toString(), isMine = false))
+                }
+                isTyping.value = false
+                generationJob = null
+            }
         }
     }
 
+    /**
+     * Останавливает генерацию; уже показанная часть ответа остаётся.
+     */
+    fun stopGeneration() {
+        generationJob?.cancel()
+    }
+
     fun downloadModel() {
         if (isDownloading.value) return // Защита от двойного нажатия
         
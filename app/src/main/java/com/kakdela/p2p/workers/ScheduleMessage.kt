@@ -1,72 +1,92 @@
 package com.kakdela.p2p.workers
 
+import android.app.AlarmManager
+import android.app.PendingIntent
 import android.content.Context
+import android.content.Intent
+import android.os.Build
+import android.util.Log
 import androidx.work.*
-import java.util.concurrent.TimeUnit
+import com.kakdela.p2p.data.local.MessageDao
 
 /**
- * Утилитарная функция для регистрации отложенной отправки сообщения в WorkManager.
- * Гарантирует запуск задачи даже после перезагрузки устройства (Persistence).
- * * Исправлено: использование актуальной константы MIN_BACKOFF_MILLIS из WorkRequest.
+ * ScheduledDispatcher — единый планировщик отложенных сообщений.
+ *
+ * Вместо задачи WorkManager на каждое сообщение держится один будильник AlarmManager
+ * на ближайший срок из БД (MIN(scheduledTime) по индексу). Когда он срабатывает,
+ * запускается один [ScheduledMessageWorker], который отправляет все наступившие сообщения
+ * пачками по чатам и заново взводит будильник на следующий срок.
+ * Таблица messages — единственный источник правды, поэтому после перезагрузки
+ * достаточно вызвать [rearm].
  */
-fun scheduleMessageWork(
-    context: Context,
-    messageId: String,
-    chatId: String,
-    text: String,
-    scheduledTime: Long
-) {
-    // 1. Вычисляем задержку перед выполнением
-    val currentTime = System.currentTimeMillis()
-    val delay = scheduledTime - currentTime
-    
-    // Если время уже наступило или в прошлом, воркер не нужен (отправка идет через Repository напрямую)
-    if (delay <= 0) return
+object ScheduledDispatcher {
 
-    // 2. Формируем входные данные (Input Data)
-    // Ключи строго соответствуют тем, что считывает ScheduledMessageWorker
-    val data = Data.Builder()
-        .putString("messageId", messageId)
-        .putString("chatId", chatId)
-        .putString("text", text)
-        .putLong("scheduledTime", scheduledTime)
-        .build()
+    private const val TAG = "ScheduledDispatcher"
+    private const val WORK_NAME = "scheduled_dispatch"
+    private const val REQUEST_CODE = 7301
 
-    // 3. Устанавливаем ограничения (Constraints)
-    // Не пытаемся отправить, если нет доступа к сети
-    val constraints = Constraints.Builder()
-        .setRequiredNetworkType(NetworkType.CONNECTED)
-        .build()
+    // Тег прежних задач «одно сообщение — один воркер»
+    private const val LEGACY_TAG = "scheduled_msg_tag"
 
-    // 4. Создаем запрос на выполнение задачи (OneTimeWorkRequest)
-    val request = OneTimeWorkRequestBuilder<ScheduledMessageWorker>()
-        .setInitialDelay(delay, TimeUnit.MILLISECONDS)
-        .setInputData(data)
-        .setConstraints(constraints)
-        // Экспоненциальная стратегия повтора при сбоях (например, если пир внезапно ушел в оффлайн)
-        .setBackoffCriteria(
-            BackoffPolicy.EXPONENTIAL,
-            WorkRequest.MIN_BACKOFF_MILLIS, // Исправленная ссылка на константу
-            TimeUnit.MILLISECONDS
-        )
-        .addTag("scheduled_msg_tag") // Общий тег для массовых операций
-        .addTag(messageId)           // Индивидуальный тег для точечного управления
-        .build()
+    /**
+     * Взводит будильник на ближайший срок; если отложенных сообщений нет — снимает его.
+     * Просроченные сообщения (например, после перезагрузки) отправляются сразу.
+     */
+    suspend fun rearm(context: Context, dao: MessageDao) {
+        val next = dao.getNextScheduledTime()
+        val alarmManager = context.getSystemService(AlarmManager::class.java) ?: return
+        val intent = alarmIntent(context)
 
-    // 5. Постановка в очередь уникальной задачи
-    // ExistingWorkPolicy.REPLACE позволяет обновить время отправки, если пользователь его изменил
-    WorkManager.getInstance(context)
-        .enqueueUniqueWork(
-            messageId, // Уникальный идентификатор задачи привязан к ID сообщения
-            ExistingWorkPolicy.REPLACE,
-            request
-        )
-}
+        if (next == null) {
+            alarmManager.cancel(intent)
+            return
+        }
+        if (next <= System.currentTimeMillis()) {
+            alarmManager.cancel(intent)
+            dispatchNow(context)
+            return
+        }
 
-/**
- * Функция для отмены запланированного сообщения.
- * Вызывается, если пользователь удалил сообщение или отредактировал его, превратив в немедленное.
- */
-fun cancelScheduledMessage(context: Context, messageId: String) {
-    WorkManager.getInstance(context).cancelUniqueWork(messageId)
+        val exact = Build.VERSION.SDK_INT < Build.VERSION_CODES.S || alarmManager.canScheduleExactAlarms()
+        if (exact) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next, intent)
+        } else {
+            // Без разрешения на точные будильники система может сдвинуть срабатывание
+            alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next, intent)
+        }
+        Log.d(TAG, "Next scheduled dispatch at $next (exact=$exact)")
+    }
+
+    /**
+     * Ставит в очередь отправку наступивших сообщений. Повторные вызовы, пока воркер
+     * ещё ждёт запуска, не создают новых задач.
+     */
+    fun dispatchNow(context: Context) {
+        val constraints = Constraints.Builder()
+            .setRequiredNetworkType(NetworkType.CONNECTED)
+            .build()
+
+        val request = OneTimeWorkRequestBuilder<ScheduledMessageWorker>()
+            .setConstraints(constraints)
+            .build()
+
+        WorkManager.getInstance(context)
+            .enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.KEEP, request)
+    }
+
+    /**
+     * Снимает задачи, созданные прежним планировщиком: их сообщения и так лежат в БД
+     * со статусом SCHEDULED и будут отправлены диспетчером.
+     */
+    fun cancelLegacyWork(context: Context) {
+        WorkManager.getInstance(context).cancelAllWorkByTag(LEGACY_TAG)
+    }
+
+    private fun alarmIntent(context: Context): PendingIntent =
+        PendingIntent.getBroadcast(
+            context,
+            REQUEST_CODE,
+            Intent(context, ScheduledAlarmReceiver::class.java).setAction(ScheduledAlarmReceiver.ACTION_DISPATCH),
+            PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+        )
 }
@@ -0,0 +1,37 @@
+package com.kakdela.p2p.workers
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import com.kakdela.p2p.data.local.ChatDatabase
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+
+/**
+ * Будильник [ScheduledDispatcher]: по сроку запускает отправку наступивших сообщений,
+ * после перезагрузки устройства заново взводит будильник по данным БД.
+ */
+class ScheduledAlarmReceiver : BroadcastReceiver() {
+
+    override fun onReceive(context: Context, intent: Intent) {
+        when (intent.action) {
+            ACTION_DISPATCH -> ScheduledDispatcher.dispatchNow(context)
+            Intent.ACTION_BOOT_COMPLETED -> {
+                val pending = goAsync()
+                val appContext = context.applicationContext
+                CoroutineScope(Dispatchers.IO).launch {
+                    try {
+                        ScheduledDispatcher.rearm(appContext, ChatDatabase.getDatabase(appContext).messageDao())
+                    } finally {
+                        pending.finish()
+                    }
+                }
+            }
+        }
+    }
+
+    companion object {
+        const val ACTION_DISPATCH = "com.kakdela.p2p.action.SCHEDULED_DISPATCH"
+    }
+}
@@ -4,80 +4,89 @@ import android.content.Context
 import android.util.Log
 import androidx.work.CoroutineWorker
 import androidx.work.WorkerParameters
-import com.kakdela.p2p.data.IdentityRepository
-import com.kakdela.p2p.data.MessageRepository
-import org.koin.core.component.KoinComponent
-import org.koin.core.component.inject
+import com.kakdela.p2p.MyApplication
+import com.kakdela.p2p.data.local.ChatDatabase
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.withContext
 
 /**
- * ScheduledMessageWorker: Воркер для выполнения отложенной отправки сообщений.
- * Работает в фоновом режиме через WorkManager, гарантируя доставку даже после перезагрузки.
- * Реализует логику повторов (Backoff) при отсутствии сети.
+ * ScheduledMessageWorker: отправляет все отложенные сообщения, срок которых наступил.
+ * Запускается [ScheduledDispatcher] по будильнику; за один запуск выбирает наступившие
+ * сообщения, отправляет их пачками (один чат — одна очередь, чаты параллельно) и
+ * взводит будильник на следующий срок.
+ * Неудачные отправки возвращаются в расписание с задержкой, пока от исходного срока
+ * не пройдёт [GIVE_UP_MS]; после этого сообщение получает статус FAILED.
+ * Захваченные сообщения (DISPATCHING) возвращаются в расписание при ошибке или отмене,
+ * а после гибели процесса — при следующем запуске.
  */
 class ScheduledMessageWorker(
     context: Context,
     params: WorkerParameters
-) : CoroutineWorker(context, params), KoinComponent {
-
-    // Инъекция репозиториев через Koin (Production-ready DI)
-    private val messageRepository: MessageRepository by inject()
-    private val identityRepository: IdentityRepository by inject()
+) : CoroutineWorker(context, params) {
 
     override suspend fun doWork(): Result {
-        // 1. Извлечение данных из InputData (синхронизировано с MessageRepository.sendText)
-        val messageId = inputData.getString(KEY_MESSAGE_ID) 
-            ?: return Result.failure().also { Log.e(TAG, "Ошибка: Отсутствует ID сообщения") }
-        
-        val chatId = inputData.getString(KEY_CHAT_ID) 
-            ?: return Result.failure().also { Log.e(TAG, "Ошибка: Отсутствует ID чата") }
-        
-        val text = inputData.getString(KEY_TEXT) 
-            ?: return Result.failure().also { Log.e(TAG, "Ошибка: Отсутствует текст сообщения") }
-
-        Log.d(TAG, "Запуск отложенной отправки для сообщения: $messageId (Попытка: $runAttemptCount)")
+        val dao = ChatDatabase.getDatabase(applicationContext).messageDao()
+        val messageRepository = (applicationContext as MyApplication).identityRepository.messageRepository
+        // Захваченные, но ещё не обработанные: при ошибке или отмене возвращаются в расписание
+        val claimed = LinkedHashSet<String>()
 
         return try {
-            // 2. Получаем актуальные данные о пире непосредственно перед отправкой.
-            // За время ожидания (часы или дни) IP-адрес или номер телефона могли обновиться.
-            val peerNode = identityRepository.getCachedNode(chatId)
-            val receiverPhone = peerNode?.phone
+            val recovered = dao.recoverDispatching()
+            if (recovered > 0) Log.w(TAG, "Recovered $recovered messages claimed by a dead dispatcher")
+
+            var sent = 0
+            var failed = 0
+            while (true) {
+                val now = System.currentTimeMillis()
+                // Сообщения с близким сроком уходят вместе с наступившими
+                val due = dao.getPendingScheduledMessages(now + DUE_SLACK_MS)
+                if (due.isEmpty()) break
 
-            // 3. Выполнение сетевой трансляции через MessageRepository.
-            // Метод performNetworkSend обеспечит E2EE шифрование и выбор UDP или SMS.
-            val isDelivered = messageRepository.performNetworkSend(
-                chatId = chatId,
-                messageId = messageId,
-                payload = text,
-                phone = receiverPhone
-            )
+                // Захват: статус DISPATCHING, чтобы следующий проход их не выбрал
+                val ids = due.map { it.messageId }
+                dao.updateStatuses(ids, "DISPATCHING")
+                claimed.addAll(ids)
 
-            if (isDelivered) {
-                Log.i(TAG, "Отложенное сообщение $messageId успешно отправлено в сеть")
-                Result.success()
-            } else {
-                // Если доставка не удалась (нет сети или пир оффлайн)
-                if (runAttemptCount < MAX_RETRIES) {
-                    Log.w(TAG, "Доставка не удалась. Назначаем повтор через экспоненциальную задержку.")
-                    Result.retry()
-                } else {
-                    Log.e(TAG, "Достигнут лимит попыток для сообщения $messageId. Отмена.")
-                    Result.failure()
+                val results = coroutineScope {
+                    due.groupBy { it.chatId }.map { (chatId, messages) ->
+                        async { messages.zip(messageRepository.sendScheduled(chatId, messages)) }
+                    }.awaitAll().flatten()
                 }
+
+                // Срок отказа — от исходного срока: повторы сдвигают scheduledTime
+                val (retry, expired) = results
+                    .filter { (_, delivered) -> !delivered }
+                    .map { it.first }
+                    .partition { msg -> now - (msg.firstScheduledTime ?: msg.scheduledTime ?: now) < GIVE_UP_MS }
+                if (retry.isNotEmpty()) dao.reschedule(retry.map { it.messageId }, now + RETRY_DELAY_MS)
+                if (expired.isNotEmpty()) dao.updateStatuses(expired.map { it.messageId }, "FAILED")
+                claimed.removeAll(ids.toSet())
+
+                sent += results.count { it.second }
+                failed += results.size - results.count { it.second }
             }
+            if (sent + failed > 0) Log.i(TAG, "Scheduled dispatch: sent=$sent, failed=$failed")
+            Result.success()
         } catch (e: Exception) {
-            Log.e(TAG, "Критическая ошибка выполнения WorkManager: ${e.message}", e)
-            if (runAttemptCount < MAX_RETRIES) Result.retry() else Result.failure()
+            Log.e(TAG, "Критическая ошибка отправки отложенных сообщений: ${e.message}", e)
+            Result.retry()
+        } finally {
+            withContext(NonCancellable) {
+                if (claimed.isNotEmpty()) dao.releaseDispatching(claimed.toList())
+                ScheduledDispatcher.rearm(applicationContext, dao)
+            }
         }
     }
 
     companion object {
         private const val TAG = "ScheduledWorker"
-        private const val MAX_RETRIES = 10 // Увеличено для мессенджера (доставка важна)
 
-        // Константы ключей для передачи данных в OneTimeWorkRequest
-        const val KEY_MESSAGE_ID = "messageId"
-        const val KEY_CHAT_ID = "chatId"
-        const val KEY_TEXT = "text"
-        const val KEY_TIMESTAMP = "scheduledTime"
+        private const val DUE_SLACK_MS = 1_000L
+        private const val RETRY_DELAY_MS = 60_000L
+        // Доставка важна, но сообщение суточной давности уже не «по расписанию»
+        private const val GIVE_UP_MS = 24 * 60 * 60 * 1000L
     }
 }
@@ -0,0 +1,81 @@
+package com.kakdela.p2p.ai
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.ln
+
+class KnowledgeBaseTest {
+
+    @Test
+    fun normalizeIgnoresCaseSpacesAndPunctuation() {
+        assertEquals("что такое dht", KnowledgeBase.normalize("Что такое DHT?"))
+        assertEquals(KnowledgeBase.normalize("Что такое DHT?"), KnowledgeBase.normalize("  что,  такое   dht "))
+        assertEquals("", KnowledgeBase.normalize("?!"))
+    }
+
+    @Test
+    fun buildMatchDropsStopWordsAndStemsLongWords() {
+        assertEquals("приготови* OR борщ", KnowledgeBase.buildMatch("Как приготовить борщ?"))
+        // Короче MIN_TERM — пропускаются, повтор после стемминга — один раз
+        assertEquals("kotl* OR jvm", KnowledgeBase.buildMatch("Kotlin и JVM, kotlin"))
+        assertNull(KnowledgeBase.buildMatch("что это, как так?"))
+    }
+
+    @Test
+    fun buildMatchLimitsTermCount() {
+        val words = (1..20).joinToString(" ") { "w%03d".format(it) }
+        assertEquals(12, KnowledgeBase.buildMatch(words)!!.split(" OR ").size)
+    }
+
+    @Test
+    fun bm25MatchesFormulaForSingleHit() {
+        // Длина строки равна средней: знаменатель tf + K1, остаётся idf * вес колонки
+        val question = matchinfo(rows = 10, avg = intArrayOf(5, 20), lengths = intArrayOf(5, 20),
+            hits = listOf(intArrayOf(1, 3, 2), intArrayOf(0, 0, 0)))
+        assertEquals(2.0 * ln(4.4), KnowledgeBase.bm25(question), 1e-9)
+
+        val answer = matchinfo(rows = 10, avg = intArrayOf(5, 20), lengths = intArrayOf(5, 20),
+            hits = listOf(intArrayOf(0, 0, 0), intArrayOf(1, 3, 2)))
+        assertEquals(ln(4.4), KnowledgeBase.bm25(answer), 1e-9)
+    }
+
+    @Test
+    fun bm25ReadsEveryPhraseAtItsOffset() {
+        val second = matchinfo(rows = 10, avg = intArrayOf(5, 20), lengths = intArrayOf(5, 20),
+            hits = listOf(intArrayOf(0, 0, 0), intArrayOf(0, 0, 0), intArrayOf(1, 3, 2), intArrayOf(0, 0, 0)))
+        assertEquals(2.0 * ln(4.4), KnowledgeBase.bm25(second), 1e-9)
+
+        val both = matchinfo(rows = 10, avg = intArrayOf(5, 20), lengths = intArrayOf(5, 20),
+            hits = listOf(intArrayOf(1, 3, 2), intArrayOf(0, 0, 0), intArrayOf(0, 0, 0), intArrayOf(1, 3, 2)))
+        assertEquals(3.0 * ln(4.4), KnowledgeBase.bm25(both), 1e-9)
+    }
+
+    @Test
+    fun bm25PrefersRareTermsAndShortRows() {
+        fun score(df: Int, length: Int) = KnowledgeBase.bm25(
+            matchinfo(rows = 100, avg = intArrayOf(10, 10), lengths = intArrayOf(length, 10),
+                hits = listOf(intArrayOf(1, df, df), intArrayOf(0, 0, 0)))
+        )
+        assertTrue(score(df = 2, length = 10) > score(df = 50, length = 10))
+        assertTrue(score(df = 2, length = 5) > score(df = 2, length = 40))
+        assertEquals(0.0, KnowledgeBase.bm25(matchinfo(rows = 10, avg = intArrayOf(5, 5),
+            lengths = intArrayOf(5, 5), hits = listOf(intArrayOf(0, 0, 0), intArrayOf(0, 0, 0)))), 0.0)
+    }
+
+    /**
+     * matchinfo 'pcnalx' для двух колонок: [hits] — тройки x по фразам и колонкам
+     * (совпадения в строке, во всех строках, строк с совпадением).
+     */
+    private fun matchinfo(rows: Int, avg: IntArray, lengths: IntArray, hits: List<IntArray>): ByteArray {
+        val columns = avg.size
+        val phrases = hits.size / columns
+        val ints = intArrayOf(phrases, columns, rows) + avg + lengths + hits.flatMap { it.asList() }
+        val buffer = ByteBuffer.allocate(ints.size * 4).order(ByteOrder.nativeOrder())
+        ints.forEach { buffer.putInt(it) }
+        return buffer.array()
+    }
+}
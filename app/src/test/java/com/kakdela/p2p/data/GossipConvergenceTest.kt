@@ -0,0 +1,180 @@
+package com.kakdela.p2p.data
+
+import com.kakdela.p2p.data.local.NodeDigestEntry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.security.MessageDigest
+import kotlin.random.Random
+
+/**
+ * Внутрипроцессная симуляция anti-entropy: узлы обмениваются дайджестами через
+ * [AntiEntropy] и [PeerBudget] так же, как [PeerSyncRepository], а хранилище
+ * повторяет правило NodeDao.mergeNetworkNodes (вставка отсутствующих, обновление более свежих).
+ */
+class GossipConvergenceTest {
+
+    private data class Record(val hash: String, val publicKey: String, val lastSeen: Long)
+
+    private class SimNode(val hash: String, val publicKey: String) {
+        val store = HashMap<String, Record>()
+        val digestBudget = PeerBudget(WINDOW, 1)
+        val deltaBudget = PeerBudget(WINDOW, 2 * MAX_DELTA)
+        val awaitingReply = HashSet<String>()
+
+        fun entries() = store.values.map { NodeDigestEntry(it.hash, it.lastSeen) }
+
+        /** Ответ на дайджест [peer]: записи, которых у него нет. */
+        fun answer(peer: String, filter: BloomFilter, salt: Int): List<Record> =
+            AntiEntropy.missing(entries(), filter, salt, peer, MAX_DELTA).map { store.getValue(it) }
+
+        fun merge(from: String, delta: List<Record>, now: Long): Int {
+            val allowed = deltaBudget.take(from, minOf(delta.size, MAX_DELTA), now)
+            var applied = 0
+            delta.take(allowed).forEach { record ->
+                if (record.hash == hash || !PeerSyncRepository.isKeyOfNode(record.hash, record.publicKey)) return@forEach
+                val current = store[record.hash]
+                if (current == null) {
+                    store[record.hash] = record
+                    applied++
+                } else if (record.lastSeen > current.lastSeen) {
+                    store[record.hash] = current.copy(lastSeen = record.lastSeen)
+                    applied++
+                }
+            }
+            return applied
+        }
+    }
+
+    private class Network(size: Int, seed: Int) {
+        val random = Random(seed)
+        var now = 1_000_000_000L
+        var recordsSent = 0L
+
+        val nodes: List<SimNode> = (0 until size).map { i ->
+            val key = "public-key-$i"
+            SimNode(sha256(key), key)
+        }
+
+        init {
+            // Начальное знание — только о себе и соседях по кольцу
+            nodes.forEachIndexed { i, node ->
+                listOf(i, (i + 1) % size, (i + size - 1) % size).forEach { j ->
+                    val peer = nodes[j]
+                    node.store[peer.hash] = Record(peer.hash, peer.publicKey, now)
+                }
+            }
+        }
+
+        fun node(hash: String) = nodes.first { it.hash == hash }
+
+        /** Полный обмен, как в performGossipSync/handleDigest. */
+        fun exchange(a: SimNode, b: SimNode) {
+            a.awaitingReply.add(b.hash)
+            val saltA = random.nextInt()
+            val digestA = roundTrip(AntiEntropy.digest(a.entries(), saltA))
+            if (b.digestBudget.take(a.hash, 1, now) == 0) return
+
+            val toA = b.answer(a.hash, digestA, saltA)
+            recordsSent += toA.size
+            a.merge(b.hash, toA, now)
+
+            val saltB = random.nextInt()
+            val digestB = roundTrip(AntiEntropy.digest(b.entries(), saltB))
+            if (!a.awaitingReply.remove(b.hash)) return
+            val toB = a.answer(b.hash, digestB, saltB)
+            recordsSent += toB.size
+            b.merge(a.hash, toB, now)
+        }
+
+        fun round() {
+            nodes.forEach { a ->
+                val peer = a.store.keys.filter { it != a.hash }.random(random)
+                exchange(a, node(peer))
+            }
+            now += ROUND_MS
+        }
+
+        fun converged(check: (SimNode) -> Boolean) = nodes.all(check)
+
+        // Дайджест передаётся по сети байтами
+        private fun roundTrip(filter: BloomFilter) = BloomFilter.fromBytes(filter.toBytes())!!
+    }
+
+    @Test
+    fun allNodesLearnAllRecords() {
+        listOf(1, 2, 3).forEach { seed ->
+            val network = Network(NODES, seed)
+            var rounds = 0
+            while (!network.converged { it.store.size == NODES }) {
+                network.round()
+                rounds++
+                assertTrue("seed $seed: no convergence after $rounds rounds", rounds <= MAX_ROUNDS)
+            }
+        }
+    }
+
+    @Test
+    fun fresherRecordSpreadsAndTrafficStops() {
+        val network = Network(NODES, 7)
+        repeat(MAX_ROUNDS) { network.round() }
+        assertTrue(network.converged { it.store.size == NODES })
+
+        // Узел 0 снова в сети — его новый lastSeen должен дойти до всех
+        val origin = network.nodes[0]
+        val fresh = network.now + 5 * AntiEntropy.TIME_BUCKET
+        origin.store[origin.hash] = origin.store.getValue(origin.hash).copy(lastSeen = fresh)
+
+        var rounds = 0
+        while (!network.converged { it.store.getValue(origin.hash).lastSeen == fresh }) {
+            network.round()
+            rounds++
+            assertTrue("update did not spread after $rounds rounds", rounds <= MAX_ROUNDS)
+        }
+
+        // У Bloom-фильтра нет ложных отрицаний: сошедшаяся сеть обменивается только дайджестами
+        network.recordsSent = 0
+        network.round()
+        assertEquals(0L, network.recordsSent)
+    }
+
+    @Test
+    fun forgedKeysAreRejected() {
+        val network = Network(4, 11)
+        val victim = network.nodes[0]
+        val stranger = sha256("public-key-stranger")
+        val forged = listOf(
+            Record(stranger, "attacker-key", network.now),
+            Record(network.nodes[2].hash, "attacker-key", network.now + ROUND_MS)
+        )
+
+        assertEquals(0, victim.merge(network.nodes[1].hash, forged, network.now))
+        assertFalse(victim.store.containsKey(stranger))
+    }
+
+    @Test
+    fun digestFloodIsAnsweredOncePerWindow() {
+        val budget = PeerBudget(WINDOW, 1)
+        val now = 5_000_000L
+        val answered = (0 until 100).count { budget.take("flooder", 1, now + it) > 0 }
+        assertEquals(1, answered)
+        assertEquals(1, budget.take("flooder", 1, now + WINDOW))
+
+        val deltas = PeerBudget(WINDOW, 2 * MAX_DELTA)
+        val accepted = (0 until 50).sumOf { deltas.take("flooder", MAX_DELTA, now) }
+        assertEquals(2 * MAX_DELTA, accepted)
+    }
+
+    private companion object {
+        const val NODES = 64
+        const val MAX_ROUNDS = 20
+        const val MAX_DELTA = 64
+        const val WINDOW = 30_000L
+        const val ROUND_MS = 60_000L
+
+        fun sha256(text: String): String =
+            MessageDigest.getInstance("SHA-256").digest(text.toByteArray(Charsets.UTF_8))
+                .joinToString("") { "%02x".format(it) }
+    }
+}
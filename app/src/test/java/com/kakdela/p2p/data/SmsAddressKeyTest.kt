@@ -0,0 +1,21 @@
+package com.kakdela.p2p.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class SmsAddressKeyTest {
+
+    @Test
+    fun nationalFormsShareOneKey() {
+        val key = SmsMirror.normalizeAddress("9161234567")
+        listOf("+7 916 123-45-67", "89161234567", "7 (916) 123 45 67", "916-123-4567").forEach {
+            assertEquals(it, key, SmsMirror.normalizeAddress(it))
+        }
+    }
+
+    @Test
+    fun shortCodesAndNamesStayAsIs() {
+        assertEquals("900", SmsMirror.normalizeAddress("900"))
+        assertEquals("bank", SmsMirror.normalizeAddress(" Bank "))
+    }
+}